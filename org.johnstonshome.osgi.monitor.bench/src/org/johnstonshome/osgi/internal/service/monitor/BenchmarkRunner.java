@@ -0,0 +1,131 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minimal throughput harness. An operation is run in batches by a number
+ * of threads, first for a warm-up period whose results are discarded and 
+ * then for a measured period. Threads only check whether to stop between 
+ * batches, so a batch should take well under a millisecond unless the 
+ * operation itself is long.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class BenchmarkRunner {
+
+	/**
+	 * The code being measured.
+	 */
+	interface Operation {
+		/**
+		 * Perform the operation <code>count</code> times.
+		 * 
+		 * @param thread the index of the calling thread.
+		 * @param count the number of times to perform the operation.
+		 */
+		void run(int thread, int count) throws Exception;
+	}
+	
+	/**
+	 * The measurement of one benchmark at one thread count.
+	 */
+	static final class Result {
+		final String benchmark;
+		final String parameters;
+		final int threads;
+		final long operations;
+		final long nanos;
+		
+		Result(String benchmark, String parameters, int threads, long operations, long nanos) {
+			this.benchmark = benchmark;
+			this.parameters = parameters;
+			this.threads = threads;
+			this.operations = operations;
+			this.nanos = nanos;
+		}
+		
+		double getOperationsPerSecond() {
+			return this.operations / (this.nanos / (double)TimeUnit.SECONDS.toNanos(1));
+		}
+		
+		/*
+		 * The average latency seen by each thread.
+		 */
+		double getNanosPerOperation() {
+			return this.operations == 0 ? 0.0 : (this.nanos * (double)this.threads) / this.operations;
+		}
+	}
+	
+	private final long warmup;
+	private final long measure;
+	
+	private volatile boolean running = false;
+	
+	BenchmarkRunner(long warmupMillis, long measureMillis) {
+		this.warmup = warmupMillis;
+		this.measure = measureMillis;
+	}
+	
+	Result run(String benchmark, String parameters, int threads, int batch, Operation operation) throws Exception {
+		measure(threads, batch, operation, this.warmup);
+		long[] result = measure(threads, batch, operation, this.measure);
+		return new Result(benchmark, parameters, threads, result[0], result[1]);
+	}
+	
+	private long[] measure(final int threads, final int batch, final Operation operation, long millis) 
+			throws Exception {
+		final long[] counts = new long[threads];
+		final Exception[] failures = new Exception[threads];
+		final CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		this.running = true;
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						barrier.await();
+						long count = 0;
+						while (BenchmarkRunner.this.running) {
+							operation.run(index, batch);
+							count += batch;
+						}
+						counts[index] = count;
+					} catch (Exception e) {
+						failures[index] = e;
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "Benchmark " + index); //$NON-NLS-1$
+			thread.setDaemon(true);
+			thread.start();
+		}
+		barrier.await();
+		long start = System.nanoTime();
+		Thread.sleep(millis);
+		this.running = false;
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		long total = 0;
+		for (int t = 0; t < threads; t++) {
+			if (failures[t] != null) {
+				throw failures[t];
+			}
+			total += counts[t];
+		}
+		return new long[] { total, elapsed };
+	}
+}
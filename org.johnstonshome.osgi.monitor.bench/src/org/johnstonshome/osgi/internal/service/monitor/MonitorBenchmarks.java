@@ -0,0 +1,487 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorListener;
+
+/**
+ * <p>
+ * Benchmarks for the monitor implementations, measuring:
+ * </p>
+ * <ul>
+ *   <li>the throughput of recording into each monitor type, from one thread
+ *       up to the number of processors;</li>
+ *   <li>the cost of an update on a signalling monitor with 0, 1 and 10 
+ *       listeners registered;</li>
+ *   <li>the cost of looking a monitor up in the registry;</li>
+ *   <li>the time to scrape 1k, 10k and 100k monitors as JSON and as 
+ *       Prometheus text;</li>
+ *   <li>the overhead of timing a service call through a proxy, against a
+ *       direct call and a proxy that does not time.</li>
+ * </ul>
+ * <p>
+ * Results are written to standard out as CSV and, if a file is given, as a
+ * JSON document so that runs can be compared between builds.
+ * </p>
+ * <pre>
+ * java MonitorBenchmarks [-warmup ms] [-time ms] [-threads n] [-only prefix] [-json file]
+ * </pre>
+ * 
+ * @author Simon Johnston
+ *
+ */
+public class MonitorBenchmarks {
+
+	private static final String HEADER = "benchmark,parameters,threads,operations,ns_per_op,ops_per_sec"; //$NON-NLS-1$
+	private static final String LINE = "%s,%s,%d,%d,%.2f,%.0f"; //$NON-NLS-1$
+	
+	private static final int BATCH = 1000;
+	private static final int[] LISTENERS = { 0, 1, 10 };
+	private static final int[] REGISTRY_SIZES = { 1000, 10000, 100000 };
+	private static final int[] SCRAPE_SIZES = { 1000, 10000, 100000 };
+	private static final long SCRAPE_HISTOGRAM_RANGE = 1000000;
+	
+	/*
+	 * Items for the top-k benchmark, skewed so that low numbered items 
+	 * occur most often.
+	 */
+	private static final String[] TOP_ITEMS = new String[4096];
+	
+	static {
+		for (int i = 0; i < TOP_ITEMS.length; i++) {
+			TOP_ITEMS[i] = "item" + (i * i / TOP_ITEMS.length); //$NON-NLS-1$
+		}
+	}
+	
+	private final BenchmarkRunner runner;
+	private final int maxThreads;
+	private final String only;
+	private final List<BenchmarkRunner.Result> results = new ArrayList<BenchmarkRunner.Result>();
+	
+	/*
+	 * Written by lookups so that they cannot be optimized away.
+	 */
+	static volatile Object sink;
+	
+	MonitorBenchmarks(BenchmarkRunner runner, int maxThreads, String only) {
+		this.runner = runner;
+		this.maxThreads = maxThreads;
+		this.only = only;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		long warmup = 1000;
+		long time = 2000;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String only = null;
+		String json = null;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if ("-warmup".equals(args[i])) { //$NON-NLS-1$
+				warmup = Long.parseLong(args[i + 1]);
+			} else if ("-time".equals(args[i])) { //$NON-NLS-1$
+				time = Long.parseLong(args[i + 1]);
+			} else if ("-threads".equals(args[i])) { //$NON-NLS-1$
+				threads = Integer.parseInt(args[i + 1]);
+			} else if ("-only".equals(args[i])) { //$NON-NLS-1$
+				only = args[i + 1];
+			} else if ("-json".equals(args[i])) { //$NON-NLS-1$
+				json = args[i + 1];
+			} else {
+				throw new IllegalArgumentException(args[i]);
+			}
+		}
+		MonitorBenchmarks benchmarks = new MonitorBenchmarks(new BenchmarkRunner(warmup, time), threads, only);
+		System.out.println(HEADER);
+		benchmarks.record();
+		benchmarks.listeners();
+		benchmarks.registry();
+		benchmarks.scrape();
+		benchmarks.proxy();
+		if (json != null) {
+			OutputStream output = new FileOutputStream(json);
+			try {
+				benchmarks.writeJSON(output);
+			} finally {
+				output.close();
+			}
+		}
+	}
+	
+	private boolean selected(String benchmark) {
+		return this.only == null || benchmark.startsWith(this.only);
+	}
+	
+	private void run(String benchmark, String parameters, int threads, int batch, BenchmarkRunner.Operation operation) 
+			throws Exception {
+		if (!selected(benchmark)) {
+			return;
+		}
+		BenchmarkRunner.Result result = this.runner.run(benchmark, parameters, threads, batch, operation);
+		this.results.add(result);
+		System.out.println(String.format(LINE, 
+				result.benchmark, 
+				result.parameters, 
+				result.threads, 
+				result.operations, 
+				result.getNanosPerOperation(), 
+				result.getOperationsPerSecond()));
+	}
+	
+	private List<Integer> threadCounts() {
+		List<Integer> counts = new ArrayList<Integer>();
+		for (int threads = 1; threads < this.maxThreads; threads *= 2) {
+			counts.add(Integer.valueOf(threads));
+		}
+		counts.add(Integer.valueOf(this.maxThreads));
+		return counts;
+	}
+	
+	/*
+	 * Record throughput, single threaded and contended.
+	 */
+	void record() throws Exception {
+		for (Integer threads : threadCounts()) {
+			final CounterImpl counter = new CounterImpl();
+			run("record.counter", "", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					for (int i = 0; i < count; i++) {
+						counter.increment();
+					}
+				}
+			});
+			final StripedCounterImpl striped = new StripedCounterImpl();
+			run("record.counter.striped", "", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					for (int i = 0; i < count; i++) {
+						striped.increment();
+					}
+				}
+			});
+			final StatisticImpl statistic = new StatisticImpl();
+			run("record.statistic", "", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					for (int i = 0; i < count; i++) {
+						statistic.addValue(i);
+					}
+				}
+			});
+			final TimerStatisticImpl timer = new TimerStatisticImpl();
+			run("record.timer", "", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					/*
+					 * A steady spread of durations, so that after the first
+					 * few no timing is slow enough to be an exemplar.
+					 */
+					long now = System.nanoTime();
+					for (int i = 0; i < count; i++) {
+						timer.record(i & 1023, now, null);
+					}
+				}
+			});
+			final HistogramImpl histogram = new HistogramImpl();
+			run("record.histogram", "", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					for (int i = 0; i < count; i++) {
+						histogram.recordValue(i);
+					}
+				}
+			});
+			final DistinctCounterImpl distinct = new DistinctCounterImpl();
+			run("record.distinct", "", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					for (int i = 0; i < count; i++) {
+						distinct.add(i);
+					}
+				}
+			});
+			final TopKImpl top = new TopKImpl(20);
+			run("record.topk", "k=20", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					for (int i = 0; i < count; i++) {
+						top.add(TOP_ITEMS[(i + thread * 997) & (TOP_ITEMS.length - 1)]);
+					}
+				}
+			});
+			final CallTreeImpl calls = new CallTreeImpl();
+			run("record.calltree", "depth=2", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					/*
+					 * Each operation is one span, half of them nested.
+					 */
+					for (int i = 0; i < count; i += 2) {
+						calls.enter("request"); //$NON-NLS-1$
+						calls.enter(TOP_ITEMS[i & 7]);
+						calls.exit();
+						calls.exit();
+					}
+				}
+			});
+		}
+	}
+	
+	/*
+	 * The cost of an update on a signalling counter, delivered through the
+	 * listener service.
+	 */
+	void listeners() throws Exception {
+		for (int listeners : LISTENERS) {
+			MonitorListenerServiceImpl service = new MonitorListenerServiceImpl(null);
+			for (int i = 0; i < listeners; i++) {
+				/*
+				 * Distinct instances, the service ignores duplicates.
+				 */
+				service.addMonitorListener(new MonitorListener() {
+					@Override
+					public void monitorCreated(Monitor monitor) { }
+					@Override
+					public void monitorRemoved(Monitor monitor) { }
+					@Override
+					public void monitorUpdated(Monitor monitor) { 
+						sink = monitor;
+					}
+				});
+			}
+			final CounterImpl counter = new CounterImpl();
+			counter.setListener(service);
+			run("listener.fanout", "listeners=" + listeners, 1, BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					for (int i = 0; i < count; i++) {
+						counter.increment();
+					}
+				}
+			});
+		}
+	}
+	
+	/*
+	 * Lookup of existing monitors by group and name.
+	 */
+	void registry() throws Exception {
+		for (int size : REGISTRY_SIZES) {
+			final MonitorRegistry registry = new MonitorRegistry();
+			final List<Monitor> monitors = createMonitors(size);
+			for (Monitor monitor : monitors) {
+				registry.put(monitor);
+			}
+			for (Integer threads : threadCounts()) {
+				/*
+				 * Each thread walks the monitors from a different start.
+				 */
+				final int[] positions = new int[threads.intValue()];
+				for (int t = 0; t < positions.length; t++) {
+					positions[t] = (t * 7919) % size;
+				}
+				run("registry.get", "monitors=" + size, threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+					@Override
+					public void run(int thread, int count) {
+						int index = positions[thread];
+						Object found = null;
+						for (int i = 0; i < count; i++) {
+							Monitor monitor = monitors.get(index);
+							found = registry.get(monitor.getGroup(), monitor.getName());
+							if (++index == monitors.size()) {
+								index = 0;
+							}
+						}
+						positions[thread] = index;
+						sink = found;
+					}
+				});
+			}
+		}
+	}
+	
+	/*
+	 * A complete scrape of all monitors.
+	 */
+	void scrape() throws Exception {
+		for (int size : SCRAPE_SIZES) {
+			final List<Monitor> monitors = createMonitors(size);
+			run("scrape.json", "monitors=" + size, 1, 1, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) throws IOException {
+					for (int i = 0; i < count; i++) {
+						MonitorServlet.write(monitors, null, null, new JSONWriter(NullOutputStream.INSTANCE));
+					}
+				}
+			});
+			final PrometheusServlet prometheus = new PrometheusServlet(null);
+			run("scrape.prometheus", "monitors=" + size, 1, 1, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) throws IOException {
+					for (int i = 0; i < count; i++) {
+						/*
+						 * Change one monitor in a hundred between scrapes.
+						 */
+						for (int j = 0; j < monitors.size(); j += 100) {
+							((CounterImpl)monitors.get(j)).increment();
+						}
+						prometheus.write(monitors, NullOutputStream.INSTANCE);
+					}
+				}
+			});
+		}
+	}
+	
+	/*
+	 * The service used to measure the overhead of timed proxies.
+	 */
+	interface Echo {
+		int echo(int value);
+	}
+	
+	private static final class EchoImpl implements Echo {
+		@Override
+		public int echo(int value) {
+			return value;
+		}
+	}
+	
+	/*
+	 * A direct service call, a call through a proxy that does not time and 
+	 * a call through a timing proxy.
+	 */
+	void proxy() throws Exception {
+		final Echo direct = new EchoImpl();
+		Map<Method, TimedServiceHandler.MethodTimer> none = Collections.emptyMap();
+		final Echo untimed = (Echo)Proxy.newProxyInstance(
+				Echo.class.getClassLoader(), 
+				new Class<?>[] { Echo.class }, 
+				new TimedServiceHandler(direct, none));
+		Map<Method, TimedServiceHandler.MethodTimer> timers = new HashMap<Method, TimedServiceHandler.MethodTimer>();
+		Method method = Echo.class.getMethod("echo", int.class); //$NON-NLS-1$
+		method.setAccessible(true);
+		timers.put(method, new TimedServiceHandler.MethodTimer(
+				method, new CounterImpl(), new CounterImpl(), new HistogramImpl()));
+		final Echo timed = (Echo)Proxy.newProxyInstance(
+				Echo.class.getClassLoader(), 
+				new Class<?>[] { Echo.class }, 
+				new TimedServiceHandler(direct, timers));
+		for (Integer threads : threadCounts()) {
+			run("proxy.direct", "", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					int total = 0;
+					for (int i = 0; i < count; i++) {
+						total += direct.echo(i);
+					}
+					sink = Integer.valueOf(total);
+				}
+			});
+			run("proxy.untimed", "", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					int total = 0;
+					for (int i = 0; i < count; i++) {
+						total += untimed.echo(i);
+					}
+					sink = Integer.valueOf(total);
+				}
+			});
+			run("proxy.timed", "", threads.intValue(), BATCH, new BenchmarkRunner.Operation() { //$NON-NLS-1$ //$NON-NLS-2$
+				@Override
+				public void run(int thread, int count) {
+					int total = 0;
+					for (int i = 0; i < count; i++) {
+						total += timed.echo(i);
+					}
+					sink = Integer.valueOf(total);
+				}
+			});
+		}
+	}
+	
+	/*
+	 * A mix of counters, statistics, timers and histograms with values, the
+	 * histograms track a smaller range than the default to keep 100k 
+	 * monitors within a modest heap.
+	 */
+	static List<Monitor> createMonitors(int size) {
+		List<Monitor> monitors = new ArrayList<Monitor>(size);
+		for (int i = 0; i < size; i++) {
+			MonitorImpl monitor;
+			switch (i % 4) {
+			case 0:
+				monitor = new CounterImpl();
+				((CounterImpl)monitor).increment(i);
+				break;
+			case 1:
+				monitor = new StatisticImpl();
+				((StatisticImpl)monitor).addValue(i);
+				break;
+			case 2:
+				monitor = new TimerStatisticImpl();
+				((TimerStatisticImpl)monitor).record(i, System.nanoTime(), null);
+				break;
+			default:
+				monitor = new HistogramImpl(SCRAPE_HISTOGRAM_RANGE, 2);
+				((HistogramImpl)monitor).recordValue(i);
+			}
+			monitor.setGroup("group" + (i / 100)); //$NON-NLS-1$
+			monitor.setName("monitor" + i); //$NON-NLS-1$
+			monitors.add(monitor);
+		}
+		return monitors;
+	}
+	
+	void writeJSON(OutputStream output) throws IOException {
+		JSONWriter json = new JSONWriter(output);
+		json.beginObject();
+		json.name("java").value(System.getProperty("java.version")); //$NON-NLS-1$ //$NON-NLS-2$
+		json.name("processors").value(Runtime.getRuntime().availableProcessors()); //$NON-NLS-1$
+		json.name("results").beginArray(); //$NON-NLS-1$
+		for (BenchmarkRunner.Result result : this.results) {
+			json.beginObject();
+			json.name("benchmark").value(result.benchmark); //$NON-NLS-1$
+			json.name("parameters").value(result.parameters); //$NON-NLS-1$
+			json.name("threads").value(result.threads); //$NON-NLS-1$
+			json.name("operations").value(result.operations); //$NON-NLS-1$
+			json.name("ns_per_op").value(result.getNanosPerOperation()); //$NON-NLS-1$
+			json.name("ops_per_sec").value(result.getOperationsPerSecond()); //$NON-NLS-1$
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+		json.flush();
+	}
+	
+	/*
+	 * Discards output, so that scrapes measure encoding only.
+	 */
+	private static final class NullOutputStream extends OutputStream {
+		static final NullOutputStream INSTANCE = new NullOutputStream();
+		
+		@Override
+		public void write(int b) { }
+		
+		@Override
+		public void write(byte[] b, int offset, int length) { }
+	}
+}
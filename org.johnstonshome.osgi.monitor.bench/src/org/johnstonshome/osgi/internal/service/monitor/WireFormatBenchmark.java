@@ -0,0 +1,144 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+
+/**
+ * Compares the size and cost of shipping a set of monitors as JSON (as 
+ * written by the monitor servlet) with the binary wire format, for a stream
+ * of snapshots in which a given fraction of the monitors change between 
+ * snapshots. Each binary snapshot is decoded and checked against the 
+ * original. Results are written to standard out as CSV.
+ * 
+ * <pre>
+ * java WireFormatBenchmark [monitors] [changed-percent] [snapshots]
+ * </pre>
+ * 
+ * @author Simon Johnston
+ *
+ */
+public class WireFormatBenchmark {
+
+	private static final String HEADER = "format,monitors,changed_percent,snapshots,bytes_per_snapshot,encode_ns,decode_ns"; //$NON-NLS-1$
+	private static final String LINE = "%s,%d,%d,%d,%d,%d,%d"; //$NON-NLS-1$
+	
+	private static final int WARMUP = 50;
+	
+	public static void main(String[] args) throws IOException {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int changed = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int snapshots = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		
+		List<Monitor> monitors = createMonitors(size);
+		Random random = new Random(size);
+		
+		System.out.println(HEADER);
+		for (int round = 0; round < 2; round++) {
+			int count = round == 0 ? WARMUP : snapshots;
+			long jsonBytes = 0;
+			long jsonNanos = 0;
+			long wireBytes = 0;
+			long encodeNanos = 0;
+			long decodeNanos = 0;
+			WireEncoder encoder = new WireEncoder();
+			WireDecoder decoder = new WireDecoder();
+			for (int i = 0; i < count; i++) {
+				update(monitors, changed, random);
+				
+				ByteArrayOutputStream json = new ByteArrayOutputStream(size * 256);
+				long start = System.nanoTime();
+				MonitorServlet.write(monitors, null, null, new JSONWriter(json));
+				jsonNanos += System.nanoTime() - start;
+				jsonBytes += json.size();
+				
+				start = System.nanoTime();
+				MonitorSnapshot snapshot = MonitorSnapshotImpl.capture(monitors, System.currentTimeMillis());
+				ByteBuffer encoded = encoder.encode(snapshot);
+				encodeNanos += System.nanoTime() - start;
+				wireBytes += encoded.remaining();
+				
+				start = System.nanoTime();
+				MonitorSnapshot decoded = decoder.decode(encoded);
+				decodeNanos += System.nanoTime() - start;
+				verify(snapshot, decoded);
+			}
+			if (round > 0) {
+				System.out.println(String.format(LINE, "json", size, changed, count, //$NON-NLS-1$
+						jsonBytes / count, jsonNanos / count, 0));
+				System.out.println(String.format(LINE, "wire", size, changed, count, //$NON-NLS-1$
+						wireBytes / count, encodeNanos / count, decodeNanos / count));
+			}
+		}
+	}
+	
+	private static List<Monitor> createMonitors(int size) {
+		List<Monitor> monitors = new ArrayList<Monitor>(size);
+		for (int i = 0; i < size; i++) {
+			MonitorImpl monitor;
+			switch (i % 3) {
+			case 0:
+				monitor = new CounterImpl();
+				break;
+			case 1:
+				monitor = new StatisticImpl();
+				break;
+			default:
+				monitor = new TimerStatisticImpl();
+			}
+			monitor.setGroup("group" + (i / 100)); //$NON-NLS-1$
+			monitor.setName("monitor" + i); //$NON-NLS-1$
+			monitors.add(monitor);
+		}
+		return monitors;
+	}
+	
+	private static void update(List<Monitor> monitors, int percent, Random random) {
+		int count = monitors.size() * percent / 100;
+		for (int i = 0; i < count; i++) {
+			Monitor monitor = monitors.get(random.nextInt(monitors.size()));
+			long value = random.nextInt(100000);
+			if (monitor instanceof CounterImpl) {
+				((CounterImpl)monitor).increment(value);
+			} else if (monitor instanceof StatisticImpl) {
+				((StatisticImpl)monitor).addValue(value);
+			} else {
+				((TimerStatisticImpl)monitor).record(value, System.nanoTime(), null);
+			}
+		}
+	}
+	
+	private static void verify(MonitorSnapshot expected, MonitorSnapshot actual) {
+		if (actual == null || actual.size() != expected.size()) {
+			throw new IllegalStateException("Decoded snapshot is incomplete"); //$NON-NLS-1$
+		}
+		for (int i = 0; i < expected.size(); i++) {
+			int j = i;
+			if (!actual.getName(j).equals(expected.getName(i)) || !actual.getGroup(j).equals(expected.getGroup(i))) {
+				j = actual.indexOf(expected.getGroup(i), expected.getName(i));
+			}
+			if (j < 0 || actual.getType(j) != expected.getType(i)) {
+				throw new IllegalStateException("Decoded monitor is missing"); //$NON-NLS-1$
+			}
+			for (int field = 0; field < MonitorSnapshot.FIELDS; field++) {
+				if (actual.get(j, field) != expected.get(i, field)) {
+					throw new IllegalStateException("Decoded value is wrong"); //$NON-NLS-1$
+				}
+			}
+		}
+	}
+}
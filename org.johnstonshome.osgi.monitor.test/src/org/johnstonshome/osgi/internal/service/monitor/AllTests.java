@@ -0,0 +1,28 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+/**
+ * Create test suite for all the monitor classes.
+ * 
+ * @author Simon Johnston (simon@johnstonshome.org)
+ *
+ */
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+	MonitorEvictionTests.class,
+	MonitorSnapshotTests.class,
+	WireFormatTests.class
+})
+public class AllTests {
+	// nothing further required
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * Test suite for the eviction of idle monitors by the
+ * {@link MonitorServiceImpl} class.
+ * 
+ * @author Simon Johnston (simon@johnstonshome.org)
+ *
+ */
+public class MonitorEvictionTests {
+
+	private static final String GROUP = "test"; //$NON-NLS-1$
+
+	private MonitorServiceImpl service = null;
+	private RecordingListener listener = null;
+
+	/*
+	 * Records the events delivered to a listener.
+	 */
+	private static final class RecordingListener implements MonitorListener {
+		final List<Monitor> created = new ArrayList<Monitor>();
+		final List<Monitor> updated = new ArrayList<Monitor>();
+		final List<Monitor> removed = new ArrayList<Monitor>();
+
+		@Override
+		public void monitorCreated(Monitor monitor) {
+			this.created.add(monitor);
+		}
+
+		@Override
+		public void monitorUpdated(Monitor monitor) {
+			this.updated.add(monitor);
+		}
+
+		@Override
+		public void monitorRemoved(Monitor monitor) {
+			this.removed.add(monitor);
+		}
+	}
+
+	/*
+	 * Answers calls on the framework interfaces the service uses, keeping
+	 * any service it registers.
+	 */
+	private static final class Framework implements InvocationHandler {
+		final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+		final Hashtable<String, Object> services = new Hashtable<String, Object>();
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("getProperties")) { //$NON-NLS-1$
+				return this.properties;
+			} else if (name.equals("getBundleContext")) { //$NON-NLS-1$
+				return create(BundleContext.class);
+			} else if (name.equals("registerService")) { //$NON-NLS-1$
+				this.services.put((String)args[0], args[1]);
+				return create(ServiceRegistration.class);
+			}
+			return null;
+		}
+
+		<T> T create(Class<T> type) {
+			return type.cast(Proxy.newProxyInstance(
+					MonitorEvictionTests.class.getClassLoader(),
+					new Class<?>[] { type },
+					this));
+		}
+	}
+
+	@Before
+	public void activate() {
+		Framework framework = new Framework();
+		/*
+		 * Keep the scheduler from running a snapshot during a test.
+		 */
+		framework.properties.put(MonitorServiceImpl.PROP_SNAPSHOT_INTERVAL, "3600000"); //$NON-NLS-1$
+		this.service = new MonitorServiceImpl();
+		this.service.bindLog(framework.create(LogService.class));
+		this.service.activate(framework.create(ComponentContext.class));
+		this.listener = new RecordingListener();
+		((MonitorListenerServiceImpl)framework.services.get(MonitorListenerServiceImpl.class.getName()))
+			.addMonitorListener(this.listener);
+	}
+
+	@After
+	public void deactivate() {
+		this.service.deactivate(null);
+		this.service = null;
+	}
+
+	@Test
+	public void testUpdateRevivesEvicted() {
+		Counter counter = this.service.createCounter(GROUP, "revived", true); //$NON-NLS-1$
+		Monitor monitor = (Monitor)counter;
+		assertTrue(this.service.evictMonitor(monitor));
+		assertNull(this.service.getMonitor(monitor.getKey()));
+		assertEquals(1, this.listener.removed.size());
+
+		counter.increment();
+		assertSame(monitor, this.service.getMonitor(monitor.getKey()));
+		assertEquals(2, this.listener.created.size());
+		assertSame(monitor, this.listener.created.get(1));
+		/* the update that revived the monitor is also signalled */
+		assertEquals(1, this.listener.updated.size());
+		assertSame(monitor, this.listener.updated.get(0));
+
+		counter.increment();
+		assertEquals(2, this.listener.updated.size());
+		assertEquals(2, this.listener.created.size());
+	}
+
+	@Test
+	public void testUpdateRevivesNonSignalling() {
+		Counter counter = this.service.createCounter(GROUP, "quiet", false); //$NON-NLS-1$
+		Monitor monitor = (Monitor)counter;
+		assertTrue(this.service.evictMonitor(monitor));
+
+		counter.increment();
+		assertSame(monitor, this.service.getMonitor(monitor.getKey()));
+		assertEquals(2, this.listener.created.size());
+		assertEquals(0, this.listener.updated.size());
+	}
+
+	@Test
+	public void testRemoveAfterEvict() {
+		Counter counter = this.service.createCounter(GROUP, "removed", true); //$NON-NLS-1$
+		Monitor monitor = (Monitor)counter;
+		assertTrue(this.service.evictMonitor(monitor));
+		this.service.removeMonitor(monitor);
+		/* already out of the registry, so no second event */
+		assertEquals(1, this.listener.removed.size());
+
+		counter.increment();
+		assertNull(this.service.getMonitor(monitor.getKey()));
+		assertEquals(1, this.listener.created.size());
+		assertEquals(0, this.listener.updated.size());
+		assertEquals(1, counter.get());
+	}
+
+	@Test
+	public void testEvictedStaysDetachedWhenReplaced() {
+		Counter counter = this.service.createCounter(GROUP, "replaced", true); //$NON-NLS-1$
+		Monitor monitor = (Monitor)counter;
+		assertTrue(this.service.evictMonitor(monitor));
+		Counter replacement = this.service.createCounter(GROUP, "replaced", true); //$NON-NLS-1$
+
+		counter.increment();
+		assertSame(replacement, this.service.getMonitor(monitor.getKey()));
+		assertEquals(0, this.listener.updated.size());
+
+		/* and is not revived by a later update either */
+		this.service.removeMonitor((Monitor)replacement);
+		counter.increment();
+		assertNull(this.service.getMonitor(monitor.getKey()));
+	}
+
+	@Test
+	public void testEvictOnlyOnce() {
+		Counter counter = this.service.createCounter(GROUP, "once", true); //$NON-NLS-1$
+		Monitor monitor = (Monitor)counter;
+		assertTrue(this.service.evictMonitor(monitor));
+		assertFalse(this.service.evictMonitor(monitor));
+		assertEquals(1, this.listener.removed.size());
+	}
+}
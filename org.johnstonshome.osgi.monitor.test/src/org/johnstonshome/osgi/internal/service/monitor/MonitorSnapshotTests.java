@@ -0,0 +1,278 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.johnstonshome.utils.fun.ValueFunction;
+import org.junit.Test;
+
+/**
+ * Test suite for the {@link MonitorSnapshotImpl} class, in particular the
+ * delta of each type of monitor.
+ * 
+ * @author Simon Johnston (simon@johnstonshome.org)
+ *
+ */
+public class MonitorSnapshotTests {
+
+	private static final String GROUP = "test"; //$NON-NLS-1$
+
+	private static final ValueFunction<Long> NOTHING = new ValueFunction<Long>() {
+		@Override
+		public Long call() {
+			return Long.valueOf(0);
+		}
+	};
+
+	@Test
+	public void testCumulativeTypes() {
+		for (MonitorType type : MonitorType.values()) {
+			boolean current = type == MonitorType.GAUGE || type == MonitorType.WINDOWED_STATISTIC;
+			assertEquals(type.toString(), !current, MonitorSnapshotImpl.isCumulative(type));
+		}
+	}
+
+	@Test
+	public void testFirstDelta() {
+		CounterImpl counter = named(new CounterImpl(), "first"); //$NON-NLS-1$
+		counter.increment(3);
+		MonitorSnapshotImpl snapshot = capture(counter, 1000);
+		MonitorSnapshotImpl delta = snapshot.delta(null);
+		assertFalse(snapshot.isDelta());
+		assertTrue(delta.isDelta());
+		assertEquals(1000, delta.getTimestamp());
+		assertEquals(3, delta.get(0, MonitorSnapshot.COUNT));
+	}
+
+	@Test
+	public void testCounterDelta() {
+		CounterImpl counter = named(new CounterImpl(), "counter"); //$NON-NLS-1$
+		counter.increment(3);
+		MonitorSnapshotImpl first = capture(counter, 1000);
+		counter.increment(2);
+		MonitorSnapshotImpl second = capture(counter, 2000);
+		assertEquals(MonitorType.COUNTER, second.getType(0));
+		assertEquals(5, second.get(0, MonitorSnapshot.COUNT));
+		assertEquals(2, second.delta(first).get(0, MonitorSnapshot.COUNT));
+		/* a counter may go down, the delta is then negative */
+		counter.decrement(4);
+		MonitorSnapshotImpl third = capture(counter, 3000);
+		assertEquals(-4, third.delta(second).get(0, MonitorSnapshot.COUNT));
+	}
+
+	@Test
+	public void testMeterDelta() {
+		MeterImpl meter = named(new MeterImpl(), "meter"); //$NON-NLS-1$
+		meter.increment(3);
+		MonitorSnapshotImpl first = capture(meter, 1000);
+		meter.increment(2);
+		MonitorSnapshotImpl second = capture(meter, 2000);
+		MonitorSnapshotImpl delta = second.delta(first);
+		assertEquals(MonitorType.METER, second.getType(0));
+		assertEquals(2, delta.get(0, MonitorSnapshot.COUNT));
+		/* rates are as sampled */
+		assertEquals(second.get(0, MonitorSnapshot.RATE_1), delta.get(0, MonitorSnapshot.RATE_1));
+		assertEquals(second.get(0, MonitorSnapshot.RATE_15), delta.get(0, MonitorSnapshot.RATE_15));
+	}
+
+	@Test
+	public void testStatisticDelta() {
+		StatisticImpl statistic = named(new StatisticImpl(), "statistic"); //$NON-NLS-1$
+		statistic.addValue(10);
+		statistic.addValue(20);
+		MonitorSnapshotImpl first = capture(statistic, 1000);
+		statistic.addValue(30);
+		MonitorSnapshotImpl second = capture(statistic, 2000);
+		MonitorSnapshotImpl delta = second.delta(first);
+		assertEquals(MonitorType.STATISTIC, second.getType(0));
+		assertEquals(1, delta.get(0, MonitorSnapshot.COUNT));
+		assertEquals(30, delta.get(0, MonitorSnapshot.SUM));
+		/* the range is as sampled */
+		assertEquals(10, delta.get(0, MonitorSnapshot.MIN));
+		assertEquals(30, delta.get(0, MonitorSnapshot.MAX));
+	}
+
+	@Test
+	public void testStatisticResetDelta() {
+		StatisticImpl statistic = named(new StatisticImpl(), "reset"); //$NON-NLS-1$
+		statistic.addValue(10);
+		statistic.addValue(20);
+		MonitorSnapshotImpl first = capture(statistic, 1000);
+		statistic.reset();
+		statistic.addValue(5);
+		MonitorSnapshotImpl delta = capture(statistic, 2000).delta(first);
+		/* a lower count is a reset, so the delta starts from zero */
+		assertEquals(1, delta.get(0, MonitorSnapshot.COUNT));
+		assertEquals(5, delta.get(0, MonitorSnapshot.SUM));
+	}
+
+	@Test
+	public void testWindowedStatisticDelta() {
+		WindowedStatisticImpl statistic = named(new WindowedStatisticImpl(60), "windowed"); //$NON-NLS-1$
+		statistic.addValue(10);
+		statistic.addValue(20);
+		MonitorSnapshotImpl first = capture(statistic, 1000);
+		statistic.addValue(30);
+		MonitorSnapshotImpl delta = capture(statistic, 2000).delta(first);
+		assertEquals(MonitorType.WINDOWED_STATISTIC, delta.getType(0));
+		/* the window is reported as it is, not as a change */
+		assertEquals(3, delta.get(0, MonitorSnapshot.COUNT));
+		assertEquals(60, delta.get(0, MonitorSnapshot.SUM));
+		assertEquals(10, delta.get(0, MonitorSnapshot.MIN));
+		assertEquals(30, delta.get(0, MonitorSnapshot.MAX));
+	}
+
+	@Test
+	public void testTimerStatisticDelta() {
+		TimerStatisticImpl timer = named(new TimerStatisticImpl(), "timer"); //$NON-NLS-1$
+		timer.time(NOTHING);
+		timer.time(NOTHING);
+		MonitorSnapshotImpl first = capture(timer, 1000);
+		timer.time(NOTHING);
+		MonitorSnapshotImpl second = capture(timer, 2000);
+		MonitorSnapshotImpl delta = second.delta(first);
+		assertEquals(MonitorType.TIMER_STATISTIC, second.getType(0));
+		assertEquals(1, delta.get(0, MonitorSnapshot.COUNT));
+		assertEquals(second.get(0, MonitorSnapshot.SUM) - first.get(0, MonitorSnapshot.SUM),
+				delta.get(0, MonitorSnapshot.SUM));
+	}
+
+	@Test
+	public void testHistogramDelta() {
+		HistogramImpl histogram = named(new HistogramImpl(), "histogram"); //$NON-NLS-1$
+		histogram.recordValue(100);
+		histogram.recordValue(200);
+		MonitorSnapshotImpl first = capture(histogram, 1000);
+		histogram.recordValue(300);
+		MonitorSnapshotImpl second = capture(histogram, 2000);
+		MonitorSnapshotImpl delta = second.delta(first);
+		assertEquals(MonitorType.HISTOGRAM, second.getType(0));
+		assertEquals(1, delta.get(0, MonitorSnapshot.COUNT));
+		assertEquals(second.get(0, MonitorSnapshot.SUM) - first.get(0, MonitorSnapshot.SUM),
+				delta.get(0, MonitorSnapshot.SUM));
+		/* percentiles are as sampled */
+		assertEquals(second.get(0, MonitorSnapshot.P50), delta.get(0, MonitorSnapshot.P50));
+		assertEquals(second.get(0, MonitorSnapshot.P99), delta.get(0, MonitorSnapshot.P99));
+	}
+
+	@Test
+	public void testGaugeDelta() {
+		final AtomicLong value = new AtomicLong(5);
+		GaugeImpl gauge = named(new GaugeImpl(new ValueFunction<Long>() {
+			@Override
+			public Long call() {
+				return Long.valueOf(value.get());
+			}
+		}, 0, null), "gauge"); //$NON-NLS-1$
+		MonitorSnapshotImpl first = capture(gauge, 1000);
+		value.set(7);
+		MonitorSnapshotImpl delta = capture(gauge, 2000).delta(first);
+		assertEquals(MonitorType.GAUGE, delta.getType(0));
+		/* a gauge is reported as it is, not as a change */
+		assertEquals(Math.round(7 * GaugeImpl.VALUE_SCALE), delta.get(0, MonitorSnapshot.VALUE));
+		assertEquals(7, delta.get(0, MonitorSnapshot.MAX));
+	}
+
+	@Test
+	public void testDistinctCounterDelta() {
+		DistinctCounterImpl distinct = named(new DistinctCounterImpl(), "distinct"); //$NON-NLS-1$
+		distinct.add(1);
+		distinct.add(2);
+		distinct.add(2);
+		MonitorSnapshotImpl first = capture(distinct, 1000);
+		distinct.add(3);
+		MonitorSnapshotImpl second = capture(distinct, 2000);
+		MonitorSnapshotImpl delta = second.delta(first);
+		assertEquals(MonitorType.DISTINCT_COUNTER, second.getType(0));
+		assertEquals(1, delta.get(0, MonitorSnapshot.COUNT));
+		/* the estimate is as sampled */
+		assertEquals(second.get(0, MonitorSnapshot.VALUE), delta.get(0, MonitorSnapshot.VALUE));
+		assertEquals(3, delta.get(0, MonitorSnapshot.VALUE));
+	}
+
+	@Test
+	public void testTopKDelta() {
+		TopKImpl top = named(new TopKImpl(), "top"); //$NON-NLS-1$
+		top.add("a"); //$NON-NLS-1$
+		top.add("b"); //$NON-NLS-1$
+		MonitorSnapshotImpl first = capture(top, 1000);
+		top.add("a", 3); //$NON-NLS-1$
+		MonitorSnapshotImpl second = capture(top, 2000);
+		MonitorSnapshotImpl delta = second.delta(first);
+		assertEquals(MonitorType.TOP_K, second.getType(0));
+		assertEquals(second.get(0, MonitorSnapshot.COUNT) - first.get(0, MonitorSnapshot.COUNT),
+				delta.get(0, MonitorSnapshot.COUNT));
+		assertTrue(delta.get(0, MonitorSnapshot.COUNT) > 0);
+	}
+
+	@Test
+	public void testCallTreeDelta() {
+		CallTreeImpl tree = named(new CallTreeImpl(), "tree"); //$NON-NLS-1$
+		tree.time("a", NOTHING); //$NON-NLS-1$
+		tree.time("b", NOTHING); //$NON-NLS-1$
+		MonitorSnapshotImpl first = capture(tree, 1000);
+		tree.time("a", NOTHING); //$NON-NLS-1$
+		MonitorSnapshotImpl second = capture(tree, 2000);
+		MonitorSnapshotImpl delta = second.delta(first);
+		assertEquals(MonitorType.CALL_TREE, second.getType(0));
+		assertEquals(1, delta.get(0, MonitorSnapshot.COUNT));
+		assertEquals(second.get(0, MonitorSnapshot.SUM) - first.get(0, MonitorSnapshot.SUM),
+				delta.get(0, MonitorSnapshot.SUM));
+	}
+
+	@Test
+	public void testRecreatedDelta() {
+		CounterImpl before = named(new CounterImpl(), "recreated"); //$NON-NLS-1$
+		before.increment(5);
+		MonitorSnapshotImpl first = capture(before, 1000);
+		CounterImpl after = named(new CounterImpl(), "recreated"); //$NON-NLS-1$
+		after.increment(2);
+		MonitorSnapshotImpl delta = capture(after, 2000).delta(first);
+		/* a different monitor with the same key starts from zero */
+		assertEquals(2, delta.get(0, MonitorSnapshot.COUNT));
+	}
+
+	@Test
+	public void testReorderedDelta() {
+		CounterImpl a = named(new CounterImpl(), "a"); //$NON-NLS-1$
+		CounterImpl b = named(new CounterImpl(), "b"); //$NON-NLS-1$
+		CounterImpl c = named(new CounterImpl(), "c"); //$NON-NLS-1$
+		a.increment(1);
+		b.increment(10);
+		MonitorSnapshotImpl first = MonitorSnapshotImpl.capture(Arrays.<Monitor>asList(a, b), 1000);
+		a.increment(2);
+		b.increment(20);
+		c.increment(100);
+		MonitorSnapshotImpl delta = MonitorSnapshotImpl.capture(Arrays.<Monitor>asList(c, b, a), 2000).delta(first);
+		assertEquals(3, delta.size());
+		assertEquals(100, delta.get(delta.indexOf(GROUP, "c"), MonitorSnapshot.COUNT)); //$NON-NLS-1$
+		assertEquals(20, delta.get(delta.indexOf(GROUP, "b"), MonitorSnapshot.COUNT)); //$NON-NLS-1$
+		assertEquals(2, delta.get(delta.indexOf(GROUP, "a"), MonitorSnapshot.COUNT)); //$NON-NLS-1$
+	}
+
+	private static <T extends MonitorImpl> T named(T monitor, String name) {
+		monitor.setKey(MonitorKey.of(GROUP, name));
+		return monitor;
+	}
+
+	private static MonitorSnapshotImpl capture(Monitor monitor, long timestamp) {
+		return MonitorSnapshotImpl.capture(Collections.singletonList(monitor), timestamp);
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.junit.Test;
+
+/**
+ * Test suite for the {@link WireEncoder} and {@link WireDecoder} classes.
+ * 
+ * @author Simon Johnston (simon@johnstonshome.org)
+ *
+ */
+public class WireFormatTests {
+
+	private static final String GROUP = "test"; //$NON-NLS-1$
+
+	@Test
+	public void testRoundTrip() throws StreamCorruptedException {
+		CounterImpl counter = new CounterImpl();
+		counter.setKey(MonitorKey.of(GROUP, "requests").withTag("host", "a")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		counter.increment(42);
+		StatisticImpl statistic = new StatisticImpl();
+		statistic.setKey(MonitorKey.of(GROUP, "sizes")); //$NON-NLS-1$
+		statistic.addValue(-7);
+		statistic.addValue(1000000);
+		HistogramImpl histogram = new HistogramImpl();
+		histogram.setKey(MonitorKey.of(GROUP, "latency")); //$NON-NLS-1$
+		for (int i = 1; i <= 100; i++) {
+			histogram.recordValue(i * 10);
+		}
+		DistinctCounterImpl distinct = new DistinctCounterImpl();
+		distinct.setKey(MonitorKey.of(GROUP, "users")); //$NON-NLS-1$
+		for (int i = 0; i < 50; i++) {
+			distinct.add(i);
+		}
+		MonitorSnapshotImpl snapshot = MonitorSnapshotImpl.capture(
+				Arrays.<Monitor>asList(counter, statistic, histogram, distinct),
+				System.currentTimeMillis());
+
+		MonitorSnapshot decoded = new WireDecoder().decode(new WireEncoder().encode(snapshot));
+		assertNotNull(decoded);
+		assertSnapshot(snapshot, decoded);
+
+		int index = decoded.indexOf(histogram.getKey());
+		assertEquals(100, ((HistogramSource)decoded).getHistogram(index).getCount());
+		index = decoded.indexOf(distinct.getKey());
+		assertEquals(distinct.getEstimate(),
+				((DistinctSketch)((SketchSource)decoded).getSketch(index)).getEstimate());
+	}
+
+	@Test
+	public void testChangesRoundTrip() throws StreamCorruptedException {
+		CounterImpl kept = named(new CounterImpl(), "kept"); //$NON-NLS-1$
+		CounterImpl removed = named(new CounterImpl(), "removed"); //$NON-NLS-1$
+		CounterImpl added = named(new CounterImpl(), "added"); //$NON-NLS-1$
+		kept.increment(10);
+		removed.increment(20);
+		WireEncoder encoder = new WireEncoder();
+		WireDecoder decoder = new WireDecoder();
+		MonitorSnapshotImpl first = MonitorSnapshotImpl.capture(
+				Arrays.<Monitor>asList(kept, removed), 1000);
+		assertSnapshot(first, decoder.decode(encoder.encode(first)));
+
+		kept.decrement(15);
+		added.increment(5);
+		MonitorSnapshotImpl second = MonitorSnapshotImpl.capture(
+				Arrays.<Monitor>asList(added, kept), 2000);
+		MonitorSnapshot decoded = decoder.decode(encoder.encode(second));
+		assertSnapshot(second, decoded);
+		assertEquals(-1, decoded.indexOf(removed.getKey()));
+
+		/* an unchanged snapshot decodes to the same values */
+		MonitorSnapshotImpl third = MonitorSnapshotImpl.capture(
+				Arrays.<Monitor>asList(added, kept), 3000);
+		assertSnapshot(third, decoder.decode(encoder.encode(third)));
+	}
+
+	@Test
+	public void testPartialInput() throws StreamCorruptedException {
+		WireEncoder encoder = new WireEncoder();
+		List<MonitorSnapshotImpl> snapshots = new ArrayList<MonitorSnapshotImpl>();
+		ByteBuffer stream = ByteBuffer.allocate(64 * 1024);
+		StatisticImpl statistic = named(new StatisticImpl(), "statistic"); //$NON-NLS-1$
+		for (int i = 0; i < 3; i++) {
+			statistic.addValue(i * 100);
+			MonitorSnapshotImpl snapshot = MonitorSnapshotImpl.capture(
+					Arrays.<Monitor>asList(statistic), 1000 * (i + 1));
+			snapshots.add(snapshot);
+			stream.put(encoder.encode(snapshot));
+		}
+		stream.flip();
+
+		/*
+		 * Feed the stream a byte at a time, as it may arrive from a socket.
+		 */
+		WireDecoder decoder = new WireDecoder();
+		ByteBuffer input = ByteBuffer.allocate(stream.remaining());
+		input.flip();
+		int decoded = 0;
+		while (stream.hasRemaining()) {
+			input.compact();
+			input.put(stream.get());
+			input.flip();
+			MonitorSnapshot snapshot = decoder.decode(input);
+			if (snapshot != null) {
+				assertSnapshot(snapshots.get(decoded++), snapshot);
+			}
+		}
+		assertEquals(snapshots.size(), decoded);
+		assertNull(decoder.decode(input));
+	}
+
+	@Test
+	public void testResetEncoder() throws StreamCorruptedException {
+		CounterImpl counter = named(new CounterImpl(), "counter"); //$NON-NLS-1$
+		counter.increment(3);
+		WireEncoder encoder = new WireEncoder();
+		MonitorSnapshotImpl snapshot = MonitorSnapshotImpl.capture(Arrays.<Monitor>asList(counter), 1000);
+		encoder.encode(snapshot);
+
+		/* after a reset the encoder starts a new stream */
+		encoder.reset();
+		assertSnapshot(snapshot, new WireDecoder().decode(encoder.encode(snapshot)));
+	}
+
+	@Test
+	public void testNotAStream() {
+		ByteBuffer input = ByteBuffer.wrap(new byte[] { 'H', 'T', 'T', 'P', '/', '1' });
+		try {
+			new WireDecoder().decode(input);
+			fail("Expected StreamCorruptedException"); //$NON-NLS-1$
+		} catch (StreamCorruptedException e) {
+			/* expected */
+		}
+	}
+
+	private static <T extends MonitorImpl> T named(T monitor, String name) {
+		monitor.setKey(MonitorKey.of(GROUP, name));
+		return monitor;
+	}
+
+	private static void assertSnapshot(MonitorSnapshot expected, MonitorSnapshot actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getTimestamp(), actual.getTimestamp());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			MonitorKey key = expected.getKey(i);
+			int index = actual.indexOf(key);
+			assertTrue(key.toString(), index >= 0);
+			assertEquals(expected.getType(i), actual.getType(index));
+			for (int field = 0; field < MonitorSnapshot.FIELDS; field++) {
+				assertEquals(key.toString(), expected.get(i, field), actual.get(index, field));
+			}
+		}
+	}
+}
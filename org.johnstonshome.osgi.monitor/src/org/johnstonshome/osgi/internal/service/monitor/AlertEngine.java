@@ -0,0 +1,131 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorReporter;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.osgi.service.log.LogService;
+
+/**
+ * Evaluates alert rules on each snapshot. Rules are grouped by the monitor 
+ * they refer to, and each group remembers where its monitor was in the 
+ * previous snapshot, so a tick costs a few comparisons per monitor with 
+ * rules and nothing for any other monitor. Changes of state are logged,
+ * including the resolution of a firing rule whose monitor was removed.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class AlertEngine implements MonitorReporter {
+
+	/*
+	 * Component properties starting with this prefix are rules, the rest of
+	 * the property name is the rule's identifier.
+	 */
+	static final String PROP_RULE_PREFIX = "alert.rule."; //$NON-NLS-1$
+	
+	/*
+	 * The rules for one monitor.
+	 */
+	private static final class Target {
+		final MonitorKey key;
+		final List<AlertRule> rules = new ArrayList<AlertRule>();
+		int position = -1;
+		
+		Target(MonitorKey key) {
+			this.key = key;
+		}
+		
+		int find(MonitorSnapshot snapshot) {
+			int position = this.position;
+			if (position < 0 || position >= snapshot.size() ||
+				!snapshot.getKey(position).equals(this.key)) {
+				position = snapshot.indexOf(this.key);
+				this.position = position;
+			}
+			return position;
+		}
+	}
+	
+	private final Target[] targets;
+	private final LogService log;
+	
+	AlertEngine(Collection<AlertRule> rules, LogService log) {
+		Map<MonitorKey, Target> targets = new LinkedHashMap<MonitorKey, Target>();
+		for (AlertRule rule : rules) {
+			Target target = targets.get(rule.getKey());
+			if (target == null) {
+				target = new Target(rule.getKey());
+				targets.put(rule.getKey(), target);
+			}
+			target.rules.add(rule);
+		}
+		this.targets = targets.values().toArray(new Target[targets.size()]);
+		this.log = log;
+	}
+	
+	/**
+	 * Parse the rules in a set of component properties, rules that cannot 
+	 * be parsed are logged and ignored.
+	 * 
+	 * @param properties the component properties.
+	 * @param log the log to report errors to.
+	 * @return the parsed rules.
+	 */
+	static List<AlertRule> parseRules(Dictionary<?, ?> properties, LogService log) {
+		List<AlertRule> rules = new ArrayList<AlertRule>();
+		Enumeration<?> keys = properties.keys();
+		while (keys.hasMoreElements()) {
+			Object key = keys.nextElement();
+			if (key instanceof String && ((String)key).startsWith(PROP_RULE_PREFIX)) {
+				String id = ((String)key).substring(PROP_RULE_PREFIX.length());
+				try {
+					rules.add(AlertRule.parse(id, String.valueOf(properties.get(key))));
+				} catch (IllegalArgumentException e) {
+					log.log(LogService.LOG_WARNING, 
+							String.format("Ignoring alert rule %s", id), e);
+				}
+			}
+		}
+		return rules;
+	}
+	
+	@Override
+	public void report(MonitorSnapshot snapshot, MonitorSnapshot delta) {
+		for (Target target : this.targets) {
+			int index = target.find(delta);
+			if (index < 0) {
+				for (AlertRule rule : target.rules) {
+					if (rule.missing() != null) {
+						this.log.log(LogService.LOG_INFO, 
+								String.format("Alert %s is %s, monitor %s was removed", rule, rule.getState(), target.key));
+					}
+				}
+				continue;
+			}
+			for (AlertRule rule : target.rules) {
+				AlertRule.State state = rule.evaluate(snapshot, delta, index);
+				if (state != null) {
+					this.log.log(
+							state == AlertRule.State.FIRING ? LogService.LOG_WARNING : LogService.LOG_INFO, 
+							String.format("Alert %s is %s, value %s", rule, state, rule.getLastValue()));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,399 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * <p>
+ * A single alert rule, parsed once from its text form:
+ * </p>
+ * <pre>
+ * function group/name[{tag=value,...}] [over duration] operator threshold [for duration] [clear threshold]
+ * </pre>
+ * <p>
+ * For example <code>avg web/latency over 1m &gt; 500 for 2m clear 400</code>,
+ * or <code>p99 web/latency{endpoint=/login} &gt; 800</code> for one of a set
+ * of tagged monitors.
+ * The functions are <code>value</code> (a counter's or gauge's value, or
+ * a distinct counter's estimate), <code>count</code>,
+ * <code>rate</code> (per second) and <code>avg</code> over the window, the 
+ * current <code>min</code>, <code>max</code>, <code>p50</code>, 
+ * <code>p90</code>, <code>p99</code> and <code>p999</code>, and a meter's 
+ * <code>rate1</code>, <code>rate5</code> and <code>rate15</code>. Durations 
+ * are a number followed by <code>s</code>, <code>m</code> or <code>h</code>.
+ * </p>
+ * <p>
+ * A rule whose condition holds becomes pending, and if it still holds after
+ * the <code>for</code> duration it fires. A firing rule resolves once the 
+ * condition no longer holds against the <code>clear</code> threshold, which 
+ * defaults to the threshold itself. A rule that is firing also resolves if
+ * its monitor is removed.
+ * </p>
+ * <p>
+ * The window only covers the snapshots the rule has seen; the first 
+ * snapshot only marks the start, as its changes may date from long before.
+ * Until the window has been covered <code>count</code> is not evaluated 
+ * and <code>rate</code> is over the time covered so far.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class AlertRule {
+
+	enum Function {
+		VALUE, COUNT, RATE, AVG, MIN, MAX, P50, P90, P99, P999, RATE1, RATE5, RATE15
+	}
+	
+	enum Operator {
+		GT(">"), GE(">="), LT("<"), LE("<="); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		
+		private final String symbol;
+		
+		private Operator(String symbol) {
+			this.symbol = symbol;
+		}
+		
+		boolean test(double value, double threshold) {
+			switch (this) {
+			case GT:
+				return value > threshold;
+			case GE:
+				return value >= threshold;
+			case LT:
+				return value < threshold;
+			default:
+				return value <= threshold;
+			}
+		}
+		
+		static Operator parse(String symbol) {
+			for (Operator operator : values()) {
+				if (operator.symbol.equals(symbol)) {
+					return operator;
+				}
+			}
+			return null;
+		}
+		
+		@Override
+		public String toString() {
+			return this.symbol;
+		}
+	}
+	
+	enum State {
+		INACTIVE, PENDING, FIRING, RESOLVED
+	}
+	
+	private static final long DEFAULT_WINDOW = TimeUnit.MINUTES.toMillis(1);
+	
+	private final String id;
+	private final String text;
+	private final Function function;
+	private final MonitorKey key;
+	private final long window;
+	private final Operator operator;
+	private final double threshold;
+	private final long duration;
+	private final double clear;
+	
+	/*
+	 * The deltas within the window, as a ring of timestamps, counts and sums
+	 * with running totals.
+	 */
+	private long[] times = new long[8];
+	private long[] counts = new long[8];
+	private long[] sums = new long[8];
+	private int head = 0;
+	private int size = 0;
+	private long windowCount = 0;
+	private long windowSum = 0;
+	
+	/*
+	 * The time from which the deltas in the window are counted, -1 until 
+	 * the first delta is seen.
+	 */
+	private long start = -1;
+	
+	private State state = State.INACTIVE;
+	private long since = 0;
+	private double last = Double.NaN;
+	
+	private AlertRule(String id, String text, Function function, MonitorKey key, long window, 
+			Operator operator, double threshold, long duration, double clear) {
+		this.id = id;
+		this.text = text;
+		this.function = function;
+		this.key = key;
+		this.window = window;
+		this.operator = operator;
+		this.threshold = threshold;
+		this.duration = duration;
+		this.clear = clear;
+	}
+	
+	/**
+	 * Parse a rule.
+	 * 
+	 * @param id the identifier of the rule, used in events.
+	 * @param text the rule text.
+	 * @return the parsed rule.
+	 * @throws IllegalArgumentException if the text is not a valid rule.
+	 */
+	static AlertRule parse(String id, String text) {
+		String[] tokens = text.trim().split("\\s+"); //$NON-NLS-1$
+		int next = 0;
+		if (tokens.length < 4) {
+			throw new IllegalArgumentException(String.format("Incomplete rule: %s", text)); //$NON-NLS-1$
+		}
+		Function function;
+		try {
+			function = Function.valueOf(tokens[next++].toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(String.format("Unknown function %s in rule: %s", tokens[0], text)); //$NON-NLS-1$
+		}
+		MonitorKey key;
+		try {
+			key = MonitorKey.parse(tokens[next++]);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(String.format("Expected group/name in rule: %s", text)); //$NON-NLS-1$
+		}
+		long window = DEFAULT_WINDOW;
+		if ("over".equals(tokens[next])) { //$NON-NLS-1$
+			window = parseDuration(token(tokens, next + 1, text), text);
+			next += 2;
+		}
+		Operator operator = Operator.parse(token(tokens, next++, text));
+		if (operator == null) {
+			throw new IllegalArgumentException(String.format("Expected an operator in rule: %s", text)); //$NON-NLS-1$
+		}
+		double threshold = parseNumber(token(tokens, next++, text), text);
+		long duration = 0;
+		double clear = threshold;
+		while (next < tokens.length) {
+			String keyword = tokens[next++];
+			if ("for".equals(keyword)) { //$NON-NLS-1$
+				duration = parseDuration(token(tokens, next++, text), text);
+			} else if ("clear".equals(keyword)) { //$NON-NLS-1$
+				clear = parseNumber(token(tokens, next++, text), text);
+			} else {
+				throw new IllegalArgumentException(String.format("Unexpected %s in rule: %s", keyword, text)); //$NON-NLS-1$
+			}
+		}
+		return new AlertRule(id, text.trim(), function, key,
+				window, operator, threshold, duration, clear);
+	}
+	
+	private static String token(String[] tokens, int index, String text) {
+		if (index >= tokens.length) {
+			throw new IllegalArgumentException(String.format("Incomplete rule: %s", text)); //$NON-NLS-1$
+		}
+		return tokens[index];
+	}
+	
+	private static double parseNumber(String token, String text) {
+		try {
+			return Double.parseDouble(token);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Expected a number, not %s, in rule: %s", token, text)); //$NON-NLS-1$
+		}
+	}
+	
+	private static long parseDuration(String token, String text) {
+		TimeUnit unit;
+		switch (token.charAt(token.length() - 1)) {
+		case 's':
+			unit = TimeUnit.SECONDS;
+			break;
+		case 'm':
+			unit = TimeUnit.MINUTES;
+			break;
+		case 'h':
+			unit = TimeUnit.HOURS;
+			break;
+		default:
+			throw new IllegalArgumentException(String.format("Expected a duration, not %s, in rule: %s", token, text)); //$NON-NLS-1$
+		}
+		try {
+			long value = Long.parseLong(token.substring(0, token.length() - 1));
+			if (value <= 0) {
+				throw new NumberFormatException();
+			}
+			return unit.toMillis(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Expected a duration, not %s, in rule: %s", token, text)); //$NON-NLS-1$
+		}
+	}
+	
+	String getId() {
+		return this.id;
+	}
+	
+	MonitorKey getKey() {
+		return this.key;
+	}
+	
+	State getState() {
+		return this.state;
+	}
+	
+	double getLastValue() {
+		return this.last;
+	}
+	
+	/**
+	 * Note that the rule's monitor is not in the latest snapshot, a firing
+	 * rule resolves and the window starts again if the monitor returns. 
+	 * Only called on the snapshot thread.
+	 * 
+	 * @return the state the rule moved to, or <code>null</code> if the state
+	 * did not change.
+	 */
+	State missing() {
+		this.size = 0;
+		this.windowCount = 0;
+		this.windowSum = 0;
+		this.start = -1;
+		this.last = Double.NaN;
+		switch (this.state) {
+		case FIRING:
+			this.state = State.RESOLVED;
+			return this.state;
+		case PENDING:
+			this.state = State.INACTIVE;
+			return null;
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Evaluate the rule against the monitor at <code>index</code> in the 
+	 * snapshots, only called on the snapshot thread.
+	 * 
+	 * @return the state the rule moved to, or <code>null</code> if the state
+	 * did not change.
+	 */
+	State evaluate(MonitorSnapshot snapshot, MonitorSnapshot delta, int index) {
+		long now = delta.getTimestamp();
+		double value = measure(snapshot, delta, index, now);
+		if (Double.isNaN(value)) {
+			return null;
+		}
+		this.last = value;
+		switch (this.state) {
+		case PENDING:
+			if (!this.operator.test(value, this.threshold)) {
+				this.state = State.INACTIVE;
+			} else if (now - this.since >= this.duration) {
+				this.state = State.FIRING;
+				return this.state;
+			}
+			return null;
+		case FIRING:
+			if (!this.operator.test(value, this.clear)) {
+				this.state = State.RESOLVED;
+				return this.state;
+			}
+			return null;
+		default:
+			if (this.operator.test(value, this.threshold)) {
+				this.since = now;
+				this.state = this.duration == 0 ? State.FIRING : State.PENDING;
+				return this.state;
+			}
+			return null;
+		}
+	}
+	
+	private double measure(MonitorSnapshot snapshot, MonitorSnapshot delta, int index, long now) {
+		switch (this.function) {
+		case VALUE:
+			return snapshot.get(index, MonitorSnapshot.COUNT);
+		case MIN:
+			return snapshot.get(index, MonitorSnapshot.MIN);
+		case MAX:
+			return snapshot.get(index, MonitorSnapshot.MAX);
+		case P50:
+			return snapshot.get(index, MonitorSnapshot.P50);
+		case P90:
+			return snapshot.get(index, MonitorSnapshot.P90);
+		case P99:
+			return snapshot.get(index, MonitorSnapshot.P99);
+		case P999:
+			return snapshot.get(index, MonitorSnapshot.P999);
+		case RATE1:
+			return snapshot.get(index, MonitorSnapshot.RATE_1) / MeterImpl.RATE_SCALE;
+		case RATE5:
+			return snapshot.get(index, MonitorSnapshot.RATE_5) / MeterImpl.RATE_SCALE;
+		case RATE15:
+			return snapshot.get(index, MonitorSnapshot.RATE_15) / MeterImpl.RATE_SCALE;
+		default:
+		}
+		if (this.start < 0) {
+			this.start = now;
+			return Double.NaN;
+		}
+		add(now, delta.get(index, MonitorSnapshot.COUNT), delta.get(index, MonitorSnapshot.SUM));
+		long covered = now - this.start;
+		switch (this.function) {
+		case COUNT:
+			return covered < this.window ? Double.NaN : this.windowCount;
+		case RATE:
+			return covered <= 0 ? Double.NaN : 
+				this.windowCount / (covered / (double)TimeUnit.SECONDS.toMillis(1));
+		default:
+			return this.windowCount == 0 ? Double.NaN : this.windowSum / (double)this.windowCount;
+		}
+	}
+	
+	private void add(long now, long count, long sum) {
+		while (this.size > 0 && this.times[this.head] <= now - this.window) {
+			this.start = this.times[this.head];
+			this.windowCount -= this.counts[this.head];
+			this.windowSum -= this.sums[this.head];
+			this.head = (this.head + 1) % this.times.length;
+			this.size--;
+		}
+		if (this.size == this.times.length) {
+			long[] times = new long[this.size * 2];
+			long[] counts = new long[this.size * 2];
+			long[] sums = new long[this.size * 2];
+			for (int i = 0; i < this.size; i++) {
+				int from = (this.head + i) % this.times.length;
+				times[i] = this.times[from];
+				counts[i] = this.counts[from];
+				sums[i] = this.sums[from];
+			}
+			this.times = times;
+			this.counts = counts;
+			this.sums = sums;
+			this.head = 0;
+		}
+		int tail = (this.head + this.size) % this.times.length;
+		this.times[tail] = now;
+		this.counts[tail] = count;
+		this.sums[tail] = sum;
+		this.size++;
+		this.windowCount += count;
+		this.windowSum += sum;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %s", this.id, this.text); //$NON-NLS-1$
+	}
+}
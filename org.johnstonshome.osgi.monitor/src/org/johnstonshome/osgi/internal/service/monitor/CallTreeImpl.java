@@ -0,0 +1,308 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.johnstonshome.osgi.service.monitor.CallNode;
+import org.johnstonshome.osgi.service.monitor.CallTree;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.johnstonshome.utils.fun.ValueFunction;
+
+/**
+ * Each thread keeps its open spans in a {@link Stack} of parallel arrays, 
+ * the node, start time and child time of each span, which only allocates 
+ * when it grows deeper than it has been before. Entering a span looks its
+ * name up in the children of the enclosing span's node, a concurrent map 
+ * read, and only takes a lock the first time a path is seen; exiting adds 
+ * to the node's atomic totals. A span entered once the tree holds 
+ * {@link #MAX_NODES} paths has no node, nor do any spans within it, so 
+ * its time is left as self time of the nearest enclosing recorded span.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class CallTreeImpl extends MonitorImpl implements CallTree {
+
+	static final int MAX_NODES = 4096;
+	
+	private static final int STACK_DEPTH = 16;
+	private static final char SEPARATOR = ';';
+	
+	private static final Comparator<CallNode> MOST_TIME_FIRST = new Comparator<CallNode>() {
+		@Override
+		public int compare(CallNode node1, CallNode node2) {
+			long time1 = node1.getTotalTime();
+			long time2 = node2.getTotalTime();
+			return time1 > time2 ? -1 : (time1 == time2 ? 0 : 1);
+		}
+	};
+	
+	/*
+	 * One path of the tree, the root has no name and records nothing.
+	 */
+	static final class Node implements CallNode {
+		private final String name;
+		private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>(4);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong self = new AtomicLong();
+		
+		Node(String name) {
+			this.name = name;
+		}
+		
+		Node child(String name, AtomicInteger nodes) {
+			Node child = this.children.get(name);
+			if (child == null) {
+				if (nodes.incrementAndGet() > MAX_NODES) {
+					nodes.decrementAndGet();
+					return null;
+				}
+				child = new Node(name);
+				Node existing = this.children.putIfAbsent(name, child);
+				if (existing != null) {
+					nodes.decrementAndGet();
+					child = existing;
+				}
+			}
+			return child;
+		}
+		
+		void record(long elapsed, long childTime) {
+			this.count.incrementAndGet();
+			this.total.addAndGet(elapsed);
+			this.self.addAndGet(elapsed - childTime);
+		}
+
+		@Override
+		public String getName() {
+			return this.name;
+		}
+
+		@Override
+		public long getCount() {
+			return this.count.get();
+		}
+
+		@Override
+		public long getTotalTime() {
+			return this.total.get();
+		}
+
+		@Override
+		public long getSelfTime() {
+			return this.self.get();
+		}
+
+		@Override
+		public List<CallNode> getChildren() {
+			List<CallNode> children = new ArrayList<CallNode>(this.children.values());
+			Collections.sort(children, MOST_TIME_FIRST);
+			return children;
+		}
+		
+		long getFootprint() {
+			long footprint = FOOTPRINT_HEADER * 4 + FOOTPRINT_ATOMIC * 3 + 32 + 
+				(this.name == null ? 0 : footprint(this.name));
+			for (Node child : this.children.values()) {
+				footprint += child.getFootprint();
+			}
+			return footprint;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("{CallNode name:%s count:%d total:%d self:%d}", 
+					this.name, this.getCount(), this.getTotalTime(), this.getSelfTime());
+		}
+	}
+	
+	/*
+	 * The spans open on one thread, only touched by that thread.
+	 */
+	private static final class Stack {
+		Node[] nodes = new Node[STACK_DEPTH];
+		long[] starts = new long[STACK_DEPTH];
+		long[] childTimes = new long[STACK_DEPTH];
+		int depth = 0;
+		
+		void grow() {
+			int length = this.nodes.length * 2;
+			Node[] nodes = new Node[length];
+			long[] starts = new long[length];
+			long[] childTimes = new long[length];
+			System.arraycopy(this.nodes, 0, nodes, 0, this.depth);
+			System.arraycopy(this.starts, 0, starts, 0, this.depth);
+			System.arraycopy(this.childTimes, 0, childTimes, 0, this.depth);
+			this.nodes = nodes;
+			this.starts = starts;
+			this.childTimes = childTimes;
+		}
+	}
+	
+	private final StatisticCells values = new StatisticCells();
+	private final ThreadLocal<Stack> stacks = new ThreadLocal<Stack>();
+	private final AtomicInteger nodes = new AtomicInteger();
+	private volatile Node root = new Node(null);
+	
+	CallTreeImpl() { }
+	
+	@Override
+	public void enter(String name) {
+		Stack stack = this.stacks.get();
+		if (stack == null) {
+			stack = new Stack();
+			this.stacks.set(stack);
+		}
+		int depth = stack.depth;
+		Node parent = depth == 0 ? this.root : stack.nodes[depth - 1];
+		if (depth == stack.nodes.length) {
+			stack.grow();
+		}
+		stack.nodes[depth] = parent == null ? null : parent.child(name, this.nodes);
+		stack.childTimes[depth] = 0;
+		stack.depth = depth + 1;
+		stack.starts[depth] = System.nanoTime();
+	}
+
+	@Override
+	public long exit() {
+		long now = System.nanoTime();
+		Stack stack = this.stacks.get();
+		if (stack == null || stack.depth == 0) {
+			return -1;
+		}
+		int depth = --stack.depth;
+		long elapsed = now - stack.starts[depth];
+		Node node = stack.nodes[depth];
+		stack.nodes[depth] = null;
+		if (node != null) {
+			node.record(elapsed, stack.childTimes[depth]);
+		}
+		/*
+		 * A span without a node is not in any child, so its time stays in
+		 * its parent's self time.
+		 */
+		if (depth > 0) {
+			if (node != null) {
+				stack.childTimes[depth - 1] += elapsed;
+			}
+		} else {
+			this.values.record(elapsed);
+			signalUpdate(elapsed);
+		}
+		return elapsed;
+	}
+
+	@Override
+	public <V> V time(String name, ValueFunction<V> function) {
+		enter(name);
+		try {
+			return function.call();
+		} finally {
+			exit();
+		}
+	}
+
+	@Override
+	public List<CallNode> getRoots() {
+		return this.root.getChildren();
+	}
+
+	@Override
+	public void writeCollapsed(Appendable output) throws IOException {
+		writeCollapsed(this.root, new StringBuilder(), output);
+	}
+	
+	/**
+	 * Write the tree in the collapsed stack format beneath a root frame,
+	 * so that several trees can be written to one flame graph.
+	 * 
+	 * @param frame the name of the root frame.
+	 * @param output the output to append to.
+	 * @throws IOException if the output cannot be written.
+	 */
+	void writeCollapsed(String frame, Appendable output) throws IOException {
+		StringBuilder path = new StringBuilder();
+		appendName(path, frame);
+		writeCollapsed(this.root, path, output);
+	}
+	
+	private static void writeCollapsed(Node node, StringBuilder path, Appendable output) throws IOException {
+		int length = path.length();
+		for (Node child : node.children.values()) {
+			if (length > 0) {
+				path.append(SEPARATOR);
+			}
+			appendName(path, child.name);
+			long self = child.getSelfTime();
+			if (self > 0) {
+				output.append(path).append(' ').append(String.valueOf(self)).append('\n');
+			}
+			writeCollapsed(child, path, output);
+			path.setLength(length);
+		}
+	}
+	
+	/*
+	 * Append a span name to a path, replacing characters that would break 
+	 * the collapsed stack format.
+	 */
+	static void appendName(StringBuilder path, String name) {
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			path.append(c == SEPARATOR || c == '\n' || c == '\r' ? '_' : c);
+		}
+	}
+
+	@Override
+	public void reset() {
+		/*
+		 * Spans open while the tree is replaced are recorded into the nodes
+		 * of the old tree, and so are lost.
+		 */
+		this.root = new Node(null);
+		this.nodes.set(0);
+		this.values.reset();
+		signalUpdate();
+	}
+
+	@Override
+	MonitorType getType() {
+		return MonitorType.CALL_TREE;
+	}
+
+	@Override
+	long getFootprint() {
+		return super.getFootprint() + this.values.getFootprint() + FOOTPRINT_HEADER * 3 + 
+			FOOTPRINT_ATOMIC + this.root.getFootprint();
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		this.values.sample(values, offset);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"{CallTree count:%d paths:%d}", 
+				this.values.count(),
+				this.nodes.get());
+	}
+}
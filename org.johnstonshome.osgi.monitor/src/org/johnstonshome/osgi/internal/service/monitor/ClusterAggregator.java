@@ -0,0 +1,465 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.johnstonshome.osgi.service.monitor.MonitorClusterService;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorReporter;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.osgi.service.log.LogService;
+
+/**
+ * Merges the snapshots of this node, received as a reporter, and of peer 
+ * nodes, received as {@link WireFormat} streams on a listening socket, into
+ * a cluster wide view. Peers stream to the aggregator by setting their 
+ * <code>wire.address</code> to its <code>cluster.address</code>, each 
+ * connection is one node named by its remote address and the node is 
+ * dropped from the view when the connection closes.
+ * <p>
+ * Only connections from the allowed peer hosts are accepted, by default 
+ * those on the loopback interface, and at most {@link #MAX_PEERS} at once.
+ * The {@link WireDecoder} limits what each stream may ask to be held, and
+ * a peer whose stream is corrupt is dropped.
+ * </p>
+ * <p>
+ * Merging is incremental, each node's last contribution to each monitor is
+ * kept and when a new snapshot arrives only the monitors whose values 
+ * changed are taken away from and added to the totals. The merged snapshot
+ * is only rebuilt when it is asked for after a change.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+class ClusterAggregator implements MonitorReporter, MonitorClusterService, Runnable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_BUFFER_SIZE = WireDecoder.MAX_FRAME_LENGTH + 16;
+	static final int MAX_PEERS = 64;
+	static final String ANY_PEER = "*"; //$NON-NLS-1$
+	
+	private final InetSocketAddress address;
+	private final String allowedPeers;
+	private final LogService log;
+	private Set<InetAddress> allowed = null;
+	
+	/*
+	 * The last contribution of each node to each monitor, and the totals. 
+	 * Guarded by this.
+	 */
+	private final Map<String, Map<MonitorKey, MergeableMonitor>> nodes = 
+		new HashMap<String, Map<MonitorKey, MergeableMonitor>>();
+	private final TreeMap<MonitorKey, MergeableMonitor> totals = 
+		new TreeMap<MonitorKey, MergeableMonitor>();
+	private long timestamp = 0;
+	private long version = 0;
+	private ClusterSnapshot snapshot = null;
+	
+	private volatile ServerSocketChannel server = null;
+	private final Set<SocketChannel> peers = 
+		Collections.synchronizedSet(new HashSet<SocketChannel>());
+	
+	/*
+	 * The merged values as of one version of the totals.
+	 */
+	private static final class ClusterSnapshot implements MonitorSnapshot, SketchSource {
+		private final long version;
+		private final long timestamp;
+		private final MonitorKey[] keys;
+		private final MonitorType[] types;
+		private final long[] values;
+		private final MonitorSketch[] sketches;
+		
+		ClusterSnapshot(long version, long timestamp, Map<MonitorKey, MergeableMonitor> totals) {
+			this.version = version;
+			this.timestamp = timestamp;
+			this.keys = new MonitorKey[totals.size()];
+			this.types = new MonitorType[totals.size()];
+			this.values = new long[totals.size() * FIELDS];
+			this.sketches = new MonitorSketch[totals.size()];
+			int index = 0;
+			for (Map.Entry<MonitorKey, MergeableMonitor> total : totals.entrySet()) {
+				this.keys[index] = total.getKey();
+				this.types[index] = total.getValue().getType();
+				total.getValue().sample(this.values, index * FIELDS);
+				this.sketches[index] = total.getValue().getSketch();
+				index++;
+			}
+		}
+
+		@Override
+		public MonitorSketch getSketch(int index) {
+			return this.sketches[index];
+		}
+
+		@Override
+		public long getTimestamp() {
+			return this.timestamp;
+		}
+
+		@Override
+		public boolean isDelta() {
+			return false;
+		}
+
+		@Override
+		public int size() {
+			return this.keys.length;
+		}
+
+		@Override
+		public int indexOf(String group, String name) {
+			return indexOf(MonitorKey.of(group, name));
+		}
+
+		@Override
+		public int indexOf(MonitorKey key) {
+			int index = Arrays.binarySearch(this.keys, key);
+			return index < 0 ? -1 : index;
+		}
+
+		@Override
+		public MonitorKey getKey(int index) {
+			return this.keys[index];
+		}
+
+		@Override
+		public String getGroup(int index) {
+			return this.keys[index].getGroup();
+		}
+
+		@Override
+		public String getName(int index) {
+			return this.keys[index].getName();
+		}
+
+		@Override
+		public MonitorType getType(int index) {
+			return this.types[index];
+		}
+
+		@Override
+		public long get(int index, int field) {
+			if (field < 0 || field >= FIELDS) {
+				throw new IllegalArgumentException(String.valueOf(field));
+			}
+			return this.values[index * FIELDS + field];
+		}
+	}
+	
+	/*
+	 * Reads the stream of one peer node.
+	 */
+	private final class Peer implements Runnable {
+		private final SocketChannel channel;
+		private final String node;
+		
+		Peer(SocketChannel channel, String node) {
+			this.channel = channel;
+			this.node = node;
+		}
+		
+		@Override
+		public void run() {
+			WireDecoder decoder = new WireDecoder();
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			try {
+				while (this.channel.read(buffer) >= 0) {
+					buffer.flip();
+					MonitorSnapshot snapshot;
+					while ((snapshot = decoder.decode(buffer)) != null) {
+						update(this.node, snapshot);
+					}
+					buffer.compact();
+					if (!buffer.hasRemaining()) {
+						if (buffer.capacity() >= MAX_BUFFER_SIZE) {
+							throw new StreamCorruptedException("Frame exceeds the buffer"); //$NON-NLS-1$
+						}
+						ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_BUFFER_SIZE));
+						buffer.flip();
+						larger.put(buffer);
+						buffer = larger;
+					}
+				}
+			} catch (IOException e) {
+				if (ClusterAggregator.this.server != null) {
+					ClusterAggregator.this.log.log(LogService.LOG_WARNING, 
+							String.format("Dropping cluster node %s", this.node), e);
+				}
+			} catch (RuntimeException e) {
+				ClusterAggregator.this.log.log(LogService.LOG_ERROR, 
+						String.format("Failed to merge cluster node %s", this.node), e);
+			} finally {
+				ClusterAggregator.this.peers.remove(this.channel);
+				try {
+					this.channel.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				removeNode(this.node);
+			}
+		}
+	}
+	
+	/**
+	 * @param address the address to listen on for peer nodes, or 
+	 * <code>null</code> to merge only this node's snapshots.
+	 * @param allowedPeers a comma separated list of the hosts that may 
+	 * connect, {@link #ANY_PEER} for any host or <code>null</code> or empty 
+	 * for only the loopback interface.
+	 * @param log the log to report peer errors to.
+	 */
+	ClusterAggregator(InetSocketAddress address, String allowedPeers, LogService log) {
+		this.address = address;
+		this.allowedPeers = allowedPeers;
+		this.log = log;
+	}
+	
+	/**
+	 * Start listening for peer nodes, if an address was given.
+	 * 
+	 * @throws IOException if the address cannot be bound.
+	 */
+	void start() throws IOException {
+		if (this.address == null) {
+			return;
+		}
+		if (this.allowedPeers != null && this.allowedPeers.trim().length() > 0) {
+			if (!ANY_PEER.equals(this.allowedPeers.trim())) {
+				this.allowed = new HashSet<InetAddress>();
+				for (String host : this.allowedPeers.split(",")) { //$NON-NLS-1$
+					if (host.trim().length() > 0) {
+						this.allowed.addAll(Arrays.asList(InetAddress.getAllByName(host.trim())));
+					}
+				}
+			}
+		} else {
+			this.allowed = Collections.emptySet();
+		}
+		ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.socket().setReuseAddress(true);
+			server.socket().bind(
+					new InetSocketAddress(this.address.getHostName(), this.address.getPort()));
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		this.server = server;
+		Thread thread = new Thread(this, "Monitor Cluster Aggregator"); //$NON-NLS-1$
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stop listening and close the connections of all peer nodes.
+	 */
+	void close() {
+		ServerSocketChannel server = this.server;
+		this.server = null;
+		if (server != null) {
+			try {
+				server.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+		List<SocketChannel> peers;
+		synchronized (this.peers) {
+			peers = new ArrayList<SocketChannel>(this.peers);
+		}
+		for (SocketChannel peer : peers) {
+			try {
+				peer.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * @return the address the aggregator is listening on, or <code>null</code>.
+	 */
+	InetSocketAddress getLocalAddress() {
+		ServerSocketChannel server = this.server;
+		return server == null ? null : (InetSocketAddress)server.socket().getLocalSocketAddress();
+	}
+	
+	@Override
+	public void run() {
+		ServerSocketChannel server;
+		while ((server = this.server) != null) {
+			try {
+				SocketChannel channel = server.accept();
+				InetSocketAddress remote = (InetSocketAddress)channel.socket().getRemoteSocketAddress();
+				String node = remote.getAddress().getHostAddress() + ':' + remote.getPort();
+				if (!isAllowed(remote.getAddress()) || this.peers.size() >= MAX_PEERS) {
+					this.log.log(LogService.LOG_WARNING, 
+							String.format("Refused cluster node %s", node));
+					channel.close();
+					continue;
+				}
+				this.peers.add(channel);
+				Thread thread = new Thread(new Peer(channel, node), 
+						String.format("Monitor Cluster Node %s", node)); //$NON-NLS-1$
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				if (this.server != null) {
+					this.log.log(LogService.LOG_WARNING, "Failed to accept a cluster node", e);
+				}
+			}
+		}
+	}
+
+	private boolean isAllowed(InetAddress peer) {
+		if (this.allowed == null) {
+			return true;
+		}
+		return this.allowed.isEmpty() ? peer.isLoopbackAddress() : this.allowed.contains(peer);
+	}
+
+	@Override
+	public void report(MonitorSnapshot snapshot, MonitorSnapshot delta) {
+		update(LOCAL_NODE, snapshot);
+	}
+	
+	/**
+	 * Replace the contribution of a node with a new snapshot.
+	 * 
+	 * @param node the name of the node.
+	 * @param snapshot a complete snapshot of the node's monitors.
+	 */
+	synchronized void update(String node, MonitorSnapshot snapshot) {
+		Map<MonitorKey, MergeableMonitor> previous = this.nodes.get(node);
+		if (previous == null) {
+			previous = Collections.emptyMap();
+		}
+		Map<MonitorKey, MergeableMonitor> current = 
+			new HashMap<MonitorKey, MergeableMonitor>(snapshot.size() * 2);
+		Set<MonitorKey> changed = new HashSet<MonitorKey>();
+		for (int i = 0; i < snapshot.size(); i++) {
+			MonitorKey key = snapshot.getKey(i);
+			MergeableMonitor old = previous.get(key);
+			if (old != null && old.matches(snapshot, i)) {
+				current.put(key, old);
+				continue;
+			}
+			if (old != null && old.isMerged()) {
+				this.totals.get(key).add(old, -1);
+			}
+			current.put(key, merge(key, MergeableMonitor.of(snapshot, i)));
+			changed.add(key);
+		}
+		for (Map.Entry<MonitorKey, MergeableMonitor> old : previous.entrySet()) {
+			if (!current.containsKey(old.getKey())) {
+				if (old.getValue().isMerged()) {
+					this.totals.get(old.getKey()).add(old.getValue(), -1);
+				}
+				changed.add(old.getKey());
+			}
+		}
+		this.nodes.put(node, current);
+		this.timestamp = Math.max(this.timestamp, snapshot.getTimestamp());
+		if (!changed.isEmpty()) {
+			extremes(changed);
+		}
+	}
+	
+	/**
+	 * Drop the contribution of a node.
+	 * 
+	 * @param node the name of the node.
+	 */
+	synchronized void removeNode(String node) {
+		Map<MonitorKey, MergeableMonitor> previous = this.nodes.remove(node);
+		if (previous == null) {
+			return;
+		}
+		for (Map.Entry<MonitorKey, MergeableMonitor> old : previous.entrySet()) {
+			if (old.getValue().isMerged()) {
+				this.totals.get(old.getKey()).add(old.getValue(), -1);
+			}
+		}
+		extremes(previous.keySet());
+	}
+	
+	/*
+	 * Add a contribution to its total, a contribution whose type differs 
+	 * from the total's is kept but not merged.
+	 */
+	private MergeableMonitor merge(MonitorKey key, MergeableMonitor part) {
+		MergeableMonitor total = this.totals.get(key);
+		if (total == null) {
+			total = new MergeableMonitor(part.getType());
+			this.totals.put(key, total);
+		}
+		if (total.getType() == part.getType()) {
+			total.add(part, 1);
+			part.setMerged(true);
+		}
+		return part;
+	}
+	
+	/*
+	 * Recompute the minimum, maximum and sketch of changed totals, and 
+	 * remove totals that no node contributes to any more.
+	 */
+	private void extremes(Collection<MonitorKey> keys) {
+		List<MergeableMonitor> parts = new ArrayList<MergeableMonitor>();
+		for (MonitorKey key : keys) {
+			parts.clear();
+			for (Map<MonitorKey, MergeableMonitor> node : this.nodes.values()) {
+				MergeableMonitor part = node.get(key);
+				if (part != null && part.isMerged()) {
+					parts.add(part);
+				}
+			}
+			if (parts.isEmpty()) {
+				this.totals.remove(key);
+			} else {
+				this.totals.get(key).extremes(parts);
+			}
+		}
+		this.version++;
+	}
+
+	@Override
+	public synchronized MonitorSnapshot getClusterSnapshot() {
+		if (this.snapshot == null || this.snapshot.version != this.version) {
+			this.snapshot = new ClusterSnapshot(this.version, this.timestamp, this.totals);
+		}
+		return this.snapshot;
+	}
+
+	@Override
+	public synchronized Set<String> getNodes() {
+		return Collections.unmodifiableSet(new TreeSet<String>(this.nodes.keySet()));
+	}
+}
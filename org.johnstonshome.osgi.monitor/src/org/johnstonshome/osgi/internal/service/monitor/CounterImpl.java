@@ -8,7 +8,10 @@
  */
 package org.johnstonshome.osgi.internal.service.monitor;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
 
 /**
  * 
@@ -17,49 +20,60 @@ import org.johnstonshome.osgi.service.monitor.Counter;
  */
 class CounterImpl extends MonitorImpl implements Counter {
 	
-	private long value = 0;
+	private final AtomicLong value = new AtomicLong();
 	
 	public CounterImpl() { }
 	
 	@Override
 	public void decrement() {
-		this.value--;
-		signalUpdate();
+		signalUpdate(this.value.decrementAndGet());
 	}
 
 	@Override
 	public void decrement(long delta) {
-		this.value -= delta;
-		signalUpdate();
+		signalUpdate(this.value.addAndGet(-delta));
 	}
 
 	@Override
 	public long get() {
-		return this.value;
+		return this.value.get();
 	}
 
 	@Override
 	public void increment() {
-		this.value++;
-		signalUpdate();
+		signalUpdate(this.value.incrementAndGet());
 	}
 
 	@Override
 	public void increment(long delta) {
-		this.value += delta;
-		signalUpdate();
+		signalUpdate(this.value.addAndGet(delta));
 	}
 
 	@Override
 	public void set(long value) {
-		this.value= value;
-		signalUpdate();
+		this.value.set(value);
+		signalUpdate(value);
 	}
 
 	@Override
 	public void reset() {
-		this.value = 0;
-		signalUpdate();
+		this.value.set(0);
+		signalUpdate(0);
+	}
+
+	@Override
+	MonitorType getType() {
+		return MonitorType.COUNTER;
+	}
+
+	@Override
+	long getFootprint() {
+		return super.getFootprint() + FOOTPRINT_ATOMIC;
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		values[offset + SAMPLE_COUNT] = this.get();
 	}
 
 	@Override
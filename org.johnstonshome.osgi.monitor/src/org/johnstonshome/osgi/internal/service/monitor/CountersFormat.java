@@ -0,0 +1,107 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Constants for the layout of the shared counters file, a memory mapped 
+ * file that another process can read without any cooperation from this 
+ * one. All values are in native byte order. The file is a header, a fixed
+ * number of records and a label section:
+ * </p>
+ * <ul>
+ *   <li>Header, {@link #HEADER_SIZE} bytes -- {@link #MAGIC}, 
+ *       {@link #VERSION}, the record capacity, the size of the label 
+ *       section, the layout generation, the number of records in use and
+ *       the time of the last publish in milliseconds since the epoch.</li>
+ *   <li>Records, {@link #RECORD_SIZE} bytes each so that each is a cache 
+ *       line of its own -- a sequence number, the offset and length of the
+ *       monitor's key in the label section, the 
+ *       {@link org.johnstonshome.osgi.service.monitor.MonitorType} ordinal,
+ *       and the count, sum, minimum and maximum as in a 
+ *       {@link org.johnstonshome.osgi.service.monitor.MonitorSnapshot}.</li>
+ *   <li>Labels -- the key of each monitor, in the form parsed by 
+ *       {@link org.johnstonshome.osgi.service.monitor.MonitorKey#parse(String)},
+ *       as UTF-8.</li>
+ * </ul>
+ * <p>
+ * Writes are versioned, a sequence number or generation is made odd before
+ * a change and even after it. A reader takes the number, reads and then 
+ * takes it again, retrying if it was odd or has changed. The generation 
+ * covers the layout, that is the records in use and their labels and 
+ * types, each record's sequence covers its values.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class CountersFormat {
+
+	static final int MAGIC = 0x4D434E54;
+	static final int VERSION = 1;
+	
+	static final int HEADER_SIZE = 64;
+	static final int RECORD_SIZE = 64;
+	
+	/*
+	 * The label space allowed for each record, on average.
+	 */
+	static final int LABEL_SIZE = 96;
+	
+	/*
+	 * Header field offsets.
+	 */
+	static final int HEADER_MAGIC = 0;
+	static final int HEADER_VERSION = 4;
+	static final int HEADER_CAPACITY = 8;
+	static final int HEADER_LABELS = 12;
+	static final int HEADER_GENERATION = 16;
+	static final int HEADER_USED = 24;
+	static final int HEADER_TIMESTAMP = 32;
+	
+	/*
+	 * Record field offsets.
+	 */
+	static final int RECORD_SEQUENCE = 0;
+	static final int RECORD_LABEL = 8;
+	static final int RECORD_LABEL_LENGTH = 12;
+	static final int RECORD_TYPE = 14;
+	static final int RECORD_COUNT = 16;
+	static final int RECORD_SUM = 24;
+	static final int RECORD_MIN = 32;
+	static final int RECORD_MAX = 40;
+	
+	private CountersFormat() { }
+	
+	static int labelsOffset(int capacity) {
+		return HEADER_SIZE + capacity * RECORD_SIZE;
+	}
+	
+	static int fileSize(int capacity) {
+		return labelsOffset(capacity) + capacity * LABEL_SIZE;
+	}
+	
+	static int recordOffset(int index) {
+		return HEADER_SIZE + index * RECORD_SIZE;
+	}
+	
+	/**
+	 * @param buffer the mapped file.
+	 * @return <code>true</code> if the buffer starts with a header this 
+	 * version can read.
+	 */
+	static boolean isValid(ByteBuffer buffer) {
+		return buffer.capacity() >= HEADER_SIZE &&
+			buffer.getInt(HEADER_MAGIC) == MAGIC &&
+			buffer.getInt(HEADER_VERSION) == VERSION &&
+			buffer.capacity() >= fileSize(buffer.getInt(HEADER_CAPACITY));
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.osgi.service.log.LogService;
+
+/**
+ * Publishes the values of monitors to a memory mapped file in the 
+ * {@link CountersFormat}, so that another process (for example 
+ * {@link CountersReader}) can follow them with no requests to, and no 
+ * locks shared with, this one. A single thread samples the monitors at a
+ * fixed interval and writes only the records whose values have changed;
+ * the layout is only rewritten when monitors are added or removed.
+ * <p>
+ * Only monitors whose values are read straight from their cells, counters,
+ * meters, statistics and call trees, are published. Gauges call their 
+ * function and histograms, distinct counters and top-k monitors flip or 
+ * sort their sketches when sampled, which is left to the snapshots.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+class CountersPublisher implements Runnable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+	
+	private final MonitorServiceImpl monitorService;
+	private final File file;
+	private final int capacity;
+	private final long intervalNanos;
+	private final LogService log;
+	
+	private RandomAccessFile raf = null;
+	private MappedByteBuffer buffer = null;
+	
+	/*
+	 * The layout as last written, and the values of each record, only used
+	 * on the publishing thread.
+	 */
+	private MonitorKey[] keys = new MonitorKey[0];
+	private int considered = 0;
+	private long[] values = new long[0];
+	private final long[] sample = new long[MonitorImpl.SAMPLE_SIZE];
+	private long generation = 0;
+	private boolean truncated = false;
+	
+	/*
+	 * Written between the sequence and the values of a record so that the 
+	 * writes are not reordered. The memory model says nothing about another
+	 * process, but a volatile write is a full fence on the virtual machines
+	 * this runs on.
+	 */
+	@SuppressWarnings("unused")
+	private volatile long fence = 0;
+
+	private volatile boolean running = false;
+	private Thread thread = null;
+	
+	/**
+	 * @param monitorService the service whose monitors are published.
+	 * @param file the file to publish to, created or overwritten.
+	 * @param capacity the maximum number of monitors published.
+	 * @param interval the time between publishing, in milliseconds.
+	 * @param log the log to report errors to.
+	 */
+	CountersPublisher(MonitorServiceImpl monitorService, File file, int capacity, long interval, LogService log) {
+		this.monitorService = monitorService;
+		this.file = file;
+		this.capacity = capacity;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+		this.log = log;
+	}
+	
+	File getFile() {
+		return this.file;
+	}
+	
+	/**
+	 * Create and map the file and start publishing.
+	 * 
+	 * @throws IOException if the file cannot be created.
+	 */
+	void start() throws IOException {
+		int size = CountersFormat.fileSize(this.capacity);
+		this.raf = new RandomAccessFile(this.file, "rw"); //$NON-NLS-1$
+		try {
+			this.raf.setLength(0);
+			this.raf.setLength(size);
+			this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} catch (IOException e) {
+			this.raf.close();
+			this.raf = null;
+			throw e;
+		}
+		this.buffer.order(ByteOrder.nativeOrder());
+		this.buffer.putInt(CountersFormat.HEADER_CAPACITY, this.capacity);
+		this.buffer.putInt(CountersFormat.HEADER_LABELS, this.capacity * CountersFormat.LABEL_SIZE);
+		this.buffer.putInt(CountersFormat.HEADER_VERSION, CountersFormat.VERSION);
+		this.fence = 0;
+		this.buffer.putInt(CountersFormat.HEADER_MAGIC, CountersFormat.MAGIC);
+		
+		this.running = true;
+		this.thread = new Thread(this, "Monitor Counters Publisher"); //$NON-NLS-1$
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+	
+	void close() {
+		this.running = false;
+		if (this.thread != null) {
+			LockSupport.unpark(this.thread);
+			try {
+				this.thread.join(TimeUnit.NANOSECONDS.toMillis(this.intervalNanos) * 10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.thread = null;
+		}
+		if (this.raf != null) {
+			try {
+				this.raf.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			this.raf = null;
+			this.buffer = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (this.running) {
+			List<Monitor> monitors = this.monitorService.getMonitors();
+			if (monitors != null) {
+				try {
+					publish(monitors, System.currentTimeMillis());
+				} catch (RuntimeException e) {
+					this.log.log(LogService.LOG_ERROR, "Failed to publish monitor counters", e);
+				}
+			}
+			LockSupport.parkNanos(this.intervalNanos);
+		}
+	}
+	
+	/**
+	 * Write the values of the published monitors, rewriting the layout first
+	 * if they have changed. Only called on the publishing thread.
+	 * 
+	 * @param monitors all monitors.
+	 * @param timestamp the time of publishing.
+	 */
+	void publish(List<Monitor> monitors, long timestamp) {
+		MonitorImpl[] published = published(monitors);
+		if (!sameLayout(published)) {
+			layout(published);
+		}
+		for (int i = 0; i < this.keys.length; i++) {
+			int offset = i * MonitorSnapshot.FIELDS;
+			Arrays.fill(this.sample, 0);
+			published[i].sample(this.sample, 0);
+			long count = this.sample[MonitorImpl.SAMPLE_COUNT];
+			long sum = this.sample[MonitorImpl.SAMPLE_SUM];
+			long min = this.sample[MonitorImpl.SAMPLE_MIN];
+			long max = this.sample[MonitorImpl.SAMPLE_MAX];
+			if (count != this.values[offset + MonitorSnapshot.COUNT] ||
+				sum != this.values[offset + MonitorSnapshot.SUM] ||
+				min != this.values[offset + MonitorSnapshot.MIN] ||
+				max != this.values[offset + MonitorSnapshot.MAX]) {
+				this.values[offset + MonitorSnapshot.COUNT] = count;
+				this.values[offset + MonitorSnapshot.SUM] = sum;
+				this.values[offset + MonitorSnapshot.MIN] = min;
+				this.values[offset + MonitorSnapshot.MAX] = max;
+				writeValues(i, count, sum, min, max);
+			}
+		}
+		this.buffer.putLong(CountersFormat.HEADER_TIMESTAMP, timestamp);
+	}
+	
+	/**
+	 * @param type a monitor type.
+	 * @return <code>true</code> if monitors of the type are published.
+	 */
+	static boolean isPublished(MonitorType type) {
+		switch (type) {
+		case GAUGE:
+		case HISTOGRAM:
+		case DISTINCT_COUNTER:
+		case TOP_K:
+			return false;
+		default:
+			return true;
+		}
+	}
+	
+	private static MonitorImpl[] published(List<Monitor> monitors) {
+		MonitorImpl[] published = new MonitorImpl[monitors.size()];
+		int size = 0;
+		for (Monitor monitor : monitors) {
+			if (monitor instanceof MonitorImpl && isPublished(((MonitorImpl)monitor).getType())) {
+				published[size++] = (MonitorImpl)monitor;
+			}
+		}
+		return size == published.length ? published : Arrays.copyOf(published, size);
+	}
+	
+	private boolean sameLayout(MonitorImpl[] published) {
+		if (Math.min(published.length, this.capacity) != this.considered) {
+			return false;
+		}
+		for (int i = 0; i < this.keys.length; i++) {
+			if (!this.keys[i].equals(published[i].getKey())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Rewrite the records in use and their labels, records are in the 
+	 * service's order and those beyond the capacity or the label space 
+	 * are left out.
+	 */
+	private void layout(MonitorImpl[] published) {
+		int size = Math.min(published.length, this.capacity);
+		if (size < published.length && !this.truncated) {
+			this.truncated = true;
+			this.log.log(LogService.LOG_WARNING, 
+					String.format("Only the first %d of %d monitors are published to %s", 
+							this.capacity, published.length, this.file));
+		}
+		this.generation++;
+		this.buffer.putLong(CountersFormat.HEADER_GENERATION, this.generation);
+		this.fence = this.generation;
+		
+		int labels = CountersFormat.labelsOffset(this.capacity);
+		int labelSpace = this.capacity * CountersFormat.LABEL_SIZE;
+		int labelOffset = 0;
+		MonitorKey[] keys = new MonitorKey[size];
+		int used = 0;
+		for (int i = 0; i < size; i++) {
+			MonitorKey key = published[i].getKey();
+			byte[] label = key.toString().getBytes(UTF8);
+			if (label.length > Short.MAX_VALUE || labelOffset + label.length > labelSpace) {
+				break;
+			}
+			for (int b = 0; b < label.length; b++) {
+				this.buffer.put(labels + labelOffset + b, label[b]);
+			}
+			int record = CountersFormat.recordOffset(used);
+			this.buffer.putLong(record + CountersFormat.RECORD_SEQUENCE, 0);
+			this.buffer.putInt(record + CountersFormat.RECORD_LABEL, labelOffset);
+			this.buffer.putShort(record + CountersFormat.RECORD_LABEL_LENGTH, (short)label.length);
+			this.buffer.put(record + CountersFormat.RECORD_TYPE, (byte)published[i].getType().ordinal());
+			this.buffer.putLong(record + CountersFormat.RECORD_COUNT, 0);
+			this.buffer.putLong(record + CountersFormat.RECORD_SUM, 0);
+			this.buffer.putLong(record + CountersFormat.RECORD_MIN, 0);
+			this.buffer.putLong(record + CountersFormat.RECORD_MAX, 0);
+			labelOffset += label.length;
+			keys[used++] = key;
+		}
+		if (used < size) {
+			MonitorKey[] fitted = new MonitorKey[used];
+			System.arraycopy(keys, 0, fitted, 0, used);
+			keys = fitted;
+			if (!this.truncated) {
+				this.truncated = true;
+				this.log.log(LogService.LOG_WARNING, 
+						String.format("Only the first %d of %d monitors fit the labels of %s", 
+								used, published.length, this.file));
+			}
+		}
+		this.keys = keys;
+		this.considered = size;
+		this.values = new long[used * MonitorSnapshot.FIELDS];
+		this.buffer.putInt(CountersFormat.HEADER_USED, used);
+		
+		this.fence = this.generation;
+		this.generation++;
+		this.buffer.putLong(CountersFormat.HEADER_GENERATION, this.generation);
+	}
+	
+	private void writeValues(int index, long count, long sum, long min, long max) {
+		int record = CountersFormat.recordOffset(index);
+		long sequence = this.buffer.getLong(record + CountersFormat.RECORD_SEQUENCE);
+		this.buffer.putLong(record + CountersFormat.RECORD_SEQUENCE, sequence + 1);
+		this.fence = sequence;
+		this.buffer.putLong(record + CountersFormat.RECORD_COUNT, count);
+		this.buffer.putLong(record + CountersFormat.RECORD_SUM, sum);
+		this.buffer.putLong(record + CountersFormat.RECORD_MIN, min);
+		this.buffer.putLong(record + CountersFormat.RECORD_MAX, max);
+		this.fence = sequence;
+		this.buffer.putLong(record + CountersFormat.RECORD_SEQUENCE, sequence + 2);
+	}
+}
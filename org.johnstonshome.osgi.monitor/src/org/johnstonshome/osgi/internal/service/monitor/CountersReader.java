@@ -0,0 +1,194 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * <p>
+ * A standalone tool that follows the shared counters file written by 
+ * {@link CountersPublisher} from another process. It maps the file read 
+ * only and never writes to it, so the monitored process is not affected.
+ * Each interval it prints the monitors whose values have changed:
+ * </p>
+ * <pre>
+ * java -cp org.johnstonshome.osgi.monitor.jar org.johnstonshome.osgi.internal.service.monitor.CountersReader file [interval ms] [key prefix]
+ * </pre>
+ * 
+ * @author Simon Johnston
+ *
+ */
+public class CountersReader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+	private static final MonitorType[] TYPES = MonitorType.values();
+	
+	private static final int MAX_ATTEMPTS = 1000;
+	
+	private static final String FORMAT_LINE = "%tT %-50s %-18s count=%d sum=%d min=%d max=%d"; //$NON-NLS-1$
+	
+	private final MappedByteBuffer buffer;
+	private final String prefix;
+	
+	private long generation = -1;
+	private String[] labels = new String[0];
+	private MonitorType[] types = new MonitorType[0];
+	private long[] sequences = new long[0];
+	
+	/*
+	 * Read between the sequence and the values of a record, see 
+	 * CountersPublisher.
+	 */
+	private volatile long fence = 0;
+	
+	CountersReader(MappedByteBuffer buffer, String prefix) {
+		this.buffer = buffer;
+		this.prefix = prefix;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: CountersReader file [interval ms] [key prefix]"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		long interval = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		String prefix = args.length > 2 ? args[2] : null;
+		RandomAccessFile raf = new RandomAccessFile(new File(args[0]), "r"); //$NON-NLS-1$
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			buffer.order(ByteOrder.nativeOrder());
+			if (!CountersFormat.isValid(buffer)) {
+				System.err.println(String.format("%s is not a monitor counters file", args[0])); //$NON-NLS-1$
+				System.exit(1);
+			}
+			CountersReader reader = new CountersReader(buffer, prefix);
+			while (true) {
+				reader.print();
+				Thread.sleep(interval);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Print the monitors that have changed since the last call.
+	 */
+	void print() {
+		if (!readLayout()) {
+			return;
+		}
+		long timestamp = this.buffer.getLong(CountersFormat.HEADER_TIMESTAMP);
+		long[] values = new long[this.labels.length * 4];
+		long[] sequences = new long[this.labels.length];
+		for (int i = 0; i < this.labels.length; i++) {
+			if (this.labels[i] != null) {
+				sequences[i] = read(i, values, i * 4);
+			}
+		}
+		/*
+		 * If the layout changed while reading the values may belong to other
+		 * monitors, they are read again next time.
+		 */
+		if (this.buffer.getLong(CountersFormat.HEADER_GENERATION) != this.generation) {
+			return;
+		}
+		for (int i = 0; i < this.labels.length; i++) {
+			if (this.labels[i] != null && sequences[i] != this.sequences[i]) {
+				this.sequences[i] = sequences[i];
+				System.out.println(String.format(FORMAT_LINE, 
+						timestamp, this.labels[i], this.types[i], 
+						values[i * 4], values[i * 4 + 1], values[i * 4 + 2], values[i * 4 + 3]));
+			}
+		}
+	}
+	
+	/*
+	 * Read the labels and types again if the layout has changed, returning
+	 * false if it is being rewritten.
+	 */
+	private boolean readLayout() {
+		long generation = this.buffer.getLong(CountersFormat.HEADER_GENERATION);
+		if ((generation & 1) != 0) {
+			return false;
+		}
+		if (generation == this.generation) {
+			return true;
+		}
+		this.fence = generation;
+		int capacity = this.buffer.getInt(CountersFormat.HEADER_CAPACITY);
+		int used = Math.min(this.buffer.getInt(CountersFormat.HEADER_USED), capacity);
+		int labels = CountersFormat.labelsOffset(capacity);
+		String[] names = new String[used];
+		MonitorType[] types = new MonitorType[used];
+		for (int i = 0; i < used; i++) {
+			int record = CountersFormat.recordOffset(i);
+			int offset = this.buffer.getInt(record + CountersFormat.RECORD_LABEL);
+			int length = this.buffer.getShort(record + CountersFormat.RECORD_LABEL_LENGTH);
+			int type = this.buffer.get(record + CountersFormat.RECORD_TYPE);
+			if (offset < 0 || length < 0 || labels + offset + length > this.buffer.capacity() ||
+				type < 0 || type >= TYPES.length) {
+				return false;
+			}
+			byte[] label = new byte[length];
+			for (int b = 0; b < length; b++) {
+				label[b] = this.buffer.get(labels + offset + b);
+			}
+			String name = new String(label, UTF8);
+			names[i] = this.prefix == null || name.startsWith(this.prefix) ? name : null;
+			types[i] = TYPES[type];
+		}
+		if (this.fence != generation || 
+			this.buffer.getLong(CountersFormat.HEADER_GENERATION) != generation) {
+			return false;
+		}
+		this.generation = generation;
+		this.labels = names;
+		this.types = types;
+		this.sequences = new long[used];
+		for (int i = 0; i < used; i++) {
+			this.sequences[i] = -1;
+		}
+		return true;
+	}
+	
+	/*
+	 * Read a consistent copy of a record's values, returning its sequence,
+	 * or the sequence last printed if the record is being written for too 
+	 * long (for example if the publisher stopped while writing it).
+	 */
+	private long read(int index, long[] values, int offset) {
+		int record = CountersFormat.recordOffset(index);
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			long sequence = this.buffer.getLong(record + CountersFormat.RECORD_SEQUENCE);
+			if ((sequence & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			this.fence = sequence;
+			values[offset] = this.buffer.getLong(record + CountersFormat.RECORD_COUNT);
+			values[offset + 1] = this.buffer.getLong(record + CountersFormat.RECORD_SUM);
+			values[offset + 2] = this.buffer.getLong(record + CountersFormat.RECORD_MIN);
+			values[offset + 3] = this.buffer.getLong(record + CountersFormat.RECORD_MAX);
+			if (this.fence == sequence &&
+				this.buffer.getLong(record + CountersFormat.RECORD_SEQUENCE) == sequence) {
+				return sequence;
+			}
+		}
+		return this.sequences[index];
+	}
+}
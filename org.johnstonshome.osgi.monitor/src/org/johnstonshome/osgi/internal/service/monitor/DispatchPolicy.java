@@ -0,0 +1,31 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+/**
+ * Describes what the asynchronous {@link MonitorUpdateDispatcher} does when 
+ * its queue is full.
+ * 
+ * @author Simon Johnston
+ *
+ */
+enum DispatchPolicy {
+
+	/**
+	 * The update is dropped and counted, the thread updating the monitor 
+	 * is never delayed.
+	 */
+	DROP,
+	
+	/**
+	 * The thread updating the monitor waits until the dispatcher has made
+	 * space in the queue.
+	 */
+	BLOCK
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.johnstonshome.osgi.service.monitor.DistinctCounter;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * The registers are packed eight to a word of an atomic array and only 
+ * written when a value raises one, which after the first few thousand 
+ * values is rare, so adding a value is usually a hash and a read. A raise
+ * is a compare and swap of the word and never takes a lock. The number of
+ * values added is kept in a striped counter.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class DistinctCounterImpl extends MonitorImpl implements DistinctCounter {
+
+	private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+	
+	private final int precision;
+	private final AtomicLongArray registers;
+	private final StripedLong count = new StripedLong();
+	
+	public DistinctCounterImpl() {
+		this(DistinctSketch.DEFAULT_PRECISION);
+	}
+	
+	public DistinctCounterImpl(int precision) {
+		if (precision < DistinctSketch.MIN_PRECISION || precision > DistinctSketch.MAX_PRECISION) {
+			throw new IllegalArgumentException();
+		}
+		this.precision = precision;
+		this.registers = new AtomicLongArray((1 << precision) / 8);
+	}
+
+	@Override
+	public void add(Object value) {
+		if (value instanceof CharSequence) {
+			CharSequence text = (CharSequence)value;
+			long hash = FNV_OFFSET;
+			for (int i = 0; i < text.length(); i++) {
+				hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+			}
+			addHash(mix(hash));
+		} else if (value instanceof Long || value instanceof Integer) {
+			addHash(mix(((Number)value).longValue()));
+		} else {
+			addHash(mix(value.hashCode()));
+		}
+	}
+
+	@Override
+	public void add(long value) {
+		addHash(mix(value));
+	}
+	
+	private void addHash(long hash) {
+		long position = DistinctSketch.position(hash, this.precision);
+		int index = (int)(position >>> 32);
+		long value = position & 0xFF;
+		int word = index >>> 3;
+		int shift = (index & 7) * 8;
+		for (;;) {
+			long current = this.registers.get(word);
+			if (((current >>> shift) & 0xFF) >= value || 
+				this.registers.compareAndSet(word, current, (current & ~(0xFFL << shift)) | (value << shift))) {
+				break;
+			}
+		}
+		this.count.add(1);
+		signalUpdate();
+	}
+	
+	/*
+	 * The finalizer of MurmurHash3, so that nearby values land in unrelated
+	 * registers.
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	@Override
+	public long getEstimate() {
+		double sum = 0.0;
+		int zeros = 0;
+		for (int word = 0; word < this.registers.length(); word++) {
+			long registers = this.registers.get(word);
+			for (int shift = 0; shift < 64; shift += 8) {
+				int register = (int)((registers >>> shift) & 0xFF);
+				sum += Math.scalb(1.0, -register);
+				if (register == 0) {
+					zeros++;
+				}
+			}
+		}
+		return DistinctSketch.estimate(this.registers.length() * 8, sum, zeros);
+	}
+
+	@Override
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	@Override
+	public int getPrecision() {
+		return this.precision;
+	}
+	
+	/**
+	 * @return a copy of the registers, values added concurrently may or may
+	 * not be included.
+	 */
+	DistinctSketch getSketch() {
+		byte[] registers = new byte[this.registers.length() * 8];
+		for (int word = 0; word < this.registers.length(); word++) {
+			long value = this.registers.get(word);
+			for (int i = 0; i < 8; i++) {
+				registers[word * 8 + i] = (byte)(value >>> (i * 8));
+			}
+		}
+		return new DistinctSketch(this.precision, registers);
+	}
+
+	@Override
+	public void reset() {
+		for (int word = 0; word < this.registers.length(); word++) {
+			this.registers.set(word, 0);
+		}
+		this.count.reset();
+		signalUpdate();
+	}
+
+	@Override
+	MonitorType getType() {
+		return MonitorType.DISTINCT_COUNTER;
+	}
+
+	@Override
+	long getFootprint() {
+		return super.getFootprint() + footprint(this.registers) + this.count.getFootprint();
+	}
+
+	@Override
+	Object sampleState(long[] values, int offset) {
+		sample(values, offset);
+		return getSketch();
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		long estimate = this.getEstimate();
+		values[offset + SAMPLE_COUNT] = this.count.sum();
+		values[offset + SAMPLE_P50] = estimate;
+		values[offset + SAMPLE_MIN] = estimate;
+		values[offset + SAMPLE_MAX] = estimate;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{DistinctCounter ~%d of %d}", this.getEstimate(), this.getCount());
+	}
+}
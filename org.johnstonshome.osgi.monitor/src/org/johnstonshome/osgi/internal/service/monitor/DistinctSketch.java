@@ -0,0 +1,175 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+/**
+ * A HyperLogLog sketch of <code>2^precision</code> registers, each holding
+ * the longest run of leading zeros (plus one) seen in the hashes that fell
+ * into it. Sketches of different precisions are merged by folding the more
+ * precise one down to the precision of the other.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class DistinctSketch extends MonitorSketch {
+
+	static final int MIN_PRECISION = 4;
+	static final int MAX_PRECISION = 16;
+	static final int DEFAULT_PRECISION = 12;
+	
+	private final int precision;
+	private final byte[] registers;
+	
+	/**
+	 * @param precision the precision of the sketch.
+	 * @param registers the registers, owned by the sketch from now on.
+	 */
+	DistinctSketch(int precision, byte[] registers) {
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION || registers.length != 1 << precision) {
+			throw new IllegalArgumentException();
+		}
+		this.precision = precision;
+		this.registers = registers;
+	}
+	
+	int getPrecision() {
+		return this.precision;
+	}
+	
+	/**
+	 * @param index the index of a register.
+	 * @return the value of the register.
+	 */
+	int getRegister(int index) {
+		return this.registers[index];
+	}
+	
+	/**
+	 * @return the number of registers.
+	 */
+	int size() {
+		return this.registers.length;
+	}
+	
+	/**
+	 * @return the estimated number of distinct values.
+	 */
+	long getEstimate() {
+		double sum = 0.0;
+		int zeros = 0;
+		for (int i = 0; i < this.registers.length; i++) {
+			sum += Math.scalb(1.0, -this.registers[i]);
+			if (this.registers[i] == 0) {
+				zeros++;
+			}
+		}
+		return estimate(this.registers.length, sum, zeros);
+	}
+	
+	/**
+	 * The HyperLogLog estimate, using linear counting for small cardinalities
+	 * where the raw estimate is biased. Hashes are 64 bits so no correction
+	 * is needed at the top of the range.
+	 * 
+	 * @param m the number of registers.
+	 * @param sum the sum of <code>2^-register</code> over all registers.
+	 * @param zeros the number of registers that are still zero.
+	 * @return the estimated number of distinct values.
+	 */
+	static long estimate(int m, double sum, int zeros) {
+		double alpha;
+		switch (m) {
+		case 16:
+			alpha = 0.673;
+			break;
+		case 32:
+			alpha = 0.697;
+			break;
+		case 64:
+			alpha = 0.709;
+			break;
+		default:
+			alpha = 0.7213 / (1.0 + 1.079 / m);
+		}
+		double raw = alpha * m * m / sum;
+		if (raw <= 2.5 * m && zeros != 0) {
+			return Math.round(m * Math.log(m / (double)zeros));
+		}
+		return Math.round(raw);
+	}
+	
+	/**
+	 * The register a hash falls into and the value it would set there.
+	 * 
+	 * @param hash a well mixed 64 bit hash.
+	 * @param precision the precision of the sketch.
+	 * @return the register index in the upper 32 bits, the value in the 
+	 * lower.
+	 */
+	static long position(long hash, int precision) {
+		int index = (int)(hash >>> (64 - precision));
+		int value = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+		return ((long)index << 32) | value;
+	}
+
+	@Override
+	MonitorSketch merge(MonitorSketch other) {
+		if (!(other instanceof DistinctSketch)) {
+			throw new IllegalArgumentException();
+		}
+		DistinctSketch that = (DistinctSketch)other;
+		int precision = Math.min(this.precision, that.precision);
+		byte[] merged = this.fold(precision);
+		byte[] registers = that.fold(precision);
+		for (int i = 0; i < merged.length; i++) {
+			if (registers[i] > merged[i]) {
+				merged[i] = registers[i];
+			}
+		}
+		return new DistinctSketch(precision, merged);
+	}
+	
+	/*
+	 * A copy of the registers at a lower precision. The index bits that are
+	 * dropped become the leading bits of the hashes, so a register's value 
+	 * comes from those bits unless they are all zero.
+	 */
+	private byte[] fold(int precision) {
+		if (precision == this.precision) {
+			return this.registers.clone();
+		}
+		int shift = this.precision - precision;
+		byte[] folded = new byte[1 << precision];
+		for (int i = 0; i < this.registers.length; i++) {
+			int register = this.registers[i];
+			if (register == 0) {
+				continue;
+			}
+			int low = i & ((1 << shift) - 1);
+			int value = low == 0 ? register + shift : Integer.numberOfLeadingZeros(low) - (32 - shift) + 1;
+			if (value > folded[i >>> shift]) {
+				folded[i >>> shift] = (byte)value;
+			}
+		}
+		return folded;
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		long estimate = this.getEstimate();
+		values[offset + MonitorImpl.SAMPLE_P50] = estimate;
+		values[offset + MonitorImpl.SAMPLE_MIN] = estimate;
+		values[offset + MonitorImpl.SAMPLE_MAX] = estimate;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("{Distinct ~%d}", this.getEstimate());
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.johnstonshome.osgi.service.monitor.Gauge;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.johnstonshome.utils.fun.ValueFunction;
+import org.osgi.service.log.LogService;
+
+/**
+ * The function is called by at most one reader at a time. A reader that 
+ * finds the result expired while another reader is calling the function 
+ * takes the expired result rather than waiting, only readers with no 
+ * result at all wait for the call to complete. If the function throws, the
+ * failure is logged, once until the function next succeeds, and readers
+ * are given the last value it returned.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class GaugeImpl extends MonitorImpl implements Gauge {
+
+	/*
+	 * Sample slot holding the value in units of 1 / VALUE_SCALE, so that it
+	 * keeps three decimal places as a long. The minimum and maximum slots 
+	 * hold the value rounded, so that rollups show its range.
+	 */
+	static final int SAMPLE_VALUE = SAMPLE_P50;
+	static final double VALUE_SCALE = 1000.0;
+	
+	private final ValueFunction<? extends Number> function;
+	private final long timeToLive;
+	private final long timeToLiveNanos;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LogService log;
+	
+	/*
+	 * The last result, and the time it expires, written under the lock.
+	 */
+	private volatile Number value = null;
+	private volatile long expires = 0;
+	private volatile boolean evaluated = false;
+	
+	/*
+	 * The last value the function returned, and whether it is failing.
+	 */
+	private volatile Number last = null;
+	private volatile boolean failing = false;
+	
+	GaugeImpl(ValueFunction<? extends Number> function, long timeToLive, LogService log) {
+		if (function == null || timeToLive < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.function = function;
+		this.timeToLive = timeToLive;
+		this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+		this.log = log;
+	}
+
+	@Override
+	public Number getValue() {
+		if (this.timeToLiveNanos == 0) {
+			return call();
+		}
+		if (this.evaluated && System.nanoTime() - this.expires < 0) {
+			return this.value;
+		}
+		if (this.evaluated) {
+			if (!this.lock.tryLock()) {
+				return this.value;
+			}
+		} else {
+			this.lock.lock();
+		}
+		try {
+			long now = System.nanoTime();
+			if (!this.evaluated || now - this.expires >= 0) {
+				this.value = call();
+				this.expires = now + this.timeToLiveNanos;
+				this.evaluated = true;
+			}
+			return this.value;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+	
+	private Number call() {
+		try {
+			Number value = this.function.call();
+			this.last = value;
+			this.failing = false;
+			return value;
+		} catch (RuntimeException e) {
+			if (!this.failing) {
+				this.failing = true;
+				if (this.log != null) {
+					this.log.log(LogService.LOG_WARNING, 
+							String.format("Gauge %s failed, keeping its last value", getKey()), 
+							e);
+				}
+			}
+			return this.last;
+		}
+	}
+
+	@Override
+	public long getTimeToLive() {
+		return this.timeToLive;
+	}
+
+	@Override
+	public ValueFunction<? extends Number> getFunction() {
+		return this.function;
+	}
+
+	/**
+	 * Forget any kept result, so that the next read calls the function.
+	 */
+	@Override
+	public void reset() {
+		this.lock.lock();
+		try {
+			this.evaluated = false;
+			this.value = null;
+			this.last = null;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	MonitorType getType() {
+		return MonitorType.GAUGE;
+	}
+
+	@Override
+	long getFootprint() {
+		/*
+		 * The lock, and two boxed values, the function belongs to its owner.
+		 */
+		return super.getFootprint() + FOOTPRINT_HEADER * 4 + 48;
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		Number value = getValue();
+		double current = value == null ? 0.0 : value.doubleValue();
+		values[offset + SAMPLE_VALUE] = Math.round(current * VALUE_SCALE);
+		values[offset + SAMPLE_MIN] = Math.round(current);
+		values[offset + SAMPLE_MAX] = values[offset + SAMPLE_MIN];
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{Gauge %s}", this.getValue());
+	}
+}
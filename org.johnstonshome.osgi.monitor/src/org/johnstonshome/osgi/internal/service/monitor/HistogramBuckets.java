@@ -0,0 +1,129 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+/**
+ * The bucket layout for a histogram. Values are grouped into buckets that 
+ * each cover a power of two range, each bucket is split into a fixed number
+ * of linear sub-buckets, enough to distinguish values to the requested 
+ * number of significant digits. The first bucket is split into twice as many
+ * sub-buckets so that small values are counted exactly; every other bucket 
+ * only needs its upper half as the lower half overlaps the previous bucket.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class HistogramBuckets {
+
+	private final long highestTrackableValue;
+	private final int significantDigits;
+	private final int subBucketHalfCountMagnitude;
+	private final int subBucketHalfCount;
+	private final long subBucketMask;
+	private final int leadingZeroCountBase;
+	private final int length;
+	
+	HistogramBuckets(long highestTrackableValue, int significantDigits) {
+		if (highestTrackableValue < 2 || significantDigits < 0 || significantDigits > 5) {
+			throw new IllegalArgumentException();
+		}
+		this.highestTrackableValue = highestTrackableValue;
+		this.significantDigits = significantDigits;
+		
+		long singleUnitResolution = 2 * (long)Math.pow(10, significantDigits);
+		int subBucketCountMagnitude = 
+			64 - Long.numberOfLeadingZeros(singleUnitResolution - 1);
+		this.subBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+		int subBucketCount = 1 << (this.subBucketHalfCountMagnitude + 1);
+		this.subBucketHalfCount = subBucketCount / 2;
+		this.subBucketMask = subBucketCount - 1;
+		this.leadingZeroCountBase = 64 - this.subBucketHalfCountMagnitude - 1;
+
+		long smallestUntrackable = subBucketCount;
+		int buckets = 1;
+		while (smallestUntrackable <= highestTrackableValue) {
+			if (smallestUntrackable > Long.MAX_VALUE / 2) {
+				buckets++;
+				break;
+			}
+			smallestUntrackable <<= 1;
+			buckets++;
+		}
+		this.length = (buckets + 1) * this.subBucketHalfCount;
+	}
+	
+	long getHighestTrackableValue() {
+		return this.highestTrackableValue;
+	}
+	
+	int getSignificantDigits() {
+		return this.significantDigits;
+	}
+	
+	/**
+	 * @return the number of counts needed to hold this layout.
+	 */
+	int length() {
+		return this.length;
+	}
+	
+	/**
+	 * Return the index of the count for a value, values outside the 
+	 * trackable range are clamped into it.
+	 * 
+	 * @param value a recorded value.
+	 * @return the index of the count for that value.
+	 */
+	int indexOf(long value) {
+		if (value < 0) {
+			value = 0;
+		} else if (value > this.highestTrackableValue) {
+			value = this.highestTrackableValue;
+		}
+		int bucket = bucketOf(value);
+		int subBucket = (int)(value >>> bucket);
+		return ((bucket + 1) << this.subBucketHalfCountMagnitude) + 
+				(subBucket - this.subBucketHalfCount);
+	}
+
+	/**
+	 * @param index the index of a count.
+	 * @return the lowest value counted at that index.
+	 */
+	long lowestValueAt(int index) {
+		int bucket = (index >> this.subBucketHalfCountMagnitude) - 1;
+		int subBucket = (index & (this.subBucketHalfCount - 1)) + this.subBucketHalfCount;
+		if (bucket < 0) {
+			subBucket -= this.subBucketHalfCount;
+			bucket = 0;
+		}
+		return ((long)subBucket) << bucket;
+	}
+
+	/**
+	 * @param index the index of a count.
+	 * @return the number of distinct values counted at that index.
+	 */
+	long rangeAt(int index) {
+		int bucket = (index >> this.subBucketHalfCountMagnitude) - 1;
+		return 1L << Math.max(bucket, 0);
+	}
+	
+	/**
+	 * @param index the index of a count.
+	 * @return the highest value counted at that index.
+	 */
+	long highestValueAt(int index) {
+		return lowestValueAt(index) + rangeAt(index) - 1;
+	}
+
+	private int bucketOf(long value) {
+		return this.leadingZeroCountBase - Long.numberOfLeadingZeros(value | this.subBucketMask);
+	}
+}
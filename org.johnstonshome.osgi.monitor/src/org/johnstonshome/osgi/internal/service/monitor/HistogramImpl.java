@@ -0,0 +1,164 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.johnstonshome.osgi.service.monitor.Histogram;
+import org.johnstonshome.osgi.service.monitor.HistogramSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * Recording into the histogram is wait-free, writers increment a count in 
+ * one of two phases (even and odd) bracketed by epoch counters. A reader 
+ * flips the phase and waits for the writers already in the old phase to 
+ * leave before folding its counts into the accumulated totals, so that 
+ * every snapshot is consistent without writers ever taking a lock.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class HistogramImpl extends MonitorImpl implements Histogram {
+
+	/**
+	 * The default highest trackable value, one hour in nanoseconds.
+	 */
+	static final long DEFAULT_HIGHEST_VALUE = 3600L * 1000 * 1000 * 1000;
+	
+	/**
+	 * The default number of significant digits.
+	 */
+	static final int DEFAULT_DIGITS = 2;
+	
+	private final HistogramBuckets buckets;
+
+	private final AtomicLong startEpoch = new AtomicLong(0);
+	private final AtomicLong evenEndEpoch = new AtomicLong(0);
+	private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+	private final AtomicLongArray evenCounts;
+	private final AtomicLongArray oddCounts;
+	
+	private final Object readerLock = new Object();
+	private final long[] totals;
+	
+	public HistogramImpl() {
+		this(DEFAULT_HIGHEST_VALUE, DEFAULT_DIGITS);
+	}
+	
+	public HistogramImpl(long highestTrackableValue, int significantDigits) {
+		this.buckets = new HistogramBuckets(highestTrackableValue, significantDigits);
+		this.evenCounts = new AtomicLongArray(this.buckets.length());
+		this.oddCounts = new AtomicLongArray(this.buckets.length());
+		this.totals = new long[this.buckets.length()];
+	}
+	
+	@Override
+	public void recordValue(long value) {
+		int index = this.buckets.indexOf(value);
+		long epoch = this.startEpoch.getAndIncrement();
+		if (epoch < 0) {
+			this.oddCounts.getAndIncrement(index);
+			this.oddEndEpoch.getAndIncrement();
+		} else {
+			this.evenCounts.getAndIncrement(index);
+			this.evenEndEpoch.getAndIncrement();
+		}
+		signalUpdate(value);
+	}
+
+	@Override
+	public HistogramSnapshot getSnapshot() {
+		synchronized (this.readerLock) {
+			collect();
+			return new HistogramSnapshotImpl(this.buckets, this.totals.clone());
+		}
+	}
+
+	@Override
+	public long getHighestTrackableValue() {
+		return this.buckets.getHighestTrackableValue();
+	}
+
+	@Override
+	public int getSignificantDigits() {
+		return this.buckets.getSignificantDigits();
+	}
+
+	@Override
+	public void reset() {
+		synchronized (this.readerLock) {
+			collect();
+			for (int i = 0; i < this.totals.length; i++) {
+				this.totals[i] = 0;
+			}
+		}
+		signalUpdate();
+	}
+
+	/*
+	 * Flip the writers into the other phase, wait for any writer still in the
+	 * previous phase and then move its counts into the totals. Must be called
+	 * holding the reader lock.
+	 */
+	private void collect() {
+		boolean nextIsEven = this.startEpoch.get() < 0;
+		if (nextIsEven) {
+			this.evenEndEpoch.set(0);
+		} else {
+			this.oddEndEpoch.set(Long.MIN_VALUE);
+		}
+		long startAtFlip = this.startEpoch.getAndSet(nextIsEven ? 0 : Long.MIN_VALUE);
+		AtomicLong previousEnd = nextIsEven ? this.oddEndEpoch : this.evenEndEpoch;
+		while (previousEnd.get() != startAtFlip) {
+			Thread.yield();
+		}
+		AtomicLongArray previous = nextIsEven ? this.oddCounts : this.evenCounts;
+		for (int i = 0; i < this.totals.length; i++) {
+			if (previous.get(i) != 0) {
+				this.totals[i] += previous.getAndSet(i, 0);
+			}
+		}
+	}
+	
+	@Override
+	MonitorType getType() {
+		return MonitorType.HISTOGRAM;
+	}
+
+	@Override
+	long getFootprint() {
+		return super.getFootprint() + footprint(this.evenCounts) + footprint(this.oddCounts) + 
+			FOOTPRINT_HEADER * 4 + this.totals.length * 8L + FOOTPRINT_ATOMIC * 3;
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		sampleState(values, offset);
+	}
+	
+	@Override
+	Object sampleState(long[] values, int offset) {
+		HistogramSnapshot snapshot = this.getSnapshot();
+		values[offset + SAMPLE_COUNT] = snapshot.getCount();
+		values[offset + SAMPLE_SUM] = (long)(snapshot.getAverage() * snapshot.getCount());
+		values[offset + SAMPLE_MIN] = snapshot.getMin();
+		values[offset + SAMPLE_MAX] = snapshot.getMax();
+		values[offset + SAMPLE_P50] = snapshot.getValueAtPercentile(50.0);
+		values[offset + SAMPLE_P90] = snapshot.getValueAtPercentile(90.0);
+		values[offset + SAMPLE_P99] = snapshot.getValueAtPercentile(99.0);
+		values[offset + SAMPLE_P999] = snapshot.getValueAtPercentile(99.9);
+		return snapshot;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{Histogram %s}", this.getSnapshot().toString());
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import org.johnstonshome.osgi.service.monitor.HistogramSnapshot;
+
+/**
+ * 
+ * @author Simon Johnston
+ *
+ */
+class HistogramSnapshotImpl implements HistogramSnapshot {
+
+	private final HistogramBuckets buckets;
+	private final long[] counts;
+	private final long count;
+	
+	HistogramSnapshotImpl(HistogramBuckets buckets, long[] counts) {
+		this.buckets = buckets;
+		this.counts = counts;
+		long count = 0;
+		for (int i = 0; i < counts.length; i++) {
+			count += counts[i];
+		}
+		this.count = count;
+	}
+	
+	HistogramBuckets getBuckets() {
+		return this.buckets;
+	}
+	
+	long[] getCounts() {
+		return this.counts;
+	}
+	
+	@Override
+	public long getCount() {
+		return this.count;
+	}
+
+	@Override
+	public long getMin() {
+		for (int i = 0; i < this.counts.length; i++) {
+			if (this.counts[i] != 0) {
+				return this.buckets.lowestValueAt(i);
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public long getMax() {
+		for (int i = this.counts.length - 1; i >= 0; i--) {
+			if (this.counts[i] != 0) {
+				return this.buckets.highestValueAt(i);
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public double getAverage() {
+		if (this.count == 0) {
+			return 0.0;
+		}
+		double total = 0.0;
+		for (int i = 0; i < this.counts.length; i++) {
+			if (this.counts[i] != 0) {
+				long median = this.buckets.lowestValueAt(i) + (this.buckets.rangeAt(i) >> 1);
+				total += (double)median * this.counts[i];
+			}
+		}
+		return total / this.count;
+	}
+
+	@Override
+	public long getValueAtPercentile(double percentile) {
+		if (this.count == 0) {
+			return 0;
+		}
+		double clamped = Math.min(Math.max(percentile, 0.0), 100.0);
+		long target = Math.max(1, (long)Math.ceil(clamped / 100.0 * this.count));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length; i++) {
+			seen += this.counts[i];
+			if (seen >= target) {
+				return this.buckets.highestValueAt(i);
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"{HistogramSnapshot count:%d min:%d max:%d avg:%f p50:%d p99:%d}", 
+				this.getCount(),
+				this.getMin(),
+				this.getMax(),
+				this.getAverage(),
+				this.getValueAtPercentile(50.0),
+				this.getValueAtPercentile(99.0));
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+/**
+ * Implemented by snapshots that can supply the bucket counts of their 
+ * histograms, so that histograms can be streamed and merged exactly rather
+ * than by their percentiles.
+ * 
+ * @author Simon Johnston
+ *
+ */
+interface HistogramSource {
+
+	/**
+	 * @param index the index of a monitor in the snapshot.
+	 * @return the counts of the histogram, or <code>null</code> if the 
+	 * monitor is not a histogram.
+	 */
+	HistogramSnapshotImpl getHistogram(int index);
+}
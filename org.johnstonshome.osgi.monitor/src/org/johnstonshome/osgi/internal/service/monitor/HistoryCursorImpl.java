@@ -0,0 +1,96 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import org.johnstonshome.osgi.service.monitor.MonitorHistoryCursor;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * Walks the records of a single series across the segments captured when 
+ * the query was made, skipping segments outside the time range and 
+ * following each segment's links between the records of the series.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class HistoryCursorImpl implements MonitorHistoryCursor {
+
+	private static final MonitorType[] TYPES = MonitorType.values();
+	
+	private final HistorySegment[] segments;
+	private final int series;
+	private final long from;
+	private final long to;
+	
+	private int segment = -1;
+	private HistorySegment current = null;
+	private int count = 0;
+	private int index = 0;
+	
+	HistoryCursorImpl(HistorySegment[] segments, int series, long from, long to) {
+		this.segments = segments;
+		this.series = series;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	public boolean next() {
+		if (this.series < 0) {
+			return false;
+		}
+		while (true) {
+			if (this.current != null) {
+				this.index = this.index < 0 ? 
+						this.current.first(this.series) : this.current.next(this.index);
+				while (this.index >= 0 && this.index < this.count && 
+						this.current.getTimestamp(this.index) < this.from) {
+					this.index = this.current.next(this.index);
+				}
+				if (this.index >= 0 && this.index < this.count) {
+					if (this.current.getTimestamp(this.index) > this.to) {
+						this.segment = this.segments.length;
+						this.current = null;
+						return false;
+					}
+					return true;
+				}
+				this.current = null;
+			}
+			if (++this.segment >= this.segments.length) {
+				return false;
+			}
+			HistorySegment next = this.segments[this.segment];
+			if (next.getStart() > this.to) {
+				this.segment = this.segments.length;
+				return false;
+			}
+			if (next.getEnd() >= this.from) {
+				this.current = next;
+				this.count = next.getCount();
+				this.index = -1;
+			}
+		}
+	}
+
+	@Override
+	public long getTimestamp() {
+		return this.current.getTimestamp(this.index);
+	}
+
+	@Override
+	public MonitorType getType() {
+		return TYPES[this.current.getType(this.index)];
+	}
+
+	@Override
+	public long get(int field) {
+		return this.current.getValue(this.index, field);
+	}
+}
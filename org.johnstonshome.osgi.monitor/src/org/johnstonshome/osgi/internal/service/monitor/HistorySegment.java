@@ -0,0 +1,237 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+
+/**
+ * A file of fixed-size history records, mapped into memory in full when it
+ * is created or opened. The file starts with a header holding the time of 
+ * the first record, the time of the last record and the number of records
+ * written; the count is only updated once a record is complete so a reader
+ * never sees a partly written record. Records are appended in time order.
+ * <p>
+ * Each segment also keeps, in memory, the first record of each series and
+ * a link from each record to the next record of the same series, so that 
+ * a query visits only the records of its own series. The links are built 
+ * when a segment is opened and as records are appended, and are written 
+ * before the count so a reader that follows them no further than the 
+ * count it read sees only complete records.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class HistorySegment {
+
+	private static final int MAGIC = 0x4D484953;
+	private static final int VERSION = 1;
+	
+	private static final int HEADER_MAGIC   = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_START   = 8;
+	private static final int HEADER_END     = 16;
+	private static final int HEADER_COUNT   = 24;
+	private static final int HEADER_SIZE    = 32;
+	
+	private static final int RECORD_TIMESTAMP = 0;
+	private static final int RECORD_SERIES    = 8;
+	private static final int RECORD_TYPE      = 12;
+	private static final int RECORD_VALUES    = 16;
+	static final int RECORD_SIZE = RECORD_VALUES + MonitorSnapshot.FIELDS * 8;
+	
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final long start;
+	
+	private volatile int count;
+	private volatile long end;
+	
+	/*
+	 * The index of the next record of the same series, and of the first and
+	 * (for the writer only) last record of each series, plus one so that 
+	 * zero is no record.
+	 */
+	private final int[] next;
+	private volatile int[] first = new int[0];
+	private int[] last = new int[0];
+	
+	private HistorySegment(File file, MappedByteBuffer buffer) {
+		this.file = file;
+		this.buffer = buffer;
+		this.capacity = (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+		this.start = buffer.getLong(HEADER_START);
+		this.end = buffer.getLong(HEADER_END);
+		this.next = new int[this.capacity];
+		int count = Math.min(buffer.getInt(HEADER_COUNT), this.capacity);
+		for (int i = 0; i < count; i++) {
+			link(getSeries(i), i);
+		}
+		this.count = count;
+	}
+	
+	/**
+	 * Create a new, empty, segment file.
+	 * 
+	 * @param file the file to create.
+	 * @param start the time of the first record to be written.
+	 * @param capacity the number of records the segment can hold.
+	 * @return the new segment.
+	 * @throws IOException if the file cannot be created or mapped.
+	 */
+	static HistorySegment create(File file, long start, int capacity) throws IOException {
+		MappedByteBuffer buffer = map(file, HEADER_SIZE + (long)capacity * RECORD_SIZE);
+		buffer.putInt(HEADER_MAGIC, MAGIC);
+		buffer.putInt(HEADER_VERSION, VERSION);
+		buffer.putLong(HEADER_START, start);
+		buffer.putLong(HEADER_END, start);
+		buffer.putInt(HEADER_COUNT, 0);
+		return new HistorySegment(file, buffer);
+	}
+	
+	/**
+	 * Open an existing segment file.
+	 * 
+	 * @param file the file to open.
+	 * @return the segment.
+	 * @throws IOException if the file cannot be mapped or is not a segment.
+	 */
+	static HistorySegment open(File file) throws IOException {
+		MappedByteBuffer buffer = map(file, file.length());
+		if (buffer.capacity() < HEADER_SIZE || 
+			buffer.getInt(HEADER_MAGIC) != MAGIC || 
+			buffer.getInt(HEADER_VERSION) != VERSION) {
+			throw new IOException(String.format("Not a history segment: %s", file)); //$NON-NLS-1$
+		}
+		return new HistorySegment(file, buffer);
+	}
+	
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+		try {
+			/*
+			 * The mapping remains valid once the file is closed.
+			 */
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Append a record, only called by the single writer thread.
+	 * 
+	 * @return <code>false</code> if the segment is full.
+	 */
+	boolean append(long timestamp, int series, int type, long[] values, int offset) {
+		int index = this.count;
+		if (index >= this.capacity) {
+			return false;
+		}
+		int position = HEADER_SIZE + index * RECORD_SIZE;
+		this.buffer.putLong(position + RECORD_TIMESTAMP, timestamp);
+		this.buffer.putInt(position + RECORD_SERIES, series);
+		this.buffer.putInt(position + RECORD_TYPE, type);
+		for (int i = 0; i < MonitorSnapshot.FIELDS; i++) {
+			this.buffer.putLong(position + RECORD_VALUES + i * 8, values[offset + i]);
+		}
+		link(series, index);
+		this.buffer.putLong(HEADER_END, timestamp);
+		this.buffer.putInt(HEADER_COUNT, index + 1);
+		this.end = timestamp;
+		this.count = index + 1;
+		return true;
+	}
+	
+	private void link(int series, int index) {
+		if (series < 0) {
+			return;
+		}
+		if (series >= this.last.length) {
+			int length = Math.max(series + 1, this.last.length * 2);
+			this.last = Arrays.copyOf(this.last, length);
+			this.first = Arrays.copyOf(this.first, length);
+		}
+		if (this.last[series] == 0) {
+			this.first[series] = index + 1;
+		} else {
+			this.next[this.last[series] - 1] = index + 1;
+		}
+		this.last[series] = index + 1;
+	}
+	
+	/**
+	 * Return the index of the first record of a series, callers must read
+	 * the count first and ignore any index at or beyond it.
+	 * 
+	 * @return the index, or -1 if the segment has no record of the series.
+	 */
+	int first(int series) {
+		int[] first = this.first;
+		return series < first.length ? first[series] - 1 : -1;
+	}
+	
+	/**
+	 * Return the index of the next record of the same series, as for 
+	 * {@link #first(int)}.
+	 * 
+	 * @return the index, or -1 if there is no later record of the series.
+	 */
+	int next(int index) {
+		return this.next[index] - 1;
+	}
+	
+	long getTimestamp(int index) {
+		return this.buffer.getLong(HEADER_SIZE + index * RECORD_SIZE + RECORD_TIMESTAMP);
+	}
+	
+	int getSeries(int index) {
+		return this.buffer.getInt(HEADER_SIZE + index * RECORD_SIZE + RECORD_SERIES);
+	}
+	
+	int getType(int index) {
+		return this.buffer.getInt(HEADER_SIZE + index * RECORD_SIZE + RECORD_TYPE);
+	}
+	
+	long getValue(int index, int field) {
+		return this.buffer.getLong(HEADER_SIZE + index * RECORD_SIZE + RECORD_VALUES + field * 8);
+	}
+	
+	int getCount() {
+		return this.count;
+	}
+	
+	boolean isFull() {
+		return this.count >= this.capacity;
+	}
+	
+	long getStart() {
+		return this.start;
+	}
+	
+	long getEnd() {
+		return this.end;
+	}
+	
+	File getFile() {
+		return this.file;
+	}
+	
+	void force() {
+		this.buffer.force();
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+
+/**
+ * The history at one resolution, a time ordered array of segments of which
+ * only the last is written to. A new segment is started when the last is 
+ * full or spans more than an eighth of the retention period, so that whole
+ * segments can be deleted as they expire. A tier with a resolution other 
+ * than zero accumulates the records of the tier below it and writes one 
+ * record per monitor when each period ends.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class HistoryTier {
+
+	private static final String SUFFIX = ".seg"; //$NON-NLS-1$
+	private static final HistorySegment[] NO_SEGMENTS = new HistorySegment[0];
+	
+	private final File directory;
+	private final int level;
+	private final long resolution;
+	private final long retention;
+	private final long span;
+	private final int capacity;
+	
+	private volatile HistorySegment[] segments = NO_SEGMENTS;
+	
+	/*
+	 * The rollup of the current period, indexed by series id.
+	 */
+	private long period = -1;
+	private long[] values = new long[0];
+	private int[] types = new int[0];
+	private boolean[] present = new boolean[0];
+	
+	HistoryTier(File directory, int level, long resolution, long retention, int capacity) {
+		this.directory = directory;
+		this.level = level;
+		this.resolution = resolution;
+		this.retention = retention;
+		this.span = Math.max(retention / 8, 1);
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Open the existing segments of this tier, any that cannot be read are
+	 * ignored.
+	 */
+	void load() {
+		final String prefix = this.level + "-"; //$NON-NLS-1$
+		File[] files = this.directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<HistorySegment> loaded = new ArrayList<HistorySegment>();
+		for (File file : files) {
+			if (file.getName().startsWith(prefix) && file.getName().endsWith(SUFFIX)) {
+				try {
+					loaded.add(HistorySegment.open(file));
+				} catch (IOException e) {
+					// not a usable segment, leave it alone
+				}
+			}
+		}
+		Collections.sort(loaded, new Comparator<HistorySegment>() {
+			@Override
+			public int compare(HistorySegment one, HistorySegment two) {
+				return one.getStart() < two.getStart() ? -1 : (one.getStart() == two.getStart() ? 0 : 1);
+			}
+		});
+		this.segments = loaded.toArray(NO_SEGMENTS);
+	}
+	
+	void append(long timestamp, int series, int type, long[] values, int offset) throws IOException {
+		HistorySegment[] current = this.segments;
+		HistorySegment last = current.length == 0 ? null : current[current.length - 1];
+		/*
+		 * Records with the same timestamp are kept in the same segment 
+		 * unless it is full.
+		 */
+		if (last == null || 
+			(timestamp - last.getStart() >= this.span && timestamp != last.getEnd()) ||
+			!last.append(timestamp, series, type, values, offset)) {
+			roll(current, timestamp).append(timestamp, series, type, values, offset);
+		}
+	}
+	
+	private HistorySegment roll(HistorySegment[] current, long start) throws IOException {
+		File file = new File(this.directory, this.level + "-" + start + SUFFIX); //$NON-NLS-1$
+		for (int i = 1; file.exists(); i++) {
+			file = new File(this.directory, this.level + "-" + start + "." + i + SUFFIX); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		HistorySegment segment = HistorySegment.create(file, start, this.capacity);
+		HistorySegment[] next = Arrays.copyOf(current, current.length + 1);
+		next[current.length] = segment;
+		this.segments = next;
+		return segment;
+	}
+	
+	/**
+	 * Delete segments whose last record is older than the retention period,
+	 * the segment being written to is always kept.
+	 */
+	void prune(long now) {
+		HistorySegment[] current = this.segments;
+		int expired = 0;
+		while (expired < current.length - 1 && current[expired].getEnd() < now - this.retention) {
+			expired++;
+		}
+		if (expired > 0) {
+			this.segments = Arrays.copyOfRange(current, expired, current.length);
+			/*
+			 * A mapped file cannot be deleted on some platforms until the 
+			 * mapping is collected, such files are deleted on a later prune
+			 * or the next start.
+			 */
+			for (int i = 0; i < expired; i++) {
+				current[i].getFile().delete();
+			}
+		}
+	}
+	
+	/**
+	 * Add a record from the tier below to the current period.
+	 */
+	void accumulate(int series, int type, long[] values, int offset) {
+		if (series >= this.present.length) {
+			int length = Math.max(series + 1, this.present.length * 2);
+			this.values = Arrays.copyOf(this.values, length * MonitorSnapshot.FIELDS);
+			this.types = Arrays.copyOf(this.types, length);
+			this.present = Arrays.copyOf(this.present, length);
+		}
+		int base = series * MonitorSnapshot.FIELDS;
+		if (!this.present[series]) {
+			System.arraycopy(values, offset, this.values, base, MonitorSnapshot.FIELDS);
+			this.present[series] = true;
+		} else {
+			this.values[base + MonitorSnapshot.COUNT] += values[offset + MonitorSnapshot.COUNT];
+			this.values[base + MonitorSnapshot.SUM] += values[offset + MonitorSnapshot.SUM];
+			this.values[base + MonitorSnapshot.MIN] = 
+				Math.min(this.values[base + MonitorSnapshot.MIN], values[offset + MonitorSnapshot.MIN]);
+			this.values[base + MonitorSnapshot.MAX] = 
+				Math.max(this.values[base + MonitorSnapshot.MAX], values[offset + MonitorSnapshot.MAX]);
+			System.arraycopy(values, offset + MonitorSnapshot.P50, this.values, base + MonitorSnapshot.P50, 
+					MonitorSnapshot.FIELDS - MonitorSnapshot.P50);
+		}
+		this.types[series] = type;
+	}
+	
+	/**
+	 * Move the rollup on to the period containing <code>timestamp</code>,
+	 * writing out the previous period, and adding it to <code>above</code>, 
+	 * if it has ended.
+	 */
+	void advance(long timestamp, HistoryTier above) throws IOException {
+		long next = timestamp - timestamp % this.resolution;
+		if (this.period >= 0 && next != this.period) {
+			for (int series = 0; series < this.present.length; series++) {
+				if (this.present[series]) {
+					int offset = series * MonitorSnapshot.FIELDS;
+					append(this.period, series, this.types[series], this.values, offset);
+					if (above != null) {
+						above.accumulate(series, this.types[series], this.values, offset);
+					}
+					this.present[series] = false;
+				}
+			}
+		}
+		this.period = next;
+	}
+	
+	HistorySegment[] getSegments() {
+		return this.segments;
+	}
+	
+	long getResolution() {
+		return this.resolution;
+	}
+	
+	void force() {
+		for (HistorySegment segment : this.segments) {
+			segment.force();
+		}
+	}
+}
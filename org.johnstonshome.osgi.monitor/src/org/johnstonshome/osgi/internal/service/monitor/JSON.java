@@ -15,7 +15,7 @@ package org.johnstonshome.osgi.internal.service.monitor;
  */
 public class JSON {
 
-	public static final String CONTENT_TYPE = "text/json"; //$NON-NLS-1$
+	public static final String CONTENT_TYPE = "application/json"; //$NON-NLS-1$
 	public static final String CONTENT_ENCODING = "UTF-8"; //$NON-NLS-1$
 	
 }
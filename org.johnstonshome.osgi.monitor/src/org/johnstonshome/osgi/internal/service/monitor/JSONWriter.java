@@ -0,0 +1,227 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A minimal streaming JSON writer, it encodes directly as UTF-8 into a fixed
+ * buffer which is flushed to the underlying stream as it fills, so writing 
+ * numbers and strings creates no intermediate objects. The writer tracks 
+ * nesting to place commas, it does not otherwise validate the structure.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class JSONWriter {
+
+	private static final int MAX_DEPTH = 32;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(); //$NON-NLS-1$
+	private static final byte[] NULL = "null".getBytes(); //$NON-NLS-1$
+	private static final byte[] TRUE = "true".getBytes(); //$NON-NLS-1$
+	private static final byte[] FALSE = "false".getBytes(); //$NON-NLS-1$
+	private static final byte[] MIN_LONG = String.valueOf(Long.MIN_VALUE).getBytes();
+	
+	private final OutputStream output;
+	private final byte[] buffer;
+	private int position = 0;
+	
+	/*
+	 * For each open object or array, whether a value has been written (and 
+	 * so the next needs a comma).
+	 */
+	private final boolean[] started = new boolean[MAX_DEPTH];
+	private int depth = 0;
+	private boolean afterName = false;
+	
+	JSONWriter(OutputStream output) {
+		this(output, 8192);
+	}
+	
+	JSONWriter(OutputStream output, int bufferSize) {
+		this.output = output;
+		this.buffer = new byte[bufferSize];
+	}
+
+	JSONWriter beginObject() throws IOException {
+		return open('{');
+	}
+
+	JSONWriter endObject() throws IOException {
+		return close('}');
+	}
+
+	JSONWriter beginArray() throws IOException {
+		return open('[');
+	}
+
+	JSONWriter endArray() throws IOException {
+		return close(']');
+	}
+	
+	JSONWriter name(String name) throws IOException {
+		separate();
+		string(name);
+		put((byte)':');
+		this.afterName = true;
+		return this;
+	}
+	
+	JSONWriter value(String value) throws IOException {
+		separate();
+		if (value == null) {
+			put(NULL);
+		} else {
+			string(value);
+		}
+		return this;
+	}
+
+	JSONWriter value(long value) throws IOException {
+		separate();
+		number(value);
+		return this;
+	}
+
+	JSONWriter value(double value) throws IOException {
+		separate();
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			put(NULL);
+		} else if (value == (long)value && Math.abs(value) < 1e15) {
+			number((long)value);
+		} else {
+			String text = Double.toString(value);
+			for (int i = 0; i < text.length(); i++) {
+				put((byte)text.charAt(i));
+			}
+		}
+		return this;
+	}
+	
+	JSONWriter value(boolean value) throws IOException {
+		separate();
+		put(value ? TRUE : FALSE);
+		return this;
+	}
+
+	/**
+	 * Write any buffered bytes to the underlying stream, and flush it.
+	 */
+	void flush() throws IOException {
+		drain();
+		this.output.flush();
+	}
+	
+	private JSONWriter open(char bracket) throws IOException {
+		separate();
+		put((byte)bracket);
+		if (this.depth == MAX_DEPTH) {
+			throw new IllegalStateException();
+		}
+		this.started[this.depth++] = false;
+		return this;
+	}
+	
+	private JSONWriter close(char bracket) throws IOException {
+		this.depth--;
+		put((byte)bracket);
+		return this;
+	}
+	
+	private void separate() throws IOException {
+		if (this.afterName) {
+			this.afterName = false;
+		} else if (this.depth > 0) {
+			if (this.started[this.depth - 1]) {
+				put((byte)',');
+			} else {
+				this.started[this.depth - 1] = true;
+			}
+		}
+	}
+	
+	private void number(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			put(MIN_LONG);
+			return;
+		}
+		if (value < 0) {
+			put((byte)'-');
+			value = -value;
+		}
+		if (this.position + 20 > this.buffer.length) {
+			drain();
+		}
+		int start = this.position;
+		do {
+			this.buffer[this.position++] = (byte)('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		for (int i = start, j = this.position - 1; i < j; i++, j--) {
+			byte swap = this.buffer[i];
+			this.buffer[i] = this.buffer[j];
+			this.buffer[j] = swap;
+		}
+	}
+	
+	private void string(String value) throws IOException {
+		put((byte)'"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				put((byte)'\\');
+				put((byte)c);
+			} else if (c < 0x20) {
+				put((byte)'\\');
+				put((byte)'u');
+				put((byte)'0');
+				put((byte)'0');
+				put(HEX[c >> 4]);
+				put(HEX[c & 0xF]);
+			} else if (c < 0x80) {
+				put((byte)c);
+			} else if (c < 0x800) {
+				put((byte)(0xC0 | (c >> 6)));
+				put((byte)(0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()) {
+				int code = Character.toCodePoint(c, value.charAt(++i));
+				put((byte)(0xF0 | (code >> 18)));
+				put((byte)(0x80 | ((code >> 12) & 0x3F)));
+				put((byte)(0x80 | ((code >> 6) & 0x3F)));
+				put((byte)(0x80 | (code & 0x3F)));
+			} else {
+				put((byte)(0xE0 | (c >> 12)));
+				put((byte)(0x80 | ((c >> 6) & 0x3F)));
+				put((byte)(0x80 | (c & 0x3F)));
+			}
+		}
+		put((byte)'"');
+	}
+
+	private void put(byte[] bytes) throws IOException {
+		for (byte b : bytes) {
+			put(b);
+		}
+	}
+	
+	private void put(byte b) throws IOException {
+		if (this.position == this.buffer.length) {
+			drain();
+		}
+		this.buffer[this.position++] = b;
+	}
+	
+	private void drain() throws IOException {
+		if (this.position > 0) {
+			this.output.write(this.buffer, 0, this.position);
+			this.position = 0;
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.Collection;
+
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * The mergeable form of the state of a monitor, either the values of one 
+ * monitor on one node or the merge of several. Counter values, counts, sums,
+ * meter rates and histogram buckets are additive, so a contribution can be
+ * added and later taken away again when it is replaced; the minimum and 
+ * maximum are not and are recomputed from the contributions by 
+ * {@link #extremes(Collection)}, as are the sketches of distinct counters
+ * and top-k monitors which are merged rather than added. Histograms with different layouts are 
+ * merged by moving each bucket's count to the bucket holding the middle of
+ * its range. Gauge values are summed across nodes, as for a queue depth or 
+ * a pool size.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class MergeableMonitor {
+
+	private static final int[] RATES = { 
+		MonitorSnapshot.RATE_1, MonitorSnapshot.RATE_5, MonitorSnapshot.RATE_15 
+	};
+	private static final int[] GAUGE_LEVELS = { MonitorSnapshot.VALUE };
+	private static final int[] NO_LEVELS = {};
+	
+	private final MonitorType type;
+	private long count = 0;
+	private long sum = 0;
+	private long min = 0;
+	private long max = 0;
+	private final long[] rates = new long[RATES.length];
+	private HistogramBuckets layout = null;
+	private long[] buckets = null;
+	private MonitorSketch sketch = null;
+	
+	/*
+	 * Set once this state has been added to a merged total.
+	 */
+	private boolean merged = false;
+	
+	MergeableMonitor(MonitorType type) {
+		this.type = type;
+	}
+	
+	/**
+	 * Read the state of one monitor from a snapshot, including its histogram
+	 * buckets or sketch if the snapshot can supply them.
+	 * 
+	 * @param snapshot a complete, not delta, snapshot.
+	 * @param index the index of the monitor.
+	 * @return the monitor's state.
+	 */
+	static MergeableMonitor of(MonitorSnapshot snapshot, int index) {
+		MergeableMonitor monitor = new MergeableMonitor(snapshot.getType(index));
+		monitor.count = snapshot.get(index, MonitorSnapshot.COUNT);
+		monitor.sum = snapshot.get(index, MonitorSnapshot.SUM);
+		monitor.min = snapshot.get(index, MonitorSnapshot.MIN);
+		monitor.max = snapshot.get(index, MonitorSnapshot.MAX);
+		int[] levels = levels(monitor.type);
+		for (int i = 0; i < levels.length; i++) {
+			monitor.rates[i] = snapshot.get(index, levels[i]);
+		}
+		if (monitor.type == MonitorType.HISTOGRAM && snapshot instanceof HistogramSource) {
+			HistogramSnapshotImpl histogram = ((HistogramSource)snapshot).getHistogram(index);
+			if (histogram != null) {
+				monitor.layout = histogram.getBuckets();
+				monitor.buckets = histogram.getCounts();
+			}
+		}
+		if (snapshot instanceof SketchSource) {
+			monitor.sketch = ((SketchSource)snapshot).getSketch(index);
+		}
+		return monitor;
+	}
+	
+	MonitorType getType() {
+		return this.type;
+	}
+	
+	/**
+	 * @return the sketch of the monitor, or of the merged monitors, or 
+	 * <code>null</code> if it has none.
+	 */
+	MonitorSketch getSketch() {
+		return this.sketch;
+	}
+	
+	boolean isMerged() {
+		return this.merged;
+	}
+	
+	void setMerged(boolean merged) {
+		this.merged = merged;
+	}
+	
+	/**
+	 * @param snapshot a complete snapshot.
+	 * @param index the index of a monitor in the snapshot.
+	 * @return <code>true</code> if the monitor has the same type and values
+	 * as this state, so that its histogram need not be read again.
+	 */
+	boolean matches(MonitorSnapshot snapshot, int index) {
+		if (snapshot.getType(index) != this.type ||
+			snapshot.get(index, MonitorSnapshot.COUNT) != this.count ||
+			snapshot.get(index, MonitorSnapshot.SUM) != this.sum ||
+			snapshot.get(index, MonitorSnapshot.MIN) != this.min ||
+			snapshot.get(index, MonitorSnapshot.MAX) != this.max) {
+			return false;
+		}
+		int[] levels = levels(this.type);
+		for (int i = 0; i < levels.length; i++) {
+			if (snapshot.get(index, levels[i]) != this.rates[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * The fields other than count and sum that are summed when merging, a
+	 * meter's rates and a gauge's value.
+	 */
+	private static int[] levels(MonitorType type) {
+		switch (type) {
+		case METER:
+			return RATES;
+		case GAUGE:
+			return GAUGE_LEVELS;
+		default:
+			return NO_LEVELS;
+		}
+	}
+	
+	/**
+	 * Add, or take away, the additive values of another state of the same 
+	 * type.
+	 * 
+	 * @param other the state to add.
+	 * @param sign 1 to add the state or -1 to take it away.
+	 */
+	void add(MergeableMonitor other, int sign) {
+		this.count += sign * other.count;
+		this.sum += sign * other.sum;
+		for (int i = 0; i < RATES.length; i++) {
+			this.rates[i] += sign * other.rates[i];
+		}
+		if (other.buckets == null) {
+			return;
+		}
+		if (this.buckets == null) {
+			this.layout = other.layout;
+			this.buckets = new long[this.layout.length()];
+		}
+		if (other.layout.getHighestTrackableValue() == this.layout.getHighestTrackableValue() &&
+			other.layout.getSignificantDigits() == this.layout.getSignificantDigits()) {
+			for (int i = 0; i < other.buckets.length; i++) {
+				this.buckets[i] += sign * other.buckets[i];
+			}
+		} else {
+			for (int i = 0; i < other.buckets.length; i++) {
+				if (other.buckets[i] != 0) {
+					long middle = other.layout.lowestValueAt(i) + other.layout.rangeAt(i) / 2;
+					this.buckets[this.layout.indexOf(middle)] += sign * other.buckets[i];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Set the minimum, maximum and sketch from the states merged into this
+	 * one, states that have recorded nothing are ignored, gauges always 
+	 * count.
+	 * 
+	 * @param parts the states merged into this one.
+	 */
+	void extremes(Collection<MergeableMonitor> parts) {
+		boolean any = false;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		MonitorSketch sketch = null;
+		for (MergeableMonitor part : parts) {
+			if (part.sketch != null) {
+				sketch = sketch == null ? part.sketch : sketch.merge(part.sketch);
+			}
+			if (part.count != 0 || part.type == MonitorType.GAUGE) {
+				min = Math.min(min, part.min);
+				max = Math.max(max, part.max);
+				any = true;
+			}
+		}
+		this.min = any ? min : 0;
+		this.max = any ? max : 0;
+		this.sketch = sketch;
+	}
+	
+	/**
+	 * Write the values of this state in the layout of {@link MonitorSnapshot},
+	 * the percentiles of a merged histogram are taken from its buckets and
+	 * the values of a sketch-backed monitor from its merged sketch.
+	 * 
+	 * @param values the array to write into.
+	 * @param offset the index of the first slot to write.
+	 */
+	void sample(long[] values, int offset) {
+		values[offset + MonitorSnapshot.COUNT] = this.count;
+		values[offset + MonitorSnapshot.SUM] = this.sum;
+		values[offset + MonitorSnapshot.MIN] = this.min;
+		values[offset + MonitorSnapshot.MAX] = this.max;
+		int[] levels = levels(this.type);
+		for (int i = 0; i < levels.length; i++) {
+			values[offset + levels[i]] = this.rates[i];
+		}
+		if (this.buckets != null) {
+			HistogramSnapshotImpl histogram = new HistogramSnapshotImpl(this.layout, this.buckets);
+			values[offset + MonitorSnapshot.P50] = histogram.getValueAtPercentile(50.0);
+			values[offset + MonitorSnapshot.P90] = histogram.getValueAtPercentile(90.0);
+			values[offset + MonitorSnapshot.P99] = histogram.getValueAtPercentile(99.0);
+			values[offset + MonitorSnapshot.P999] = histogram.getValueAtPercentile(99.9);
+		}
+		if (this.sketch != null) {
+			this.sketch.sample(values, offset);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.johnstonshome.osgi.service.monitor.Meter;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * Increments are added to a striped counter of events not yet included in
+ * the moving averages. Every five seconds (checked when the meter is updated
+ * or read) whichever thread wins the race to move the tick time folds those
+ * events into the averages, so no lock is ever taken.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class MeterImpl extends MonitorImpl implements Meter {
+
+	/*
+	 * Sample slots holding the moving average rates, in events per 
+	 * RATE_SCALE seconds so that they keep three decimal places as longs.
+	 */
+	static final int SAMPLE_RATE_1  = SAMPLE_P50;
+	static final int SAMPLE_RATE_5  = SAMPLE_P90;
+	static final int SAMPLE_RATE_15 = SAMPLE_P99;
+	static final double RATE_SCALE  = 1000.0;
+	
+	private static final long TICK = TimeUnit.SECONDS.toNanos(5);
+	
+	private final StripedLong value = new StripedLong();
+	private final StripedLong events = new StripedLong();
+	private final StripedLong uncounted = new StripedLong();
+	
+	private final MovingAverage m1 = new MovingAverage(1);
+	private final MovingAverage m5 = new MovingAverage(5);
+	private final MovingAverage m15 = new MovingAverage(15);
+	
+	private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+	private volatile long start = System.nanoTime();
+	
+	/*
+	 * An exponentially weighted moving average of a rate, updated only by
+	 * the thread performing a tick.
+	 */
+	private static final class MovingAverage {
+		private final double alpha;
+		private volatile boolean initialized = false;
+		private volatile double rate = 0.0;
+		
+		MovingAverage(int minutes) {
+			this.alpha = 1 - Math.exp(-5.0 / 60.0 / minutes);
+		}
+		
+		void tick(long count) {
+			double instant = count / (double)TimeUnit.NANOSECONDS.toSeconds(TICK);
+			if (this.initialized) {
+				this.rate += this.alpha * (instant - this.rate);
+			} else {
+				this.rate = instant;
+				this.initialized = true;
+			}
+		}
+		
+		void clear() {
+			this.initialized = false;
+			this.rate = 0.0;
+		}
+	}
+	
+	public MeterImpl() { }
+
+	private void tickIfNecessary() {
+		long old = this.lastTick.get();
+		long now = System.nanoTime();
+		long age = now - old;
+		if (age > TICK) {
+			long latest = now - age % TICK;
+			if (this.lastTick.compareAndSet(old, latest)) {
+				long ticks = age / TICK;
+				for (long i = 0; i < ticks; i++) {
+					long count = 0;
+					if (i == 0) {
+						count = this.uncounted.sum();
+						this.uncounted.add(-count);
+					}
+					this.m1.tick(count);
+					this.m5.tick(count);
+					this.m15.tick(count);
+				}
+			}
+		}
+	}
+	
+	private void mark(long delta) {
+		tickIfNecessary();
+		this.events.add(delta);
+		this.uncounted.add(delta);
+	}
+	
+	@Override
+	public void increment() {
+		this.value.add(1);
+		mark(1);
+		signalUpdate();
+	}
+
+	@Override
+	public void increment(long delta) {
+		this.value.add(delta);
+		if (delta > 0) {
+			mark(delta);
+		}
+		signalUpdate();
+	}
+
+	@Override
+	public void decrement() {
+		this.value.add(-1);
+		signalUpdate();
+	}
+
+	@Override
+	public void decrement(long delta) {
+		this.value.add(-delta);
+		signalUpdate();
+	}
+
+	@Override
+	public long get() {
+		return this.value.sum();
+	}
+
+	@Override
+	public void set(long value) {
+		this.value.reset();
+		this.value.add(value);
+		signalUpdate();
+	}
+
+	@Override
+	public double getMeanRate() {
+		long events = this.events.sum();
+		if (events == 0) {
+			return 0.0;
+		}
+		double elapsed = (System.nanoTime() - this.start) / (double)TimeUnit.SECONDS.toNanos(1);
+		return events / elapsed;
+	}
+
+	@Override
+	public double getOneMinuteRate() {
+		tickIfNecessary();
+		return this.m1.rate;
+	}
+
+	@Override
+	public double getFiveMinuteRate() {
+		tickIfNecessary();
+		return this.m5.rate;
+	}
+
+	@Override
+	public double getFifteenMinuteRate() {
+		tickIfNecessary();
+		return this.m15.rate;
+	}
+
+	@Override
+	public void reset() {
+		this.value.reset();
+		this.events.reset();
+		this.uncounted.reset();
+		this.m1.clear();
+		this.m5.clear();
+		this.m15.clear();
+		this.start = System.nanoTime();
+		this.lastTick.set(this.start);
+		signalUpdate();
+	}
+
+	@Override
+	long getSignalValue() {
+		return this.get();
+	}
+
+	@Override
+	MonitorType getType() {
+		return MonitorType.METER;
+	}
+
+	@Override
+	long getFootprint() {
+		return super.getFootprint() + this.value.getFootprint() * 3 + 
+			(FOOTPRINT_HEADER + 24) * 3 + FOOTPRINT_ATOMIC;
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		values[offset + SAMPLE_COUNT] = this.get();
+		values[offset + SAMPLE_RATE_1] = Math.round(this.getOneMinuteRate() * RATE_SCALE);
+		values[offset + SAMPLE_RATE_5] = Math.round(this.getFiveMinuteRate() * RATE_SCALE);
+		values[offset + SAMPLE_RATE_15] = Math.round(this.getFifteenMinuteRate() * RATE_SCALE);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"{Meter %d m1:%f m5:%f m15:%f}", 
+				this.get(),
+				this.getOneMinuteRate(),
+				this.getFiveMinuteRate(),
+				this.getFifteenMinuteRate());
+	}
+}
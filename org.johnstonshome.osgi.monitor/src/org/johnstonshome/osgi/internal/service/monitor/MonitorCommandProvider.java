@@ -1,21 +1,39 @@
 package org.johnstonshome.osgi.internal.service.monitor;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.osgi.framework.console.CommandInterpreter;
 import org.eclipse.osgi.framework.console.CommandProvider;
+import org.johnstonshome.osgi.service.monitor.CallNode;
+import org.johnstonshome.osgi.service.monitor.CallTree;
 import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.DistinctCounter;
+import org.johnstonshome.osgi.service.monitor.Exemplar;
+import org.johnstonshome.osgi.service.monitor.Gauge;
+import org.johnstonshome.osgi.service.monitor.HeavyHitter;
+import org.johnstonshome.osgi.service.monitor.Histogram;
+import org.johnstonshome.osgi.service.monitor.HistogramSnapshot;
+import org.johnstonshome.osgi.service.monitor.Meter;
 import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorClusterService;
+import org.johnstonshome.osgi.service.monitor.MonitorHistoryCursor;
+import org.johnstonshome.osgi.service.monitor.MonitorHistoryService;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
 import org.johnstonshome.osgi.service.monitor.MonitorService;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
 import org.johnstonshome.osgi.service.monitor.Statistic;
 import org.johnstonshome.osgi.service.monitor.TimerStatistic;
+import org.johnstonshome.osgi.service.monitor.TopK;
 
 public class MonitorCommandProvider implements CommandProvider {
 
 	private static final int    FORMAT_LIMIT = 20;
-	private static final String FORMAT_HEADER = "%-20s | %-20s | %-6s | %-10s | %-10s | %-10s"; //$NON-NLS-1$
-	private static final String FORMAT_LINE   = "%-20s | %-20s | %6d | %-10s | %-10s | %-10s"; //$NON-NLS-1$
+	private static final String FORMAT_HEADER = "%-20s | %-20s | %-6s | %-10s | %-10s | %-10s | %-10s | %-10s | %-10s"; //$NON-NLS-1$
+	private static final String FORMAT_LINE   = "%-20s | %-20s | %6d | %-10s | %-10s | %-10s | %-10s | %-10s | %-10s"; //$NON-NLS-1$
 	
 	private static final String COL_GROUP = Messages.getString("MonitorCommandProvider.output.column.group"); //$NON-NLS-1$
 	private static final String COL_NAME = Messages.getString("MonitorCommandProvider.output.column.name"); //$NON-NLS-1$
@@ -23,24 +41,64 @@ public class MonitorCommandProvider implements CommandProvider {
 	private static final String COL_MIN = Messages.getString("MonitorCommandProvider.output.column.min"); //$NON-NLS-1$
 	private static final String COL_MAX = Messages.getString("MonitorCommandProvider.output.column.max"); //$NON-NLS-1$
 	private static final String COL_AVG = Messages.getString("MonitorCommandProvider.output.column.avg"); //$NON-NLS-1$
+	private static final String COL_P50 = Messages.getString("MonitorCommandProvider.output.column.p50"); //$NON-NLS-1$
+	private static final String COL_P99 = Messages.getString("MonitorCommandProvider.output.column.p99"); //$NON-NLS-1$
+	private static final String COL_P999 = Messages.getString("MonitorCommandProvider.output.column.p999"); //$NON-NLS-1$
 
-	private static final String HELP_FORMAT = "%s\n\t%s\t%s\n"; //$NON-NLS-1$
+	private static final String FORMAT_HISTORY_HEADER = "%-19s | %-10s | %-12s | %-10s | %-10s | %-10s"; //$NON-NLS-1$
+	private static final String FORMAT_HISTORY_LINE   = "%tF %<tT | %10d | %12d | %10d | %10d | %10s"; //$NON-NLS-1$
+	
+	private static final String COL_TIME = Messages.getString("MonitorCommandProvider.output.column.time"); //$NON-NLS-1$
+	private static final String COL_SUM = Messages.getString("MonitorCommandProvider.output.column.sum"); //$NON-NLS-1$
+
+	private static final long DEFAULT_HISTORY_MINUTES = 60;
+	private static final long HISTORY_SNAPSHOT_LIMIT = TimeUnit.HOURS.toMinutes(6);
+	private static final long HISTORY_MINUTE_LIMIT = TimeUnit.DAYS.toMinutes(7);
+
+	private static final String HELP_FORMAT = "%s\n\t%s\t%s\n\t%s\t%s\n"; //$NON-NLS-1$
 	private static final String HELP_TOPIC = Messages.getString("MonitorCommandProvider.output.help.topic"); //$NON-NLS-1$
 	private static final String HELP_CMD = Messages.getString("MonitorCommandProvider.output.help.command"); //$NON-NLS-1$
 	private static final String HELP_HELP = Messages.getString("MonitorCommandProvider.output.help.help"); //$NON-NLS-1$
+	private static final String HELP_HISTORY_CMD = Messages.getString("MonitorCommandProvider.output.help.history.command"); //$NON-NLS-1$
+	private static final String HELP_HISTORY_HELP = Messages.getString("MonitorCommandProvider.output.help.history.help"); //$NON-NLS-1$
+	private static final String NO_HISTORY = Messages.getString("MonitorCommandProvider.output.history.none"); //$NON-NLS-1$
+	private static final String NO_CLUSTER = Messages.getString("MonitorCommandProvider.output.cluster.none"); //$NON-NLS-1$
+	private static final String FORMAT_CLUSTER_NODES = Messages.getString("MonitorCommandProvider.output.cluster.nodes"); //$NON-NLS-1$
+	
+	private static final String OPTION_CLUSTER = "-cluster"; //$NON-NLS-1$
+
+	private static final String FORMAT_RATE = "%.2f/s"; //$NON-NLS-1$
+	private static final String FORMAT_ITEM = "  "; //$NON-NLS-1$
+	private static final String FORMAT_EXEMPLAR = "%-20s | %-20s | at %tT on %s%s"; //$NON-NLS-1$
+	private static final String FORMAT_EXEMPLAR_CONTEXT = " (%s)"; //$NON-NLS-1$
+	private static final String FORMAT_CALL = "%-20s | %-20s | %6d | %dns total, %dns self"; //$NON-NLS-1$
 
 	private static final String EMPTY = ""; //$NON-NLS-1$
 
 	private MonitorService monitorService = null;
+	private volatile MonitorHistoryService historyService = null;
+	private volatile MonitorClusterService clusterService = null;
 	
 	public void _monitor(CommandInterpreter ci) throws Exception {		
+		String group = ci.nextArgument();
+		MonitorClusterService cluster = null;
+		if (OPTION_CLUSTER.equals(group)) {
+			cluster = this.clusterService;
+			if (cluster == null) {
+				System.out.println(NO_CLUSTER);
+				return;
+			}
+			group = ci.nextArgument();
+			System.out.println(String.format(FORMAT_CLUSTER_NODES, cluster.getNodes()));
+		}
 		System.out.println(
 				String.format(
 						FORMAT_HEADER,
-						COL_GROUP, COL_NAME, COL_COUNT, COL_MIN, COL_MAX, COL_AVG));
+						COL_GROUP, COL_NAME, COL_COUNT, COL_MIN, COL_MAX, COL_AVG, COL_P50, COL_P99, COL_P999));
 		
-		String group = ci.nextArgument();
-		if (group == null) {
+		if (cluster != null) {
+			enumCluster(cluster.getClusterSnapshot(), group);
+		} else if (group == null) {
 			Set<String> groupNames = this.monitorService.getMonitorGroups();
 			for (String groupName : groupNames) {
 				enumGroup(groupName);
@@ -50,23 +108,181 @@ public class MonitorCommandProvider implements CommandProvider {
 		}
 	}
 	
+	public void _history(CommandInterpreter ci) throws Exception {
+		String group = ci.nextArgument();
+		String name = ci.nextArgument();
+		if (group == null || name == null) {
+			System.out.println(getHelp());
+			return;
+		}
+		String range = ci.nextArgument();
+		long minutes = range == null ? DEFAULT_HISTORY_MINUTES : Long.parseLong(range);
+		MonitorHistoryService history = this.historyService;
+		if (history == null) {
+			System.out.println(NO_HISTORY);
+			return;
+		}
+		int resolution = MonitorHistoryService.RESOLUTION_HOUR;
+		if (minutes <= HISTORY_SNAPSHOT_LIMIT) {
+			resolution = MonitorHistoryService.RESOLUTION_SNAPSHOT;
+		} else if (minutes <= HISTORY_MINUTE_LIMIT) {
+			resolution = MonitorHistoryService.RESOLUTION_MINUTE;
+		}
+		long now = System.currentTimeMillis();
+		System.out.println(
+				String.format(
+						FORMAT_HISTORY_HEADER,
+						COL_TIME, COL_COUNT, COL_SUM, COL_MIN, COL_MAX, COL_AVG));
+		MonitorKey key = !name.endsWith("}") ?  //$NON-NLS-1$
+				MonitorKey.of(group, name) : MonitorKey.parse(group + '/' + name);
+		MonitorHistoryCursor cursor = history.query(
+				key, now - TimeUnit.MINUTES.toMillis(minutes), now, resolution);
+		while (cursor.next()) {
+			long count = cursor.get(MonitorSnapshot.COUNT);
+			long sum = cursor.get(MonitorSnapshot.SUM);
+			System.out.println(
+					String.format(
+							FORMAT_HISTORY_LINE,
+							cursor.getTimestamp(),
+							count,
+							sum,
+							cursor.get(MonitorSnapshot.MIN),
+							cursor.get(MonitorSnapshot.MAX),
+							count == 0 ? EMPTY : String.valueOf(sum / (double)count)));
+		}
+	}
+	
 	private void enumGroup(String groupName) {
 		Collection<Monitor> monitors = this.monitorService.getMonitorsForGroup(groupName);
 		for (Monitor monitor : monitors) {
+			/*
+			 * Tagged monitors share a label, so the tags are shown with it.
+			 */
+			String key = monitor.getKey().toString();
+			int tags = monitor.getKey().hasTags() ? key.lastIndexOf('{') : -1;
 			output(monitor.getGroup(),
-					monitor.getLabel(),
+					tags < 0 ? monitor.getLabel() : monitor.getLabel() + key.substring(tags),
 					monitor);
 		}
 	}
 	
+	private void enumCluster(MonitorSnapshot snapshot, String groupName) {
+		for (int i = 0; i < snapshot.size(); i++) {
+			if (groupName != null && !groupName.equals(snapshot.getGroup(i))) {
+				continue;
+			}
+			MonitorKey key = snapshot.getKey(i);
+			String name = key.toString().substring(key.getGroup().length() + 1);
+			long count = snapshot.get(i, MonitorSnapshot.COUNT);
+			switch (snapshot.getType(i)) {
+			case COUNTER:
+				output(key.getGroup(), name, count, EMPTY, EMPTY, EMPTY, EMPTY, EMPTY, EMPTY);
+				break;
+			case METER:
+				output(key.getGroup(), name, count, 
+						String.format(FORMAT_RATE, snapshot.get(i, MonitorSnapshot.RATE_1) / MeterImpl.RATE_SCALE),
+						String.format(FORMAT_RATE, snapshot.get(i, MonitorSnapshot.RATE_5) / MeterImpl.RATE_SCALE),
+						String.format(FORMAT_RATE, snapshot.get(i, MonitorSnapshot.RATE_15) / MeterImpl.RATE_SCALE),
+						EMPTY, EMPTY, EMPTY);
+				break;
+			case GAUGE:
+				output(key.getGroup(), name, count, EMPTY, EMPTY,
+						String.valueOf(snapshot.get(i, MonitorSnapshot.VALUE) / GaugeImpl.VALUE_SCALE),
+						EMPTY, EMPTY, EMPTY);
+				break;
+			case DISTINCT_COUNTER:
+				output(key.getGroup(), name, count, EMPTY, EMPTY,
+						String.valueOf(snapshot.get(i, MonitorSnapshot.VALUE)),
+						EMPTY, EMPTY, EMPTY);
+				break;
+			case TOP_K:
+				output(key.getGroup(), name, count, 
+						String.valueOf(snapshot.get(i, MonitorSnapshot.MIN)),
+						String.valueOf(snapshot.get(i, MonitorSnapshot.MAX)),
+						EMPTY, EMPTY, EMPTY, EMPTY);
+				if (snapshot instanceof SketchSource && 
+					((SketchSource)snapshot).getSketch(i) instanceof TopKSketch) {
+					outputTop(key.getGroup(), ((TopKSketch)((SketchSource)snapshot).getSketch(i)).getTop());
+				}
+				break;
+			default:
+				boolean histogram = snapshot.getType(i) == MonitorType.HISTOGRAM;
+				output(key.getGroup(), name, count, 
+						String.valueOf(snapshot.get(i, MonitorSnapshot.MIN)),
+						String.valueOf(snapshot.get(i, MonitorSnapshot.MAX)),
+						count == 0 ? EMPTY : String.valueOf(snapshot.get(i, MonitorSnapshot.SUM) / (double)count),
+						histogram ? String.valueOf(snapshot.get(i, MonitorSnapshot.P50)) : EMPTY,
+						histogram ? String.valueOf(snapshot.get(i, MonitorSnapshot.P99)) : EMPTY,
+						histogram ? String.valueOf(snapshot.get(i, MonitorSnapshot.P999)) : EMPTY);
+			}
+		}
+	}
+	
 	private void output(String group, String name, Monitor monitor) {
 		long count = 0;
 		String min = EMPTY;
 		String max = EMPTY;
 		String avg = EMPTY;
-		if (monitor instanceof Counter) {
+		String p50 = EMPTY;
+		String p99 = EMPTY;
+		String p999 = EMPTY;
+		if (monitor instanceof Meter) {
+			/*
+			 * The 1, 5 and 15 minute rates are shown in the min, max and 
+			 * average columns.
+			 */
+			Meter meter = (Meter)monitor;
+			count = meter.get();
+			min = String.format(FORMAT_RATE, meter.getOneMinuteRate());
+			max = String.format(FORMAT_RATE, meter.getFiveMinuteRate());
+			avg = String.format(FORMAT_RATE, meter.getFifteenMinuteRate());
+		}
+		else if (monitor instanceof Counter) {
 			count = ((Counter)monitor).get();
 		}
+		else if (monitor instanceof Gauge) {
+			/*
+			 * The current value is shown in the average column.
+			 */
+			avg = String.valueOf(((Gauge)monitor).getValue());
+		}
+		else if (monitor instanceof DistinctCounter) {
+			/*
+			 * The estimated number of distinct values is shown in the 
+			 * average column.
+			 */
+			count = ((DistinctCounter)monitor).getCount();
+			avg = String.valueOf(((DistinctCounter)monitor).getEstimate());
+		}
+		else if (monitor instanceof TopK) {
+			/*
+			 * The counts of the least and most frequent of the top items 
+			 * are shown in the min and max columns, and each item on a line
+			 * of its own.
+			 */
+			List<HeavyHitter> top = ((TopK)monitor).getTop();
+			count = ((TopK)monitor).getCount();
+			if (!top.isEmpty()) {
+				min = String.valueOf(top.get(top.size() - 1).getCount());
+				max = String.valueOf(top.get(0).getCount());
+			}
+			output(group, name, count, min, max, avg, p50, p99, p999);
+			outputTop(group, top);
+			return;
+		}
+		else if (monitor instanceof CallTree) {
+			/*
+			 * The count of top level spans, then each path of the tree on a
+			 * line of its own, indented by its depth.
+			 */
+			List<CallNode> roots = ((CallTree)monitor).getRoots();
+			for (CallNode root : roots) {
+				count += root.getCount();
+			}
+			output(group, name, count, min, max, avg, p50, p99, p999);
+			outputCalls(group, roots, FORMAT_ITEM);
+			return;
+		}
 		else if (monitor instanceof Statistic) {
 			count = ((Statistic)monitor).getCount();
 			min = String.valueOf(((Statistic)monitor).getMin());
@@ -74,11 +290,72 @@ public class MonitorCommandProvider implements CommandProvider {
 			avg = String.valueOf(((Statistic)monitor).getAverage());
 		}
 		else if (monitor instanceof TimerStatistic) {
-			count = ((TimerStatistic)monitor).getCount();
-			min = ((TimerStatistic)monitor).getMin().toString();
-			max = ((TimerStatistic)monitor).getMax().toString();
-			avg = ((TimerStatistic)monitor).getAverage().toString();
+			/*
+			 * The slowest timings kept are shown each on a line of their own.
+			 */
+			TimerStatistic timer = (TimerStatistic)monitor;
+			count = timer.getCount();
+			min = timer.getMin().toString();
+			max = timer.getMax().toString();
+			avg = timer.getAverage().toString();
+			output(group, name, count, min, max, avg, p50, p99, p999);
+			outputExemplars(group, timer.getExemplars());
+			return;
+		}
+		else if (monitor instanceof Histogram) {
+			HistogramSnapshot snapshot = ((Histogram)monitor).getSnapshot();
+			count = snapshot.getCount();
+			min = String.valueOf(snapshot.getMin());
+			max = String.valueOf(snapshot.getMax());
+			avg = String.valueOf(snapshot.getAverage());
+			p50 = String.valueOf(snapshot.getValueAtPercentile(50.0));
+			p99 = String.valueOf(snapshot.getValueAtPercentile(99.0));
+			p999 = String.valueOf(snapshot.getValueAtPercentile(99.9));
+		}
+		output(group, name, count, min, max, avg, p50, p99, p999);
+	}
+	
+	private void outputTop(String group, List<HeavyHitter> top) {
+		for (HeavyHitter hitter : top) {
+			output(group, FORMAT_ITEM + hitter.getItem(), hitter.getCount(), 
+					EMPTY, EMPTY, EMPTY, EMPTY, EMPTY, EMPTY);
+		}
+	}
+	
+	private void outputCalls(String group, List<CallNode> nodes, String indent) {
+		for (CallNode node : nodes) {
+			String name = indent + node.getName();
+			System.out.println(
+					String.format(
+							FORMAT_CALL,
+							group.length() > FORMAT_LIMIT ? 
+									group.substring(0, FORMAT_LIMIT) : group,
+							name.length() > FORMAT_LIMIT ? 
+									name.substring(0, FORMAT_LIMIT) : name,
+							node.getCount(),
+							node.getTotalTime(),
+							node.getSelfTime()));
+			outputCalls(group, node.getChildren(), indent + FORMAT_ITEM);
+		}
+	}
+	
+	private void outputExemplars(String group, List<Exemplar> exemplars) {
+		for (Exemplar exemplar : exemplars) {
+			System.out.println(
+					String.format(
+							FORMAT_EXEMPLAR,
+							group.length() > FORMAT_LIMIT ? 
+									group.substring(0, FORMAT_LIMIT) : group,
+							FORMAT_ITEM + exemplar.getDuration(),
+							exemplar.getTimestamp(),
+							exemplar.getThreadName(),
+							exemplar.getContext() == null ? 
+									EMPTY : String.format(FORMAT_EXEMPLAR_CONTEXT, exemplar.getContext())));
 		}
+	}
+	
+	private void output(String group, String name, long count, 
+			String min, String max, String avg, String p50, String p99, String p999) {
 		System.out.println(
 				String.format(
 						FORMAT_LINE, 
@@ -89,12 +366,15 @@ public class MonitorCommandProvider implements CommandProvider {
 						count,
 						min,
 						max,
-						avg));
+						avg,
+						p50,
+						p99,
+						p999));
 	}
 	
 	@Override
 	public String getHelp() {
-		return String.format(HELP_FORMAT, HELP_TOPIC, HELP_CMD, HELP_HELP);
+		return String.format(HELP_FORMAT, HELP_TOPIC, HELP_CMD, HELP_HELP, HELP_HISTORY_CMD, HELP_HISTORY_HELP);
 	}
 
 	public void bindMonitor(MonitorService monitorService) {
@@ -104,4 +384,24 @@ public class MonitorCommandProvider implements CommandProvider {
 	public void unbindMonitor(MonitorService monitorService) {
 		this.monitorService = null;
 	}
+
+	public void bindHistory(MonitorHistoryService historyService) {
+		this.historyService = historyService;
+	}
+
+	public void unbindHistory(MonitorHistoryService historyService) {
+		if (this.historyService == historyService) {
+			this.historyService = null;
+		}
+	}
+
+	public void bindCluster(MonitorClusterService clusterService) {
+		this.clusterService = clusterService;
+	}
+
+	public void unbindCluster(MonitorClusterService clusterService) {
+		if (this.clusterService == clusterService) {
+			this.clusterService = null;
+		}
+	}
 }
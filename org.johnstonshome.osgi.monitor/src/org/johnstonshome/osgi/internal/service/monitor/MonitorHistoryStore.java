@@ -0,0 +1,282 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.johnstonshome.osgi.service.monitor.MonitorHistoryCursor;
+import org.johnstonshome.osgi.service.monitor.MonitorHistoryService;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorReporter;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.osgi.service.log.LogService;
+
+/**
+ * Stores each delta snapshot, and its rollups, in memory-mapped segment 
+ * files. Monitors are identified in records by a series number, the mapping
+ * from monitor key to series is appended to a separate file as each new
+ * monitor is seen. Records are only written on the snapshot thread, queries
+ * may run on any thread and read the mapped files directly. A cumulative 
+ * monitor that has not changed since the last snapshot is not written.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class MonitorHistoryStore implements MonitorHistoryService, MonitorReporter {
+
+	static final long DEFAULT_RETENTION_SNAPSHOT = TimeUnit.DAYS.toMillis(1);
+	static final long DEFAULT_RETENTION_MINUTE = TimeUnit.DAYS.toMillis(7);
+	static final long DEFAULT_RETENTION_HOUR = TimeUnit.DAYS.toMillis(90);
+	
+	private static final int CAPACITY_SNAPSHOT = 1 << 16;
+	private static final int CAPACITY_ROLLUP = 1 << 14;
+	
+	private static final String SERIES_FILE = "series.dat"; //$NON-NLS-1$
+	
+	/*
+	 * Marks a series file that includes tags, files written before tags 
+	 * were supported hold only group and name and are rewritten on open.
+	 */
+	private static final int SERIES_MAGIC = 0x4D4B4559;
+	
+	private final File directory;
+	private final LogService log;
+	private final HistoryTier[] tiers;
+	
+	private final ConcurrentHashMap<MonitorKey, Integer> series = new ConcurrentHashMap<MonitorKey, Integer>();
+	private DataOutputStream seriesOut = null;
+	
+	/*
+	 * The series of each monitor in the previous snapshot, re-used while the
+	 * set of monitors is unchanged.
+	 */
+	private int[] lastSeries = new int[0];
+	private MonitorSnapshot lastSnapshot = null;
+	
+	private volatile boolean failed = false;
+	
+	MonitorHistoryStore(File directory, LogService log, long snapshotRetention, long minuteRetention, long hourRetention) {
+		this.directory = directory;
+		this.log = log;
+		this.tiers = new HistoryTier[] {
+			new HistoryTier(directory, RESOLUTION_SNAPSHOT, 0, snapshotRetention, CAPACITY_SNAPSHOT),
+			new HistoryTier(directory, RESOLUTION_MINUTE, TimeUnit.MINUTES.toMillis(1), minuteRetention, CAPACITY_ROLLUP),
+			new HistoryTier(directory, RESOLUTION_HOUR, TimeUnit.HOURS.toMillis(1), hourRetention, CAPACITY_ROLLUP)
+		};
+	}
+	
+	/**
+	 * Load the series dictionary and existing segments.
+	 * 
+	 * @throws IOException if the store directory cannot be used.
+	 */
+	void open() throws IOException {
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException(String.format("Could not create directory %s", this.directory)); //$NON-NLS-1$
+		}
+		File file = new File(this.directory, SERIES_FILE);
+		List<MonitorKey> keys = new ArrayList<MonitorKey>();
+		boolean tagged = !file.exists() || readSeries(file, keys);
+		for (MonitorKey key : keys) {
+			this.series.put(key, Integer.valueOf(this.series.size()));
+		}
+		if (!tagged) {
+			File rewritten = new File(this.directory, SERIES_FILE + ".new"); //$NON-NLS-1$
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(rewritten));
+			try {
+				out.writeInt(SERIES_MAGIC);
+				for (MonitorKey key : keys) {
+					writeKey(out, key);
+				}
+			} finally {
+				out.close();
+			}
+			if (!file.delete() || !rewritten.renameTo(file)) {
+				throw new IOException(String.format("Could not replace %s", file)); //$NON-NLS-1$
+			}
+		}
+		boolean empty = !file.exists();
+		this.seriesOut = new DataOutputStream(new FileOutputStream(file, true));
+		if (empty) {
+			this.seriesOut.writeInt(SERIES_MAGIC);
+			this.seriesOut.flush();
+		}
+		for (HistoryTier tier : this.tiers) {
+			tier.load();
+		}
+	}
+	
+	/*
+	 * Read the keys in a series file, returns false if the file was written
+	 * before tags were supported.
+	 */
+	private static boolean readSeries(File file, List<MonitorKey> keys) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		boolean tagged = false;
+		try {
+			in.mark(4);
+			try {
+				tagged = in.readInt() == SERIES_MAGIC;
+			} catch (EOFException e) {
+				// an empty, or almost empty, legacy file
+			}
+			if (!tagged) {
+				in.reset();
+			}
+			while (true) {
+				MonitorKey key = MonitorKey.of(in.readUTF(), in.readUTF());
+				if (tagged) {
+					int tags = in.readUnsignedShort();
+					for (int i = 0; i < tags; i++) {
+						key = key.withTag(in.readUTF(), in.readUTF());
+					}
+				}
+				keys.add(key);
+			}
+		} catch (EOFException e) {
+			// end of the dictionary
+		} finally {
+			in.close();
+		}
+		return tagged;
+	}
+	
+	private static void writeKey(DataOutputStream out, MonitorKey key) throws IOException {
+		out.writeUTF(key.getGroup());
+		out.writeUTF(key.getName());
+		out.writeShort(key.getTagCount());
+		for (int i = 0; i < key.getTagCount(); i++) {
+			out.writeUTF(key.getTagName(i));
+			out.writeUTF(key.getTagValue(i));
+		}
+	}
+	
+	void close() {
+		for (HistoryTier tier : this.tiers) {
+			tier.force();
+		}
+		if (this.seriesOut != null) {
+			try {
+				this.seriesOut.close();
+			} catch (IOException e) {
+				// nothing more can be done
+			}
+			this.seriesOut = null;
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if writing has stopped after an error.
+	 */
+	boolean isFailed() {
+		return this.failed;
+	}
+
+	@Override
+	public void report(MonitorSnapshot snapshot, MonitorSnapshot delta) {
+		if (this.failed) {
+			return;
+		}
+		try {
+			write(delta);
+		} catch (IOException e) {
+			/*
+			 * Most likely the disk is full, stop rather than fail on every
+			 * snapshot.
+			 */
+			this.failed = true;
+			if (this.log != null) {
+				this.log.log(LogService.LOG_ERROR, 
+						String.format("Stopped recording monitor history in %s", this.directory), 
+						e);
+			}
+		}
+	}
+	
+	private void write(MonitorSnapshot delta) throws IOException {
+		long timestamp = delta.getTimestamp();
+		for (int level = 1; level < this.tiers.length; level++) {
+			this.tiers[level].advance(timestamp, level + 1 < this.tiers.length ? this.tiers[level + 1] : null);
+		}
+		int[] ids = seriesOf(delta);
+		long[] values = new long[MonitorSnapshot.FIELDS];
+		for (int i = 0; i < delta.size(); i++) {
+			MonitorType type = delta.getType(i);
+			if (MonitorSnapshotImpl.isCumulative(type) && 
+				delta.get(i, MonitorSnapshot.COUNT) == 0 && delta.get(i, MonitorSnapshot.SUM) == 0) {
+				continue;
+			}
+			for (int field = 0; field < MonitorSnapshot.FIELDS; field++) {
+				values[field] = delta.get(i, field);
+			}
+			this.tiers[RESOLUTION_SNAPSHOT].append(timestamp, ids[i], type.ordinal(), values, 0);
+			this.tiers[RESOLUTION_MINUTE].accumulate(ids[i], type.ordinal(), values, 0);
+		}
+		for (HistoryTier tier : this.tiers) {
+			tier.prune(timestamp);
+		}
+	}
+	
+	private int[] seriesOf(MonitorSnapshot delta) throws IOException {
+		int[] ids = new int[delta.size()];
+		MonitorSnapshot last = this.lastSnapshot;
+		for (int i = 0; i < ids.length; i++) {
+			MonitorKey key = delta.getKey(i);
+			if (last != null && i < last.size() && last.getKey(i).equals(key)) {
+				ids[i] = this.lastSeries[i];
+			} else {
+				ids[i] = seriesOf(key);
+			}
+		}
+		this.lastSnapshot = delta;
+		this.lastSeries = ids;
+		this.seriesOut.flush();
+		return ids;
+	}
+	
+	private int seriesOf(MonitorKey key) throws IOException {
+		Integer id = this.series.get(key);
+		if (id == null) {
+			writeKey(this.seriesOut, key);
+			id = Integer.valueOf(this.series.size());
+			this.series.put(key, id);
+		}
+		return id.intValue();
+	}
+
+	@Override
+	public MonitorHistoryCursor query(String group, String name, long from, long to, int resolution) {
+		return query(MonitorKey.of(group, name), from, to, resolution);
+	}
+
+	@Override
+	public MonitorHistoryCursor query(MonitorKey key, long from, long to, int resolution) {
+		if (key == null || resolution < 0 || resolution >= this.tiers.length) {
+			throw new IllegalArgumentException();
+		}
+		Integer id = this.series.get(key);
+		return new HistoryCursorImpl(
+				this.tiers[resolution].getSegments(), 
+				id == null ? -1 : id.intValue(), 
+				from, 
+				to);
+	}
+}
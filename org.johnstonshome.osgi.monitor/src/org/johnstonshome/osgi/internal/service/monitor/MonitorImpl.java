@@ -8,8 +8,16 @@
  */
 package org.johnstonshome.osgi.internal.service.monitor;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
 import org.johnstonshome.osgi.service.monitor.MonitorListener;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.johnstonshome.osgi.service.monitor.SignallingPolicy;
 import org.osgi.framework.ServiceReference;
 
 /**
@@ -19,11 +27,53 @@ import org.osgi.framework.ServiceReference;
  */
 public abstract class MonitorImpl implements Monitor {
 
+	/*
+	 * The layout of the values written by sample(), slots a monitor type 
+	 * does not use are left as 0. For a counter the value is in the count
+	 * slot.
+	 */
+	static final int SAMPLE_SIZE  = 8;
+	static final int SAMPLE_COUNT = 0;
+	static final int SAMPLE_SUM   = 1;
+	static final int SAMPLE_MIN   = 2;
+	static final int SAMPLE_MAX   = 3;
+	static final int SAMPLE_P50   = 4;
+	static final int SAMPLE_P90   = 5;
+	static final int SAMPLE_P99   = 6;
+	static final int SAMPLE_P999  = 7;
+	
+	/*
+	 * Rough sizes, in bytes, used to estimate the memory held by monitors:
+	 * a monitor with its atomics and key, an atomic wrapper and an object or
+	 * array header.
+	 */
+	static final long FOOTPRINT_MONITOR = 160;
+	static final long FOOTPRINT_ATOMIC  = 24;
+	static final long FOOTPRINT_HEADER  = 16;
+
 	private MonitorListener listener = null;
 	private ServiceReference sr;
 	private String group;
 	private String name;
+	private MonitorKey key = null;
+	private int id = -1;
 	private String label;
+	private final AtomicBoolean pending = new AtomicBoolean(false);
+	private volatile boolean overflow = false;
+	private volatile long lastActive = System.currentTimeMillis();
+	private long accounted = 0;
+	private volatile MonitorServiceImpl evictedBy = null;
+	
+	/*
+	 * The signalling policy, copied into fields read on every update. The
+	 * single state value is used by whichever policy is in effect: the 
+	 * number of updates, the time of the last signal or which side of the
+	 * threshold the value was last on.
+	 */
+	private SignallingPolicy policy = SignallingPolicy.always();
+	private SignallingPolicy.Kind policyKind = SignallingPolicy.Kind.ALWAYS;
+	private long policyParameter = 0;
+	private final AtomicLong policyState = new AtomicLong();
 
 	@Override
 	public String getGroup() {
@@ -50,6 +100,7 @@ public abstract class MonitorImpl implements Monitor {
 
 	public void setGroup(String group) {
 		this.group = group;
+		this.key = null;
 	}
 
 	public void setListener(MonitorListener listener) {
@@ -58,6 +109,38 @@ public abstract class MonitorImpl implements Monitor {
 
 	public void setName(String name) {
 		this.name = name;
+		this.key = null;
+	}
+	
+	@Override
+	public MonitorKey getKey() {
+		if (this.key == null && this.group != null && this.name != null) {
+			this.key = MonitorKey.of(this.group, this.name);
+		}
+		return this.key;
+	}
+	
+	/**
+	 * Set the full identity of this monitor, including its tags.
+	 * 
+	 * @param key the monitor's key.
+	 */
+	public void setKey(MonitorKey key) {
+		this.group = key.getGroup();
+		this.name = key.getName();
+		this.key = key;
+	}
+	
+	@Override
+	public int getId() {
+		return this.id;
+	}
+	
+	/*
+	 * Assigned by the registry when the monitor is added.
+	 */
+	void setId(int id) {
+		this.id = id;
 	}
 	
 	public String getLabel() {
@@ -80,9 +163,208 @@ public abstract class MonitorImpl implements Monitor {
 	@Override
 	public abstract void reset();
 
+	/**
+	 * Write the current values of this monitor into <code>values</code>
+	 * starting at <code>offset</code>, using the <code>SAMPLE_*</code> 
+	 * layout. Sums are kept to 64 bits and wrap on overflow, so that the 
+	 * difference between two samples is still exact.
+	 * 
+	 * @param values the array to write into.
+	 * @param offset the index of the first slot to write.
+	 */
+	abstract void sample(long[] values, int offset);
+	
+	/**
+	 * Sample this monitor, as for {@link #sample(long[], int)}, and return
+	 * any state a snapshot keeps alongside the values, read at the same 
+	 * time as the values.
+	 * 
+	 * @param values the array to write into.
+	 * @param offset the index of the first slot to write.
+	 * @return a {@link HistogramSnapshotImpl}, a {@link MonitorSketch} or 
+	 * <code>null</code> if this monitor keeps no such state.
+	 */
+	Object sampleState(long[] values, int offset) {
+		sample(values, offset);
+		return null;
+	}
+	
+	/**
+	 * @return the type of this monitor, as recorded in snapshots.
+	 */
+	abstract MonitorType getType();
+	
+	/**
+	 * Estimate the memory held by this monitor, subclasses add the size of
+	 * their own state.
+	 * 
+	 * @return the estimated size in bytes.
+	 */
+	long getFootprint() {
+		long footprint = FOOTPRINT_MONITOR;
+		MonitorKey key = getKey();
+		if (key != null) {
+			footprint += footprint(key.getGroup()) + footprint(key.getName());
+			for (int i = 0; i < key.getTagCount(); i++) {
+				footprint += footprint(key.getTagName(i)) + footprint(key.getTagValue(i));
+			}
+		}
+		return footprint;
+	}
+	
+	static long footprint(String value) {
+		return FOOTPRINT_HEADER * 2 + 8 + value.length() * 2L;
+	}
+	
+	static long footprint(AtomicLongArray array) {
+		return FOOTPRINT_HEADER * 2 + array.length() * 8L;
+	}
+	
+	/*
+	 * Overflow monitors are shared by every caller refused a monitor of its
+	 * own, so are not removed when any one caller removes its monitor.
+	 */
+	boolean isOverflow() {
+		return this.overflow;
+	}
+	
+	void setOverflow(boolean overflow) {
+		this.overflow = overflow;
+	}
+	
+	/*
+	 * The last time a snapshot found this monitor had been updated, in 
+	 * milliseconds since the epoch.
+	 */
+	long getLastActive() {
+		return this.lastActive;
+	}
+	
+	void setLastActive(long lastActive) {
+		this.lastActive = lastActive;
+	}
+	
+	/*
+	 * The footprint last added to the registry's memory for this monitor, 
+	 * only used holding the registry's lock.
+	 */
+	long getAccounted() {
+		return this.accounted;
+	}
+	
+	void setAccounted(long accounted) {
+		this.accounted = accounted;
+	}
+	
+	/*
+	 * The service that evicted this monitor as idle, so that its next update
+	 * can return it to the service.
+	 */
+	MonitorServiceImpl getEvictedBy() {
+		return this.evictedBy;
+	}
+	
+	void setEvictedBy(MonitorServiceImpl service) {
+		this.evictedBy = service;
+	}
+	
+	private void revive() {
+		MonitorServiceImpl service = this.evictedBy;
+		if (service != null) {
+			service.reviveMonitor(this);
+		}
+	}
+
+	/*
+	 * Used by the asynchronous dispatcher to coalesce updates, returns true
+	 * only if the monitor was not already waiting to be delivered.
+	 */
+	boolean markPending() {
+		return !this.pending.get() && this.pending.compareAndSet(false, true);
+	}
+	
+	void clearPending() {
+		this.pending.set(false);
+	}
+
+	public SignallingPolicy getSignallingPolicy() {
+		return this.policy;
+	}
+	
+	public void setSignallingPolicy(SignallingPolicy policy) {
+		this.policy = policy;
+		this.policyKind = policy.getKind();
+		switch (this.policyKind) {
+		case EVERY_NTH:
+			this.policyParameter = policy.getEvery();
+			this.policyState.set(0);
+			break;
+		case AT_MOST_EVERY:
+			this.policyParameter = policy.getInterval(TimeUnit.NANOSECONDS);
+			this.policyState.set(System.nanoTime() - this.policyParameter);
+			break;
+		case ON_THRESHOLD:
+			this.policyParameter = policy.getThreshold();
+			this.policyState.set(0);
+			break;
+		default:
+			this.policyParameter = 0;
+		}
+	}
+
 	public void signalUpdate() {
-		if (this.listener != null) {
-			this.listener.monitorUpdated(this);
+		revive();
+		MonitorListener listener = this.listener;
+		if (listener != null && 
+			shouldSignal(this.policyKind == SignallingPolicy.Kind.ON_THRESHOLD ? getSignalValue() : 0)) {
+			listener.monitorUpdated(this);
+		}
+	}
+	
+	/**
+	 * Signal an update, where the monitor has the value to compare against
+	 * a threshold to hand.
+	 * 
+	 * @param value the counter's value, or the value recorded.
+	 */
+	void signalUpdate(long value) {
+		revive();
+		MonitorListener listener = this.listener;
+		if (listener != null && shouldSignal(value)) {
+			listener.monitorUpdated(this);
+		}
+	}
+	
+	/**
+	 * @return the value compared against a threshold when an update is 
+	 * signalled without one, by default zero.
+	 */
+	long getSignalValue() {
+		return 0;
+	}
+	
+	/*
+	 * Each policy needs at most one read and one CAS, a thread that loses
+	 * the CAS does not signal as another thread has just done so.
+	 */
+	private boolean shouldSignal(long value) {
+		switch (this.policyKind) {
+		case ALWAYS:
+			return true;
+		case EVERY_NTH:
+			return this.policyState.incrementAndGet() % this.policyParameter == 0;
+		case AT_MOST_EVERY: {
+			long now = System.nanoTime();
+			long last = this.policyState.get();
+			return now - last >= this.policyParameter && this.policyState.compareAndSet(last, now);
+		}
+		case ON_THRESHOLD: {
+			long side = value >= this.policyParameter ? 1 : 0;
+			long last = this.policyState.get();
+			return last != side && this.policyState.compareAndSet(last, side);
+		}
+		default:
+			return false;
 		}
 	}
 }
@@ -8,31 +8,52 @@
  */
 package org.johnstonshome.osgi.internal.service.monitor;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collection;
 
+import org.johnstonshome.osgi.service.monitor.BatchMonitorListener;
 import org.johnstonshome.osgi.service.monitor.Monitor;
 import org.johnstonshome.osgi.service.monitor.MonitorListener;
 import org.johnstonshome.osgi.service.monitor.MonitorListenerService;
+import org.osgi.service.log.LogService;
 
 
 /**
+ * Listeners are held in a copy-on-write array, registration (which is rare)
+ * replaces the array under a lock while events are delivered from whichever
+ * array was current when the event started, without any locking.
+ * Each listener is called on its own, a listener that throws is logged
+ * and the event is still delivered to the listeners after it.
  * 
  * @author Simon Johnston
  *
  */
-public class MonitorListenerServiceImpl implements MonitorListenerService, MonitorListener {
+public class MonitorListenerServiceImpl implements MonitorListenerService, BatchMonitorListener {
 
-	private List<MonitorListener> listeners = new LinkedList<MonitorListener>();
+	private static final MonitorListener[] NO_LISTENERS = new MonitorListener[0];
+	
+	private volatile MonitorListener[] listeners = NO_LISTENERS;
+	
+	private final LogService log;
+	
+	MonitorListenerServiceImpl(LogService log) {
+		this.log = log;
+	}
 	
 	@Override
 	public synchronized void addMonitorListener(MonitorListener listener) {
 		if (listener == null) {
 			throw new IllegalArgumentException();
 		}
-		if (!this.listeners.contains(listener)) {
-			this.listeners.add(listener);
+		MonitorListener[] current = this.listeners;
+		for (MonitorListener existing : current) {
+			if (existing.equals(listener)) {
+				return;
+			}
 		}
+		MonitorListener[] next = new MonitorListener[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = listener;
+		this.listeners = next;
 	}
 
 	@Override
@@ -40,31 +61,72 @@ public class MonitorListenerServiceImpl implements MonitorListenerService, Monit
 		if (listener == null) {
 			throw new IllegalArgumentException();
 		}
-		this.listeners.remove(listener);
+		MonitorListener[] current = this.listeners;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].equals(listener)) {
+				MonitorListener[] next = new MonitorListener[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+				this.listeners = next;
+				return;
+			}
+		}
 	}
 	
 	@Override
-	public synchronized void monitorCreated(Monitor monitor) {
+	public void monitorCreated(Monitor monitor) {
 		if (monitor == null) {
 			throw new IllegalArgumentException();
 		}
 		for (MonitorListener listener : this.listeners) {
-			listener.monitorCreated(monitor);
+			try {
+				listener.monitorCreated(monitor);
+			} catch (RuntimeException e) {
+				failed(listener, e);
+			}
 		}
 	}
 
 	@Override
-	public synchronized void monitorUpdated(Monitor monitor) {
+	public void monitorUpdated(Monitor monitor) {
 		if (monitor == null) {
 			throw new IllegalArgumentException();
 		}
 		for (MonitorListener listener : this.listeners) {
-			listener.monitorUpdated(monitor);
+			try {
+				listener.monitorUpdated(monitor);
+			} catch (RuntimeException e) {
+				failed(listener, e);
+			}
 		}
 	}
 
 	@Override
-	public synchronized void monitorRemoved(Monitor monitor) {
+	public void monitorsUpdated(Collection<Monitor> monitors) {
+		if (monitors == null) {
+			throw new IllegalArgumentException();
+		}
+		for (MonitorListener listener : this.listeners) {
+			if (listener instanceof BatchMonitorListener) {
+				try {
+					((BatchMonitorListener)listener).monitorsUpdated(monitors);
+				} catch (RuntimeException e) {
+					failed(listener, e);
+				}
+			} else {
+				for (Monitor monitor : monitors) {
+					try {
+						listener.monitorUpdated(monitor);
+					} catch (RuntimeException e) {
+						failed(listener, e);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void monitorRemoved(Monitor monitor) {
 		if (monitor == null) {
 			throw new IllegalArgumentException();
 		}
@@ -72,15 +134,26 @@ public class MonitorListenerServiceImpl implements MonitorListenerService, Monit
 			((MonitorImpl)monitor).setListener(null);
 		}
 		for (MonitorListener listener : this.listeners) {
-			listener.monitorRemoved(monitor);
+			try {
+				listener.monitorRemoved(monitor);
+			} catch (RuntimeException e) {
+				failed(listener, e);
+			}
+		}
+	}
+	
+	private void failed(MonitorListener listener, RuntimeException e) {
+		if (this.log != null) {
+			this.log.log(LogService.LOG_WARNING, 
+					String.format("Monitor listener %s failed", listener), e);
 		}
 	}
 	
 	public final int getListenerCount() {
-		return this.listeners.size();
+		return this.listeners.length;
 	}
 	
-	public void close() {
-		this.listeners.clear();
+	public synchronized void close() {
+		this.listeners = NO_LISTENERS;
 	}
 }
@@ -0,0 +1,412 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+
+/**
+ * The set of monitors held by the monitor service, indexed by key, by group,
+ * by tag and by identifier. Lookups never lock and the views returned never
+ * throw {@link java.util.ConcurrentModificationException}; additions and 
+ * removals are serialized so that a group is only ever removed once it is 
+ * really empty and so that {@link #snapshot()} sees a consistent set of 
+ * monitors.
+ * <p>
+ * Each monitor is given an identifier when it is added, the low bits of 
+ * the identifier are a slot in an array and the high bits a generation. 
+ * The slots of removed monitors are reused, oldest first, with the next
+ * generation so that a stale identifier does not find a different monitor;
+ * lookup by identifier is a single array read.
+ * Within a group monitors are held in key order, so monitors that differ 
+ * only in their tags are adjacent.
+ * </p>
+ * <p>
+ * The registry also keeps the number of monitors in each group and an 
+ * estimate of the memory they hold, so that the monitor service can limit
+ * the cardinality of each group and report on its own footprint. The 
+ * footprint added for each monitor is kept with it, so that the same 
+ * amount is taken away when it is removed, and is brought up to date by
+ * {@link #refreshMemory()}.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class MonitorRegistry {
+
+	private static final int INITIAL_CAPACITY = 256;
+	
+	/*
+	 * Identifiers hold a slot in the low SLOT_BITS and a generation in the
+	 * bits above, up to the sign bit. Monitors added once every slot is in
+	 * use are not given an identifier.
+	 */
+	private static final int SLOT_BITS = 20;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	
+	private final ConcurrentMap<MonitorKey, Monitor> keys = 
+		new ConcurrentHashMap<MonitorKey, Monitor>();
+	
+	private final ConcurrentMap<String, ConcurrentSkipListMap<MonitorKey, Monitor>> groups = 
+		new ConcurrentHashMap<String, ConcurrentSkipListMap<MonitorKey, Monitor>>();
+	
+	/*
+	 * Tagged monitors indexed by tag name and value, joined with a null 
+	 * character.
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<MonitorKey, Monitor>> tags = 
+		new ConcurrentHashMap<String, ConcurrentMap<MonitorKey, Monitor>>();
+	
+	/*
+	 * The size and estimated memory of each group, only changed under the
+	 * write lock.
+	 */
+	private static final class GroupStats {
+		int size = 0;
+		long memory = 0;
+	}
+	
+	private final Map<String, GroupStats> stats = new HashMap<String, GroupStats>();
+	private long memory = 0;
+	
+	private volatile AtomicReferenceArray<Monitor> ids = 
+		new AtomicReferenceArray<Monitor>(INITIAL_CAPACITY);
+	
+	private final Object writeLock = new Object();
+	
+	/*
+	 * The identifiers to give out next in released slots, oldest first, and
+	 * the next slot never used; only changed under the write lock.
+	 */
+	private final Queue<Integer> free = new ArrayDeque<Integer>();
+	private int nextSlot = 0;
+	private int size = 0;
+	
+	/**
+	 * Find a monitor with no tags.
+	 * 
+	 * @param group the monitor's group name.
+	 * @param name the monitor's name.
+	 * @return the monitor or <code>null</code> if none is registered.
+	 */
+	Monitor get(String group, String name) {
+		return this.keys.get(MonitorKey.of(group, name));
+	}
+	
+	/**
+	 * Find a monitor.
+	 * 
+	 * @param key the monitor's key.
+	 * @return the monitor or <code>null</code> if none is registered.
+	 */
+	Monitor get(MonitorKey key) {
+		return this.keys.get(key);
+	}
+	
+	/**
+	 * Find a monitor by identifier.
+	 * 
+	 * @param id the identifier assigned when the monitor was added.
+	 * @return the monitor or <code>null</code> if none is registered.
+	 */
+	Monitor get(int id) {
+		if (id < 0) {
+			return null;
+		}
+		AtomicReferenceArray<Monitor> ids = this.ids;
+		int slot = id & SLOT_MASK;
+		if (slot >= ids.length()) {
+			return null;
+		}
+		Monitor monitor = ids.get(slot);
+		return monitor != null && monitor.getId() == id ? monitor : null;
+	}
+	
+	/**
+	 * Add a monitor, replacing any with the same key, and assign the 
+	 * monitor an identifier.
+	 * 
+	 * @param monitor the monitor to add.
+	 * @return the monitor replaced, or <code>null</code>.
+	 */
+	Monitor put(Monitor monitor) {
+		MonitorKey key = monitor.getKey();
+		synchronized (this.writeLock) {
+			if (this.keys.get(key) == monitor) {
+				return monitor;
+			}
+			ConcurrentSkipListMap<MonitorKey, Monitor> monitors = this.groups.get(key.getGroup());
+			if (monitors == null) {
+				monitors = new ConcurrentSkipListMap<MonitorKey, Monitor>();
+				this.groups.put(key.getGroup(), monitors);
+				this.stats.put(key.getGroup(), new GroupStats());
+			}
+			GroupStats stats = this.stats.get(key.getGroup());
+			if (monitor instanceof MonitorImpl) {
+				assign((MonitorImpl)monitor);
+			}
+			monitors.put(key, monitor);
+			for (int i = 0; i < key.getTagCount(); i++) {
+				String index = key.getTagName(i) + '\0' + key.getTagValue(i);
+				ConcurrentMap<MonitorKey, Monitor> tagged = this.tags.get(index);
+				if (tagged == null) {
+					tagged = new ConcurrentHashMap<MonitorKey, Monitor>();
+					this.tags.put(index, tagged);
+				}
+				tagged.put(key, monitor);
+			}
+			Monitor replaced = this.keys.put(key, monitor);
+			if (replaced == null) {
+				this.size++;
+				stats.size++;
+			} else {
+				release(replaced);
+				account(stats, replaced, 0);
+			}
+			account(stats, monitor, footprint(monitor));
+			return replaced;
+		}
+	}
+	
+	/**
+	 * Remove a monitor, if it is still the one registered under its key.
+	 * 
+	 * @param monitor the monitor to remove.
+	 * @return <code>true</code> if the monitor was removed.
+	 */
+	boolean remove(Monitor monitor) {
+		MonitorKey key = monitor.getKey();
+		synchronized (this.writeLock) {
+			if (!this.keys.remove(key, monitor)) {
+				return false;
+			}
+			this.size--;
+			GroupStats stats = this.stats.get(key.getGroup());
+			stats.size--;
+			account(stats, monitor, 0);
+			ConcurrentSkipListMap<MonitorKey, Monitor> monitors = this.groups.get(key.getGroup());
+			monitors.remove(key, monitor);
+			if (monitors.isEmpty()) {
+				this.groups.remove(key.getGroup());
+				this.stats.remove(key.getGroup());
+			}
+			for (int i = 0; i < key.getTagCount(); i++) {
+				String index = key.getTagName(i) + '\0' + key.getTagValue(i);
+				ConcurrentMap<MonitorKey, Monitor> tagged = this.tags.get(index);
+				tagged.remove(key, monitor);
+				if (tagged.isEmpty()) {
+					this.tags.remove(index);
+				}
+			}
+			release(monitor);
+			return true;
+		}
+	}
+	
+	/*
+	 * Change the footprint accounted for a monitor.
+	 */
+	private void account(GroupStats stats, Monitor monitor, long footprint) {
+		if (monitor instanceof MonitorImpl) {
+			MonitorImpl impl = (MonitorImpl)monitor;
+			long change = footprint - impl.getAccounted();
+			impl.setAccounted(footprint);
+			stats.memory += change;
+			this.memory += change;
+		}
+	}
+	
+	/**
+	 * Estimate the memory held by every registered monitor again, as some 
+	 * monitors grow as they are used.
+	 */
+	void refreshMemory() {
+		synchronized (this.writeLock) {
+			for (Map.Entry<String, ConcurrentSkipListMap<MonitorKey, Monitor>> group : this.groups.entrySet()) {
+				GroupStats stats = this.stats.get(group.getKey());
+				for (Monitor monitor : group.getValue().values()) {
+					account(stats, monitor, footprint(monitor));
+				}
+			}
+		}
+	}
+	
+	private static long footprint(Monitor monitor) {
+		return monitor instanceof MonitorImpl ? ((MonitorImpl)monitor).getFootprint() : 0;
+	}
+	
+	/*
+	 * Give the monitor the oldest released identifier, or a new slot.
+	 */
+	private void assign(MonitorImpl monitor) {
+		int id;
+		if (!this.free.isEmpty()) {
+			id = this.free.remove().intValue();
+		} else if (this.nextSlot < SLOTS) {
+			id = this.nextSlot++;
+			if (id == this.ids.length()) {
+				AtomicReferenceArray<Monitor> ids = new AtomicReferenceArray<Monitor>(id * 2);
+				for (int i = 0; i < id; i++) {
+					ids.set(i, this.ids.get(i));
+				}
+				this.ids = ids;
+			}
+		} else {
+			monitor.setId(-1);
+			return;
+		}
+		monitor.setId(id);
+		this.ids.set(id & SLOT_MASK, monitor);
+	}
+	
+	/*
+	 * Clear the identifier slot of a monitor no longer registered, the slot
+	 * is reused with the next generation.
+	 */
+	private void release(Monitor monitor) {
+		int id = monitor.getId();
+		if (id < 0) {
+			return;
+		}
+		int slot = id & SLOT_MASK;
+		if (slot < this.ids.length() && this.ids.compareAndSet(slot, monitor, null)) {
+			this.free.add(Integer.valueOf((id + SLOTS) & Integer.MAX_VALUE));
+		}
+	}
+	
+	/**
+	 * @return a read-only view of the current group names.
+	 */
+	Set<String> getGroups() {
+		return Collections.unmodifiableSet(this.groups.keySet());
+	}
+	
+	/**
+	 * @param group a group name.
+	 * @return a read-only view of the monitors in the group, in key order, 
+	 * empty if the group does not exist.
+	 */
+	Collection<Monitor> getMonitors(String group) {
+		ConcurrentSkipListMap<MonitorKey, Monitor> monitors = this.groups.get(group);
+		if (monitors == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableCollection(monitors.values());
+	}
+	
+	/**
+	 * @param tag a tag name.
+	 * @param value the tag value.
+	 * @return a read-only view of the monitors with the tag, empty if there
+	 * are none.
+	 */
+	Collection<Monitor> getMonitorsWithTag(String tag, String value) {
+		ConcurrentMap<MonitorKey, Monitor> tagged = this.tags.get(tag + '\0' + value);
+		if (tagged == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableCollection(tagged.values());
+	}
+	
+	/**
+	 * Return a copy of all registered monitors, taken while no monitor is 
+	 * being added or removed.
+	 * 
+	 * @return a new list of monitors, in group order and in key order 
+	 * within each group.
+	 */
+	List<Monitor> snapshot() {
+		synchronized (this.writeLock) {
+			List<Monitor> all = new ArrayList<Monitor>(this.size);
+			for (ConcurrentSkipListMap<MonitorKey, Monitor> monitors : this.groups.values()) {
+				all.addAll(monitors.values());
+			}
+			return all;
+		}
+	}
+	
+	/**
+	 * @return the number of registered monitors.
+	 */
+	int size() {
+		synchronized (this.writeLock) {
+			return this.size;
+		}
+	}
+	
+	/**
+	 * @param group a group name.
+	 * @return the number of registered monitors in the group.
+	 */
+	int size(String group) {
+		synchronized (this.writeLock) {
+			GroupStats stats = this.stats.get(group);
+			return stats == null ? 0 : stats.size;
+		}
+	}
+	
+	/**
+	 * @return the estimated memory held by all registered monitors, in 
+	 * bytes.
+	 */
+	long getMemory() {
+		synchronized (this.writeLock) {
+			return this.memory;
+		}
+	}
+	
+	/**
+	 * @return a new map of the estimated memory held by the monitors in 
+	 * each group, in bytes.
+	 */
+	Map<String, Long> getMemoryByGroup() {
+		synchronized (this.writeLock) {
+			Map<String, Long> memory = new HashMap<String, Long>();
+			for (Map.Entry<String, GroupStats> stats : this.stats.entrySet()) {
+				memory.put(stats.getKey(), Long.valueOf(stats.getValue().memory));
+			}
+			return memory;
+		}
+	}
+	
+	void clear() {
+		synchronized (this.writeLock) {
+			for (Monitor monitor : this.keys.values()) {
+				if (monitor instanceof MonitorImpl) {
+					((MonitorImpl)monitor).setAccounted(0);
+				}
+			}
+			this.keys.clear();
+			this.groups.clear();
+			this.tags.clear();
+			this.stats.clear();
+			this.memory = 0;
+			this.ids = new AtomicReferenceArray<Monitor>(this.ids.length());
+			this.free.clear();
+			this.nextSlot = 0;
+			this.size = 0;
+		}
+	}
+}
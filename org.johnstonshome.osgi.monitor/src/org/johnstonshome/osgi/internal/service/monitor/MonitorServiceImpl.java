@@ -8,19 +8,34 @@
  */
 package org.johnstonshome.osgi.internal.service.monitor;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Dictionary;
-import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Map;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
+import org.johnstonshome.osgi.service.monitor.CallTree;
 import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.DistinctCounter;
+import org.johnstonshome.osgi.service.monitor.Gauge;
+import org.johnstonshome.osgi.service.monitor.Histogram;
+import org.johnstonshome.osgi.service.monitor.Meter;
 import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorClusterService;
+import org.johnstonshome.osgi.service.monitor.MonitorHistoryService;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorListener;
 import org.johnstonshome.osgi.service.monitor.MonitorService;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshotService;
+import org.johnstonshome.osgi.service.monitor.SignallingPolicy;
 import org.johnstonshome.osgi.service.monitor.Statistic;
 import org.johnstonshome.osgi.service.monitor.TimerStatistic;
+import org.johnstonshome.osgi.service.monitor.TopK;
+import org.johnstonshome.osgi.service.monitor.WindowedStatistic;
+import org.johnstonshome.utils.fun.ValueFunction;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
@@ -30,38 +45,306 @@ import org.osgi.service.log.LogService;
 
 /**
  * The monitor service is started as a declarative service so will be 
- * automatically registered, but the listener service is subservient to
- * the monitor service and so is registered and removed by the monitor
- * service as it is activated and deactivated.
+ * automatically registered, but the listener, snapshot and history services
+ * are subservient to the monitor service and so are registered and removed 
+ * by the monitor service as it is activated and deactivated.
  * 
  * @author Simon Johnston
  *
  */
 public class MonitorServiceImpl implements MonitorService {
 	
+	/*
+	 * Component properties controlling how monitor updates are delivered to
+	 * listeners, by default updates are delivered synchronously on the thread
+	 * updating the monitor.
+	 */
+	static final String PROP_DISPATCH_MODE = "dispatch.mode"; //$NON-NLS-1$
+	static final String PROP_DISPATCH_QUEUE_SIZE = "dispatch.queue.size"; //$NON-NLS-1$
+	static final String PROP_DISPATCH_POLICY = "dispatch.policy"; //$NON-NLS-1$
+	static final String PROP_DISPATCH_INTERVAL = "dispatch.interval"; //$NON-NLS-1$
+
+	static final String DISPATCH_ASYNCHRONOUS = "asynchronous"; //$NON-NLS-1$
+	
+	private static final int DEFAULT_QUEUE_SIZE = 8192;
+	private static final long DEFAULT_INTERVAL = 100;
+	
+	/*
+	 * Component property for the interval, in milliseconds, between 
+	 * snapshots taken by the snapshot service.
+	 */
+	static final String PROP_SNAPSHOT_INTERVAL = "snapshot.interval"; //$NON-NLS-1$
+	
+	private static final long DEFAULT_SNAPSHOT_INTERVAL = 10000;
+	
+	/*
+	 * Component properties controlling the on-disk history of snapshots, 
+	 * retention periods are in milliseconds.
+	 */
+	static final String PROP_HISTORY_ENABLED = "history.enabled"; //$NON-NLS-1$
+	static final String PROP_HISTORY_RETENTION_SNAPSHOT = "history.retention.snapshot"; //$NON-NLS-1$
+	static final String PROP_HISTORY_RETENTION_MINUTE = "history.retention.minute"; //$NON-NLS-1$
+	static final String PROP_HISTORY_RETENTION_HOUR = "history.retention.hour"; //$NON-NLS-1$
+	
+	private static final String HISTORY_DIRECTORY = "history"; //$NON-NLS-1$
+	
+	/*
+	 * Component property for the host:port of a collector to stream 
+	 * snapshots to in the binary wire format.
+	 */
+	static final String PROP_WIRE_ADDRESS = "wire.address"; //$NON-NLS-1$
+	
+	/*
+	 * Component properties enabling the cluster wide view of monitors, and
+	 * the host:port on which to receive the snapshot streams of peer nodes.
+	 * With no address only this node's monitors are in the view. The hosts
+	 * allowed to connect are listed, comma separated, in cluster.peers, by
+	 * default only the loopback interface, or * for any host.
+	 */
+	static final String PROP_CLUSTER_ENABLED = "cluster.enabled"; //$NON-NLS-1$
+	static final String PROP_CLUSTER_ADDRESS = "cluster.address"; //$NON-NLS-1$
+	static final String PROP_CLUSTER_PEERS = "cluster.peers"; //$NON-NLS-1$
+	
+	/*
+	 * Component properties for publishing monitor values to a memory mapped
+	 * file for other processes: whether enabled, the file (by default in 
+	 * the bundle's storage), the most monitors published and the interval 
+	 * between publishing in milliseconds.
+	 */
+	static final String PROP_COUNTERS_ENABLED = "counters.enabled"; //$NON-NLS-1$
+	static final String PROP_COUNTERS_FILE = "counters.file"; //$NON-NLS-1$
+	static final String PROP_COUNTERS_CAPACITY = "counters.capacity"; //$NON-NLS-1$
+	static final String PROP_COUNTERS_INTERVAL = "counters.interval"; //$NON-NLS-1$
+	
+	private static final String COUNTERS_FILE = "counters.dat"; //$NON-NLS-1$
+	private static final long DEFAULT_COUNTERS_CAPACITY = 4096;
+	private static final long DEFAULT_COUNTERS_INTERVAL = 1000;
+	
+	/*
+	 * Component properties limiting the number of monitors in each group 
+	 * and in total, and the time in milliseconds after which a monitor that
+	 * has not been updated is removed. A value of 0 is no limit.
+	 */
+	static final String PROP_LIMIT_GROUP = "limit.group"; //$NON-NLS-1$
+	static final String PROP_LIMIT_TOTAL = "limit.total"; //$NON-NLS-1$
+	static final String PROP_IDLE_TIMEOUT = "idle.timeout"; //$NON-NLS-1$
+	
+	private static final long DEFAULT_LIMIT_GROUP = 10000;
+	private static final long DEFAULT_LIMIT_TOTAL = 100000;
+	
+	/*
+	 * The group for the monitors the service keeps on itself, this group is
+	 * not subject to the limits.
+	 */
+	static final String SELF_GROUP = "monitor"; //$NON-NLS-1$
+	
+	/*
+	 * The name prefix of the monitors given to callers once a limit is 
+	 * reached, followed by the lower case name of the monitor type.
+	 */
+	static final String OVERFLOW_PREFIX = "overflow."; //$NON-NLS-1$
+
 	private LogService log = null;
 	private HttpService httpService = null;
 	
-	private Map<String, Map<String, Monitor>> monitors = null;
+	private volatile MonitorRegistry monitors = null;
 	
 	private MonitorListenerServiceImpl listener = null;
 	private ServiceRegistration listenerRegistration = null;
+	private MonitorUpdateDispatcher dispatcher = null;
+	private MonitorListener updateListener = null;
+	private MonitorSnapshotScheduler scheduler = null;
+	private ServiceRegistration schedulerRegistration = null;
+	private MonitorHistoryStore history = null;
+	private ServiceRegistration historyRegistration = null;
+	private WireReporter wireReporter = null;
+	private ClusterAggregator cluster = null;
+	private ServiceRegistration clusterRegistration = null;
+	private CountersPublisher counters = null;
+	
+	private int groupLimit = 0;
+	private int totalLimit = 0;
+	private Counter overflowed = null;
+	private Counter evicted = null;
 
 	private String httpAlias = null;
+	private String metricsAlias = null;
 
 	@SuppressWarnings("unchecked")
 	protected void activate(ComponentContext context) {
-		this.monitors = new HashMap<String, Map<String, Monitor>>();
+		this.monitors = new MonitorRegistry();
 		
 		/*
 		 * Register the monitor listener service.
 		 */
 		Dictionary properties = new Hashtable(); 
-		this.listener = new MonitorListenerServiceImpl();
+		this.listener = new MonitorListenerServiceImpl(this.log);
 		this.listenerRegistration = context.getBundleContext().registerService(
 				MonitorListenerServiceImpl.class.getName(), 
 				this.listener, 
 				properties);
+		this.updateListener = this.listener;
+		
+		/*
+		 * Limit the size of the registry, the monitors that report on it are
+		 * created before the limits take effect.
+		 */
+		Dictionary config = context.getProperties();
+		this.overflowed = createCounter(null, SELF_GROUP, "overflowed", false, true); //$NON-NLS-1$
+		this.evicted = createCounter(null, SELF_GROUP, "evicted", false); //$NON-NLS-1$
+		this.groupLimit = (int)getLongProperty(config, PROP_LIMIT_GROUP, DEFAULT_LIMIT_GROUP);
+		this.totalLimit = (int)getLongProperty(config, PROP_LIMIT_TOTAL, DEFAULT_LIMIT_TOTAL);
+		
+		/*
+		 * If configured, deliver updates asynchronously.
+		 */
+		if (DISPATCH_ASYNCHRONOUS.equals(config.get(PROP_DISPATCH_MODE))) {
+			this.dispatcher = new MonitorUpdateDispatcher(
+					this.listener,
+					(int)getLongProperty(config, PROP_DISPATCH_QUEUE_SIZE, DEFAULT_QUEUE_SIZE),
+					getDispatchPolicy(config.get(PROP_DISPATCH_POLICY)),
+					getLongProperty(config, PROP_DISPATCH_INTERVAL, DEFAULT_INTERVAL),
+					createCounter(null, SELF_GROUP, "dispatch.delivered", false, true), //$NON-NLS-1$
+					createCounter(null, SELF_GROUP, "dispatch.dropped", false, true), //$NON-NLS-1$
+					createCounter(null, SELF_GROUP, "dispatch.batches", false)); //$NON-NLS-1$
+			this.dispatcher.start();
+			this.updateListener = this.dispatcher;
+		}
+		
+		/*
+		 * Register the monitor snapshot service.
+		 */
+		this.scheduler = new MonitorSnapshotScheduler(
+				this, 
+				this.log,
+				getLongProperty(config, PROP_SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL));
+		this.scheduler.start();
+		this.schedulerRegistration = context.getBundleContext().registerService(
+				MonitorSnapshotService.class.getName(), 
+				this.scheduler, 
+				new Hashtable());
+		
+		/*
+		 * On each snapshot report on the registry and remove idle monitors.
+		 */
+		this.scheduler.addReporter(new RegistryHousekeeper(
+				this,
+				this.monitors,
+				getLongProperty(config, PROP_IDLE_TIMEOUT, 0),
+				createCounter(null, SELF_GROUP, "monitors", false), //$NON-NLS-1$
+				createCounter(null, SELF_GROUP, "memory", false), //$NON-NLS-1$
+				this.evicted));
+		
+		/*
+		 * Evaluate any configured alert rules on each snapshot.
+		 */
+		List<AlertRule> rules = AlertEngine.parseRules(config, this.log);
+		if (!rules.isEmpty()) {
+			this.scheduler.addReporter(new AlertEngine(rules, this.log));
+		}
+		
+		/*
+		 * If enabled, and the framework provides bundle storage, record the 
+		 * snapshots and register the history service. History writes every
+		 * changed monitor to disk on each snapshot so it is off by default.
+		 */
+		File directory = context.getBundleContext().getDataFile(HISTORY_DIRECTORY);
+		if ("true".equals(String.valueOf(config.get(PROP_HISTORY_ENABLED))) && directory != null) { //$NON-NLS-1$
+			MonitorHistoryStore store = new MonitorHistoryStore(
+					directory,
+					this.log,
+					getLongProperty(config, PROP_HISTORY_RETENTION_SNAPSHOT, MonitorHistoryStore.DEFAULT_RETENTION_SNAPSHOT),
+					getLongProperty(config, PROP_HISTORY_RETENTION_MINUTE, MonitorHistoryStore.DEFAULT_RETENTION_MINUTE),
+					getLongProperty(config, PROP_HISTORY_RETENTION_HOUR, MonitorHistoryStore.DEFAULT_RETENTION_HOUR));
+			try {
+				store.open();
+				this.history = store;
+				this.scheduler.addReporter(this.history);
+				this.historyRegistration = context.getBundleContext().registerService(
+						MonitorHistoryService.class.getName(), 
+						this.history, 
+						new Hashtable());
+			} catch (IOException e) {
+				store.close();
+				this.log.log(LogService.LOG_WARNING, 
+						String.format("Could not open monitor history in %s", directory), 
+						e);
+			}
+		}
+		
+		/*
+		 * If configured, stream snapshots to a collector.
+		 */
+		Object wireAddress = config.get(PROP_WIRE_ADDRESS);
+		if (wireAddress != null && wireAddress.toString().length() > 0) {
+			try {
+				this.wireReporter = new WireReporter(WireReporter.parseAddress(wireAddress.toString()));
+				this.wireReporter.start();
+				this.scheduler.addReporter(this.wireReporter);
+			} catch (IllegalArgumentException e) {
+				this.log.log(LogService.LOG_WARNING, 
+						String.format("Invalid collector address %s", wireAddress), 
+						e);
+			}
+		}
+		
+		/*
+		 * If enabled, merge this node's snapshots with those of any peers 
+		 * and register the cluster service.
+		 */
+		if ("true".equals(String.valueOf(config.get(PROP_CLUSTER_ENABLED)))) { //$NON-NLS-1$
+			Object clusterAddress = config.get(PROP_CLUSTER_ADDRESS);
+			try {
+				this.cluster = new ClusterAggregator(
+						clusterAddress == null || clusterAddress.toString().length() == 0 
+							? null : WireReporter.parseAddress(clusterAddress.toString()), 
+						config.get(PROP_CLUSTER_PEERS) == null ? null : config.get(PROP_CLUSTER_PEERS).toString(),
+						this.log);
+				this.cluster.start();
+			} catch (IllegalArgumentException e) {
+				this.log.log(LogService.LOG_WARNING, 
+						String.format("Invalid cluster address %s", clusterAddress), 
+						e);
+			} catch (IOException e) {
+				this.log.log(LogService.LOG_WARNING, 
+						String.format("Could not listen for cluster nodes on %s", clusterAddress), 
+						e);
+			}
+			if (this.cluster != null) {
+				this.scheduler.addReporter(this.cluster);
+				this.clusterRegistration = context.getBundleContext().registerService(
+						MonitorClusterService.class.getName(), 
+						this.cluster, 
+						new Hashtable());
+			}
+		}
+		
+		/*
+		 * If enabled, publish monitor values to a shared file.
+		 */
+		if ("true".equals(String.valueOf(config.get(PROP_COUNTERS_ENABLED)))) { //$NON-NLS-1$
+			Object countersFile = config.get(PROP_COUNTERS_FILE);
+			File file = countersFile == null || countersFile.toString().length() == 0 ?
+					context.getBundleContext().getDataFile(COUNTERS_FILE) : new File(countersFile.toString());
+			if (file != null) {
+				CountersPublisher publisher = new CountersPublisher(
+						this,
+						file,
+						(int)getLongProperty(config, PROP_COUNTERS_CAPACITY, DEFAULT_COUNTERS_CAPACITY),
+						getLongProperty(config, PROP_COUNTERS_INTERVAL, DEFAULT_COUNTERS_INTERVAL),
+						this.log);
+				try {
+					publisher.start();
+					this.counters = publisher;
+					this.log.log(LogService.LOG_INFO, 
+							String.format("Publishing monitor counters to %s", file));
+				} catch (IOException e) {
+					this.log.log(LogService.LOG_WARNING, 
+							String.format("Could not publish monitor counters to %s", file), 
+							e);
+				}
+			}
+		}
 		
 		/*
 		 * If possible, register the monitor JSON Servlet.
@@ -85,12 +368,72 @@ public class MonitorServiceImpl implements MonitorService {
 		else {
 			this.log.log(LogService.LOG_DEBUG, "No HttpService, no log Servlet registered.");
 		}
+		
+		/*
+		 * If possible, and configured, register the Prometheus metrics Servlet.
+		 */
+		this.metricsAlias = (String)context.getProperties().get(PROP_METRICS_ALIAS);
+		if (this.httpService != null && this.metricsAlias != null) {
+	        try {
+	        	this.httpService.registerServlet(
+	        			this.metricsAlias,
+						new PrometheusServlet(this),
+						null, /* init params */
+						null  /* HTTP context */);
+			} catch (Exception e) {
+				this.log.log(LogService.LOG_WARNING, 
+						String.format("Could not register servlet %s with alias %s", 
+								PrometheusServlet.class.getName(),
+								this.metricsAlias),
+						e);
+				this.metricsAlias = null;
+			}
+		}
 	}
 	
 	protected void deactivate(ComponentContext context) {
 		if (this.httpService != null) {
 			this.httpService.unregister(this.httpAlias);
+			if (this.metricsAlias != null) {
+				this.httpService.unregister(this.metricsAlias);
+			}
+		}
+		if (this.dispatcher != null) {
+			this.dispatcher.close();
+			this.dispatcher = null;
+		}
+		if (this.historyRegistration != null) {
+			this.historyRegistration.unregister();
+			this.historyRegistration = null;
+		}
+		if (this.clusterRegistration != null) {
+			this.clusterRegistration.unregister();
+			this.clusterRegistration = null;
+		}
+		this.schedulerRegistration.unregister();
+		this.scheduler.close();
+		this.scheduler = null;
+		if (this.wireReporter != null) {
+			this.wireReporter.close();
+			this.wireReporter = null;
+		}
+		if (this.cluster != null) {
+			this.cluster.close();
+			this.cluster = null;
+		}
+		if (this.counters != null) {
+			this.counters.close();
+			this.counters = null;
 		}
+		if (this.history != null) {
+			this.history.close();
+			this.history = null;
+		}
+		this.updateListener = null;
+		this.overflowed = null;
+		this.evicted = null;
+		this.groupLimit = 0;
+		this.totalLimit = 0;
 		this.listenerRegistration.unregister();
 		this.listener.close();
 		this.listener = null;
@@ -108,6 +451,20 @@ public class MonitorServiceImpl implements MonitorService {
 		return (Counter)createMonitor(CounterImpl.class, sr, group, name, signalling);
 	}
 
+	@Override
+	public Counter createCounter(ServiceReference sr, String group, String name, boolean signalling, boolean striped) {
+		return (Counter)createMonitor(
+				striped ? StripedCounterImpl.class : CounterImpl.class, 
+				sr, group, name, signalling);
+	}
+
+	@Override
+	public Counter createCounter(ServiceReference sr, String group, String name, SignallingPolicy policy, boolean striped) {
+		return (Counter)createMonitor(
+				striped ? StripedCounterImpl.class : CounterImpl.class, 
+				sr, group, name, policy);
+	}
+
 	@Override
 	public Statistic createStatistic(String group, String name, boolean signalling) {
 		return this.createStatistic(null /* sr */, group, name, signalling);
@@ -117,6 +474,11 @@ public class MonitorServiceImpl implements MonitorService {
 	public Statistic createStatistic(ServiceReference sr, String group, String name, boolean signalling) {
 		return (Statistic)createMonitor(StatisticImpl.class, sr, group, name, signalling);
 	}
+
+	@Override
+	public Statistic createStatistic(ServiceReference sr, String group, String name, SignallingPolicy policy) {
+		return (Statistic)createMonitor(StatisticImpl.class, sr, group, name, policy);
+	}
 	
 	@Override
 	public TimerStatistic createTimerStatistic(String group, String name, boolean signalling) {
@@ -124,21 +486,221 @@ public class MonitorServiceImpl implements MonitorService {
 	}
 	
 	@Override
-	public synchronized TimerStatistic createTimerStatistic(ServiceReference sr, String group, String name, boolean signalling) {
+	public TimerStatistic createTimerStatistic(ServiceReference sr, String group, String name, boolean signalling) {
 		return (TimerStatistic)createMonitor(TimerStatisticImpl.class, sr, group, name, signalling);
 	}
+
+	@Override
+	public TimerStatistic createTimerStatistic(ServiceReference sr, String group, String name, SignallingPolicy policy) {
+		return (TimerStatistic)createMonitor(TimerStatisticImpl.class, sr, group, name, policy);
+	}
 	
-	private synchronized Monitor createMonitor(Class<?> clazz, ServiceReference sr, String group, String name, boolean signalling) {
-		if (clazz == null || 
-			group == null || group.equals("") || 
-			name == null || name.equals("")) {
-			throw new IllegalArgumentException();
+	@Override
+	public Histogram createHistogram(String group, String name, boolean signalling) {
+		return this.createHistogram(null /* sr */, group, name, signalling);
+	}
+	
+	@Override
+	public Histogram createHistogram(ServiceReference sr, String group, String name, boolean signalling) {
+		return (Histogram)createMonitor(HistogramImpl.class, sr, group, name, signalling);
+	}
+	
+	@Override
+	public Histogram createHistogram(ServiceReference sr, String group, String name, long highestTrackableValue, int significantDigits, boolean signalling) {
+		return (Histogram)registerMonitor(
+				new HistogramImpl(highestTrackableValue, significantDigits), 
+				sr, group, name, signalling);
+	}
+
+	@Override
+	public Histogram createHistogram(ServiceReference sr, String group, String name, long highestTrackableValue, int significantDigits, SignallingPolicy policy) {
+		return (Histogram)registerMonitor(
+				new HistogramImpl(highestTrackableValue, significantDigits), 
+				sr, group, name, policy);
+	}
+	
+	@Override
+	public WindowedStatistic createWindowedStatistic(String group, String name, int window, boolean signalling) {
+		return this.createWindowedStatistic(null /* sr */, group, name, window, signalling);
+	}
+	
+	@Override
+	public WindowedStatistic createWindowedStatistic(ServiceReference sr, String group, String name, int window, boolean signalling) {
+		return (WindowedStatistic)registerMonitor(
+				new WindowedStatisticImpl(window), 
+				sr, group, name, signalling);
+	}
+
+	@Override
+	public WindowedStatistic createWindowedStatistic(ServiceReference sr, String group, String name, int window, SignallingPolicy policy) {
+		return (WindowedStatistic)registerMonitor(
+				new WindowedStatisticImpl(window), 
+				sr, group, name, policy);
+	}
+	
+	@Override
+	public Meter createMeter(String group, String name, boolean signalling) {
+		return this.createMeter(null /* sr */, group, name, signalling);
+	}
+	
+	@Override
+	public Meter createMeter(ServiceReference sr, String group, String name, boolean signalling) {
+		return (Meter)createMonitor(MeterImpl.class, sr, group, name, signalling);
+	}
+
+	@Override
+	public Meter createMeter(ServiceReference sr, String group, String name, SignallingPolicy policy) {
+		return (Meter)createMonitor(MeterImpl.class, sr, group, name, policy);
+	}
+	
+	@Override
+	public Gauge createGauge(String group, String name, ValueFunction<? extends Number> function, long timeToLive) {
+		return createGauge(null /* sr */, key(group, name), function, timeToLive);
+	}
+
+	@Override
+	public Gauge createGauge(ServiceReference sr, MonitorKey key, ValueFunction<? extends Number> function, long timeToLive) {
+		return (Gauge)registerMonitor(
+				new GaugeImpl(function, timeToLive, this.log), 
+				sr, key, SignallingPolicy.never());
+	}
+
+	@Override
+	public DistinctCounter createDistinctCounter(String group, String name, boolean signalling) {
+		return createDistinctCounter(null /* sr */, key(group, name), DistinctSketch.DEFAULT_PRECISION, policy(signalling));
+	}
+
+	@Override
+	public DistinctCounter createDistinctCounter(ServiceReference sr, MonitorKey key, int precision, SignallingPolicy policy) {
+		return (DistinctCounter)registerMonitor(
+				new DistinctCounterImpl(precision), 
+				sr, key, policy);
+	}
+
+	@Override
+	public TopK createTopK(String group, String name, int k, boolean signalling) {
+		return createTopK(null /* sr */, key(group, name), k, policy(signalling));
+	}
+
+	@Override
+	public TopK createTopK(ServiceReference sr, MonitorKey key, int k, SignallingPolicy policy) {
+		return (TopK)registerMonitor(
+				new TopKImpl(k), 
+				sr, key, policy);
+	}
+
+	@Override
+	public CallTree createCallTree(String group, String name, boolean signalling) {
+		return createCallTree(null /* sr */, key(group, name), policy(signalling));
+	}
+
+	@Override
+	public CallTree createCallTree(ServiceReference sr, MonitorKey key, SignallingPolicy policy) {
+		return (CallTree)registerMonitor(
+				new CallTreeImpl(), 
+				sr, key, policy);
+	}
+	
+	@Override
+	public Counter getOrCreateCounter(String group, String name) {
+		return getOrCreateCounter(MonitorKey.of(group, name));
+	}
+
+	@Override
+	public Counter getOrCreateCounter(MonitorKey key) {
+		return (Counter)getOrCreateMonitor(Counter.class, CounterImpl.class, key);
+	}
+
+	@Override
+	public Statistic getOrCreateStatistic(String group, String name) {
+		return getOrCreateStatistic(MonitorKey.of(group, name));
+	}
+
+	@Override
+	public Statistic getOrCreateStatistic(MonitorKey key) {
+		return (Statistic)getOrCreateMonitor(Statistic.class, StatisticImpl.class, key);
+	}
+
+	@Override
+	public TimerStatistic getOrCreateTimerStatistic(String group, String name) {
+		return getOrCreateTimerStatistic(MonitorKey.of(group, name));
+	}
+
+	@Override
+	public TimerStatistic getOrCreateTimerStatistic(MonitorKey key) {
+		return (TimerStatistic)getOrCreateMonitor(TimerStatistic.class, TimerStatisticImpl.class, key);
+	}
+
+	@Override
+	public Histogram getOrCreateHistogram(String group, String name) {
+		return getOrCreateHistogram(MonitorKey.of(group, name));
+	}
+
+	@Override
+	public Histogram getOrCreateHistogram(MonitorKey key) {
+		return (Histogram)getOrCreateMonitor(Histogram.class, HistogramImpl.class, key);
+	}
+	
+	@Override
+	public Monitor getMonitor(MonitorKey key) {
+		MonitorRegistry registry = this.monitors;
+		if (registry == null) {
+			return null;
 		}
-		if (this.monitors == null) {
+		return registry.get(key);
+	}
+	
+	@Override
+	public Monitor getMonitor(int id) {
+		MonitorRegistry registry = this.monitors;
+		if (registry == null) {
 			return null;
 		}
-		this.log.log(LogService.LOG_DEBUG, 
-				String.format("Adding monitor group: %s, name: %s", group, name));
+		return registry.get(id);
+	}
+	
+	@Override
+	public Collection<Monitor> getMonitorsWithTag(String tag, String value) {
+		MonitorRegistry registry = this.monitors;
+		if (registry == null) {
+			return null;
+		}
+		return registry.getMonitorsWithTag(tag, value);
+	}
+	
+	/*
+	 * The lookup is lock-free, only if the monitor is missing is the lock
+	 * taken (and the lookup repeated) to create it.
+	 */
+	private Monitor getOrCreateMonitor(Class<? extends Monitor> type, Class<?> clazz, MonitorKey key) {
+		MonitorRegistry registry = this.monitors;
+		if (registry == null) {
+			return null;
+		}
+		Monitor monitor = registry.get(key);
+		if (monitor == null) {
+			synchronized (this) {
+				monitor = registry.get(key);
+				if (monitor == null) {
+					monitor = createMonitor(clazz, null /* sr */, key, policy(false));
+				}
+			}
+		}
+		return type.isInstance(monitor) ? monitor : null;
+	}
+	
+	private Monitor createMonitor(Class<?> clazz, ServiceReference sr, String group, String name, boolean signalling) {
+		return createMonitor(clazz, sr, group, name, policy(signalling));
+	}
+	
+	private Monitor createMonitor(Class<?> clazz, ServiceReference sr, String group, String name, SignallingPolicy policy) {
+		return createMonitor(clazz, sr, key(group, name), policy);
+	}
+	
+	private Monitor createMonitor(Class<?> clazz, ServiceReference sr, MonitorKey key, SignallingPolicy policy) {
+		if (clazz == null) {
+			throw new IllegalArgumentException();
+		}
 		MonitorImpl monitor = null;
 		try {
 			monitor = (MonitorImpl) clazz.newInstance();
@@ -146,14 +708,61 @@ public class MonitorServiceImpl implements MonitorService {
 			this.log.log(LogService.LOG_ERROR, "Could not instantiate monitor.", e);
 			return null;
 		}
-		monitor.setServiceReference(sr);
-		monitor.setGroup(group);
-		monitor.setName(name);
-		monitor.setListener(signalling ? this.listener : null);
-		if (!this.monitors.containsKey(group)) {
-			this.monitors.put(group, new HashMap<String, Monitor>());
+		return registerMonitor(monitor, sr, key, policy);
+	}
+	
+	private Monitor registerMonitor(MonitorImpl monitor, ServiceReference sr, String group, String name, boolean signalling) {
+		return registerMonitor(monitor, sr, key(group, name), policy(signalling));
+	}
+	
+	private Monitor registerMonitor(MonitorImpl monitor, ServiceReference sr, String group, String name, SignallingPolicy policy) {
+		return registerMonitor(monitor, sr, key(group, name), policy);
+	}
+	
+	private synchronized Monitor registerMonitor(MonitorImpl monitor, ServiceReference sr, MonitorKey key, SignallingPolicy policy) {
+		if (key == null || policy == null) {
+			throw new IllegalArgumentException();
+		}
+		if (this.monitors == null) {
+			return null;
+		}
+		if (!SELF_GROUP.equals(key.getGroup()) && this.monitors.get(key) == null) {
+			MonitorKey overflow = null;
+			if (this.totalLimit > 0 && this.monitors.size() >= this.totalLimit) {
+				overflow = overflowKey(SELF_GROUP, monitor);
+			} else if (this.groupLimit > 0 && this.monitors.size(key.getGroup()) >= this.groupLimit) {
+				overflow = overflowKey(key.getGroup(), monitor);
+			}
+			if (overflow != null) {
+				/*
+				 * The caller is given the shared overflow monitor of the same
+				 * type instead, so that its updates are still counted.
+				 */
+				this.overflowed.increment();
+				if (monitor instanceof GaugeImpl) {
+					/*
+					 * A gauge's value belongs to its function, so it cannot 
+					 * share an overflow monitor.
+					 */
+					return null;
+				}
+				Monitor existing = this.monitors.get(overflow);
+				if (existing != null) {
+					return existing;
+				}
+				this.log.log(LogService.LOG_WARNING, 
+						String.format("Monitor limit reached, %s replaced by %s", key, overflow));
+				key = overflow;
+				monitor.setOverflow(true);
+			}
 		}
-		this.monitors.get(group).put(name, monitor);
+		this.log.log(LogService.LOG_DEBUG, 
+				String.format("Adding monitor: %s", key));
+		monitor.setServiceReference(sr);
+		monitor.setKey(key);
+		monitor.setSignallingPolicy(policy);
+		monitor.setListener(policy.getKind() == SignallingPolicy.Kind.NEVER ? null : this.updateListener);
+		this.monitors.put(monitor);
 		this.listener.monitorCreated(monitor);
 		return monitor;
 	}
@@ -166,32 +775,152 @@ public class MonitorServiceImpl implements MonitorService {
 		if (this.monitors == null) {
 			return;
 		}
+		if (monitor instanceof MonitorImpl && ((MonitorImpl)monitor).isOverflow()) {
+			return;
+		}
+		this.log.log(LogService.LOG_DEBUG, 
+				String.format("Removing monitor: %s", monitor.getKey()));
+		/*
+		 * A monitor removed by its owner stays removed, even if it had 
+		 * already been evicted.
+		 */
+		if (monitor instanceof MonitorImpl) {
+			((MonitorImpl)monitor).setEvictedBy(null);
+		}
+		if (this.monitors.remove(monitor)) {
+			this.listener.monitorRemoved(monitor);
+		}
+	}
+	
+	/**
+	 * Remove a monitor that has not been updated, including an overflow 
+	 * monitor.
+	 * 
+	 * @param monitor the monitor to remove.
+	 * @return <code>true</code> if the monitor was removed.
+	 */
+	synchronized boolean evictMonitor(Monitor monitor) {
+		if (this.monitors == null || !this.monitors.remove(monitor)) {
+			return false;
+		}
 		this.log.log(LogService.LOG_DEBUG, 
-				String.format("Removing monitor group: %s, name: %s", 
-						monitor.getGroup(), 
-						monitor.getName()));
-		Map<String, Monitor> group = this.monitors.get(monitor.getGroup());
-		group.remove(monitor.getName());
+				String.format("Evicting idle monitor: %s", monitor.getKey()));
 		this.listener.monitorRemoved(monitor);
-		if (group.size() == 0) {
-			this.monitors.remove(monitor.getGroup());
+		if (monitor instanceof MonitorImpl) {
+			((MonitorImpl)monitor).setEvictedBy(this);
+		}
+		return true;
+	}
+	
+	/**
+	 * Return an evicted monitor to the registry on its next update, so that
+	 * a caller still holding it is counted again. If a monitor with the same
+	 * key has been created since, that one is kept and the evicted monitor 
+	 * stays detached. A monitor removed by its owner since it was evicted 
+	 * is not returned.
+	 * 
+	 * @param monitor the evicted monitor.
+	 */
+	synchronized void reviveMonitor(MonitorImpl monitor) {
+		if (monitor.getEvictedBy() != this) {
+			return;
+		}
+		monitor.setEvictedBy(null);
+		if (this.monitors == null || this.monitors.get(monitor.getKey()) != null) {
+			return;
 		}
+		this.log.log(LogService.LOG_DEBUG, 
+				String.format("Reviving evicted monitor: %s", monitor.getKey()));
+		monitor.setLastActive(System.currentTimeMillis());
+		monitor.setListener(monitor.getSignallingPolicy().getKind() == SignallingPolicy.Kind.NEVER ? 
+				null : this.updateListener);
+		this.monitors.put(monitor);
+		this.listener.monitorCreated(monitor);
 	}
 
 	@Override
 	public Set<String> getMonitorGroups() {
-		if (this.monitors == null) {
+		MonitorRegistry registry = this.monitors;
+		if (registry == null) {
 			return null;
 		}
-		return Collections.unmodifiableSet(this.monitors.keySet());
+		return registry.getGroups();
 	}
 
 	@Override
 	public Collection<Monitor> getMonitorsForGroup(String group) {
-		if (this.monitors == null) {
+		MonitorRegistry registry = this.monitors;
+		if (registry == null) {
+			return null;
+		}
+		return registry.getMonitors(group);
+	}
+
+	/**
+	 * Return a consistent copy of all current monitors, used by exporters
+	 * that need to walk every monitor.
+	 * 
+	 * @return a list of all monitors, or <code>null</code> if the service 
+	 * is not active.
+	 */
+	public List<Monitor> getMonitors() {
+		MonitorRegistry registry = this.monitors;
+		if (registry == null) {
 			return null;
 		}
-		return Collections.unmodifiableCollection(this.monitors.get(group).values());
+		return registry.snapshot();
+	}
+	
+	/**
+	 * @return the cluster view, or <code>null</code> if it is not enabled or
+	 * the service is not active.
+	 */
+	MonitorClusterService getCluster() {
+		return this.cluster;
+	}
+
+	private static MonitorKey overflowKey(String group, MonitorImpl monitor) {
+		return MonitorKey.of(group, OVERFLOW_PREFIX + monitor.getType().name().toLowerCase(Locale.ENGLISH));
+	}
+
+	private static MonitorKey key(String group, String name) {
+		if (group == null || group.equals("") || 
+			name == null || name.equals("")) {
+			throw new IllegalArgumentException();
+		}
+		return MonitorKey.of(group, name);
+	}
+
+	private static SignallingPolicy policy(boolean signalling) {
+		return signalling ? SignallingPolicy.always() : SignallingPolicy.never();
+	}
+
+	private static long getLongProperty(Dictionary properties, String name, long defaultValue) {
+		Object value = properties.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.toString());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/*
+	 * An unknown policy is logged and, as a missing one, taken to be DROP.
+	 */
+	private DispatchPolicy getDispatchPolicy(Object policy) {
+		if (policy == null) {
+			return DispatchPolicy.DROP;
+		}
+		try {
+			return DispatchPolicy.valueOf(policy.toString().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			this.log.log(LogService.LOG_WARNING, 
+					String.format("Unknown dispatch policy %s, using %s", policy, DispatchPolicy.DROP));
+			return DispatchPolicy.DROP;
+		}
 	}
 
 	/*
@@ -9,22 +9,50 @@
 package org.johnstonshome.osgi.internal.service.monitor;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Iterator;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.johnstonshome.osgi.service.monitor.CallNode;
+import org.johnstonshome.osgi.service.monitor.CallTree;
 import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.DistinctCounter;
+import org.johnstonshome.osgi.service.monitor.Exemplar;
+import org.johnstonshome.osgi.service.monitor.Gauge;
+import org.johnstonshome.osgi.service.monitor.HeavyHitter;
+import org.johnstonshome.osgi.service.monitor.Histogram;
+import org.johnstonshome.osgi.service.monitor.HistogramSnapshot;
+import org.johnstonshome.osgi.service.monitor.Meter;
 import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorClusterService;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
 import org.johnstonshome.osgi.service.monitor.Statistic;
+import org.johnstonshome.osgi.service.monitor.TimerStatistic;
+import org.johnstonshome.osgi.service.monitor.TopK;
+import org.johnstonshome.osgi.service.monitor.WindowedStatistic;
 
 
 /**
  * This servlet is used to expose the current state of all monitors as
- * a JSON data feed. It is registered by the monitor service itself.
+ * a JSON data feed. It is registered by the monitor service itself. The 
+ * set of monitors written is a consistent snapshot of the registry, it may
+ * be restricted with the <code>group</code> (exact group name) or 
+ * <code>prefix</code> (group name prefix) request parameters and the 
+ * response is compressed if the client accepts <code>gzip</code>. With
+ * <code>scope=cluster</code> the merged values of all nodes are written 
+ * instead, if the cluster view is enabled. With <code>format=collapsed</code>
+ * the call trees of this node are written instead, as text in the collapsed
+ * stack format with each tree beneath a frame named by its key.
  * 
  * @author Simon Johnston
  *
@@ -33,6 +61,18 @@ class MonitorServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 1L;
 	
+	static final String PARAM_GROUP = "group"; //$NON-NLS-1$
+	static final String PARAM_PREFIX = "prefix"; //$NON-NLS-1$
+	static final String PARAM_SCOPE = "scope"; //$NON-NLS-1$
+	static final String SCOPE_CLUSTER = "cluster"; //$NON-NLS-1$
+	static final String PARAM_FORMAT = "format"; //$NON-NLS-1$
+	static final String FORMAT_COLLAPSED = "collapsed"; //$NON-NLS-1$
+	static final String CONTENT_TYPE_COLLAPSED = "text/plain"; //$NON-NLS-1$
+
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding"; //$NON-NLS-1$
+	private static final String HEADER_CONTENT_ENCODING = "Content-Encoding"; //$NON-NLS-1$
+	private static final String GZIP = "gzip"; //$NON-NLS-1$
+	
 	private MonitorServiceImpl monitorService = null;
 
 	public MonitorServlet(MonitorServiceImpl monitorService) {
@@ -42,54 +82,380 @@ class MonitorServlet extends HttpServlet {
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
-		PrintWriter output = resp.getWriter();
-		output.println("{");
-        output.println("    groups: [");
-        for (Iterator<String> groups = this.monitorService.getMonitorGroups().iterator(); groups.hasNext();) {
-			String group = groups.next();
-            output.println("        {");
-            output.println("            group: \"" + group + "\",");
-            output.println("            monitors: [");
-            for (Iterator<Monitor> monitors = this.monitorService.getMonitorsForGroup(group).iterator(); monitors.hasNext();) {
-            	Monitor monitor = monitors.next();
-                output.println("                {");
-                if (monitor.getServiceReference() != null) {
-                	output.println("                    service: \"" + monitor.getServiceReference().toString() + "\"");
-                }
-                else {
-                	output.println("                    service: \"\"");
-                }
-                output.println("                    name: \"" + monitor.getName() + "\"");
-                if (monitor instanceof Counter) {
-                    Counter counter = (Counter)monitor;
-                    output.println("                    type: \"Counter\",");
-                    output.println("                    value: \"" + counter.get() + "\"");
-                }
-                else if (monitor instanceof Statistic) {
-                    Statistic statistic = (Statistic)monitor;
-                    output.println("                    type: \"Statistic\",");
-                    output.println("                    count: \"" + statistic.getCount() + "\",");
-                    output.println("                    min: \"" + statistic.getMin() + "\",");
-                    output.println("                    max: \"" + statistic.getMax() + "\",");
-                    output.println("                    average: \"" + statistic.getAverage() + "\"");
-                }
-                if (monitors.hasNext()) {
-                	output.println("                },");
-                } else {
-                	output.println("                }");
-                }
-            }
-            output.println("            ]");
-            if (groups.hasNext()) {
-            	output.println("        },");
-            } else {
-            	output.println("        }");
-            }
-		}
-        output.println("    ]");
-		output.println("}");
+		List<Monitor> monitors = null;
+		MonitorClusterService cluster = null;
+		boolean collapsed = FORMAT_COLLAPSED.equals(req.getParameter(PARAM_FORMAT));
+		if (SCOPE_CLUSTER.equals(req.getParameter(PARAM_SCOPE)) && !collapsed) {
+			cluster = this.monitorService.getCluster();
+		} else {
+			monitors = this.monitorService.getMonitors();
+		}
+		if (monitors == null && cluster == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, null);
+			return;
+		}
+		resp.setStatus(HttpServletResponse.SC_OK);
 		resp.setCharacterEncoding(JSON.CONTENT_ENCODING);
-		resp.setContentType(JSON.CONTENT_TYPE);
-		resp.setStatus(200);
+		resp.setContentType(collapsed ? CONTENT_TYPE_COLLAPSED : JSON.CONTENT_TYPE);
+		
+		OutputStream output = resp.getOutputStream();
+		String accept = req.getHeader(HEADER_ACCEPT_ENCODING);
+		if (accept != null && accept.indexOf(GZIP) >= 0) {
+			resp.setHeader(HEADER_CONTENT_ENCODING, GZIP);
+			output = new GZIPOutputStream(output, 8192);
+		}
+		if (collapsed) {
+			writeCollapsed(monitors, 
+					req.getParameter(PARAM_GROUP), 
+					req.getParameter(PARAM_PREFIX), 
+					new OutputStreamWriter(output, JSON.CONTENT_ENCODING));
+		} else if (cluster != null) {
+			write(cluster, 
+					req.getParameter(PARAM_GROUP), 
+					req.getParameter(PARAM_PREFIX), 
+					new JSONWriter(output));
+		} else {
+			write(monitors, 
+					req.getParameter(PARAM_GROUP), 
+					req.getParameter(PARAM_PREFIX), 
+					new JSONWriter(output));
+		}
+		if (output instanceof GZIPOutputStream) {
+			((GZIPOutputStream)output).finish();
+		}
+	}
+	
+	/**
+	 * Write the monitors as a JSON document, monitors are expected to be 
+	 * ordered by group (as returned by {@link MonitorServiceImpl#getMonitors()}).
+	 * 
+	 * @param monitors the monitors to write.
+	 * @param group if not <code>null</code> only write monitors in this group.
+	 * @param prefix if not <code>null</code> only write monitors whose group
+	 * starts with this prefix.
+	 * @param json the writer to write to, this is flushed on completion.
+	 */
+	static void write(Collection<Monitor> monitors, String group, String prefix, JSONWriter json) 
+			throws IOException {
+		json.beginObject();
+		json.name("groups").beginArray(); //$NON-NLS-1$
+		String current = null;
+		for (Monitor monitor : monitors) {
+			String monitorGroup = monitor.getGroup();
+			if ((group != null && !group.equals(monitorGroup)) ||
+				(prefix != null && !monitorGroup.startsWith(prefix))) {
+				continue;
+			}
+			if (!monitorGroup.equals(current)) {
+				if (current != null) {
+					json.endArray().endObject();
+				}
+				current = monitorGroup;
+				json.beginObject();
+				json.name("group").value(monitorGroup); //$NON-NLS-1$
+				json.name("monitors").beginArray(); //$NON-NLS-1$
+			}
+			writeMonitor(monitor, json);
+		}
+		if (current != null) {
+			json.endArray().endObject();
+		}
+		json.endArray();
+		json.endObject();
+		json.flush();
+	}
+	
+	/**
+	 * Write the call trees among the monitors in the collapsed stack format.
+	 * 
+	 * @param monitors the monitors to write.
+	 * @param group if not <code>null</code> only write monitors in this group.
+	 * @param prefix if not <code>null</code> only write monitors whose group
+	 * starts with this prefix.
+	 * @param writer the writer to write to, this is flushed on completion.
+	 */
+	static void writeCollapsed(Collection<Monitor> monitors, String group, String prefix, Writer writer) 
+			throws IOException {
+		for (Monitor monitor : monitors) {
+			String monitorGroup = monitor.getGroup();
+			if (!(monitor instanceof CallTreeImpl) ||
+				(group != null && !group.equals(monitorGroup)) ||
+				(prefix != null && !monitorGroup.startsWith(prefix))) {
+				continue;
+			}
+			((CallTreeImpl)monitor).writeCollapsed(monitor.getKey().toString(), writer);
+		}
+		writer.flush();
+	}
+	
+	/**
+	 * Write the merged values of the cluster as a JSON document, with the 
+	 * same structure as {@link #write(Collection, String, String, JSONWriter)}
+	 * preceded by the nodes merged.
+	 * 
+	 * @param cluster the cluster view to write.
+	 * @param group if not <code>null</code> only write monitors in this group.
+	 * @param prefix if not <code>null</code> only write monitors whose group
+	 * starts with this prefix.
+	 * @param json the writer to write to, this is flushed on completion.
+	 */
+	static void write(MonitorClusterService cluster, String group, String prefix, JSONWriter json) 
+			throws IOException {
+		MonitorSnapshot snapshot = cluster.getClusterSnapshot();
+		json.beginObject();
+		json.name("timestamp").value(snapshot.getTimestamp()); //$NON-NLS-1$
+		json.name("nodes").beginArray(); //$NON-NLS-1$
+		for (String node : cluster.getNodes()) {
+			json.value(node);
+		}
+		json.endArray();
+		json.name("groups").beginArray(); //$NON-NLS-1$
+		String current = null;
+		for (int i = 0; i < snapshot.size(); i++) {
+			String monitorGroup = snapshot.getGroup(i);
+			if ((group != null && !group.equals(monitorGroup)) ||
+				(prefix != null && !monitorGroup.startsWith(prefix))) {
+				continue;
+			}
+			if (!monitorGroup.equals(current)) {
+				if (current != null) {
+					json.endArray().endObject();
+				}
+				current = monitorGroup;
+				json.beginObject();
+				json.name("group").value(monitorGroup); //$NON-NLS-1$
+				json.name("monitors").beginArray(); //$NON-NLS-1$
+			}
+			writeSample(snapshot, i, json);
+		}
+		if (current != null) {
+			json.endArray().endObject();
+		}
+		json.endArray();
+		json.endObject();
+		json.flush();
+	}
+	
+	private static void writeSample(MonitorSnapshot snapshot, int index, JSONWriter json) throws IOException {
+		json.beginObject();
+		json.name("name").value(snapshot.getName(index)); //$NON-NLS-1$
+		writeTags(snapshot.getKey(index), json);
+		MonitorType type = snapshot.getType(index);
+		long count = snapshot.get(index, MonitorSnapshot.COUNT);
+		json.name("type").value(typeName(type)); //$NON-NLS-1$
+		switch (type) {
+		case COUNTER:
+			json.name("value").value(count); //$NON-NLS-1$
+			break;
+		case GAUGE:
+			json.name("value").value( //$NON-NLS-1$
+					snapshot.get(index, MonitorSnapshot.VALUE) / GaugeImpl.VALUE_SCALE);
+			break;
+		case DISTINCT_COUNTER:
+			json.name("count").value(count); //$NON-NLS-1$
+			json.name("estimate").value(snapshot.get(index, MonitorSnapshot.VALUE)); //$NON-NLS-1$
+			break;
+		case TOP_K:
+			json.name("count").value(count); //$NON-NLS-1$
+			json.name("min").value(snapshot.get(index, MonitorSnapshot.MIN)); //$NON-NLS-1$
+			json.name("max").value(snapshot.get(index, MonitorSnapshot.MAX)); //$NON-NLS-1$
+			if (snapshot instanceof SketchSource) {
+				MonitorSketch sketch = ((SketchSource)snapshot).getSketch(index);
+				if (sketch instanceof TopKSketch) {
+					writeTop(((TopKSketch)sketch).getTop(), json);
+				}
+			}
+			break;
+		case METER:
+			json.name("value").value(count); //$NON-NLS-1$
+			json.name("oneMinuteRate").value( //$NON-NLS-1$
+					snapshot.get(index, MonitorSnapshot.RATE_1) / MeterImpl.RATE_SCALE);
+			json.name("fiveMinuteRate").value( //$NON-NLS-1$
+					snapshot.get(index, MonitorSnapshot.RATE_5) / MeterImpl.RATE_SCALE);
+			json.name("fifteenMinuteRate").value( //$NON-NLS-1$
+					snapshot.get(index, MonitorSnapshot.RATE_15) / MeterImpl.RATE_SCALE);
+			break;
+		default:
+			json.name("count").value(count); //$NON-NLS-1$
+			json.name("min").value(snapshot.get(index, MonitorSnapshot.MIN)); //$NON-NLS-1$
+			json.name("max").value(snapshot.get(index, MonitorSnapshot.MAX)); //$NON-NLS-1$
+			json.name("average").value( //$NON-NLS-1$
+					count == 0 ? 0.0 : snapshot.get(index, MonitorSnapshot.SUM) / (double)count);
+			if (type == MonitorType.HISTOGRAM) {
+				json.name("p50").value(snapshot.get(index, MonitorSnapshot.P50)); //$NON-NLS-1$
+				json.name("p90").value(snapshot.get(index, MonitorSnapshot.P90)); //$NON-NLS-1$
+				json.name("p99").value(snapshot.get(index, MonitorSnapshot.P99)); //$NON-NLS-1$
+				json.name("p999").value(snapshot.get(index, MonitorSnapshot.P999)); //$NON-NLS-1$
+			}
+		}
+		json.endObject();
+	}
+	
+	private static String typeName(MonitorType type) {
+		switch (type) {
+		case COUNTER:
+			return "Counter"; //$NON-NLS-1$
+		case METER:
+			return "Meter"; //$NON-NLS-1$
+		case GAUGE:
+			return "Gauge"; //$NON-NLS-1$
+		case DISTINCT_COUNTER:
+			return "DistinctCounter"; //$NON-NLS-1$
+		case TOP_K:
+			return "TopK"; //$NON-NLS-1$
+		case WINDOWED_STATISTIC:
+			return "WindowedStatistic"; //$NON-NLS-1$
+		case TIMER_STATISTIC:
+			return "TimerStatistic"; //$NON-NLS-1$
+		case CALL_TREE:
+			return "CallTree"; //$NON-NLS-1$
+		case HISTOGRAM:
+			return "Histogram"; //$NON-NLS-1$
+		default:
+			return "Statistic"; //$NON-NLS-1$
+		}
+	}
+	
+	private static void writeTags(MonitorKey key, JSONWriter json) throws IOException {
+		if (key != null && key.hasTags()) {
+			json.name("tags").beginObject(); //$NON-NLS-1$
+			for (int i = 0; i < key.getTagCount(); i++) {
+				json.name(key.getTagName(i)).value(key.getTagValue(i));
+			}
+			json.endObject();
+		}
+	}
+	
+	private static void writeTop(List<HeavyHitter> top, JSONWriter json) throws IOException {
+		json.name("top").beginArray(); //$NON-NLS-1$
+		for (HeavyHitter hitter : top) {
+			json.beginObject();
+			json.name("item").value(hitter.getItem()); //$NON-NLS-1$
+			json.name("count").value(hitter.getCount()); //$NON-NLS-1$
+			json.name("error").value(hitter.getError()); //$NON-NLS-1$
+			json.endObject();
+		}
+		json.endArray();
+	}
+	
+	private static void writeExemplars(List<Exemplar> exemplars, JSONWriter json) throws IOException {
+		json.name("exemplars").beginArray(); //$NON-NLS-1$
+		for (Exemplar exemplar : exemplars) {
+			json.beginObject();
+			json.name("duration").value(exemplar.getDuration().toString()); //$NON-NLS-1$
+			json.name("timestamp").value(exemplar.getTimestamp()); //$NON-NLS-1$
+			json.name("thread").value(exemplar.getThreadName()); //$NON-NLS-1$
+			json.name("context").value(exemplar.getContext()); //$NON-NLS-1$
+			json.endObject();
+		}
+		json.endArray();
+	}
+	
+	private static void writeCalls(List<CallNode> nodes, JSONWriter json) throws IOException {
+		json.name("calls").beginArray(); //$NON-NLS-1$
+		for (CallNode node : nodes) {
+			json.beginObject();
+			json.name("name").value(node.getName()); //$NON-NLS-1$
+			json.name("count").value(node.getCount()); //$NON-NLS-1$
+			json.name("total").value(node.getTotalTime()); //$NON-NLS-1$
+			json.name("self").value(node.getSelfTime()); //$NON-NLS-1$
+			List<CallNode> children = node.getChildren();
+			if (!children.isEmpty()) {
+				writeCalls(children, json);
+			}
+			json.endObject();
+		}
+		json.endArray();
+	}
+	
+	private static void writeMonitor(Monitor monitor, JSONWriter json) throws IOException {
+		json.beginObject();
+		json.name("service").value( //$NON-NLS-1$
+				monitor.getServiceReference() == null ? null : monitor.getServiceReference().toString());
+		json.name("id").value(monitor.getId()); //$NON-NLS-1$
+		json.name("name").value(monitor.getName()); //$NON-NLS-1$
+		json.name("label").value(monitor.getLabel()); //$NON-NLS-1$
+		writeTags(monitor.getKey(), json);
+		if (monitor instanceof Meter) {
+			Meter meter = (Meter)monitor;
+			json.name("type").value("Meter"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("value").value(meter.get()); //$NON-NLS-1$
+			json.name("meanRate").value(meter.getMeanRate()); //$NON-NLS-1$
+			json.name("oneMinuteRate").value(meter.getOneMinuteRate()); //$NON-NLS-1$
+			json.name("fiveMinuteRate").value(meter.getFiveMinuteRate()); //$NON-NLS-1$
+			json.name("fifteenMinuteRate").value(meter.getFifteenMinuteRate()); //$NON-NLS-1$
+		}
+		else if (monitor instanceof Counter) {
+			json.name("type").value("Counter"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("value").value(((Counter)monitor).get()); //$NON-NLS-1$
+		}
+		else if (monitor instanceof Gauge) {
+			Gauge gauge = (Gauge)monitor;
+			Number value = gauge.getValue();
+			json.name("type").value("Gauge"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("timeToLive").value(gauge.getTimeToLive()); //$NON-NLS-1$
+			json.name("value"); //$NON-NLS-1$
+			if (value == null) {
+				json.value((String)null);
+			} else if (value instanceof Double || value instanceof Float) {
+				json.value(value.doubleValue());
+			} else {
+				json.value(value.longValue());
+			}
+		}
+		else if (monitor instanceof DistinctCounter) {
+			DistinctCounter distinct = (DistinctCounter)monitor;
+			json.name("type").value("DistinctCounter"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("precision").value(distinct.getPrecision()); //$NON-NLS-1$
+			json.name("count").value(distinct.getCount()); //$NON-NLS-1$
+			json.name("estimate").value(distinct.getEstimate()); //$NON-NLS-1$
+		}
+		else if (monitor instanceof TopK) {
+			TopK top = (TopK)monitor;
+			json.name("type").value("TopK"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("k").value(top.getK()); //$NON-NLS-1$
+			json.name("count").value(top.getCount()); //$NON-NLS-1$
+			writeTop(top.getTop(), json);
+		}
+		else if (monitor instanceof CallTree) {
+			json.name("type").value("CallTree"); //$NON-NLS-1$ //$NON-NLS-2$
+			writeCalls(((CallTree)monitor).getRoots(), json);
+		}
+		else if (monitor instanceof Statistic) {
+			Statistic statistic = (Statistic)monitor;
+			if (statistic instanceof WindowedStatistic) {
+				json.name("type").value("WindowedStatistic"); //$NON-NLS-1$ //$NON-NLS-2$
+				json.name("window").value(((WindowedStatistic)statistic).getWindow()); //$NON-NLS-1$
+			} else {
+				json.name("type").value("Statistic"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			json.name("count").value(statistic.getCount()); //$NON-NLS-1$
+			json.name("min").value(statistic.getMin()); //$NON-NLS-1$
+			json.name("max").value(statistic.getMax()); //$NON-NLS-1$
+			json.name("average").value(statistic.getAverage()); //$NON-NLS-1$
+		}
+		else if (monitor instanceof TimerStatistic) {
+			TimerStatistic timer = (TimerStatistic)monitor;
+			json.name("type").value("TimerStatistic"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("resolution").value(timer.getResolution().name()); //$NON-NLS-1$
+			json.name("count").value(timer.getCount()); //$NON-NLS-1$
+			json.name("min").value(timer.getMin().toString()); //$NON-NLS-1$
+			json.name("max").value(timer.getMax().toString()); //$NON-NLS-1$
+			json.name("average").value(timer.getAverage().toString()); //$NON-NLS-1$
+			writeExemplars(timer.getExemplars(), json);
+		}
+		else if (monitor instanceof Histogram) {
+			HistogramSnapshot histogram = ((Histogram)monitor).getSnapshot();
+			json.name("type").value("Histogram"); //$NON-NLS-1$ //$NON-NLS-2$
+			json.name("count").value(histogram.getCount()); //$NON-NLS-1$
+			json.name("min").value(histogram.getMin()); //$NON-NLS-1$
+			json.name("max").value(histogram.getMax()); //$NON-NLS-1$
+			json.name("average").value(histogram.getAverage()); //$NON-NLS-1$
+			json.name("p50").value(histogram.getValueAtPercentile(50.0)); //$NON-NLS-1$
+			json.name("p90").value(histogram.getValueAtPercentile(90.0)); //$NON-NLS-1$
+			json.name("p99").value(histogram.getValueAtPercentile(99.0)); //$NON-NLS-1$
+			json.name("p999").value(histogram.getValueAtPercentile(99.9)); //$NON-NLS-1$
+		}
+		json.endObject();
 	}
 }
@@ -0,0 +1,41 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+/**
+ * The immutable state of a sketch-backed monitor, its values in a snapshot
+ * are derived from the sketch. Unlike counts and sums sketches are not 
+ * additive, two are combined with {@link #merge(MonitorSketch)} into a new
+ * sketch which describes the union of the values of both.
+ * 
+ * @author Simon Johnston
+ *
+ */
+abstract class MonitorSketch {
+
+	/**
+	 * Combine this sketch with another of the same type.
+	 * 
+	 * @param other the sketch to combine with this one.
+	 * @return a new sketch, neither sketch is changed.
+	 * @throws IllegalArgumentException if the sketches are of different 
+	 * types.
+	 */
+	abstract MonitorSketch merge(MonitorSketch other);
+	
+	/**
+	 * Write the values derived from the sketch in the layout of 
+	 * {@link org.johnstonshome.osgi.service.monitor.MonitorSnapshot}, the
+	 * count and sum are left for the caller.
+	 * 
+	 * @param values the array to write into.
+	 * @param offset the index of the first slot to write.
+	 */
+	abstract void sample(long[] values, int offset);
+}
@@ -0,0 +1,238 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * The values of every monitor are held in a single <code>long</code> array
+ * of {@link MonitorSnapshot#FIELDS} slots per monitor (the same layout as 
+ * {@link MonitorImpl#sample(long[], int)}), alongside parallel arrays of
+ * names and types. The monitors themselves are kept, but not exposed, so 
+ * that the next snapshot can be matched against this one. The histogram 
+ * counts and sketches of those monitors that keep them are read when the 
+ * snapshot is taken, with the values.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class MonitorSnapshotImpl implements MonitorSnapshot, HistogramSource, SketchSource {
+
+	private static final MonitorType[] TYPES = MonitorType.values();
+	
+	private final long timestamp;
+	private final boolean delta;
+	private final Monitor[] monitors;
+	private final byte[] types;
+	private final long[] values;
+	
+	/*
+	 * The histogram snapshot or sketch of each monitor, if it keeps one.
+	 */
+	private final Object[] states;
+	
+	private MonitorSnapshotImpl(long timestamp, boolean delta, Monitor[] monitors, byte[] types, long[] values, Object[] states) {
+		this.timestamp = timestamp;
+		this.delta = delta;
+		this.monitors = monitors;
+		this.types = types;
+		this.values = values;
+		this.states = states;
+	}
+	
+	/**
+	 * Sample each of the given monitors, monitors not implemented by this 
+	 * bundle are skipped.
+	 * 
+	 * @param monitors the monitors to capture.
+	 * @param timestamp the time of capture.
+	 * @return a new snapshot.
+	 */
+	static MonitorSnapshotImpl capture(List<Monitor> monitors, long timestamp) {
+		int size = 0;
+		for (Monitor monitor : monitors) {
+			if (monitor instanceof MonitorImpl) {
+				size++;
+			}
+		}
+		Monitor[] captured = new Monitor[size];
+		byte[] types = new byte[size];
+		long[] values = new long[size * FIELDS];
+		Object[] states = new Object[size];
+		int index = 0;
+		for (Monitor monitor : monitors) {
+			if (monitor instanceof MonitorImpl) {
+				MonitorImpl impl = (MonitorImpl)monitor;
+				captured[index] = impl;
+				types[index] = (byte)impl.getType().ordinal();
+				states[index] = impl.sampleState(values, index * FIELDS);
+				index++;
+			}
+		}
+		return new MonitorSnapshotImpl(timestamp, false, captured, types, values, states);
+	}
+	
+	/**
+	 * Compute the changes between a previous snapshot and this one. Only the
+	 * count and sum of {@link #isCumulative(MonitorType) cumulative} 
+	 * monitors are changed, all other values are as sampled. Monitors are 
+	 * matched by identity, so a monitor that was removed and re-created 
+	 * with the same name starts again from zero, as does one whose count 
+	 * went down because it was reset. Where the set of monitors has not 
+	 * changed they are matched by position without any lookup.
+	 * 
+	 * @param previous the previous snapshot, may be <code>null</code>.
+	 * @return a new delta snapshot.
+	 */
+	MonitorSnapshotImpl delta(MonitorSnapshotImpl previous) {
+		long[] changes = this.values.clone();
+		if (previous != null) {
+			Map<Monitor, Integer> positions = null;
+			for (int i = 0; i < this.monitors.length; i++) {
+				MonitorType type = TYPES[this.types[i]];
+				if (!isCumulative(type)) {
+					continue;
+				}
+				int before = -1;
+				if (i < previous.monitors.length && previous.monitors[i] == this.monitors[i]) {
+					before = i;
+				} else {
+					if (positions == null) {
+						positions = new IdentityHashMap<Monitor, Integer>(previous.monitors.length * 2);
+						for (int j = 0; j < previous.monitors.length; j++) {
+							positions.put(previous.monitors[j], Integer.valueOf(j));
+						}
+					}
+					Integer position = positions.get(this.monitors[i]);
+					if (position != null) {
+						before = position.intValue();
+					}
+				}
+				/*
+				 * Only a counter can be decremented, for any other type a 
+				 * lower count means the monitor was reset.
+				 */
+				if (before >= 0 && (type == MonitorType.COUNTER || 
+					this.values[i * FIELDS + COUNT] >= previous.values[before * FIELDS + COUNT])) {
+					changes[i * FIELDS + COUNT] -= previous.values[before * FIELDS + COUNT];
+					changes[i * FIELDS + SUM] -= previous.values[before * FIELDS + SUM];
+				}
+			}
+		}
+		return new MonitorSnapshotImpl(this.timestamp, true, this.monitors, this.types, changes, this.states);
+	}
+	
+	/**
+	 * @param type a monitor type.
+	 * @return <code>true</code> if the count and sum of the type are totals
+	 * since the monitor was created or reset, so that a delta is their 
+	 * difference.
+	 */
+	static boolean isCumulative(MonitorType type) {
+		switch (type) {
+		case GAUGE:
+		case WINDOWED_STATISTIC:
+			return false;
+		default:
+			return true;
+		}
+	}
+	
+	@Override
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	@Override
+	public boolean isDelta() {
+		return this.delta;
+	}
+
+	@Override
+	public int size() {
+		return this.monitors.length;
+	}
+
+	@Override
+	public int indexOf(String group, String name) {
+		return indexOf(MonitorKey.of(group, name));
+	}
+
+	@Override
+	public int indexOf(MonitorKey key) {
+		for (int i = 0; i < this.monitors.length; i++) {
+			if (this.monitors[i].getKey().equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public MonitorKey getKey(int index) {
+		return this.monitors[index].getKey();
+	}
+	
+	/**
+	 * The counts are those read when the snapshot was taken, in a delta 
+	 * snapshot they are still the totals.
+	 */
+	@Override
+	public HistogramSnapshotImpl getHistogram(int index) {
+		Object state = this.states[index];
+		return state instanceof HistogramSnapshotImpl ? (HistogramSnapshotImpl)state : null;
+	}
+	
+	/**
+	 * As for histograms the sketch is that read when the snapshot was taken.
+	 */
+	@Override
+	public MonitorSketch getSketch(int index) {
+		Object state = this.states[index];
+		return state instanceof MonitorSketch ? (MonitorSketch)state : null;
+	}
+	
+	/**
+	 * @param index the index of a monitor in this snapshot.
+	 * @return the monitor itself.
+	 */
+	Monitor getMonitor(int index) {
+		return this.monitors[index];
+	}
+
+	@Override
+	public String getGroup(int index) {
+		return this.monitors[index].getGroup();
+	}
+
+	@Override
+	public String getName(int index) {
+		return this.monitors[index].getName();
+	}
+
+	@Override
+	public MonitorType getType(int index) {
+		return TYPES[this.types[index]];
+	}
+
+	@Override
+	public long get(int index, int field) {
+		if (index < 0 || index >= this.monitors.length || field < 0 || field >= FIELDS) {
+			throw new IndexOutOfBoundsException();
+		}
+		return this.values[index * FIELDS + field];
+	}
+}
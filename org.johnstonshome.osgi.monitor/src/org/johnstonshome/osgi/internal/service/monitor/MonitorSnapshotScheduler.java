@@ -0,0 +1,148 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorReporter;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshotService;
+import org.osgi.service.log.LogService;
+
+/**
+ * Captures a snapshot of all monitors on a single daemon thread at a fixed 
+ * rate and hands it, with the delta from the previous snapshot, to each 
+ * reporter in turn. Reporters are held in a copy-on-write array in the same
+ * way as listeners, a reporter that fails is logged and does not stop the
+ * others.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class MonitorSnapshotScheduler implements MonitorSnapshotService, Runnable {
+
+	private static final MonitorReporter[] NO_REPORTERS = new MonitorReporter[0];
+	
+	private final MonitorServiceImpl service;
+	private final LogService log;
+	private final long interval;
+	
+	private volatile MonitorReporter[] reporters = NO_REPORTERS;
+	private volatile MonitorSnapshotImpl latest = null;
+	
+	private ScheduledExecutorService executor = null;
+	
+	MonitorSnapshotScheduler(MonitorServiceImpl service, LogService log, long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.service = service;
+		this.log = log;
+		this.interval = interval;
+	}
+	
+	void start() {
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Monitor Snapshot Scheduler"); //$NON-NLS-1$
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleAtFixedRate(this, this.interval, this.interval, TimeUnit.MILLISECONDS);
+	}
+	
+	void close() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+			try {
+				this.executor.awaitTermination(this.interval, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.executor = null;
+		}
+		this.reporters = NO_REPORTERS;
+		this.latest = null;
+	}
+	
+	@Override
+	public void run() {
+		List<Monitor> monitors = this.service.getMonitors();
+		if (monitors == null) {
+			return;
+		}
+		MonitorSnapshotImpl snapshot = MonitorSnapshotImpl.capture(monitors, System.currentTimeMillis());
+		MonitorSnapshotImpl delta = snapshot.delta(this.latest);
+		this.latest = snapshot;
+		for (MonitorReporter reporter : this.reporters) {
+			try {
+				reporter.report(snapshot, delta);
+			} catch (RuntimeException e) {
+				/*
+				 * A failing reporter must not stop the others, or the schedule.
+				 */
+				if (this.log != null) {
+					this.log.log(LogService.LOG_ERROR, 
+							String.format("Monitor reporter %s failed", reporter), e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void addReporter(MonitorReporter reporter) {
+		if (reporter == null) {
+			throw new IllegalArgumentException();
+		}
+		MonitorReporter[] current = this.reporters;
+		for (MonitorReporter existing : current) {
+			if (existing.equals(reporter)) {
+				return;
+			}
+		}
+		MonitorReporter[] next = new MonitorReporter[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = reporter;
+		this.reporters = next;
+	}
+
+	@Override
+	public synchronized void removeReporter(MonitorReporter reporter) {
+		if (reporter == null) {
+			throw new IllegalArgumentException();
+		}
+		MonitorReporter[] current = this.reporters;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].equals(reporter)) {
+				MonitorReporter[] next = new MonitorReporter[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+				this.reporters = next;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public MonitorSnapshot getLatestSnapshot() {
+		return this.latest;
+	}
+
+	@Override
+	public long getInterval() {
+		return this.interval;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.johnstonshome.osgi.service.monitor.BatchMonitorListener;
+import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorListener;
+
+/**
+ * Delivers monitor updates to a listener from a dedicated thread rather than
+ * on the thread updating the monitor. A monitor is only queued once until 
+ * the dispatcher picks it up, so any number of updates to the same monitor
+ * within a tick are coalesced into one event (listeners read the monitor's 
+ * latest state). A target implementing {@link BatchMonitorListener} is
+ * given each batch in a single call. Monitor creation and removal events are
+ * still delivered synchronously.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class MonitorUpdateDispatcher implements MonitorListener, Runnable {
+
+	private static final int BATCH_SIZE = 1024;
+	
+	private final MonitorListener target;
+	private final RingBuffer<MonitorImpl> queue;
+	private final DispatchPolicy policy;
+	private final long intervalNanos;
+	
+	private final Counter delivered;
+	private final Counter dropped;
+	private final Counter batches;
+
+	private final List<Monitor> live = new ArrayList<Monitor>(BATCH_SIZE);
+
+	private volatile boolean running = false;
+	private Thread thread = null;
+	
+	MonitorUpdateDispatcher(MonitorListener target, int capacity, DispatchPolicy policy, long interval,
+			Counter delivered, Counter dropped, Counter batches) {
+		this.target = target;
+		this.queue = new RingBuffer<MonitorImpl>(capacity);
+		this.policy = policy;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+		this.delivered = delivered;
+		this.dropped = dropped;
+		this.batches = batches;
+	}
+	
+	void start() {
+		this.running = true;
+		this.thread = new Thread(this, "Monitor Update Dispatcher"); //$NON-NLS-1$
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+	
+	void close() {
+		this.running = false;
+		if (this.thread != null) {
+			LockSupport.unpark(this.thread);
+			try {
+				this.thread.join(TimeUnit.NANOSECONDS.toMillis(this.intervalNanos) * 10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.thread = null;
+		}
+	}
+
+	@Override
+	public void monitorCreated(Monitor monitor) {
+		this.target.monitorCreated(monitor);
+	}
+
+	@Override
+	public void monitorRemoved(Monitor monitor) {
+		this.target.monitorRemoved(monitor);
+	}
+
+	@Override
+	public void monitorUpdated(Monitor monitor) {
+		if (!(monitor instanceof MonitorImpl)) {
+			this.target.monitorUpdated(monitor);
+			return;
+		}
+		MonitorImpl impl = (MonitorImpl)monitor;
+		if (!impl.markPending()) {
+			return;
+		}
+		while (!this.queue.offer(impl)) {
+			if (this.policy == DispatchPolicy.DROP || !this.running) {
+				impl.clearPending();
+				this.dropped.increment();
+				return;
+			}
+			LockSupport.parkNanos(this.intervalNanos / 10);
+		}
+	}
+
+	@Override
+	public void run() {
+		List<MonitorImpl> batch = new ArrayList<MonitorImpl>(BATCH_SIZE);
+		while (this.running) {
+			MonitorImpl monitor;
+			while (batch.size() < BATCH_SIZE && (monitor = this.queue.poll()) != null) {
+				monitor.clearPending();
+				batch.add(monitor);
+			}
+			if (batch.isEmpty()) {
+				LockSupport.parkNanos(this.intervalNanos);
+				continue;
+			}
+			deliver(batch);
+			batch.clear();
+		}
+	}
+	
+	private void deliver(List<MonitorImpl> batch) {
+		/*
+		 * A monitor removed while queued no longer has a listener.
+		 */
+		this.live.clear();
+		for (MonitorImpl monitor : batch) {
+			if (monitor.getListener() != null) {
+				this.live.add(monitor);
+			}
+		}
+		try {
+			if (this.target instanceof BatchMonitorListener) {
+				((BatchMonitorListener)this.target).monitorsUpdated(this.live);
+			} else {
+				for (Monitor monitor : this.live) {
+					this.target.monitorUpdated(monitor);
+				}
+			}
+		} catch (RuntimeException e) {
+			// listeners are isolated by the target, this guards the dispatcher itself
+		}
+		this.delivered.increment(this.live.size());
+		this.batches.increment();
+	}
+	
+	/**
+	 * @return the number of updates waiting to be delivered.
+	 */
+	int getQueueSize() {
+		return this.queue.size();
+	}
+}
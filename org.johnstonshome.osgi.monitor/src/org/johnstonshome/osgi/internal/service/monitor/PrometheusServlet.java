@@ -0,0 +1,514 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.johnstonshome.osgi.service.monitor.CallNode;
+import org.johnstonshome.osgi.service.monitor.CallTree;
+import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.DistinctCounter;
+import org.johnstonshome.osgi.service.monitor.Gauge;
+import org.johnstonshome.osgi.service.monitor.HeavyHitter;
+import org.johnstonshome.osgi.service.monitor.Histogram;
+import org.johnstonshome.osgi.service.monitor.Meter;
+import org.johnstonshome.osgi.service.monitor.Monitor;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.johnstonshome.osgi.service.monitor.Statistic;
+import org.johnstonshome.osgi.service.monitor.TimerStatistic;
+import org.johnstonshome.osgi.service.monitor.TopK;
+import org.johnstonshome.osgi.service.monitor.WindowedStatistic;
+import org.osgi.framework.Constants;
+
+/**
+ * This servlet exposes all monitors in the Prometheus text exposition 
+ * format, it is registered by the monitor service alongside the JSON 
+ * {@link MonitorServlet}. The metric name for a monitor is made from its 
+ * group and name, counters are exposed as gauges (as they may be set and
+ * decremented), statistics and timers as summaries with additional 
+ * <code>_min</code> and <code>_max</code> gauges and histograms as summaries
+ * with quantiles. Windowed statistics rise and fall as values leave the
+ * window, so their <code>_count</code> and <code>_sum</code> are gauges
+ * rather than a summary. Meters add a <code>_rate</code> gauge with a 
+ * <code>window</code> label for each moving average. Timer values are in the
+ * timer's own resolution. Call trees are exposed as <code>_count</code>, 
+ * <code>_total_nanos</code> and <code>_self_nanos</code> counters with a 
+ * <code>path</code> label, as written in the collapsed stack format, for 
+ * each path of the tree.
+ * <p>
+ * The text for each monitor is cached along with the values it was encoded
+ * from, on each scrape a monitor is only re-encoded if its values have 
+ * changed so that the cost of a scrape is dominated by copying bytes.
+ * </p>
+ * <p>
+ * Monitor tags are written as labels. Monitors that differ only in their 
+ * tags share a metric name and are adjacent in the list of monitors, the
+ * text for each is cached per metric family so that the samples of all of 
+ * them are written together under a single <code>TYPE</code> line.
+ * Where monitors with a different group and name, or of different types,
+ * make the same metric name, the name is kept by the first monitor seen. 
+ * Others of a different type add their type to it, as in 
+ * <code>_gauge</code>, and if that is also taken they add a number, as do
+ * others of the same type; so that no two monitors write the same series.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+class PrometheusServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8"; //$NON-NLS-1$
+
+	private static final String ENCODING = "UTF-8"; //$NON-NLS-1$
+	
+	private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry entry1, Entry entry2) {
+			return entry1.name.compareTo(entry2.name);
+		}
+	};
+	
+	/*
+	 * The encoded text of a monitor, and the sample it was encoded from.
+	 * The family headers and lines are parallel, the headers only depend on
+	 * the metric name and type.
+	 */
+	private static final class Entry {
+		final long[] sample = new long[MonitorImpl.SAMPLE_SIZE];
+		String name = null;
+		MonitorKey owner = null;
+		MonitorType type = null;
+		byte[][] families = null;
+		byte[][] lines = null;
+		int generation = 0;
+	}
+	
+	private final MonitorServiceImpl monitorService;
+	
+	private final Map<Monitor, Entry> cache = new IdentityHashMap<Monitor, Entry>();
+	
+	/*
+	 * An entry of the monitors using each metric name, all of which have the
+	 * same group, name and type.
+	 */
+	private final Map<String, Entry> names = new HashMap<String, Entry>();
+	private final long[] scratch = new long[MonitorImpl.SAMPLE_SIZE];
+	private int generation = 0;
+	
+	public PrometheusServlet(MonitorServiceImpl monitorService) {
+		this.monitorService = monitorService;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		List<Monitor> monitors = this.monitorService.getMonitors();
+		if (monitors == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, null);
+			return;
+		}
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType(CONTENT_TYPE);
+		write(monitors, resp.getOutputStream());
+	}
+	
+	/**
+	 * Write the exposition text for the monitors, re-encoding only those 
+	 * that changed since the previous call.
+	 * 
+	 * @param monitors the monitors to write.
+	 * @param stream the stream to write to, this is flushed on completion.
+	 */
+	synchronized void write(List<Monitor> monitors, OutputStream stream) throws IOException {
+		OutputStream output = new BufferedOutputStream(stream, 16 * 1024);
+		int current = ++this.generation;
+		Entry[] entries = new Entry[monitors.size()];
+		int count = 0;
+		for (Monitor monitor : monitors) {
+			if (!(monitor instanceof MonitorImpl)) {
+				continue;
+			}
+			Entry entry = this.cache.get(monitor);
+			if (entry == null) {
+				entry = new Entry();
+				entry.owner = MonitorKey.of(monitor.getGroup(), monitor.getName());
+				entry.type = ((MonitorImpl)monitor).getType();
+				entry.name = claim(metricName(monitor), entry);
+				this.cache.put(monitor, entry);
+			}
+			((MonitorImpl)monitor).sample(this.scratch, 0);
+			if (entry.lines == null || !Arrays.equals(this.scratch, entry.sample)) {
+				System.arraycopy(this.scratch, 0, entry.sample, 0, this.scratch.length);
+				encode(monitor, entry);
+			}
+			entry.generation = current;
+			entries[count++] = entry;
+		}
+		/*
+		 * Monitors are in key order, which usually leaves the sanitized names
+		 * in order too; if not they are sorted so that each name is one run.
+		 */
+		for (int i = 1; i < count; i++) {
+			if (entries[i].name.compareTo(entries[i - 1].name) < 0) {
+				Arrays.sort(entries, 0, count, BY_NAME);
+				break;
+			}
+		}
+		/*
+		 * Each run of entries with the same metric name, and so the same 
+		 * type and families, is written family by family.
+		 */
+		for (int start = 0, end; start < count; start = end) {
+			Entry first = entries[start];
+			for (end = start + 1; end < count; end++) {
+				if (!entries[end].name.equals(first.name) || 
+					entries[end].families.length != first.families.length) {
+					break;
+				}
+			}
+			for (int family = 0; family < first.families.length; family++) {
+				output.write(first.families[family]);
+				for (int i = start; i < end; i++) {
+					output.write(entries[i].lines[family]);
+				}
+			}
+		}
+		output.flush();
+		/*
+		 * Forget monitors that have been removed.
+		 */
+		if (this.cache.size() > count) {
+			for (Iterator<Entry> cached = this.cache.values().iterator(); cached.hasNext();) {
+				if (cached.next().generation != current) {
+					cached.remove();
+				}
+			}
+			this.names.clear();
+			for (Entry entry : this.cache.values()) {
+				this.names.put(entry.name, entry);
+			}
+		}
+	}
+	
+	/*
+	 * Claim a metric name for an entry, adding the type to a name already 
+	 * used by another type and a number to one still taken.
+	 */
+	private String claim(String name, Entry entry) {
+		Entry claimed = this.names.get(name);
+		if (claimed != null && claimed.type != entry.type) {
+			name = name + '_' + entry.type.name().toLowerCase(Locale.ENGLISH);
+		}
+		String base = name;
+		for (int number = 2; isTaken(name, entry); number++) {
+			name = base + '_' + number;
+		}
+		if (!this.names.containsKey(name)) {
+			this.names.put(name, entry);
+		}
+		return name;
+	}
+	
+	private boolean isTaken(String name, Entry entry) {
+		Entry claimed = this.names.get(name);
+		return claimed != null && 
+			(claimed.type != entry.type || !claimed.owner.equals(entry.owner));
+	}
+	
+	private static void encode(Monitor monitor, Entry entry) throws UnsupportedEncodingException {
+		String name = entry.name;
+		String labels = labels(monitor);
+		long[] sample = entry.sample;
+		List<String> families = new ArrayList<String>(4);
+		List<String> lines = new ArrayList<String>(4);
+		StringBuilder text = new StringBuilder(256);
+		if (monitor instanceof Meter) {
+			families.add(family(name, "gauge")); //$NON-NLS-1$
+			line(text, name, labels, null, sample[MonitorImpl.SAMPLE_COUNT]);
+			lines.add(flush(text));
+			families.add(family(name + "_rate", "gauge")); //$NON-NLS-1$ //$NON-NLS-2$
+			rate(text, name, labels, "1m", sample[MeterImpl.SAMPLE_RATE_1]); //$NON-NLS-1$
+			rate(text, name, labels, "5m", sample[MeterImpl.SAMPLE_RATE_5]); //$NON-NLS-1$
+			rate(text, name, labels, "15m", sample[MeterImpl.SAMPLE_RATE_15]); //$NON-NLS-1$
+			lines.add(flush(text));
+		}
+		else if (monitor instanceof Counter) {
+			families.add(family(name, "gauge")); //$NON-NLS-1$
+			line(text, name, labels, null, sample[MonitorImpl.SAMPLE_COUNT]);
+			lines.add(flush(text));
+		}
+		else if (monitor instanceof Gauge) {
+			families.add(family(name, "gauge")); //$NON-NLS-1$
+			line(text, name, labels, null, sample[GaugeImpl.SAMPLE_VALUE] / GaugeImpl.VALUE_SCALE);
+			lines.add(flush(text));
+		}
+		else if (monitor instanceof DistinctCounter) {
+			families.add(family(name, "gauge")); //$NON-NLS-1$
+			line(text, name, labels, null, sample[MonitorImpl.SAMPLE_P50]);
+			lines.add(flush(text));
+		}
+		else if (monitor instanceof TopK) {
+			/*
+			 * One series per item, the item as a label.
+			 */
+			families.add(family(name, "gauge")); //$NON-NLS-1$
+			StringBuilder item = new StringBuilder();
+			for (HeavyHitter hitter : ((TopK)monitor).getTop()) {
+				item.setLength(0);
+				if (labels != null) {
+					item.append(labels).append(',');
+				}
+				item.append("item=\""); //$NON-NLS-1$
+				escape(item, hitter.getItem());
+				item.append('"');
+				line(text, name, item.toString(), null, hitter.getCount());
+			}
+			lines.add(flush(text));
+		}
+		else if (monitor instanceof CallTree) {
+			/*
+			 * Three series per path, the path in its collapsed stack form as
+			 * a label.
+			 */
+			StringBuilder[] series = new StringBuilder[] { text, new StringBuilder(), new StringBuilder() };
+			calls(series, name, labels, ((CallTree)monitor).getRoots(), new StringBuilder());
+			families.add(family(name + "_count", "counter")); //$NON-NLS-1$ //$NON-NLS-2$
+			lines.add(flush(series[0]));
+			families.add(family(name + "_total_nanos", "counter")); //$NON-NLS-1$ //$NON-NLS-2$
+			lines.add(flush(series[1]));
+			families.add(family(name + "_self_nanos", "counter")); //$NON-NLS-1$ //$NON-NLS-2$
+			lines.add(flush(series[2]));
+		}
+		else if (monitor instanceof WindowedStatistic) {
+			families.add(family(name + "_count", "gauge")); //$NON-NLS-1$ //$NON-NLS-2$
+			line(text, name + "_count", labels, null, sample[MonitorImpl.SAMPLE_COUNT]); //$NON-NLS-1$
+			lines.add(flush(text));
+			families.add(family(name + "_sum", "gauge")); //$NON-NLS-1$ //$NON-NLS-2$
+			line(text, name + "_sum", labels, null, sample[MonitorImpl.SAMPLE_SUM]); //$NON-NLS-1$
+			lines.add(flush(text));
+			extremes(families, lines, text, name, labels, sample);
+		}
+		else if (monitor instanceof Statistic || monitor instanceof TimerStatistic) {
+			families.add(family(name, "summary")); //$NON-NLS-1$
+			line(text, name + "_count", labels, null, sample[MonitorImpl.SAMPLE_COUNT]); //$NON-NLS-1$
+			line(text, name + "_sum", labels, null, sample[MonitorImpl.SAMPLE_SUM]); //$NON-NLS-1$
+			lines.add(flush(text));
+			extremes(families, lines, text, name, labels, sample);
+		}
+		else if (monitor instanceof Histogram) {
+			families.add(family(name, "summary")); //$NON-NLS-1$
+			line(text, name, labels, "0.5", sample[MonitorImpl.SAMPLE_P50]); //$NON-NLS-1$
+			line(text, name, labels, "0.9", sample[MonitorImpl.SAMPLE_P90]); //$NON-NLS-1$
+			line(text, name, labels, "0.99", sample[MonitorImpl.SAMPLE_P99]); //$NON-NLS-1$
+			line(text, name, labels, "0.999", sample[MonitorImpl.SAMPLE_P999]); //$NON-NLS-1$
+			line(text, name + "_count", labels, null, sample[MonitorImpl.SAMPLE_COUNT]); //$NON-NLS-1$
+			line(text, name + "_sum", labels, null, sample[MonitorImpl.SAMPLE_SUM]); //$NON-NLS-1$
+			lines.add(flush(text));
+			extremes(families, lines, text, name, labels, sample);
+		}
+		if (entry.families == null || entry.families.length != families.size()) {
+			entry.families = bytes(families);
+		}
+		entry.lines = bytes(lines);
+	}
+	
+	private static void calls(StringBuilder[] series, String name, String labels, 
+			List<CallNode> nodes, StringBuilder path) {
+		int length = path.length();
+		StringBuilder label = new StringBuilder();
+		for (CallNode node : nodes) {
+			if (length > 0) {
+				path.append(';');
+			}
+			CallTreeImpl.appendName(path, node.getName());
+			label.setLength(0);
+			if (labels != null) {
+				label.append(labels).append(',');
+			}
+			label.append("path=\""); //$NON-NLS-1$
+			escape(label, path.toString());
+			label.append('"');
+			line(series[0], name + "_count", label.toString(), null, node.getCount()); //$NON-NLS-1$
+			line(series[1], name + "_total_nanos", label.toString(), null, node.getTotalTime()); //$NON-NLS-1$
+			line(series[2], name + "_self_nanos", label.toString(), null, node.getSelfTime()); //$NON-NLS-1$
+			calls(series, name, labels, node.getChildren(), path);
+			path.setLength(length);
+		}
+	}
+	
+	private static void extremes(List<String> families, List<String> lines, StringBuilder text, 
+			String name, String labels, long[] sample) {
+		families.add(family(name + "_min", "gauge")); //$NON-NLS-1$ //$NON-NLS-2$
+		line(text, name + "_min", labels, null, sample[MonitorImpl.SAMPLE_MIN]); //$NON-NLS-1$
+		lines.add(flush(text));
+		families.add(family(name + "_max", "gauge")); //$NON-NLS-1$ //$NON-NLS-2$
+		line(text, name + "_max", labels, null, sample[MonitorImpl.SAMPLE_MAX]); //$NON-NLS-1$
+		lines.add(flush(text));
+	}
+	
+	private static String flush(StringBuilder text) {
+		String value = text.toString();
+		text.setLength(0);
+		return value;
+	}
+	
+	private static byte[][] bytes(List<String> text) throws UnsupportedEncodingException {
+		byte[][] bytes = new byte[text.size()][];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = text.get(i).getBytes(ENCODING);
+		}
+		return bytes;
+	}
+	
+	private static void rate(StringBuilder text, String name, String labels, String window, long scaled) {
+		text.append(name).append("_rate{"); //$NON-NLS-1$
+		if (labels != null) {
+			text.append(labels).append(',');
+		}
+		text.append("window=\"").append(window).append("\"} "); //$NON-NLS-1$ //$NON-NLS-2$
+		text.append(scaled / MeterImpl.RATE_SCALE).append('\n');
+	}
+	
+	private static String family(String name, String type) {
+		return "# TYPE " + name + ' ' + type + '\n'; //$NON-NLS-1$
+	}
+	
+	private static void line(StringBuilder text, String name, String labels, String quantile, long value) {
+		series(text, name, labels, quantile);
+		text.append(' ').append(value).append('\n');
+	}
+	
+	private static void line(StringBuilder text, String name, String labels, String quantile, double value) {
+		series(text, name, labels, quantile);
+		text.append(' ').append(value).append('\n');
+	}
+	
+	private static void series(StringBuilder text, String name, String labels, String quantile) {
+		text.append(name);
+		if (labels != null || quantile != null) {
+			text.append('{');
+			if (labels != null) {
+				text.append(labels);
+			}
+			if (quantile != null) {
+				if (labels != null) {
+					text.append(',');
+				}
+				text.append("quantile=\"").append(quantile).append('"'); //$NON-NLS-1$
+			}
+			text.append('}');
+		}
+	}
+	
+	/**
+	 * Make a valid metric name from the group and name of a monitor.
+	 * 
+	 * @param monitor the monitor to name.
+	 * @return the metric name.
+	 */
+	static String metricName(Monitor monitor) {
+		StringBuilder name = new StringBuilder();
+		sanitize(name, monitor.getGroup());
+		name.append('_');
+		sanitize(name, monitor.getName());
+		if (Character.isDigit(name.charAt(0))) {
+			name.insert(0, '_');
+		}
+		return name.toString();
+	}
+	
+	private static void sanitize(StringBuilder name, String part) {
+		for (int i = 0; i < part.length(); i++) {
+			char c = part.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || 
+				(c >= '0' && c <= '9') || c == '_' || c == ':') {
+				name.append(c);
+			} else {
+				name.append('_');
+			}
+		}
+	}
+	
+	/*
+	 * Label names are as metric names but may not contain a colon.
+	 */
+	private static void sanitizeLabel(StringBuilder label, String name) {
+		int start = label.length();
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || 
+				(c >= '0' && c <= '9') || c == '_') {
+				label.append(c);
+			} else {
+				label.append('_');
+			}
+		}
+		if (Character.isDigit(label.charAt(start))) {
+			label.insert(start, '_');
+		}
+	}
+	
+	private static String labels(Monitor monitor) {
+		StringBuilder labels = new StringBuilder();
+		if (monitor.getServiceReference() != null) {
+			Object id = monitor.getServiceReference().getProperty(Constants.SERVICE_ID);
+			if (id != null) {
+				labels.append("service_id=\""); //$NON-NLS-1$
+				escape(labels, id.toString());
+				labels.append('"');
+			}
+		}
+		MonitorKey key = monitor.getKey();
+		if (key != null && key.hasTags()) {
+			for (int i = 0; i < key.getTagCount(); i++) {
+				if (labels.length() > 0) {
+					labels.append(',');
+				}
+				sanitizeLabel(labels, key.getTagName(i));
+				labels.append("=\""); //$NON-NLS-1$
+				escape(labels, key.getTagValue(i));
+				labels.append('"');
+			}
+		}
+		return labels.length() == 0 ? null : labels.toString();
+	}
+
+	private static void escape(StringBuilder text, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				text.append('\\').append(c);
+			} else if (c == '\n') {
+				text.append("\\n"); //$NON-NLS-1$
+			} else {
+				text.append(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorReporter;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * Runs on each snapshot to keep the monitor service's own monitors up to 
+ * date, the number of monitors and the estimated memory they hold in total
+ * and for each group, and to remove monitors that have not been updated 
+ * within the idle timeout. A monitor is taken to have been updated if its
+ * count or sum changed since the previous snapshot; the service's own 
+ * monitors and gauges, which are read rather than updated, are never 
+ * removed. A removed monitor that is updated again returns to the service,
+ * see {@link MonitorServiceImpl#reviveMonitor(MonitorImpl)}.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class RegistryHousekeeper implements MonitorReporter {
+
+	static final String MEMORY = "memory"; //$NON-NLS-1$
+	static final String TAG_GROUP = "group"; //$NON-NLS-1$
+	
+	private final MonitorServiceImpl service;
+	private final MonitorRegistry registry;
+	private final long idleTimeout;
+	private final Counter size;
+	private final Counter memory;
+	private final Counter evicted;
+	
+	private final Map<String, Counter> groupMemory = new HashMap<String, Counter>();
+	
+	RegistryHousekeeper(MonitorServiceImpl service, MonitorRegistry registry, long idleTimeout, 
+			Counter size, Counter memory, Counter evicted) {
+		this.service = service;
+		this.registry = registry;
+		this.idleTimeout = idleTimeout;
+		this.size = size;
+		this.memory = memory;
+		this.evicted = evicted;
+	}
+
+	@Override
+	public void report(MonitorSnapshot snapshot, MonitorSnapshot delta) {
+		if (delta instanceof MonitorSnapshotImpl) {
+			evict((MonitorSnapshotImpl)delta);
+		}
+		this.registry.refreshMemory();
+		this.size.set(this.registry.size());
+		this.memory.set(this.registry.getMemory());
+		
+		Map<String, Long> groups = this.registry.getMemoryByGroup();
+		for (Map.Entry<String, Long> group : groups.entrySet()) {
+			Counter counter = this.groupMemory.get(group.getKey());
+			if (counter == null) {
+				counter = this.service.getOrCreateCounter(
+						MonitorKey.of(MonitorServiceImpl.SELF_GROUP, MEMORY).withTag(TAG_GROUP, tagValue(group.getKey())));
+				if (counter == null) {
+					continue;
+				}
+				this.groupMemory.put(group.getKey(), counter);
+			}
+			counter.set(group.getValue().longValue());
+		}
+		for (Iterator<Map.Entry<String, Counter>> counters = this.groupMemory.entrySet().iterator(); counters.hasNext();) {
+			Map.Entry<String, Counter> counter = counters.next();
+			if (!groups.containsKey(counter.getKey())) {
+				this.service.removeMonitor(counter.getValue());
+				counters.remove();
+			}
+		}
+	}
+	
+	private void evict(MonitorSnapshotImpl delta) {
+		long now = delta.getTimestamp();
+		for (int i = 0; i < delta.size(); i++) {
+			MonitorImpl monitor = (MonitorImpl)delta.getMonitor(i);
+			if (delta.get(i, MonitorSnapshot.COUNT) != 0 || delta.get(i, MonitorSnapshot.SUM) != 0 ||
+				delta.getType(i) == MonitorType.GAUGE) {
+				monitor.setLastActive(now);
+			} else if (this.idleTimeout > 0 && now - monitor.getLastActive() >= this.idleTimeout &&
+					   !MonitorServiceImpl.SELF_GROUP.equals(monitor.getGroup())) {
+				if (this.service.evictMonitor(monitor)) {
+					this.evicted.increment();
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Group names may hold characters that are not allowed in tag values.
+	 */
+	private static String tagValue(String group) {
+		StringBuilder value = new StringBuilder(group);
+		for (int i = 0; i < value.length(); i++) {
+			if ("{}=,".indexOf(value.charAt(i)) >= 0) { //$NON-NLS-1$
+				value.setCharAt(i, '_');
+			}
+		}
+		return value.toString();
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, queue for many producers and a single consumer. Each
+ * slot carries a sequence number which tells a producer whether the slot is 
+ * free for the position it claimed and tells the consumer whether the slot 
+ * has been published.
+ * 
+ * @author Simon Johnston
+ *
+ * @param <E> the type of the elements held in the buffer.
+ */
+final class RingBuffer<E> {
+
+	private final int mask;
+	private final AtomicReferenceArray<E> elements;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong(0);
+	private final AtomicLong tail = new AtomicLong(0);
+
+	/**
+	 * Create a new buffer.
+	 * 
+	 * @param capacity the minimum capacity, this is rounded up to a power 
+	 * of two.
+	 */
+	RingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException();
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			this.sequences.set(i, i);
+		}
+	}
+	
+	/**
+	 * Add an element to the buffer, may be called by any thread.
+	 * 
+	 * @param element the element to add, must not be <code>null</code>.
+	 * @return <code>true</code> if the element was added, <code>false</code>
+	 * if the buffer was full.
+	 */
+	boolean offer(E element) {
+		long position = this.head.get();
+		for (;;) {
+			int index = (int)position & this.mask;
+			long difference = this.sequences.get(index) - position;
+			if (difference == 0) {
+				if (this.head.compareAndSet(position, position + 1)) {
+					this.elements.set(index, element);
+					this.sequences.set(index, position + 1);
+					return true;
+				}
+				position = this.head.get();
+			} else if (difference < 0) {
+				return false;
+			} else {
+				position = this.head.get();
+			}
+		}
+	}
+	
+	/**
+	 * Remove the oldest element from the buffer, must only be called by the
+	 * single consumer thread.
+	 * 
+	 * @return the oldest element, or <code>null</code> if the buffer is empty.
+	 */
+	E poll() {
+		long position = this.tail.get();
+		int index = (int)position & this.mask;
+		if (this.sequences.get(index) != position + 1) {
+			return null;
+		}
+		E element = this.elements.get(index);
+		this.elements.set(index, null);
+		this.sequences.set(index, position + this.mask + 1);
+		this.tail.set(position + 1);
+		return element;
+	}
+	
+	/**
+	 * @return the approximate number of elements in the buffer.
+	 */
+	int size() {
+		return (int)Math.max(0, this.head.get() - this.tail.get());
+	}
+	
+	/**
+	 * @return the capacity of the buffer.
+	 */
+	int capacity() {
+		return this.mask + 1;
+	}
+}
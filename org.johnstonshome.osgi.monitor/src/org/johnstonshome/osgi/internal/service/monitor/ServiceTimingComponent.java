@@ -0,0 +1,390 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.Histogram;
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorService;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.service.FindHook;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * <p>
+ * Times calls to selected services without any change to the services or 
+ * their callers. Each service matching the <code>timing.filter</code> 
+ * property, by default those registered with <code>monitor.timing=true</code>,
+ * is registered again as a dynamic proxy with the same interfaces and 
+ * properties, a service ranking one higher than the original and the 
+ * property <code>monitor.timed=true</code>.
+ * </p>
+ * <p>
+ * So that callers, including whiteboard consumers that use every service 
+ * of an interface, see only the proxy this component also registers a 
+ * service find hook and event hook. Once a service is timed the original is hidden from
+ * every bundle but its own and this one; its events are hidden in the same
+ * way and the service is timed as it is registered, before the event is 
+ * delivered. A service registered before this component is activated may 
+ * already have been found by other bundles, they keep the original; and 
+ * when this component is deactivated the originals become visible again
+ * but no event announces them, so consumers only see them once they look 
+ * again.
+ * </p>
+ * <p>
+ * For each method of each service interface the proxy records into the
+ * monitors <code>service/calls</code>, <code>service/errors</code> (calls
+ * that threw) and <code>service/latency</code> (a histogram in nanoseconds),
+ * all tagged with <code>interface</code> and <code>method</code>. Overloaded
+ * methods, and the same interface offered by different services, share 
+ * their monitors.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+public class ServiceTimingComponent implements FindHook {
+
+	/*
+	 * Component property for the filter selecting the services to time.
+	 */
+	static final String PROP_TIMING_FILTER = "timing.filter"; //$NON-NLS-1$
+	
+	private static final String DEFAULT_FILTER = "(monitor.timing=true)"; //$NON-NLS-1$
+	
+	/*
+	 * Service property marking the proxies, so that they are not timed again.
+	 */
+	static final String PROP_TIMED = "monitor.timed"; //$NON-NLS-1$
+	
+	static final String GROUP = "service"; //$NON-NLS-1$
+	static final String CALLS = "calls"; //$NON-NLS-1$
+	static final String ERRORS = "errors"; //$NON-NLS-1$
+	static final String LATENCY = "latency"; //$NON-NLS-1$
+	static final String TAG_INTERFACE = "interface"; //$NON-NLS-1$
+	static final String TAG_METHOD = "method"; //$NON-NLS-1$
+	
+	private MonitorService monitorService = null;
+	private LogService log = null;
+	
+	private volatile BundleContext context = null;
+	private volatile Filter filter = null;
+	private ServiceRegistration findHook = null;
+	private ServiceRegistration eventHook = null;
+	
+	/*
+	 * The proxy registered for each timed service, guarded by itself.
+	 */
+	private final Map<ServiceReference, ServiceRegistration> proxies = 
+		new HashMap<ServiceReference, ServiceRegistration>();
+	
+	protected void activate(ComponentContext context) {
+		Object configured = context.getProperties().get(PROP_TIMING_FILTER);
+		String filter = String.format("(&%s(!(%s=true)))", //$NON-NLS-1$
+				configured == null || configured.toString().length() == 0 ? DEFAULT_FILTER : configured,
+				PROP_TIMED);
+		BundleContext bundleContext = context.getBundleContext();
+		ServiceReference[] existing;
+		try {
+			this.filter = bundleContext.createFilter(filter);
+			this.context = bundleContext;
+			this.findHook = bundleContext.registerService(FindHook.class.getName(), this, null);
+			this.eventHook = new EventHiding().register(bundleContext);
+			existing = bundleContext.getServiceReferences(null, filter);
+		} catch (InvalidSyntaxException e) {
+			this.log.log(LogService.LOG_WARNING, 
+					String.format("Invalid service timing filter %s", configured), 
+					e);
+			return;
+		}
+		if (existing != null) {
+			for (ServiceReference reference : existing) {
+				time(reference);
+			}
+		}
+	}
+	
+	protected void deactivate(ComponentContext context) {
+		if (this.eventHook != null) {
+			this.eventHook.unregister();
+			this.eventHook = null;
+		}
+		if (this.findHook != null) {
+			this.findHook.unregister();
+			this.findHook = null;
+		}
+		List<ServiceReference> references;
+		synchronized (this.proxies) {
+			references = new ArrayList<ServiceReference>(this.proxies.keySet());
+		}
+		for (ServiceReference reference : references) {
+			untime(reference);
+		}
+		this.context = null;
+		this.filter = null;
+	}
+
+	/*
+	 * The event hook is deprecated by later releases of the framework, its 
+	 * replacement is not in the version this bundle imports; so it is kept
+	 * to this class, the only place the warning is suppressed, and named in
+	 * full as an import cannot be.
+	 */
+	@SuppressWarnings("deprecation")
+	private final class EventHiding implements org.osgi.framework.hooks.service.EventHook {
+		
+		ServiceRegistration register(BundleContext context) {
+			return context.registerService(
+					org.osgi.framework.hooks.service.EventHook.class.getName(), this, null);
+		}
+		
+		@Override
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		public void event(ServiceEvent event, Collection contexts) {
+			ServiceTimingComponent.this.event(event, (Collection<BundleContext>)contexts);
+		}
+	}
+
+	/*
+	 * Called as each service event is delivered, before any listener sees 
+	 * it, a new service is timed first so that its event can be hidden 
+	 * once the proxy is registered.
+	 */
+	void event(ServiceEvent event, Collection<BundleContext> contexts) {
+		Filter filter = this.filter;
+		if (filter == null) {
+			return;
+		}
+		ServiceReference reference = event.getServiceReference();
+		boolean timed = isTimed(reference);
+		switch (event.getType()) {
+		case ServiceEvent.REGISTERED:
+			if (filter.match(reference)) {
+				time(reference);
+			}
+			timed = isTimed(reference);
+			break;
+		case ServiceEvent.MODIFIED:
+			untime(reference);
+			if (filter.match(reference)) {
+				time(reference);
+			}
+			timed = timed && isTimed(reference);
+			break;
+		case ServiceEvent.MODIFIED_ENDMATCH:
+		case ServiceEvent.UNREGISTERING:
+			untime(reference);
+			break;
+		default:
+		}
+		if (timed) {
+			for (Iterator<BundleContext> i = contexts.iterator(); i.hasNext(); ) {
+				if (!isVisible(i.next(), reference)) {
+					i.remove();
+				}
+			}
+		}
+	}
+
+	/*
+	 * The hook interface this bundle imports predates generics.
+	 */
+	@Override
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void find(BundleContext context, String name, String filter, boolean allServices, Collection references) {
+		for (Iterator<ServiceReference> i = references.iterator(); i.hasNext(); ) {
+			ServiceReference reference = i.next();
+			if (isTimed(reference) && !isVisible(context, reference)) {
+				i.remove();
+			}
+		}
+	}
+	
+	private boolean isTimed(ServiceReference reference) {
+		synchronized (this.proxies) {
+			return this.proxies.containsKey(reference);
+		}
+	}
+	
+	/*
+	 * A timed service remains visible to this bundle and to the bundle that
+	 * registered it.
+	 */
+	private boolean isVisible(BundleContext context, ServiceReference reference) {
+		BundleContext own = this.context;
+		Bundle bundle = context.getBundle();
+		return own == null || bundle == own.getBundle() || bundle == reference.getBundle();
+	}
+	
+	/*
+	 * Register a timing proxy for a service.
+	 */
+	private void time(ServiceReference reference) {
+		BundleContext context = this.context;
+		if (context == null) {
+			return;
+		}
+		String[] classes = (String[])reference.getProperty(Constants.OBJECTCLASS);
+		Object service = context.getService(reference);
+		if (service == null || classes == null) {
+			return;
+		}
+		Class<?>[] interfaces = interfaces(service.getClass(), classes);
+		if (interfaces == null) {
+			context.ungetService(reference);
+			this.log.log(LogService.LOG_WARNING, 
+					String.format("Cannot time service %s, it is not only offered by interface", reference));
+			return;
+		}
+		Object proxy = Proxy.newProxyInstance(
+				service.getClass().getClassLoader(), 
+				interfaces, 
+				new TimedServiceHandler(service, timers(interfaces)));
+		Hashtable<String, Object> properties = new Hashtable<String, Object>();
+		for (String key : reference.getPropertyKeys()) {
+			if (!Constants.SERVICE_ID.equals(key) && !Constants.OBJECTCLASS.equals(key)) {
+				properties.put(key, reference.getProperty(key));
+			}
+		}
+		Object ranking = reference.getProperty(Constants.SERVICE_RANKING);
+		properties.put(Constants.SERVICE_RANKING, Integer.valueOf(
+				ranking instanceof Integer && ((Integer)ranking).intValue() < Integer.MAX_VALUE ? 
+						((Integer)ranking).intValue() + 1 : 1));
+		properties.put(PROP_TIMED, Boolean.TRUE);
+		ServiceRegistration registration = context.registerService(classes, proxy, properties);
+		synchronized (this.proxies) {
+			registration = this.proxies.put(reference, registration);
+		}
+		if (registration != null) {
+			registration.unregister();
+			context.ungetService(reference);
+		}
+	}
+	
+	/*
+	 * Remove the timing proxy for a service, if there is one.
+	 */
+	private void untime(ServiceReference reference) {
+		ServiceRegistration registration;
+		synchronized (this.proxies) {
+			registration = this.proxies.remove(reference);
+		}
+		if (registration != null) {
+			try {
+				registration.unregister();
+			} catch (IllegalStateException e) {
+				// already unregistered with the bundle
+			}
+			BundleContext context = this.context;
+			if (context != null) {
+				context.ungetService(reference);
+			}
+		}
+	}
+	
+	/*
+	 * Find the interfaces named by the service's object classes, returning
+	 * null if any cannot be found as an interface of the service's class.
+	 */
+	private static Class<?>[] interfaces(Class<?> type, String[] classes) {
+		Class<?>[] interfaces = new Class<?>[classes.length];
+		for (int i = 0; i < classes.length; i++) {
+			interfaces[i] = findInterface(type, classes[i]);
+			if (interfaces[i] == null) {
+				return null;
+			}
+		}
+		return interfaces;
+	}
+	
+	private static Class<?> findInterface(Class<?> type, String name) {
+		for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+			for (Class<?> candidate : current.getInterfaces()) {
+				if (candidate.getName().equals(name)) {
+					return candidate;
+				}
+				Class<?> inherited = findInterface(candidate, name);
+				if (inherited != null) {
+					return inherited;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/*
+	 * Resolve the monitors for every method of the interfaces.
+	 */
+	private Map<Method, TimedServiceHandler.MethodTimer> timers(Class<?>[] interfaces) {
+		Map<Method, TimedServiceHandler.MethodTimer> timers = 
+			new HashMap<Method, TimedServiceHandler.MethodTimer>();
+		for (Class<?> type : interfaces) {
+			for (Method method : type.getMethods()) {
+				if (timers.containsKey(method)) {
+					continue;
+				}
+				MonitorKey key = MonitorKey.of(GROUP, CALLS)
+						.withTag(TAG_INTERFACE, method.getDeclaringClass().getName())
+						.withTag(TAG_METHOD, method.getName());
+				Counter calls = this.monitorService.getOrCreateCounter(key);
+				Counter errors = this.monitorService.getOrCreateCounter(
+						MonitorKey.of(GROUP, ERRORS, key.getTags()));
+				Histogram latency = this.monitorService.getOrCreateHistogram(
+						MonitorKey.of(GROUP, LATENCY, key.getTags()));
+				if (calls == null || errors == null || latency == null) {
+					continue;
+				}
+				try {
+					method.setAccessible(true);
+				} catch (SecurityException e) {
+					// public interfaces do not need it
+				}
+				timers.put(method, new TimedServiceHandler.MethodTimer(method, calls, errors, latency));
+			}
+		}
+		return timers;
+	}
+
+	/*
+	 * Dynamic Service methods.
+	 */
+	public void bindMonitor(MonitorService monitorService) {
+		this.monitorService = monitorService;
+	}
+
+	public void unbindMonitor(MonitorService monitorService) {
+		this.monitorService = null;
+	}
+
+	public void bindLog(LogService log)  {
+		this.log = log;
+	}
+	
+	public void unbindLog(LogService log) {
+		this.log = null;
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+/**
+ * Implemented by snapshots that can supply the sketches of their distinct 
+ * counters and top-k monitors, so that these can be streamed and merged
+ * rather than only their estimates.
+ * 
+ * @author Simon Johnston
+ *
+ */
+interface SketchSource {
+
+	/**
+	 * @param index the index of a monitor in the snapshot.
+	 * @return the sketch of the monitor, or <code>null</code> if the 
+	 * monitor does not keep one.
+	 */
+	MonitorSketch getSketch(int index);
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The accumulator behind the statistic monitors, it records the count, sum,
+ * minimum and maximum of a set of values in striped cells. Recording a value
+ * takes no locks and allocates nothing, each cell keeps a carry word next to
+ * its sum so that the total is exact to 128 bits; the cells are only combined
+ * (and the average computed) when read. 
+ * <p>
+ * A cell's count is taken before its minimum and maximum are set, so a 
+ * reader may find a counted cell whose minimum or maximum is still at its
+ * initial value; such values are skipped when the cells are combined.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class StatisticCells {
+
+	private static final int COUNT = 0;
+	private static final int SUM   = 1;
+	private static final int CARRY = 2;
+	private static final int MIN   = 3;
+	private static final int MAX   = 4;
+
+	private static final double TWO_64 = 18446744073709551616.0;
+	
+	private final AtomicLongArray cells = new AtomicLongArray(Stripes.CELLS * Stripes.PAD);
+
+	StatisticCells() {
+		reset();
+	}
+	
+	/**
+	 * @return the estimated size of this object, in bytes.
+	 */
+	long getFootprint() {
+		return MonitorImpl.FOOTPRINT_HEADER + MonitorImpl.footprint(this.cells);
+	}
+	
+	/**
+	 * Record a new value.
+	 * 
+	 * @param value the value to record.
+	 */
+	void record(long value) {
+		int i = Stripes.cell();
+		long current = this.cells.get(i + COUNT);
+		if (!this.cells.compareAndSet(i + COUNT, current, current + 1)) {
+			i = Stripes.contended();
+			this.cells.getAndIncrement(i + COUNT);
+		}
+		for (;;) {
+			current = this.cells.get(i + SUM);
+			long next = current + value;
+			if (this.cells.compareAndSet(i + SUM, current, next)) {
+				if (((current ^ next) & (value ^ next)) < 0) {
+					this.cells.getAndAdd(i + CARRY, value < 0 ? -1 : 1);
+				}
+				break;
+			}
+		}
+		current = this.cells.get(i + MIN);
+		while (value < current && !this.cells.compareAndSet(i + MIN, current, value)) {
+			current = this.cells.get(i + MIN);
+		}
+		current = this.cells.get(i + MAX);
+		while (value > current && !this.cells.compareAndSet(i + MAX, current, value)) {
+			current = this.cells.get(i + MAX);
+		}
+	}
+
+	/**
+	 * @return the number of values recorded.
+	 */
+	long count() {
+		long count = 0;
+		for (int i = 0; i < this.cells.length(); i += Stripes.PAD) {
+			count += this.cells.get(i + COUNT);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the smallest value recorded, or <code>0</code> if none.
+	 */
+	long min() {
+		long min = Long.MAX_VALUE;
+		boolean any = false;
+		for (int i = 0; i < this.cells.length(); i += Stripes.PAD) {
+			long value = this.cells.get(i + MIN);
+			if (this.cells.get(i + COUNT) != 0 && value != Long.MAX_VALUE) {
+				min = Math.min(min, value);
+				any = true;
+			}
+		}
+		return any ? min : 0;
+	}
+
+	/**
+	 * @return the largest value recorded, or <code>0</code> if none.
+	 */
+	long max() {
+		long max = Long.MIN_VALUE;
+		boolean any = false;
+		for (int i = 0; i < this.cells.length(); i += Stripes.PAD) {
+			long value = this.cells.get(i + MAX);
+			if (this.cells.get(i + COUNT) != 0 && value != Long.MIN_VALUE) {
+				max = Math.max(max, value);
+				any = true;
+			}
+		}
+		return any ? max : 0;
+	}
+
+	/**
+	 * Combine the 128-bit sums of each cell, the result is returned as a 
+	 * <code>double</code> which is all the callers require.
+	 * 
+	 * @return the sum of all values recorded.
+	 */
+	double sum() {
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < this.cells.length(); i += Stripes.PAD) {
+			long value = this.cells.get(i + SUM);
+			long next = low + value;
+			if (((low ^ next) & (value ^ next)) < 0) {
+				high += value < 0 ? -1 : 1;
+			}
+			low = next;
+			high += this.cells.get(i + CARRY);
+		}
+		return high * TWO_64 + low;
+	}
+
+	/**
+	 * @return the sum of all values recorded, wrapped to 64 bits.
+	 */
+	long total() {
+		long total = 0;
+		for (int i = 0; i < this.cells.length(); i += Stripes.PAD) {
+			total += this.cells.get(i + SUM);
+		}
+		return total;
+	}
+
+	/**
+	 * Write the count, total, minimum and maximum using the 
+	 * {@link MonitorImpl} sample layout.
+	 * 
+	 * @param values the array to write into.
+	 * @param offset the index of the first slot to write.
+	 */
+	void sample(long[] values, int offset) {
+		values[offset + MonitorImpl.SAMPLE_COUNT] = count();
+		values[offset + MonitorImpl.SAMPLE_SUM] = total();
+		values[offset + MonitorImpl.SAMPLE_MIN] = min();
+		values[offset + MonitorImpl.SAMPLE_MAX] = max();
+	}
+	
+	/**
+	 * @return the average of all values recorded, or <code>0</code> if none.
+	 */
+	double average() {
+		long count = count();
+		return count == 0 ? 0.0 : sum() / count;
+	}
+	
+	/**
+	 * Set all cells back to their initial state. This is not atomic with
+	 * respect to values being recorded concurrently.
+	 */
+	void reset() {
+		for (int i = 0; i < this.cells.length(); i += Stripes.PAD) {
+			this.cells.set(i + COUNT, 0);
+			this.cells.set(i + SUM, 0);
+			this.cells.set(i + CARRY, 0);
+			this.cells.set(i + MIN, Long.MAX_VALUE);
+			this.cells.set(i + MAX, Long.MIN_VALUE);
+		}
+	}
+}
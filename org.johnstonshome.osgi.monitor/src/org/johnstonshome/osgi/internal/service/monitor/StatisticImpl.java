@@ -8,8 +8,7 @@
  */
 package org.johnstonshome.osgi.internal.service.monitor;
 
-import java.math.BigInteger;
-
+import org.johnstonshome.osgi.service.monitor.MonitorType;
 import org.johnstonshome.osgi.service.monitor.Statistic;
 
 
@@ -20,60 +19,57 @@ import org.johnstonshome.osgi.service.monitor.Statistic;
  */
 class StatisticImpl extends MonitorImpl implements Statistic {
 
-	private BigInteger cumulative = BigInteger.ZERO;
-	private long count = 0;
-	private long max = 0;
-	private long min = 0;
-	private double avg = 0;
+	private final StatisticCells values = new StatisticCells();
 	
 	public StatisticImpl() { }
 	
 	@Override
-	public synchronized void addValue(long value) {
-		this.count++;
-		this.cumulative = this.cumulative.add(BigInteger.valueOf(value));
-		if (this.count == 1) {
-			this.min = value;
-			this.max = value;
-			this.avg = value;
-		} else {
-			this.min = Math.min(this.min, value);
-			this.max = Math.max(this.max, value);
-			this.avg = this.cumulative.divide(BigInteger.valueOf(this.count)).doubleValue();
-		}
-		signalUpdate();
+	public void addValue(long value) {
+		this.values.record(value);
+		signalUpdate(value);
 	}
 
 	@Override
 	public double getAverage() {
-		return this.avg;
+		return this.values.average();
 	}
 
 	@Override
 	public long getCount() {
-		return this.count;
+		return this.values.count();
 	}
 
 	@Override
 	public long getMax() {
-		return this.max;
+		return this.values.max();
 	}
 
 	@Override
 	public long getMin() {
-		return this.min;
+		return this.values.min();
 	}
 
 	@Override
-	public synchronized void reset() {
-		this.cumulative = BigInteger.ZERO;
-		this.count = 0;
-		this.min = 0;
-		this.max = 0;
-		this.avg = 0.0;
+	public void reset() {
+		this.values.reset();
 		signalUpdate();
 	}
 
+	@Override
+	MonitorType getType() {
+		return MonitorType.STATISTIC;
+	}
+
+	@Override
+	long getFootprint() {
+		return super.getFootprint() + this.values.getFootprint();
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		this.values.sample(values, offset);
+	}
+
 	@Override
 	public String toString() {
 		return String.format(
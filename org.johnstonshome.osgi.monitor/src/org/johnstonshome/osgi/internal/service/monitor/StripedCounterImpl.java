@@ -0,0 +1,95 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * A counter for heavily contended code paths, increments are spread across
+ * a set of cells so that they scale with the number of processors while 
+ * {@link #get()} sums the cells. Note that {@link #set(long)} and 
+ * {@link #reset()} are not atomic with respect to concurrent increments.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class StripedCounterImpl extends MonitorImpl implements Counter {
+
+	private final StripedLong value = new StripedLong();
+	
+	public StripedCounterImpl() { }
+	
+	@Override
+	public void decrement() {
+		this.value.add(-1);
+		signalUpdate();
+	}
+
+	@Override
+	public void decrement(long delta) {
+		this.value.add(-delta);
+		signalUpdate();
+	}
+
+	@Override
+	public long get() {
+		return this.value.sum();
+	}
+
+	@Override
+	public void increment() {
+		this.value.add(1);
+		signalUpdate();
+	}
+
+	@Override
+	public void increment(long delta) {
+		this.value.add(delta);
+		signalUpdate();
+	}
+
+	@Override
+	public void set(long value) {
+		this.value.reset();
+		this.value.add(value);
+		signalUpdate();
+	}
+
+	@Override
+	public void reset() {
+		this.value.reset();
+		signalUpdate();
+	}
+
+	@Override
+	long getSignalValue() {
+		return this.get();
+	}
+
+	@Override
+	MonitorType getType() {
+		return MonitorType.COUNTER;
+	}
+
+	@Override
+	long getFootprint() {
+		return super.getFootprint() + this.value.getFootprint();
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		values[offset + SAMPLE_COUNT] = this.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{Counter %d}", this.get());
+	}
+}
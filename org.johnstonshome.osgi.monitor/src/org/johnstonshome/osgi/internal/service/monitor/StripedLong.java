@@ -0,0 +1,66 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A <code>long</code> sum spread across a set of padded cells, writers only
+ * contend when they share a cell and the value is only totaled when read.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class StripedLong {
+
+	private final AtomicLongArray cells = new AtomicLongArray(Stripes.CELLS * Stripes.PAD);
+
+	/**
+	 * @return the estimated size of this object, in bytes.
+	 */
+	long getFootprint() {
+		return MonitorImpl.FOOTPRINT_HEADER + MonitorImpl.footprint(this.cells);
+	}
+
+	/**
+	 * Add <code>delta</code> to the current thread's cell.
+	 * 
+	 * @param delta the amount to add, may be negative.
+	 */
+	void add(long delta) {
+		int i = Stripes.cell();
+		long current = this.cells.get(i);
+		if (!this.cells.compareAndSet(i, current, current + delta)) {
+			this.cells.getAndAdd(Stripes.contended(), delta);
+		}
+	}
+
+	/**
+	 * Return the sum of all cells. This is not an atomic snapshot, updates
+	 * made concurrently with the sum may or may not be included.
+	 * 
+	 * @return the current total.
+	 */
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < this.cells.length(); i += Stripes.PAD) {
+			sum += this.cells.get(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * Set all cells back to <code>0</code>.
+	 */
+	void reset() {
+		for (int i = 0; i < this.cells.length(); i += Stripes.PAD) {
+			this.cells.set(i, 0);
+		}
+	}
+}
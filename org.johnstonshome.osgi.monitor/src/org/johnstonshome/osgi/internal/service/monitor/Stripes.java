@@ -0,0 +1,80 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+/**
+ * Shared support for the striped (cell based) monitor implementations. Each
+ * thread carries a probe value which is used to select a cell, when a thread
+ * sees contention on a cell it moves its probe so that, over time, threads
+ * spread themselves across the available cells.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class Stripes {
+
+	/**
+	 * The number of <code>long</code> slots in a single cache line, cells are
+	 * spaced this far apart in their backing arrays to avoid false sharing.
+	 */
+	static final int PAD = 8;
+
+	/**
+	 * The number of cells used by a striped monitor, the smallest power of 
+	 * two greater than or equal to the number of available processors.
+	 */
+	static final int CELLS;
+	
+	static {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int cells = 1;
+		while (cells < cpus) {
+			cells <<= 1;
+		}
+		CELLS = cells;
+	}
+
+	private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			long id = Thread.currentThread().getId();
+			int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+			return new int[] { h == 0 ? 1 : h };
+		}
+	};
+
+	private Stripes() {
+	}
+	
+	/**
+	 * Return the index of the first slot of the cell the current thread 
+	 * should use.
+	 * 
+	 * @return an index into an array of <code>CELLS * PAD</code> slots.
+	 */
+	static int cell() {
+		return (PROBE.get()[0] & (CELLS - 1)) * PAD;
+	}
+
+	/**
+	 * Called by a thread that lost a race on its current cell, moves the
+	 * thread's probe (xorshift) and returns the index of its new cell.
+	 * 
+	 * @return an index into an array of <code>CELLS * PAD</code> slots.
+	 */
+	static int contended() {
+		int[] probe = PROBE.get();
+		int h = probe[0];
+		h ^= h << 13;
+		h ^= h >>> 17;
+		h ^= h << 5;
+		probe[0] = h;
+		return (h & (CELLS - 1)) * PAD;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import org.johnstonshome.osgi.service.monitor.Counter;
+import org.johnstonshome.osgi.service.monitor.Histogram;
+
+/**
+ * The invocation handler of a proxy that times calls to a service. Each 
+ * service method has its monitors resolved when the proxy is created, so a
+ * call costs a map lookup, two reads of the clock and three updates on top
+ * of the reflective call itself. Methods without monitors, such as those
+ * declared by {@link Object}, are passed straight through.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class TimedServiceHandler implements InvocationHandler {
+
+	/**
+	 * The monitors for one service method, and the method made accessible
+	 * so that services implementing non-public interfaces can be called.
+	 */
+	static final class MethodTimer {
+		final Method method;
+		final Counter calls;
+		final Counter errors;
+		final Histogram latency;
+		
+		MethodTimer(Method method, Counter calls, Counter errors, Histogram latency) {
+			this.method = method;
+			this.calls = calls;
+			this.errors = errors;
+			this.latency = latency;
+		}
+	}
+	
+	private final Object service;
+	private final Map<Method, MethodTimer> timers;
+	
+	/**
+	 * @param service the service being timed.
+	 * @param timers the monitors for each method, not changed after the 
+	 * handler is created.
+	 */
+	TimedServiceHandler(Object service, Map<Method, MethodTimer> timers) {
+		this.service = service;
+		this.timers = timers;
+	}
+	
+	Object getService() {
+		return this.service;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		MethodTimer timer = this.timers.get(method);
+		if (timer == null) {
+			try {
+				return method.invoke(this.service, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+		long start = System.nanoTime();
+		try {
+			return timer.method.invoke(this.service, args);
+		} catch (InvocationTargetException e) {
+			timer.errors.increment();
+			throw e.getCause();
+		} finally {
+			timer.latency.recordValue(System.nanoTime() - start);
+			timer.calls.increment();
+		}
+	}
+}
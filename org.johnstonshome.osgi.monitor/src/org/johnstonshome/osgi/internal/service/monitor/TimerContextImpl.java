@@ -0,0 +1,64 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import org.johnstonshome.osgi.service.monitor.TimerContext;
+
+/**
+ * A context is owned by a single timer and, while it is not running, is 
+ * reused by that timer for the next timing started on the same thread.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class TimerContextImpl implements TimerContext {
+
+	private final TimerStatisticImpl timer;
+	private volatile boolean running = false;
+	private long startTime = 0;
+	private Object context = null;
+	
+	TimerContextImpl(TimerStatisticImpl timer) {
+		this.timer = timer;
+	}
+	
+	void start() {
+		this.context = null;
+		this.startTime = System.nanoTime();
+		this.running = true;
+	}
+	
+	boolean isRunning() {
+		return this.running;
+	}
+	
+	@Override
+	public TimerContext setContext(Object context) {
+		this.context = context;
+		return this;
+	}
+	
+	@Override
+	public long stop() {
+		if (!this.running) {
+			return -1;
+		}
+		long now = System.nanoTime();
+		Object context = this.context;
+		this.context = null;
+		this.running = false;
+		return this.timer.record(now - this.startTime, now, context);
+	}
+
+	@Override
+	public void abort() {
+		this.context = null;
+		this.running = false;
+	}
+}
@@ -8,26 +8,107 @@
  */
 package org.johnstonshome.osgi.internal.service.monitor;
 
-import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.johnstonshome.osgi.service.monitor.Duration;
+import org.johnstonshome.osgi.service.monitor.Exemplar;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.johnstonshome.osgi.service.monitor.TimerContext;
 import org.johnstonshome.osgi.service.monitor.TimerResolution;
 import org.johnstonshome.osgi.service.monitor.TimerStatistic;
+import org.johnstonshome.utils.fun.ValueFunction;
 
 /**
+ * The start time of each timing is held in a {@link TimerContextImpl}, each
+ * thread keeps the context it last started so that it can be reused (and so
+ * that the legacy {@link #stopTimer()} and {@link #abortTimer()} know which
+ * timing to end) without any shared state on the start path.
+ * <p>
+ * The slowest {@link #EXEMPLARS} timings of each window are kept as 
+ * exemplars. While the window's set is full its fastest duration is 
+ * published as a threshold, and a timing only takes the exemplar lock if it
+ * beats the threshold or the window has ended, so the fast path adds two 
+ * volatile reads and no allocation; the thread name and context string are
+ * only fetched for a timing that will be kept.
+ * </p>
  * 
  * @author Simon Johnston
  *
  */
 public class TimerStatisticImpl extends MonitorImpl implements TimerStatistic {
 
-	private BigInteger cumulative = BigInteger.ZERO;
-	private long count = 0;
-	private long max = 0;
-	private long min = 0;
-	private double avg = 0;
+	static final int EXEMPLARS = 5;
+	static final long EXEMPLAR_WINDOW = TimeUnit.MINUTES.toNanos(1);
 	
-	private long startTime = 0;
+	private static final Sample[] NO_SAMPLES = new Sample[0];
+	private static final Comparator<Sample> SLOWEST_FIRST = new Comparator<Sample>() {
+		@Override
+		public int compare(Sample sample1, Sample sample2) {
+			return sample1.value > sample2.value ? -1 : (sample1.value == sample2.value ? 0 : 1);
+		}
+	};
+	
+	/**
+	 * An exemplar, holding the raw duration so that it can be compared.
+	 */
+	static final class Sample implements Exemplar {
+		private final long value;
+		private final long timestamp;
+		private final String threadName;
+		private final String context;
+		
+		Sample(long value, long timestamp, String threadName, String context) {
+			this.value = value;
+			this.timestamp = timestamp;
+			this.threadName = threadName;
+			this.context = context;
+		}
+		
+		@Override
+		public Duration getDuration() {
+			return new DurationImpl(this.value);
+		}
+
+		@Override
+		public long getTimestamp() {
+			return this.timestamp;
+		}
+
+		@Override
+		public String getThreadName() {
+			return this.threadName;
+		}
+
+		@Override
+		public String getContext() {
+			return this.context;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("{Exemplar duration:%d thread:%s context:%s}", 
+					this.value, this.threadName, this.context);
+		}
+	}
+	
+	private final StatisticCells values = new StatisticCells();
+	
+	/*
+	 * The exemplars of the current window, guarded by the array itself, and
+	 * those of the previous window which are never changed once rolled.
+	 */
+	private final Sample[] exemplars = new Sample[EXEMPLARS];
+	private int exemplarCount = 0;
+	private Sample[] previousExemplars = NO_SAMPLES;
+	private volatile long exemplarThreshold = 0;
+	private volatile long exemplarWindowEnd = System.nanoTime() + EXEMPLAR_WINDOW;
+	
+	private final ThreadLocal<TimerContextImpl> contexts = new ThreadLocal<TimerContextImpl>();
 	private long resolutionOffset = 1;
 	private TimerResolution resolution = TimerResolution.NANO_SECONDS;
 
@@ -35,37 +116,126 @@ public class TimerStatisticImpl extends MonitorImpl implements TimerStatistic {
 	
 	@Override
 	public void abortTimer() {
-		this.startTime = 0;
+		TimerContextImpl context = this.contexts.get();
+		if (context != null) {
+			context.abort();
+		}
 	}
 
 	@Override
-	public void startTimer() {
-		this.startTime = System.nanoTime();
+	public TimerContext startTimer() {
+		TimerContextImpl context = this.contexts.get();
+		if (context == null || context.isRunning()) {
+			context = new TimerContextImpl(this);
+			this.contexts.set(context);
+		}
+		context.start();
+		return context;
 	}
 
 	@Override
 	public void stopTimer() {
-		if (this.startTime != 0) {
-			this.addValue((System.nanoTime() - this.startTime) / this.resolutionOffset);
-			this.startTime = 0;
+		TimerContextImpl context = this.contexts.get();
+		if (context != null) {
+			context.stop();
 		}
 	}
 	
-	private synchronized void addValue(long value) {
-		this.count++;
-		this.cumulative = this.cumulative.add(BigInteger.valueOf(value));
-		if (this.count == 1) {
-			this.min = value;
-			this.max = value;
-			this.avg = value;
-		} else {
-			this.min = Math.min(this.min, value);
-			this.max = Math.max(this.max, value);
-			this.avg = this.cumulative.divide(BigInteger.valueOf(this.count)).doubleValue();
+	@Override
+	public <V> V time(ValueFunction<V> function) {
+		TimerContext context = startTimer();
+		boolean completed = false;
+		try {
+			V value = function.call();
+			completed = true;
+			return value;
+		} finally {
+			if (completed) {
+				context.stop();
+			} else {
+				context.abort();
+			}
 		}
-		signalUpdate();
 	}
-
+	
+	/*
+	 * Record an elapsed time, in nanoseconds, converting it to the current 
+	 * resolution, and keep it as an exemplar if it is one of the slowest of
+	 * the window ending after the time the timing stopped, now.
+	 */
+	long record(long elapsed, long now, Object context) {
+		long value = elapsed / this.resolutionOffset;
+		this.addValue(value);
+		if (value > this.exemplarThreshold || now - this.exemplarWindowEnd >= 0) {
+			offerExemplar(value, now, context);
+		}
+		return value;
+	}
+	
+	private void offerExemplar(long value, long now, Object context) {
+		Sample sample = new Sample(value, System.currentTimeMillis(), 
+				Thread.currentThread().getName(), context == null ? null : String.valueOf(context));
+		synchronized (this.exemplars) {
+			roll(now);
+			if (value <= this.exemplarThreshold) {
+				return;
+			}
+			if (this.exemplarCount < EXEMPLARS) {
+				this.exemplars[this.exemplarCount++] = sample;
+			} else {
+				this.exemplars[fastestExemplar()] = sample;
+			}
+			if (this.exemplarCount == EXEMPLARS) {
+				this.exemplarThreshold = this.exemplars[fastestExemplar()].value;
+			}
+		}
+	}
+	
+	private int fastestExemplar() {
+		int fastest = 0;
+		for (int i = 1; i < this.exemplarCount; i++) {
+			if (this.exemplars[i].value < this.exemplars[fastest].value) {
+				fastest = i;
+			}
+		}
+		return fastest;
+	}
+	
+	/*
+	 * Called holding the exemplar lock, if the window has ended its 
+	 * exemplars become the previous window's, unless a whole window has 
+	 * passed since with nothing recorded.
+	 */
+	private void roll(long now) {
+		long end = this.exemplarWindowEnd;
+		if (now - end < 0) {
+			return;
+		}
+		this.previousExemplars = now - end < EXEMPLAR_WINDOW ? 
+				Arrays.copyOf(this.exemplars, this.exemplarCount) : NO_SAMPLES;
+		Arrays.fill(this.exemplars, null);
+		this.exemplarCount = 0;
+		this.exemplarThreshold = 0;
+		this.exemplarWindowEnd = end + ((now - end) / EXEMPLAR_WINDOW + 1) * EXEMPLAR_WINDOW;
+	}
+	
+	@Override
+	public List<Exemplar> getExemplars() {
+		List<Sample> samples;
+		synchronized (this.exemplars) {
+			roll(System.nanoTime());
+			samples = new ArrayList<Sample>(this.previousExemplars.length + this.exemplarCount);
+			samples.addAll(Arrays.asList(this.previousExemplars));
+			samples.addAll(Arrays.asList(this.exemplars).subList(0, this.exemplarCount));
+		}
+		Collections.sort(samples, SLOWEST_FIRST);
+		return Collections.<Exemplar>unmodifiableList(samples);
+	}
+	
+	private void addValue(long value) {
+		this.values.record(value);
+		signalUpdate(value);
+	}
 
 	public TimerResolution getResolution() {
 		return this.resolution;
@@ -88,34 +258,68 @@ public class TimerStatisticImpl extends MonitorImpl implements TimerStatistic {
 	
 	@Override
 	public Duration getAverage() {
-		return new DurationImpl((long)this.avg);
+		return new DurationImpl((long)this.values.average());
 	}
 
 	@Override
 	public long getCount() {
-		return this.count;
+		return this.values.count();
 	}
 
 	@Override
 	public Duration getMax() {
-		return new DurationImpl(this.max);
+		return new DurationImpl(this.values.max());
 	}
 
 	@Override
 	public Duration getMin() {
-		return new DurationImpl(this.min);
+		return new DurationImpl(this.values.min());
 	}
 
 	@Override
-	public synchronized void reset() {
-		this.cumulative = BigInteger.ZERO;
-		this.count = 0;
-		this.min = 0;
-		this.max = 0;
-		this.avg = 0.0;
+	public void reset() {
+		this.values.reset();
+		synchronized (this.exemplars) {
+			Arrays.fill(this.exemplars, null);
+			this.exemplarCount = 0;
+			this.previousExemplars = NO_SAMPLES;
+			this.exemplarThreshold = 0;
+		}
 		signalUpdate();
 	}
 
+	@Override
+	MonitorType getType() {
+		return MonitorType.TIMER_STATISTIC;
+	}
+
+	@Override
+	long getFootprint() {
+		long footprint = super.getFootprint() + this.values.getFootprint() + FOOTPRINT_HEADER * 2;
+		synchronized (this.exemplars) {
+			footprint += FOOTPRINT_HEADER * 2 + (EXEMPLARS + this.previousExemplars.length) * 4L;
+			for (int i = 0; i < this.exemplarCount; i++) {
+				footprint += footprint(this.exemplars[i]);
+			}
+			for (Sample sample : this.previousExemplars) {
+				footprint += footprint(sample);
+			}
+		}
+		return footprint;
+	}
+	
+	private static long footprint(Sample sample) {
+		/*
+		 * Thread names are usually shared with the thread itself.
+		 */
+		return FOOTPRINT_HEADER + 32 + (sample.context == null ? 0 : footprint(sample.context));
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		this.values.sample(values, offset);
+	}
+
 	@Override
 	public String toString() {
 		return String.format(
@@ -0,0 +1,268 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.johnstonshome.osgi.service.monitor.HeavyHitter;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.johnstonshome.osgi.service.monitor.TopK;
+
+/**
+ * Items are spread by their hash across a set of stripes, each a 
+ * Space-Saving summary with its own lock, so that threads adding different
+ * items rarely contend. As every item always falls into the same stripe the
+ * stripes summarize disjoint streams and are combined by simply taking the
+ * most frequent items across all of them. Each stripe keeps its share of
+ * the counters, at least <code>k</code>, in a map and a min-heap by count;
+ * a new item when the stripe is full takes over the counter with the 
+ * smallest count, inheriting that count as its error. The error of any 
+ * count is at most the total weight of the stripe divided by its number of
+ * counters, so the monitor keeps many more counters than it reports.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class TopKImpl extends MonitorImpl implements TopK {
+
+	static final int DEFAULT_K = 10;
+	static final int MAX_K = 1000;
+	
+	/*
+	 * Counters kept across all stripes for each item reported, and the 
+	 * fewest kept. A sketch keeps fewer, as it is sent to other nodes.
+	 */
+	private static final int COUNTERS_PER_ITEM = 16;
+	private static final int MIN_COUNTERS = 256;
+	static final int SKETCH_ITEMS_PER_ITEM = 4;
+	
+	private final int k;
+	private final int capacity;
+	private final Stripe[] stripes;
+	private final StripedLong count = new StripedLong();
+	
+	private static final class Counter {
+		String item;
+		long count;
+		long error;
+		int index;
+	}
+	
+	/*
+	 * One Space-Saving summary, guarded by its own monitor.
+	 */
+	private static final class Stripe {
+		private final Map<String, Counter> counters;
+		private final Counter[] heap;
+		private int size = 0;
+		
+		Stripe(int capacity) {
+			this.counters = new HashMap<String, Counter>(capacity * 2);
+			this.heap = new Counter[capacity];
+		}
+		
+		void add(String item, long weight) {
+			Counter counter = this.counters.get(item);
+			if (counter == null) {
+				if (this.size < this.heap.length) {
+					counter = new Counter();
+					counter.item = item;
+					counter.count = weight;
+					this.counters.put(item, counter);
+					up(this.size++, counter);
+					return;
+				}
+				counter = this.heap[0];
+				this.counters.remove(counter.item);
+				counter.item = item;
+				counter.error = counter.count;
+				this.counters.put(item, counter);
+			}
+			counter.count += weight;
+			down(counter.index);
+		}
+		
+		/*
+		 * A new counter is placed at the end of the heap and moves up.
+		 */
+		private void up(int index, Counter counter) {
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (this.heap[parent].count <= counter.count) {
+					break;
+				}
+				this.heap[index] = this.heap[parent];
+				this.heap[index].index = index;
+				index = parent;
+			}
+			this.heap[index] = counter;
+			counter.index = index;
+		}
+		
+		/*
+		 * Counts only grow, so an existing counter only ever moves down.
+		 */
+		private void down(int index) {
+			Counter counter = this.heap[index];
+			for (;;) {
+				int child = index * 2 + 1;
+				if (child >= this.size) {
+					break;
+				}
+				if (child + 1 < this.size && this.heap[child + 1].count < this.heap[child].count) {
+					child++;
+				}
+				if (this.heap[child].count >= counter.count) {
+					break;
+				}
+				this.heap[index] = this.heap[child];
+				this.heap[index].index = index;
+				index = child;
+			}
+			this.heap[index] = counter;
+			counter.index = index;
+		}
+		
+		/*
+		 * Add the counters to entries and return the largest count an 
+		 * untracked item can have.
+		 */
+		long collect(List<TopKSketch.Entry> entries) {
+			for (int i = 0; i < this.size; i++) {
+				Counter counter = this.heap[i];
+				entries.add(new TopKSketch.Entry(counter.item, counter.count, counter.error));
+			}
+			return this.size < this.heap.length ? 0 : this.heap[0].count;
+		}
+		
+		void clear() {
+			this.counters.clear();
+			for (int i = 0; i < this.size; i++) {
+				this.heap[i] = null;
+			}
+			this.size = 0;
+		}
+	}
+	
+	public TopKImpl() {
+		this(DEFAULT_K);
+	}
+	
+	public TopKImpl(int k) {
+		if (k < 1 || k > MAX_K) {
+			throw new IllegalArgumentException();
+		}
+		this.k = k;
+		this.capacity = k * SKETCH_ITEMS_PER_ITEM;
+		this.stripes = new Stripe[Stripes.CELLS];
+		int counters = Math.max(k, Math.max(k * COUNTERS_PER_ITEM, MIN_COUNTERS) / this.stripes.length);
+		for (int i = 0; i < this.stripes.length; i++) {
+			this.stripes[i] = new Stripe(counters);
+		}
+	}
+
+	@Override
+	public void add(String item) {
+		add(item, 1);
+	}
+
+	@Override
+	public void add(String item, long weight) {
+		if (item == null) {
+			throw new IllegalArgumentException();
+		}
+		if (weight < 1) {
+			return;
+		}
+		int hash = item.hashCode() * 0x9E3779B9;
+		Stripe stripe = this.stripes[(hash ^ (hash >>> 16)) & (this.stripes.length - 1)];
+		synchronized (stripe) {
+			stripe.add(item, weight);
+		}
+		this.count.add(weight);
+		signalUpdate(weight);
+	}
+
+	@Override
+	public List<HeavyHitter> getTop() {
+		return getSketch().getTop();
+	}
+
+	@Override
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	@Override
+	public int getK() {
+		return this.k;
+	}
+	
+	/**
+	 * @return the most frequent items across all stripes, each stripe is 
+	 * read in turn so items added concurrently may or may not be included.
+	 */
+	TopKSketch getSketch() {
+		List<TopKSketch.Entry> entries = new ArrayList<TopKSketch.Entry>(this.stripes.length * this.stripes[0].heap.length);
+		long floor = 0;
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				floor = Math.max(floor, stripe.collect(entries));
+			}
+		}
+		return TopKSketch.of(this.k, this.capacity, entries, floor);
+	}
+
+	@Override
+	public void reset() {
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+		this.count.reset();
+		signalUpdate();
+	}
+
+	@Override
+	MonitorType getType() {
+		return MonitorType.TOP_K;
+	}
+
+	@Override
+	long getFootprint() {
+		/*
+		 * Each counter, its map entry and its share of the map's table; the
+		 * items themselves belong to the caller.
+		 */
+		return super.getFootprint() + this.count.getFootprint() + 
+			this.stripes.length * (FOOTPRINT_HEADER * 4 + this.stripes[0].heap.length * (FOOTPRINT_HEADER * 4 + 40L));
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		sampleState(values, offset);
+	}
+	
+	@Override
+	Object sampleState(long[] values, int offset) {
+		values[offset + SAMPLE_COUNT] = this.count.sum();
+		TopKSketch sketch = getSketch();
+		sketch.sample(values, offset);
+		return sketch;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{TopK %s}", this.getTop());
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.johnstonshome.osgi.service.monitor.HeavyHitter;
+
+/**
+ * The items of a Space-Saving summary, most frequent first. An item that is
+ * not in the summary occurred at most {@link #getFloor()} times, so when 
+ * two summaries are merged an item missing from one is given that 
+ * summary's floor as both count and error, keeping every count an upper 
+ * bound on the true count.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class TopKSketch extends MonitorSketch {
+
+	private final int k;
+	private final int capacity;
+	private final String[] items;
+	private final long[] counts;
+	private final long[] errors;
+	private final long floor;
+	
+	/*
+	 * One item with its count and error.
+	 */
+	static final class Entry implements HeavyHitter {
+		private final String item;
+		private final long count;
+		private final long error;
+		
+		Entry(String item, long count, long error) {
+			this.item = item;
+			this.count = count;
+			this.error = error;
+		}
+
+		@Override
+		public String getItem() {
+			return this.item;
+		}
+
+		@Override
+		public long getCount() {
+			return this.count;
+		}
+
+		@Override
+		public long getError() {
+			return this.error;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%s=%d(+%d)", this.item, this.count, this.error);
+		}
+	}
+	
+	private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry o1, Entry o2) {
+			if (o1.count != o2.count) {
+				return o1.count > o2.count ? -1 : 1;
+			}
+			return o1.item.compareTo(o2.item);
+		}
+	};
+	
+	/**
+	 * @param k the number of items reported.
+	 * @param capacity the number of items kept, at least <code>k</code>.
+	 * @param entries the items, in any order.
+	 * @param floor the largest count of an item not in <code>entries</code>.
+	 * @return the summary of the most frequent items.
+	 */
+	static TopKSketch of(int k, int capacity, List<Entry> entries, long floor) {
+		Collections.sort(entries, BY_COUNT);
+		int size = Math.min(capacity, entries.size());
+		if (size < entries.size()) {
+			floor = Math.max(floor, entries.get(size).count);
+		}
+		String[] items = new String[size];
+		long[] counts = new long[size];
+		long[] errors = new long[size];
+		for (int i = 0; i < size; i++) {
+			Entry entry = entries.get(i);
+			items[i] = entry.item;
+			counts[i] = entry.count;
+			errors[i] = entry.error;
+		}
+		return new TopKSketch(k, capacity, items, counts, errors, floor);
+	}
+	
+	TopKSketch(int k, int capacity, String[] items, long[] counts, long[] errors, long floor) {
+		if (k < 1 || capacity < k || items.length > capacity) {
+			throw new IllegalArgumentException();
+		}
+		this.k = k;
+		this.capacity = capacity;
+		this.items = items;
+		this.counts = counts;
+		this.errors = errors;
+		this.floor = floor;
+	}
+	
+	int getK() {
+		return this.k;
+	}
+	
+	int getCapacity() {
+		return this.capacity;
+	}
+	
+	long getFloor() {
+		return this.floor;
+	}
+	
+	int size() {
+		return this.items.length;
+	}
+	
+	String getItem(int index) {
+		return this.items[index];
+	}
+	
+	long getCount(int index) {
+		return this.counts[index];
+	}
+	
+	long getError(int index) {
+		return this.errors[index];
+	}
+	
+	/**
+	 * @return the first <code>k</code> items.
+	 */
+	List<HeavyHitter> getTop() {
+		int size = Math.min(this.k, this.items.length);
+		HeavyHitter[] top = new HeavyHitter[size];
+		for (int i = 0; i < size; i++) {
+			top[i] = new Entry(this.items[i], this.counts[i], this.errors[i]);
+		}
+		return Collections.unmodifiableList(Arrays.asList(top));
+	}
+
+	@Override
+	MonitorSketch merge(MonitorSketch other) {
+		if (!(other instanceof TopKSketch)) {
+			throw new IllegalArgumentException();
+		}
+		TopKSketch that = (TopKSketch)other;
+		Map<String, Integer> those = new HashMap<String, Integer>(that.items.length * 2);
+		for (int i = 0; i < that.items.length; i++) {
+			those.put(that.items[i], Integer.valueOf(i));
+		}
+		List<Entry> entries = new ArrayList<Entry>(this.items.length + that.items.length);
+		for (int i = 0; i < this.items.length; i++) {
+			Integer match = those.remove(this.items[i]);
+			if (match == null) {
+				entries.add(new Entry(this.items[i], this.counts[i] + that.floor, this.errors[i] + that.floor));
+			} else {
+				int j = match.intValue();
+				entries.add(new Entry(this.items[i], this.counts[i] + that.counts[j], this.errors[i] + that.errors[j]));
+			}
+		}
+		for (Integer match : those.values()) {
+			int j = match.intValue();
+			entries.add(new Entry(that.items[j], that.counts[j] + this.floor, that.errors[j] + this.floor));
+		}
+		return of(Math.max(this.k, that.k), Math.max(this.capacity, that.capacity), 
+				entries, this.floor + that.floor);
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		int size = Math.min(this.k, this.items.length);
+		values[offset + MonitorImpl.SAMPLE_MAX] = size == 0 ? 0 : this.counts[0];
+		values[offset + MonitorImpl.SAMPLE_MIN] = size == 0 ? 0 : this.counts[size - 1];
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("{TopK %s}", this.getTop());
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+import org.johnstonshome.osgi.service.monitor.WindowedStatistic;
+
+/**
+ * Values are recorded into a ring of one second buckets, each stamped with
+ * the second it holds. The first writer in a new second claims the bucket 
+ * by moving its stamp to {@link #CLAIMED}, clears it and only then stamps
+ * it with the new second; other writers in that second retry until the 
+ * stamp is published so that no value is added to a bucket that is about
+ * to be cleared. Readers combine only those buckets whose stamp falls 
+ * within the window, a claimed bucket is not in any window. Each value is
+ * added to the minimum and maximum before the count, so a bucket with a 
+ * count never has an empty minimum or maximum.
+ * 
+ * @author Simon Johnston
+ *
+ */
+class WindowedStatisticImpl extends MonitorImpl implements WindowedStatistic {
+
+	/**
+	 * The default window length, in seconds.
+	 */
+	static final int DEFAULT_WINDOW = 60;
+	
+	private static final int SECOND = 0;
+	private static final int COUNT  = 1;
+	private static final int SUM    = 2;
+	private static final int MIN    = 3;
+	private static final int MAX    = 4;
+	
+	/*
+	 * The stamp of a bucket that is being cleared.
+	 */
+	private static final long CLAIMED = Long.MIN_VALUE;
+
+	private static final long ORIGIN = System.nanoTime();
+	
+	private final int window;
+	private final int length;
+	private final AtomicLongArray buckets;
+	
+	public WindowedStatisticImpl() {
+		this(DEFAULT_WINDOW);
+	}
+	
+	public WindowedStatisticImpl(int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.window = window;
+		/*
+		 * One extra bucket so that the bucket being filled never overlaps
+		 * the oldest second of the window.
+		 */
+		this.length = window + 1;
+		this.buckets = new AtomicLongArray(this.length * Stripes.PAD);
+		clear();
+	}
+	
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - ORIGIN);
+	}
+	
+	@Override
+	public void addValue(long value) {
+		long second = now();
+		int i = (int)(second % this.length) * Stripes.PAD;
+		long stamp = this.buckets.get(i + SECOND);
+		while (stamp < second) {
+			if (stamp == CLAIMED) {
+				Thread.yield();
+			} else if (this.buckets.compareAndSet(i + SECOND, stamp, CLAIMED)) {
+				this.buckets.set(i + COUNT, 0);
+				this.buckets.set(i + SUM, 0);
+				this.buckets.set(i + MIN, Long.MAX_VALUE);
+				this.buckets.set(i + MAX, Long.MIN_VALUE);
+				this.buckets.set(i + SECOND, second);
+				break;
+			}
+			stamp = this.buckets.get(i + SECOND);
+		}
+		long current = this.buckets.get(i + MIN);
+		while (value < current && !this.buckets.compareAndSet(i + MIN, current, value)) {
+			current = this.buckets.get(i + MIN);
+		}
+		current = this.buckets.get(i + MAX);
+		while (value > current && !this.buckets.compareAndSet(i + MAX, current, value)) {
+			current = this.buckets.get(i + MAX);
+		}
+		this.buckets.getAndAdd(i + SUM, value);
+		this.buckets.getAndIncrement(i + COUNT);
+		signalUpdate(value);
+	}
+
+	/*
+	 * Returns the index of the first slot of the bucket, or -1 if the bucket
+	 * is not within the current window.
+	 */
+	private int live(int bucket, long now) {
+		int i = bucket * Stripes.PAD;
+		long stamp = this.buckets.get(i + SECOND);
+		return (stamp > now - this.window && stamp <= now) ? i : -1;
+	}
+	
+	@Override
+	public long getCount() {
+		long now = now();
+		long count = 0;
+		for (int bucket = 0; bucket < this.length; bucket++) {
+			int i = live(bucket, now);
+			if (i >= 0) {
+				count += this.buckets.get(i + COUNT);
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public long getMin() {
+		long now = now();
+		long min = Long.MAX_VALUE;
+		for (int bucket = 0; bucket < this.length; bucket++) {
+			int i = live(bucket, now);
+			if (i >= 0 && this.buckets.get(i + COUNT) != 0) {
+				min = Math.min(min, this.buckets.get(i + MIN));
+			}
+		}
+		return min == Long.MAX_VALUE ? 0 : min;
+	}
+
+	@Override
+	public long getMax() {
+		long now = now();
+		long max = Long.MIN_VALUE;
+		for (int bucket = 0; bucket < this.length; bucket++) {
+			int i = live(bucket, now);
+			if (i >= 0 && this.buckets.get(i + COUNT) != 0) {
+				max = Math.max(max, this.buckets.get(i + MAX));
+			}
+		}
+		return max == Long.MIN_VALUE ? 0 : max;
+	}
+
+	@Override
+	public double getAverage() {
+		long now = now();
+		long count = 0;
+		double sum = 0.0;
+		for (int bucket = 0; bucket < this.length; bucket++) {
+			int i = live(bucket, now);
+			if (i >= 0) {
+				count += this.buckets.get(i + COUNT);
+				sum += this.buckets.get(i + SUM);
+			}
+		}
+		return count == 0 ? 0.0 : sum / count;
+	}
+
+	@Override
+	public int getWindow() {
+		return this.window;
+	}
+
+	@Override
+	public void reset() {
+		clear();
+		signalUpdate();
+	}
+	
+	private void clear() {
+		for (int i = 0; i < this.buckets.length(); i += Stripes.PAD) {
+			this.buckets.set(i + SECOND, -1);
+			this.buckets.set(i + COUNT, 0);
+			this.buckets.set(i + SUM, 0);
+			this.buckets.set(i + MIN, Long.MAX_VALUE);
+			this.buckets.set(i + MAX, Long.MIN_VALUE);
+		}
+	}
+
+	@Override
+	MonitorType getType() {
+		return MonitorType.WINDOWED_STATISTIC;
+	}
+
+	@Override
+	long getFootprint() {
+		return super.getFootprint() + footprint(this.buckets);
+	}
+
+	@Override
+	void sample(long[] values, int offset) {
+		long now = now();
+		long count = 0;
+		long sum = 0;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (int bucket = 0; bucket < this.length; bucket++) {
+			int i = live(bucket, now);
+			if (i >= 0 && this.buckets.get(i + COUNT) != 0) {
+				count += this.buckets.get(i + COUNT);
+				sum += this.buckets.get(i + SUM);
+				min = Math.min(min, this.buckets.get(i + MIN));
+				max = Math.max(max, this.buckets.get(i + MAX));
+			}
+		}
+		values[offset + SAMPLE_COUNT] = count;
+		values[offset + SAMPLE_SUM] = sum;
+		values[offset + SAMPLE_MIN] = count == 0 ? 0 : min;
+		values[offset + SAMPLE_MAX] = count == 0 ? 0 : max;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"{WindowedStatistic window:%ds count:%d min:%d max:%d avg:%f}", 
+				this.getWindow(),
+				this.getCount(),
+				this.getMin(),
+				this.getMax(),
+				this.getAverage());
+	}
+}
@@ -0,0 +1,488 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * Decodes a stream written by {@link WireEncoder} back into complete 
+ * snapshots. Input may arrive in any size of piece, {@link #decode(ByteBuffer)}
+ * only consumes whole frames and leaves any partial frame in the buffer for
+ * the next call. Not thread safe, one decoder is used per stream.
+ * <p>
+ * As streams are read from other processes nothing sent is trusted: each 
+ * frame is decoded from a view limited to its declared length, which is 
+ * itself limited to {@link #MAX_FRAME_LENGTH}, new monitor ids must follow
+ * on from those already seen and stay below {@link #MAX_IDS}, and the 
+ * memory held for the monitors, histograms and sketches of the stream is
+ * limited to {@link #MAX_STATE}. Anything else wrong with the input is 
+ * reported as a {@link StreamCorruptedException}.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class WireDecoder {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+	private static final MonitorType[] TYPES = MonitorType.values();
+	private static final int NO_TYPE = -1;
+	
+	static final int MAX_FRAME_LENGTH = 32 * 1024 * 1024;
+	static final int MAX_IDS = 1 << 18;
+	static final long MAX_STATE = 64L * 1024 * 1024;
+	
+	/*
+	 * The estimated memory held for each id, in its entry of each array and
+	 * its key, and for each top-k sketch item.
+	 */
+	private static final long STATE_PER_ID = 8 * 6 + 4 + 8 * MonitorSnapshot.FIELDS + 96;
+	private static final long STATE_PER_ITEM = 64;
+	
+	private MonitorKey[] keys = new MonitorKey[0];
+	private int[] types = new int[0];
+	private long[] values = new long[0];
+	private HistogramBuckets[] layouts = new HistogramBuckets[0];
+	private long[][] counts = new long[0][];
+	
+	/*
+	 * The registers of distinct sketches and the last top-k sketch, by id.
+	 */
+	private byte[][] registers = new byte[0][];
+	private TopKSketch[] tops = new TopKSketch[0];
+	private int size = 0;
+	private long state = 0;
+	private long timestamp = 0;
+	private boolean started = false;
+	
+	/*
+	 * A snapshot as decoded, holding only the monitors live at the time.
+	 */
+	private static final class DecodedSnapshot implements MonitorSnapshot, HistogramSource, SketchSource {
+		private final long timestamp;
+		private final MonitorKey[] keys;
+		private final MonitorType[] types;
+		private final long[] values;
+		private final HistogramSnapshotImpl[] histograms;
+		private final MonitorSketch[] sketches;
+		
+		DecodedSnapshot(long timestamp, MonitorKey[] keys, MonitorType[] types, long[] values, 
+				HistogramSnapshotImpl[] histograms, MonitorSketch[] sketches) {
+			this.timestamp = timestamp;
+			this.keys = keys;
+			this.types = types;
+			this.values = values;
+			this.histograms = histograms;
+			this.sketches = sketches;
+		}
+
+		@Override
+		public HistogramSnapshotImpl getHistogram(int index) {
+			return this.histograms[index];
+		}
+
+		@Override
+		public MonitorSketch getSketch(int index) {
+			return this.sketches[index];
+		}
+
+		@Override
+		public long getTimestamp() {
+			return this.timestamp;
+		}
+
+		@Override
+		public boolean isDelta() {
+			return false;
+		}
+
+		@Override
+		public int size() {
+			return this.types.length;
+		}
+
+		@Override
+		public int indexOf(String group, String name) {
+			return indexOf(MonitorKey.of(group, name));
+		}
+
+		@Override
+		public int indexOf(MonitorKey key) {
+			for (int i = 0; i < this.keys.length; i++) {
+				if (this.keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public MonitorKey getKey(int index) {
+			return this.keys[index];
+		}
+
+		@Override
+		public String getGroup(int index) {
+			return this.keys[index].getGroup();
+		}
+
+		@Override
+		public String getName(int index) {
+			return this.keys[index].getName();
+		}
+
+		@Override
+		public MonitorType getType(int index) {
+			return this.types[index];
+		}
+
+		@Override
+		public long get(int index, int field) {
+			if (field < 0 || field >= FIELDS) {
+				throw new IndexOutOfBoundsException();
+			}
+			return this.values[index * FIELDS + field];
+		}
+	}
+	
+	/**
+	 * Decode frames from <code>input</code> until a snapshot is complete.
+	 * 
+	 * @param input the bytes received, read from its position.
+	 * @return the next snapshot, or <code>null</code> if more input is 
+	 * needed.
+	 * @throws StreamCorruptedException if the input is not in the wire 
+	 * format.
+	 */
+	MonitorSnapshot decode(ByteBuffer input) throws StreamCorruptedException {
+		if (!this.started) {
+			if (input.remaining() < 5) {
+				return null;
+			}
+			if (input.getInt() != WireFormat.MAGIC || input.get() != WireFormat.VERSION) {
+				throw new StreamCorruptedException("Not a monitor stream"); //$NON-NLS-1$
+			}
+			this.started = true;
+		}
+		while (true) {
+			int start = input.position();
+			if (input.remaining() < 2) {
+				return null;
+			}
+			byte type = input.get();
+			long length = readVarint(input, true);
+			if (length > MAX_FRAME_LENGTH) {
+				throw new StreamCorruptedException("Frame too long " + length); //$NON-NLS-1$
+			}
+			if (length < 0 || input.remaining() < length) {
+				input.position(start);
+				return null;
+			}
+			ByteBuffer frame = input.slice();
+			frame.limit((int)length);
+			input.position(input.position() + (int)length);
+			try {
+				switch (type) {
+				case WireFormat.FRAME_DICTIONARY:
+					readDictionary(frame);
+					break;
+				case WireFormat.FRAME_HISTOGRAM:
+					readHistograms(frame);
+					break;
+				case WireFormat.FRAME_SKETCH:
+					readSketches(frame);
+					break;
+				case WireFormat.FRAME_SNAPSHOT:
+					return readSnapshot(frame);
+				default:
+					// frames of unknown types are skipped
+				}
+			} catch (BufferUnderflowException e) {
+				throw new StreamCorruptedException("Truncated frame"); //$NON-NLS-1$
+			} catch (RuntimeException e) {
+				throw new StreamCorruptedException(String.format("Invalid frame: %s", e)); //$NON-NLS-1$
+			}
+		}
+	}
+	
+	/*
+	 * Account for memory held for the stream, or release it when negative.
+	 */
+	private void hold(long bytes) throws StreamCorruptedException {
+		this.state += bytes;
+		if (this.state > MAX_STATE) {
+			throw new StreamCorruptedException("Stream holds too much state"); //$NON-NLS-1$
+		}
+	}
+	
+	private void release(int id) {
+		if (this.counts[id] != null) {
+			this.state -= this.counts[id].length * 8L;
+		}
+		if (this.registers[id] != null) {
+			this.state -= this.registers[id].length;
+		}
+		if (this.tops[id] != null) {
+			this.state -= this.tops[id].getCapacity() * STATE_PER_ITEM;
+		}
+	}
+	
+	private void readDictionary(ByteBuffer input) throws StreamCorruptedException {
+		long count = readVarint(input, false);
+		for (long i = 0; i < count; i++) {
+			long next = readVarint(input, false);
+			if (next < 0 || next > this.size || next >= MAX_IDS) {
+				throw new StreamCorruptedException("Invalid monitor id " + next); //$NON-NLS-1$
+			}
+			int id = (int)next;
+			int type = input.get();
+			if (type < 0 || type >= TYPES.length) {
+				throw new StreamCorruptedException("Unknown monitor type " + type); //$NON-NLS-1$
+			}
+			MonitorKey key = readKey(input);
+			if (id == this.size) {
+				hold(STATE_PER_ID);
+				grow(id + 1);
+				this.size = id + 1;
+			} else {
+				release(id);
+			}
+			this.keys[id] = key;
+			this.types[id] = type;
+			this.layouts[id] = null;
+			this.counts[id] = null;
+			this.registers[id] = null;
+			this.tops[id] = null;
+			Arrays.fill(this.values, id * MonitorSnapshot.FIELDS, (id + 1) * MonitorSnapshot.FIELDS, 0);
+		}
+	}
+	
+	private void readHistograms(ByteBuffer input) throws StreamCorruptedException {
+		long histograms = readVarint(input, false);
+		for (long i = 0; i < histograms; i++) {
+			int id = checkId(readVarint(input, false));
+			long highest = readVarint(input, false);
+			int digits = input.get();
+			HistogramBuckets layout = this.layouts[id];
+			if (layout == null || layout.getHighestTrackableValue() != highest || 
+				layout.getSignificantDigits() != digits) {
+				try {
+					layout = new HistogramBuckets(highest, digits);
+				} catch (IllegalArgumentException e) {
+					throw new StreamCorruptedException("Invalid histogram layout"); //$NON-NLS-1$
+				}
+				if (this.counts[id] != null) {
+					this.state -= this.counts[id].length * 8L;
+					this.counts[id] = null;
+				}
+				hold(layout.length() * 8L);
+				this.layouts[id] = layout;
+				this.counts[id] = new long[layout.length()];
+			}
+			long[] counts = this.counts[id];
+			long changed = readVarint(input, false);
+			int bucket = -1;
+			for (long j = 0; j < changed; j++) {
+				bucket += (int)readVarint(input, false) + 1;
+				if (bucket < 0 || bucket >= counts.length) {
+					throw new StreamCorruptedException("Invalid histogram bucket"); //$NON-NLS-1$
+				}
+				counts[bucket] += WireFormat.unzigzag(readVarint(input, false));
+			}
+		}
+	}
+	
+	private void readSketches(ByteBuffer input) throws StreamCorruptedException {
+		long sketches = readVarint(input, false);
+		for (long i = 0; i < sketches; i++) {
+			int id = checkId(readVarint(input, false));
+			byte kind = input.get();
+			if (kind == WireFormat.SKETCH_DISTINCT) {
+				int precision = input.get();
+				if (precision < DistinctSketch.MIN_PRECISION || precision > DistinctSketch.MAX_PRECISION) {
+					throw new StreamCorruptedException("Invalid sketch precision"); //$NON-NLS-1$
+				}
+				byte[] registers = this.registers[id];
+				if (registers == null || registers.length != 1 << precision) {
+					if (registers != null) {
+						this.state -= registers.length;
+					}
+					hold(1 << precision);
+					registers = new byte[1 << precision];
+					this.registers[id] = registers;
+				}
+				long changed = readVarint(input, false);
+				int register = -1;
+				for (long j = 0; j < changed; j++) {
+					register += (int)readVarint(input, false) + 1;
+					if (register < 0 || register >= registers.length) {
+						throw new StreamCorruptedException("Invalid sketch register"); //$NON-NLS-1$
+					}
+					registers[register] = input.get();
+				}
+			} else if (kind == WireFormat.SKETCH_TOP_K) {
+				int k = (int)readVarint(input, false);
+				int capacity = (int)readVarint(input, false);
+				long floor = readVarint(input, false);
+				long size = readVarint(input, false);
+				if (k < 1 || k > TopKImpl.MAX_K || capacity < k || 
+					capacity > TopKImpl.MAX_K * TopKImpl.SKETCH_ITEMS_PER_ITEM ||
+					size < 0 || size > capacity || size > input.remaining()) {
+					throw new StreamCorruptedException("Invalid top-k sketch"); //$NON-NLS-1$
+				}
+				String[] items = new String[(int)size];
+				long[] counts = new long[items.length];
+				long[] errors = new long[items.length];
+				for (int j = 0; j < items.length; j++) {
+					items[j] = readString(input);
+					counts[j] = readVarint(input, false);
+					errors[j] = readVarint(input, false);
+				}
+				try {
+					TopKSketch top = new TopKSketch(k, capacity, items, counts, errors, floor);
+					if (this.tops[id] != null) {
+						this.state -= this.tops[id].getCapacity() * STATE_PER_ITEM;
+					}
+					hold(capacity * STATE_PER_ITEM);
+					this.tops[id] = top;
+				} catch (IllegalArgumentException e) {
+					throw new StreamCorruptedException("Invalid top-k sketch"); //$NON-NLS-1$
+				}
+			} else {
+				throw new StreamCorruptedException("Unknown sketch " + kind); //$NON-NLS-1$
+			}
+		}
+	}
+	
+	private MonitorSnapshot readSnapshot(ByteBuffer input) throws StreamCorruptedException {
+		this.timestamp += WireFormat.unzigzag(readVarint(input, false));
+		long changes = readVarint(input, false);
+		for (long i = 0; i < changes; i++) {
+			int id = checkId(readVarint(input, false));
+			int mask = input.get() & 0xFF;
+			int base = id * MonitorSnapshot.FIELDS;
+			for (int field = 0; field < MonitorSnapshot.FIELDS; field++) {
+				if ((mask & (1 << field)) != 0) {
+					this.values[base + field] += WireFormat.unzigzag(readVarint(input, false));
+				}
+			}
+		}
+		long removed = readVarint(input, false);
+		for (long i = 0; i < removed; i++) {
+			this.types[checkId(readVarint(input, false))] = NO_TYPE;
+		}
+		
+		int live = 0;
+		for (int type : this.types) {
+			if (type != NO_TYPE) {
+				live++;
+			}
+		}
+		MonitorKey[] keys = new MonitorKey[live];
+		MonitorType[] types = new MonitorType[live];
+		long[] values = new long[live * MonitorSnapshot.FIELDS];
+		HistogramSnapshotImpl[] histograms = new HistogramSnapshotImpl[live];
+		MonitorSketch[] sketches = new MonitorSketch[live];
+		int index = 0;
+		for (int id = 0; id < this.types.length; id++) {
+			if (this.types[id] != NO_TYPE) {
+				keys[index] = this.keys[id];
+				types[index] = TYPES[this.types[id]];
+				if (this.counts[id] != null) {
+					histograms[index] = new HistogramSnapshotImpl(this.layouts[id], this.counts[id].clone());
+				}
+				if (this.registers[id] != null) {
+					sketches[index] = new DistinctSketch(
+							Integer.numberOfTrailingZeros(this.registers[id].length), this.registers[id].clone());
+				} else {
+					sketches[index] = this.tops[id];
+				}
+				System.arraycopy(this.values, id * MonitorSnapshot.FIELDS, 
+						values, index * MonitorSnapshot.FIELDS, MonitorSnapshot.FIELDS);
+				index++;
+			}
+		}
+		return new DecodedSnapshot(this.timestamp, keys, types, values, histograms, sketches);
+	}
+	
+	private int checkId(long id) throws StreamCorruptedException {
+		if (id < 0 || id >= this.types.length || this.types[(int)id] == NO_TYPE) {
+			throw new StreamCorruptedException("Unknown monitor id " + id); //$NON-NLS-1$
+		}
+		return (int)id;
+	}
+	
+	private void grow(int size) {
+		if (size > this.types.length) {
+			int capacity = Math.max(size, this.types.length * 2);
+			int old = this.types.length;
+			this.keys = Arrays.copyOf(this.keys, capacity);
+			this.layouts = Arrays.copyOf(this.layouts, capacity);
+			this.counts = Arrays.copyOf(this.counts, capacity);
+			this.registers = Arrays.copyOf(this.registers, capacity);
+			this.tops = Arrays.copyOf(this.tops, capacity);
+			this.types = Arrays.copyOf(this.types, capacity);
+			Arrays.fill(this.types, old, capacity, NO_TYPE);
+			this.values = Arrays.copyOf(this.values, capacity * MonitorSnapshot.FIELDS);
+		}
+	}
+	
+	/*
+	 * When partial is set a truncated varint returns -1 rather than failing,
+	 * used for frame lengths which may not yet have been received in full.
+	 */
+	private static long readVarint(ByteBuffer input, boolean partial) throws StreamCorruptedException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (!input.hasRemaining()) {
+				if (partial) {
+					return -1;
+				}
+				throw new StreamCorruptedException("Truncated frame"); //$NON-NLS-1$
+			}
+			byte b = input.get();
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Malformed varint"); //$NON-NLS-1$
+	}
+	
+	private static MonitorKey readKey(ByteBuffer input) throws StreamCorruptedException {
+		try {
+			MonitorKey key = MonitorKey.of(readString(input), readString(input));
+			long tags = readVarint(input, false);
+			for (long i = 0; i < tags; i++) {
+				key = key.withTag(readString(input), readString(input));
+			}
+			return key;
+		} catch (IllegalArgumentException e) {
+			throw new StreamCorruptedException("Invalid monitor key"); //$NON-NLS-1$
+		}
+	}
+	
+	private static String readString(ByteBuffer input) throws StreamCorruptedException {
+		int length = (int)readVarint(input, false);
+		if (length < 0 || length > input.remaining()) {
+			throw new StreamCorruptedException("Truncated frame"); //$NON-NLS-1$
+		}
+		byte[] bytes = new byte[length];
+		input.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,418 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.johnstonshome.osgi.service.monitor.MonitorKey;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+import org.johnstonshome.osgi.service.monitor.MonitorType;
+
+/**
+ * Encodes a sequence of snapshots for one stream in the {@link WireFormat}, 
+ * keeping the dictionary and last values sent so that each snapshot only 
+ * carries what has changed. Not thread safe, one encoder is used per 
+ * connection and {@link #reset()} when the connection is re-established.
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class WireEncoder {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+	private static final int NO_TYPE = -1;
+	
+	private final Map<MonitorKey, Integer> ids = new HashMap<MonitorKey, Integer>();
+	private MonitorKey[] keys = new MonitorKey[0];
+	
+	/*
+	 * The ids of removed monitors, reused so that ids stay as few as the 
+	 * monitors live at once.
+	 */
+	private int[] free = new int[0];
+	private int freeCount = 0;
+	private int size = 0;
+	private long[] values = new long[0];
+	private int[] types = new int[0];
+	private int[] seen = new int[0];
+	
+	/*
+	 * The histogram counts last sent, by id.
+	 */
+	private HistogramBuckets[] layouts = new HistogramBuckets[0];
+	private long[][] counts = new long[0][];
+	
+	/*
+	 * The sketches last sent, by id.
+	 */
+	private MonitorSketch[] sketches = new MonitorSketch[0];
+	private int generation = 0;
+	private long timestamp = 0;
+	private boolean started = false;
+	
+	/*
+	 * The output, and the body of the frame being written.
+	 */
+	private byte[] output = new byte[4096];
+	private int length = 0;
+	private byte[] body = new byte[4096];
+	private int bodyLength = 0;
+	
+	private final int[] changed = new int[MonitorSnapshot.FIELDS];
+	
+	/**
+	 * Forget everything sent so that the next snapshot starts a new stream.
+	 */
+	void reset() {
+		this.ids.clear();
+		this.keys = new MonitorKey[0];
+		this.free = new int[0];
+		this.freeCount = 0;
+		this.size = 0;
+		this.values = new long[0];
+		this.types = new int[0];
+		this.seen = new int[0];
+		this.layouts = new HistogramBuckets[0];
+		this.counts = new long[0][];
+		this.sketches = new MonitorSketch[0];
+		this.generation = 0;
+		this.timestamp = 0;
+		this.started = false;
+	}
+	
+	/**
+	 * Encode a snapshot, and any dictionary entries it needs.
+	 * 
+	 * @param snapshot a complete, not delta, snapshot.
+	 * @return a buffer holding the encoded frames, only valid until the next
+	 * call to this method.
+	 */
+	ByteBuffer encode(MonitorSnapshot snapshot) {
+		this.length = 0;
+		if (!this.started) {
+			writeInt(WireFormat.MAGIC);
+			this.output = ensure(this.output, this.length + 1);
+			this.output[this.length++] = WireFormat.VERSION;
+			this.started = true;
+		}
+		int generation = ++this.generation;
+		int[] index = new int[snapshot.size()];
+		
+		/*
+		 * New monitors, or ones whose type has changed, are added to the
+		 * dictionary and start again from zero.
+		 */
+		int added = 0;
+		this.bodyLength = 0;
+		bodyFixedVarint(0);
+		for (int i = 0; i < index.length; i++) {
+			MonitorKey key = snapshot.getKey(i);
+			Integer id = this.ids.get(key);
+			if (id == null) {
+				if (this.freeCount > 0) {
+					id = Integer.valueOf(this.free[--this.freeCount]);
+				} else {
+					id = Integer.valueOf(this.size++);
+					grow(this.size);
+				}
+				this.ids.put(key, id);
+				this.keys[id.intValue()] = key;
+			}
+			int slot = id.intValue();
+			index[i] = slot;
+			int type = snapshot.getType(i).ordinal();
+			if (this.types[slot] != type) {
+				this.types[slot] = type;
+				Arrays.fill(this.values, slot * MonitorSnapshot.FIELDS, (slot + 1) * MonitorSnapshot.FIELDS, 0);
+				this.layouts[slot] = null;
+				this.counts[slot] = null;
+				this.sketches[slot] = null;
+				bodyVarint(slot);
+				bodyByte(type);
+				bodyString(key.getGroup());
+				bodyString(key.getName());
+				bodyVarint(key.getTagCount());
+				for (int tag = 0; tag < key.getTagCount(); tag++) {
+					bodyString(key.getTagName(tag));
+					bodyString(key.getTagValue(tag));
+				}
+				added++;
+			}
+		}
+		if (added > 0) {
+			patchFixedVarint(0, added);
+			frame(WireFormat.FRAME_DICTIONARY);
+		}
+		
+		/*
+		 * The counts of changed histograms, if the snapshot has them.
+		 */
+		if (snapshot instanceof HistogramSource) {
+			encodeHistograms(snapshot, (HistogramSource)snapshot, index);
+		}
+		if (snapshot instanceof SketchSource) {
+			encodeSketches(snapshot, (SketchSource)snapshot, index);
+		}
+		
+		/*
+		 * The snapshot itself, only changed monitors and fields are sent.
+		 */
+		this.bodyLength = 0;
+		bodyVarint(WireFormat.zigzag(snapshot.getTimestamp() - this.timestamp));
+		this.timestamp = snapshot.getTimestamp();
+		int changes = 0;
+		int countAt = this.bodyLength;
+		bodyFixedVarint(0);
+		for (int i = 0; i < index.length; i++) {
+			int slot = index[i];
+			this.seen[slot] = generation;
+			int base = slot * MonitorSnapshot.FIELDS;
+			int mask = 0;
+			int fields = 0;
+			for (int field = 0; field < MonitorSnapshot.FIELDS; field++) {
+				long value = snapshot.get(i, field);
+				if (value != this.values[base + field]) {
+					mask |= 1 << field;
+					this.changed[fields++] = field;
+				}
+			}
+			if (mask != 0) {
+				bodyVarint(slot);
+				bodyByte(mask);
+				for (int f = 0; f < fields; f++) {
+					int field = this.changed[f];
+					long value = snapshot.get(i, field);
+					bodyVarint(WireFormat.zigzag(value - this.values[base + field]));
+					this.values[base + field] = value;
+				}
+				changes++;
+			}
+		}
+		patchFixedVarint(countAt, changes);
+		int removedAt = this.bodyLength;
+		bodyFixedVarint(0);
+		int removed = 0;
+		for (int slot = 0; slot < this.types.length; slot++) {
+			if (this.types[slot] != NO_TYPE && this.seen[slot] != generation) {
+				/*
+				 * A removed monitor's id is free for the next new monitor, 
+				 * which is sent to the dictionary under it.
+				 */
+				this.types[slot] = NO_TYPE;
+				this.ids.remove(this.keys[slot]);
+				this.keys[slot] = null;
+				if (this.freeCount == this.free.length) {
+					this.free = Arrays.copyOf(this.free, Math.max(16, this.freeCount * 2));
+				}
+				this.free[this.freeCount++] = slot;
+				bodyVarint(slot);
+				removed++;
+			}
+		}
+		patchFixedVarint(removedAt, removed);
+		frame(WireFormat.FRAME_SNAPSHOT);
+		return ByteBuffer.wrap(this.output, 0, this.length);
+	}
+	
+	private void encodeHistograms(MonitorSnapshot snapshot, HistogramSource source, int[] index) {
+		this.bodyLength = 0;
+		bodyFixedVarint(0);
+		int histograms = 0;
+		for (int i = 0; i < index.length; i++) {
+			int slot = index[i];
+			if (snapshot.getType(i) != MonitorType.HISTOGRAM || 
+				snapshot.get(i, MonitorSnapshot.COUNT) == this.values[slot * MonitorSnapshot.FIELDS + MonitorSnapshot.COUNT]) {
+				continue;
+			}
+			HistogramSnapshotImpl histogram = source.getHistogram(i);
+			if (histogram == null) {
+				continue;
+			}
+			HistogramBuckets layout = histogram.getBuckets();
+			long[] current = histogram.getCounts();
+			long[] last = this.counts[slot];
+			if (last == null || last.length != current.length ||
+				layout.getHighestTrackableValue() != this.layouts[slot].getHighestTrackableValue() ||
+				layout.getSignificantDigits() != this.layouts[slot].getSignificantDigits()) {
+				last = new long[current.length];
+				this.layouts[slot] = layout;
+				this.counts[slot] = last;
+			}
+			bodyVarint(slot);
+			bodyVarint(layout.getHighestTrackableValue());
+			bodyByte(layout.getSignificantDigits());
+			int countAt = this.bodyLength;
+			bodyFixedVarint(0);
+			int changed = 0;
+			int previous = -1;
+			for (int bucket = 0; bucket < current.length; bucket++) {
+				if (current[bucket] != last[bucket]) {
+					bodyVarint(bucket - previous - 1);
+					bodyVarint(WireFormat.zigzag(current[bucket] - last[bucket]));
+					last[bucket] = current[bucket];
+					previous = bucket;
+					changed++;
+				}
+			}
+			patchFixedVarint(countAt, changed);
+			histograms++;
+		}
+		if (histograms > 0) {
+			patchFixedVarint(0, histograms);
+			frame(WireFormat.FRAME_HISTOGRAM);
+		}
+	}
+	
+	private void encodeSketches(MonitorSnapshot snapshot, SketchSource source, int[] index) {
+		this.bodyLength = 0;
+		bodyFixedVarint(0);
+		int sketches = 0;
+		for (int i = 0; i < index.length; i++) {
+			int slot = index[i];
+			MonitorType type = snapshot.getType(i);
+			if ((type != MonitorType.DISTINCT_COUNTER && type != MonitorType.TOP_K) || 
+				snapshot.get(i, MonitorSnapshot.COUNT) == this.values[slot * MonitorSnapshot.FIELDS + MonitorSnapshot.COUNT]) {
+				continue;
+			}
+			MonitorSketch sketch = source.getSketch(i);
+			if (sketch instanceof DistinctSketch) {
+				DistinctSketch distinct = (DistinctSketch)sketch;
+				DistinctSketch last = null;
+				if (this.sketches[slot] instanceof DistinctSketch && 
+					((DistinctSketch)this.sketches[slot]).getPrecision() == distinct.getPrecision()) {
+					last = (DistinctSketch)this.sketches[slot];
+				}
+				bodyVarint(slot);
+				bodyByte(WireFormat.SKETCH_DISTINCT);
+				bodyByte(distinct.getPrecision());
+				int countAt = this.bodyLength;
+				bodyFixedVarint(0);
+				int changed = 0;
+				int previous = -1;
+				for (int register = 0; register < distinct.size(); register++) {
+					int value = distinct.getRegister(register);
+					if (value != (last == null ? 0 : last.getRegister(register))) {
+						bodyVarint(register - previous - 1);
+						bodyByte(value);
+						previous = register;
+						changed++;
+					}
+				}
+				patchFixedVarint(countAt, changed);
+			} else if (sketch instanceof TopKSketch) {
+				TopKSketch top = (TopKSketch)sketch;
+				bodyVarint(slot);
+				bodyByte(WireFormat.SKETCH_TOP_K);
+				bodyVarint(top.getK());
+				bodyVarint(top.getCapacity());
+				bodyVarint(top.getFloor());
+				bodyVarint(top.size());
+				for (int item = 0; item < top.size(); item++) {
+					bodyString(top.getItem(item));
+					bodyVarint(top.getCount(item));
+					bodyVarint(top.getError(item));
+				}
+			} else {
+				continue;
+			}
+			this.sketches[slot] = sketch;
+			sketches++;
+		}
+		if (sketches > 0) {
+			patchFixedVarint(0, sketches);
+			frame(WireFormat.FRAME_SKETCH);
+		}
+	}
+	
+	private void grow(int size) {
+		if (size > this.types.length) {
+			int capacity = Math.max(size, this.types.length * 2);
+			int old = this.types.length;
+			this.values = Arrays.copyOf(this.values, capacity * MonitorSnapshot.FIELDS);
+			this.keys = Arrays.copyOf(this.keys, capacity);
+			this.types = Arrays.copyOf(this.types, capacity);
+			Arrays.fill(this.types, old, capacity, NO_TYPE);
+			this.seen = Arrays.copyOf(this.seen, capacity);
+			this.layouts = Arrays.copyOf(this.layouts, capacity);
+			this.counts = Arrays.copyOf(this.counts, capacity);
+			this.sketches = Arrays.copyOf(this.sketches, capacity);
+		}
+	}
+	
+	private void frame(byte type) {
+		this.output = ensure(this.output, this.length + 6 + this.bodyLength);
+		this.output[this.length++] = type;
+		long value = this.bodyLength;
+		while ((value & ~0x7FL) != 0) {
+			this.output[this.length++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		this.output[this.length++] = (byte)value;
+		System.arraycopy(this.body, 0, this.output, this.length, this.bodyLength);
+		this.length += this.bodyLength;
+	}
+	
+	private void writeInt(int value) {
+		this.output = ensure(this.output, this.length + 4);
+		this.output[this.length++] = (byte)(value >>> 24);
+		this.output[this.length++] = (byte)(value >>> 16);
+		this.output[this.length++] = (byte)(value >>> 8);
+		this.output[this.length++] = (byte)value;
+	}
+	
+	private void bodyByte(int value) {
+		this.body = ensure(this.body, this.bodyLength + 1);
+		this.body[this.bodyLength++] = (byte)value;
+	}
+	
+	private void bodyVarint(long value) {
+		this.body = ensure(this.body, this.bodyLength + 10);
+		while ((value & ~0x7FL) != 0) {
+			this.body[this.bodyLength++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		this.body[this.bodyLength++] = (byte)value;
+	}
+	
+	/*
+	 * Counts not known until the entries are written are reserved as five 
+	 * byte varints, which any decoder of varints will read.
+	 */
+	private void bodyFixedVarint(int value) {
+		this.body = ensure(this.body, this.bodyLength + 5);
+		patchFixedVarint(this.bodyLength, value);
+		this.bodyLength += 5;
+	}
+	
+	private void patchFixedVarint(int position, int value) {
+		for (int i = 0; i < 4; i++) {
+			this.body[position + i] = (byte)(((value >>> (7 * i)) & 0x7F) | 0x80);
+		}
+		this.body[position + 4] = (byte)(value >>> 28);
+	}
+	
+	private void bodyString(String value) {
+		byte[] bytes = value.getBytes(UTF8);
+		bodyVarint(bytes.length);
+		this.body = ensure(this.body, this.bodyLength + bytes.length);
+		System.arraycopy(bytes, 0, this.body, this.bodyLength, bytes.length);
+		this.bodyLength += bytes.length;
+	}
+	
+	private static byte[] ensure(byte[] buffer, int size) {
+		if (size <= buffer.length) {
+			return buffer;
+		}
+		return Arrays.copyOf(buffer, Math.max(size, buffer.length * 2));
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+/**
+ * <p>
+ * Constants for the binary wire format used to stream monitor snapshots. A
+ * stream starts with {@link #MAGIC} and {@link #VERSION} and is followed by 
+ * frames, each a type byte, the length of its body as a varint and the body.
+ * </p>
+ * <ul>
+ *   <li>{@link #FRAME_DICTIONARY} -- a count of entries then, for each, the 
+ *       monitor's id as a varint, its {@link org.johnstonshome.osgi.service.monitor.MonitorType} 
+ *       ordinal as a byte, its group and name as length prefixed UTF-8 and
+ *       a varint count of tags followed by each tag name and value, also as
+ *       length prefixed UTF-8. An id is only sent again if the monitor's 
+ *       type changes, or after the monitor is removed when the id may be
+ *       given to a new monitor. A new id is always one more than the 
+ *       highest sent so far.</li>
+ *   <li>{@link #FRAME_SNAPSHOT} -- the timestamp as a zigzag varint delta 
+ *       from the previous snapshot, a count of changed monitors then, for 
+ *       each, the id, a byte with one bit set per changed field and the 
+ *       zigzag varint delta of each changed field. Finally a count of 
+ *       removed monitors and their ids.</li>
+ *   <li>{@link #FRAME_HISTOGRAM} -- sent before a snapshot frame, a count of
+ *       histograms whose counts have changed then, for each, the id, the 
+ *       highest trackable value as a varint and the significant digits as
+ *       a byte, a count of changed buckets and for each the varint gap 
+ *       from the previous changed bucket index and the zigzag varint delta
+ *       of its count. If the layout changes the deltas are from zero.</li>
+ *   <li>{@link #FRAME_SKETCH} -- sent before a snapshot frame, a count of
+ *       sketches that have changed then, for each, the id and a byte giving
+ *       the kind of sketch. A {@link #SKETCH_DISTINCT} sketch has its 
+ *       precision as a byte, a count of changed registers and for each the
+ *       varint gap from the previous changed register and its new value as
+ *       a byte; if the precision changes the registers start from zero. A
+ *       {@link #SKETCH_TOP_K} sketch is sent in full, k, the capacity, the
+ *       floor and a count of items as varints then each item as length 
+ *       prefixed UTF-8 followed by its count and error as varints.</li>
+ * </ul>
+ * <p>
+ * Monitors whose values have not changed are not sent at all, so a decoder 
+ * must keep the values of every monitor it has seen.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+final class WireFormat {
+
+	static final int MAGIC = 0x4D4F4E57;
+	static final byte VERSION = 3;
+	
+	static final byte FRAME_DICTIONARY = 1;
+	static final byte FRAME_SNAPSHOT = 2;
+	static final byte FRAME_HISTOGRAM = 3;
+	static final byte FRAME_SKETCH = 4;
+	
+	static final byte SKETCH_DISTINCT = 1;
+	static final byte SKETCH_TOP_K = 2;
+	
+	private WireFormat() { }
+	
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
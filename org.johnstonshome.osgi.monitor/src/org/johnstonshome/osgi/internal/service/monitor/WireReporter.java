@@ -0,0 +1,243 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.internal.service.monitor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.johnstonshome.osgi.service.monitor.MonitorReporter;
+import org.johnstonshome.osgi.service.monitor.MonitorSnapshot;
+
+/**
+ * Streams each snapshot to a collector over a socket in the 
+ * {@link WireFormat}. Snapshots are encoded on the snapshot thread and the
+ * frames handed, through a small bounded queue, to a thread of the 
+ * reporter's own that connects and writes, so a collector that is down or
+ * slow never holds up the other reporters. While there is no connection 
+ * snapshots are dropped without being encoded, and connection attempts 
+ * back off from one second to a minute.
+ * <p>
+ * Each connection is a new stream with a fresh dictionary, frames are 
+ * tagged with the connection they were encoded for and any left over from
+ * an earlier connection are discarded. As a stream cannot skip a frame, if
+ * the queue is full the connection is dropped and a new one made.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+class WireReporter implements MonitorReporter, Runnable {
+
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final long WRITE_TIMEOUT = 5000;
+	private static final long POLL_INTERVAL = 1000;
+	private static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+	private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+	private static final int QUEUE_SIZE = 16;
+	
+	private static final int NOT_CONNECTED = 0;
+	
+	/*
+	 * The frames of one snapshot, for one connection.
+	 */
+	private static final class Frames {
+		final int connection;
+		final ByteBuffer buffer;
+		
+		Frames(int connection, ByteBuffer buffer) {
+			this.connection = connection;
+			this.buffer = buffer;
+		}
+	}
+	
+	private final InetSocketAddress address;
+	private final BlockingQueue<Frames> queue = new ArrayBlockingQueue<Frames>(QUEUE_SIZE);
+	
+	/*
+	 * The current connection, set by the writing thread, and a connection 
+	 * whose stream has lost a frame, set by the snapshot thread.
+	 */
+	private volatile int connection = NOT_CONNECTED;
+	private volatile int broken = NOT_CONNECTED;
+	private volatile boolean running = false;
+	private Thread thread = null;
+	
+	/*
+	 * Only used on the snapshot thread, the encoder and the connection its
+	 * stream was started for.
+	 */
+	private final WireEncoder encoder = new WireEncoder();
+	private int stream = NOT_CONNECTED;
+	
+	/*
+	 * Only used on the writing thread.
+	 */
+	private int connections = NOT_CONNECTED;
+	private SocketChannel channel = null;
+	private Selector selector = null;
+	
+	WireReporter(InetSocketAddress address) {
+		this.address = address;
+	}
+	
+	/**
+	 * Parse an address of the form <code>host:port</code>.
+	 * 
+	 * @param address the address string.
+	 * @return the socket address, unresolved until first used.
+	 */
+	static InetSocketAddress parseAddress(String address) {
+		int colon = address.lastIndexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException(address);
+		}
+		return InetSocketAddress.createUnresolved(
+				address.substring(0, colon), 
+				Integer.parseInt(address.substring(colon + 1)));
+	}
+	
+	synchronized void start() {
+		if (this.thread != null) {
+			return;
+		}
+		this.running = true;
+		this.thread = new Thread(this, "Monitor Wire Reporter"); //$NON-NLS-1$
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	@Override
+	public void report(MonitorSnapshot snapshot, MonitorSnapshot delta) {
+		int connection = this.connection;
+		if (connection == NOT_CONNECTED) {
+			return;
+		}
+		if (connection != this.stream) {
+			this.encoder.reset();
+			this.stream = connection;
+		}
+		ByteBuffer frames = this.encoder.encode(snapshot);
+		ByteBuffer copy = ByteBuffer.allocate(frames.remaining());
+		copy.put(frames).flip();
+		if (!this.queue.offer(new Frames(connection, copy))) {
+			this.broken = connection;
+			this.stream = NOT_CONNECTED;
+		}
+	}
+	
+	synchronized void close() {
+		this.running = false;
+		if (this.thread != null) {
+			this.thread.interrupt();
+			try {
+				this.thread.join(CONNECT_TIMEOUT + WRITE_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		long backoff = MIN_BACKOFF;
+		while (this.running) {
+			try {
+				connect();
+				backoff = MIN_BACKOFF;
+				send();
+			} catch (IOException e) {
+				// dropped, try again after the back off
+			} catch (InterruptedException e) {
+				break;
+			} finally {
+				disconnect();
+			}
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				break;
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+		disconnect();
+	}
+	
+	private void connect() throws IOException {
+		this.channel = SocketChannel.open();
+		this.channel.socket().setTcpNoDelay(true);
+		this.channel.socket().connect(
+				new InetSocketAddress(this.address.getHostName(), this.address.getPort()), 
+				CONNECT_TIMEOUT);
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(this.selector, SelectionKey.OP_WRITE);
+		this.queue.clear();
+		if (++this.connections == NOT_CONNECTED) {
+			++this.connections;
+		}
+		this.connection = this.connections;
+	}
+	
+	private void send() throws IOException, InterruptedException {
+		int connection = this.connection;
+		while (this.running) {
+			Frames frames = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			if (this.broken == connection) {
+				throw new IOException("Collector is not keeping up"); //$NON-NLS-1$
+			}
+			if (frames == null || frames.connection != connection) {
+				continue;
+			}
+			write(frames.buffer);
+		}
+	}
+	
+	/*
+	 * Write the whole buffer, waiting at most the write timeout for the 
+	 * collector to make room.
+	 */
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (this.channel.write(buffer) == 0 && buffer.hasRemaining()) {
+				this.selector.selectedKeys().clear();
+				if (this.selector.select(WRITE_TIMEOUT) == 0) {
+					throw new IOException("Timed out writing to the collector"); //$NON-NLS-1$
+				}
+			}
+		}
+	}
+	
+	private void disconnect() {
+		this.connection = NOT_CONNECTED;
+		if (this.selector != null) {
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				// nothing more can be done
+			}
+			this.selector = null;
+		}
+		if (this.channel != null) {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				// nothing more can be done
+			}
+			this.channel = null;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+import java.util.Collection;
+
+/**
+ * A {@link MonitorListener} that can accept a batch of updates in a single 
+ * call. When the monitor service delivers updates in batches a listener 
+ * implementing this interface receives one call per batch, other listeners
+ * receive one {@link MonitorListener#monitorUpdated(Monitor)} call for each
+ * monitor in the batch.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface BatchMonitorListener extends MonitorListener {
+
+	/**
+	 * Signals that the values of a number of monitors were updated, a client
+	 * would need to track the monitors to be able to determine what has 
+	 * changed. 
+	 * 
+	 * @param monitors the changed monitors, this collection is only valid 
+	 * for the duration of the call and must not be modified.
+	 */
+	public void monitorsUpdated(Collection<Monitor> monitors);
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+import java.util.List;
+
+/**
+ * The aggregated timings of one path in a {@link CallTree}. Nodes are live
+ * views of the tree, their values change as further spans complete.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface CallNode {
+
+	/**
+	 * Return the name of the span at the end of this path.
+	 * 
+	 * @return the span name.
+	 */
+	public String getName();
+	
+	/**
+	 * Return the number of spans completed on this path.
+	 * 
+	 * @return the number of spans.
+	 */
+	public long getCount();
+	
+	/**
+	 * Return the total time of the spans completed on this path.
+	 * 
+	 * @return the total time, in nanoseconds.
+	 */
+	public long getTotalTime();
+	
+	/**
+	 * Return the time of the spans completed on this path not spent in 
+	 * their child spans.
+	 * 
+	 * @return the self time, in nanoseconds.
+	 */
+	public long getSelfTime();
+	
+	/**
+	 * Return the children of this node, those with the most total time 
+	 * first.
+	 * 
+	 * @return the child nodes, which may be empty.
+	 */
+	public List<CallNode> getChildren();
+}
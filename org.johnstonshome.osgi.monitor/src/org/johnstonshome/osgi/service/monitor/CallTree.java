@@ -0,0 +1,87 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.johnstonshome.utils.fun.ValueFunction;
+
+/**
+ * A monitor that times nested spans of work, such as the steps of handling 
+ * a request, and aggregates them into a call tree. A span entered while 
+ * another span of the same monitor is open on the same thread becomes its
+ * child, and the tree keeps, for each distinct path from a top level span, 
+ * the number of spans completed, their total time and their self time (the
+ * total less the time spent in child spans). All times are in nanoseconds.
+ * <p>
+ * Each thread keeps its own stack of open spans, so entering and exiting a 
+ * span takes no locks and, once a path has been seen, allocates nothing. 
+ * The number of distinct paths is bounded, spans whose path would exceed 
+ * the bound are not recorded and their time is counted as self time of 
+ * the enclosing span.
+ * </p>
+ * <p>
+ * The count, sum, minimum and maximum reported for this monitor in a 
+ * {@link MonitorSnapshot} are those of the top level spans.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface CallTree extends Monitor {
+
+	/**
+	 * Open a span on the calling thread, as a child of the span the thread
+	 * has open, if any. Every call must be matched by a call to 
+	 * {@link #exit()} on the same thread, usually in a <code>finally</code>
+	 * block.
+	 * 
+	 * @param name the name of the span, must not be <code>null</code>.
+	 */
+	public void enter(String name);
+	
+	/**
+	 * Close the span most recently opened by the calling thread and record
+	 * its time.
+	 * 
+	 * @return the time of the span, in nanoseconds, or <code>-1</code> if 
+	 * the thread has no span open.
+	 */
+	public long exit();
+	
+	/**
+	 * Time the execution of the provided function as a span, the span is 
+	 * closed and recorded whether the function returns normally or throws.
+	 * 
+	 * @param name the name of the span, must not be <code>null</code>.
+	 * @param function the function to call and time.
+	 * @return the value returned by <code>function</code>.
+	 */
+	public <V> V time(String name, ValueFunction<V> function);
+	
+	/**
+	 * Return the top level spans of the tree, those with the most total 
+	 * time first.
+	 * 
+	 * @return the top level nodes of the tree, which may be empty.
+	 */
+	public List<CallNode> getRoots();
+	
+	/**
+	 * Write the tree in the collapsed stack format read by flame graph 
+	 * tools, one line per path with self time, of the form 
+	 * <code>root;child;grandchild selfTime</code>. Semicolons and line 
+	 * breaks in span names are replaced with underscores.
+	 * 
+	 * @param output the output to append to.
+	 * @throws IOException if the output cannot be written.
+	 */
+	public void writeCollapsed(Appendable output) throws IOException;
+}
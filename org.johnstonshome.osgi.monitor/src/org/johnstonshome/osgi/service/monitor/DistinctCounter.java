@@ -0,0 +1,63 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * A monitor that estimates the number of distinct values it has been 
+ * given, such as the number of different users of an endpoint, in a fixed
+ * amount of memory however many values there are. Values are hashed into a
+ * HyperLogLog sketch of <code>2^precision</code> one byte registers, the 
+ * estimate has a relative standard error of about 
+ * <code>1.04 / sqrt(2^precision)</code>. Sketches merge exactly, so the
+ * estimate for a cluster is that of the union of every node's values.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface DistinctCounter extends Monitor {
+
+	/**
+	 * Add a value, values are compared by their hash so should have a 
+	 * well distributed {@link Object#hashCode()}; strings and other 
+	 * character sequences are hashed from their characters.
+	 * 
+	 * @param value the value to add, must not be <code>null</code>.
+	 */
+	public void add(Object value);
+	
+	/**
+	 * Add a value, such as a numeric identifier, without boxing it.
+	 * 
+	 * @param value the value to add.
+	 */
+	public void add(long value);
+	
+	/**
+	 * Return the estimated number of distinct values added since the 
+	 * monitor was created or last reset.
+	 * 
+	 * @return the estimate.
+	 */
+	public long getEstimate();
+	
+	/**
+	 * Return the number of values added, including repeated values.
+	 * 
+	 * @return the number of values added.
+	 */
+	public long getCount();
+	
+	/**
+	 * Return the precision of the sketch, the base two logarithm of its 
+	 * number of registers.
+	 * 
+	 * @return the precision.
+	 */
+	public int getPrecision();
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * One of the slowest timings recorded by a {@link TimerStatistic}, kept so 
+ * that an outlier can be traced back to the invocation that caused it.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface Exemplar {
+
+	/**
+	 * Return the duration of the timing, in the timer's resolution.
+	 * 
+	 * @return the duration recorded.
+	 */
+	public Duration getDuration();
+	
+	/**
+	 * Return the time the timing was stopped, in milliseconds since the 
+	 * epoch.
+	 * 
+	 * @return the time the duration was recorded.
+	 */
+	public long getTimestamp();
+	
+	/**
+	 * Return the name of the thread that stopped the timing.
+	 * 
+	 * @return the thread name.
+	 */
+	public String getThreadName();
+	
+	/**
+	 * Return the context given to {@link TimerContext#setContext(Object)} 
+	 * for the timing, if any.
+	 * 
+	 * @return the context, or <code>null</code> if none was given.
+	 */
+	public String getContext();
+}
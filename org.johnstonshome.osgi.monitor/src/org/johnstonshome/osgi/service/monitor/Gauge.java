@@ -0,0 +1,51 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+import org.johnstonshome.utils.fun.ValueFunction;
+
+/**
+ * A Gauge monitor reports a value that is read rather than recorded, for 
+ * example the depth of a queue or the size of a cache. The gauge holds a 
+ * {@link ValueFunction} which is only called when the gauge is read, by a
+ * snapshot, an exporter or {@link #getValue()}, so the code owning the 
+ * value pays nothing as it changes. If the function is expensive the gauge
+ * can keep its result for a time to live, within which readers share one
+ * result and only one reader at a time calls the function.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface Gauge extends Monitor {
+
+	/**
+	 * Get the current value of the gauge, calling the function unless a
+	 * result within its time to live is held.
+	 * 
+	 * @return the value, the last value returned if the function failed, or
+	 * <code>null</code> if the function returned <code>null</code> or has 
+	 * not yet returned.
+	 */
+	public Number getValue();
+	
+	/**
+	 * Return the time for which a result of the function is kept.
+	 * 
+	 * @return the time to live in milliseconds, <code>0</code> if the 
+	 * function is called on every read.
+	 */
+	public long getTimeToLive();
+	
+	/**
+	 * Return the function that provides the gauge's value.
+	 * 
+	 * @return the function.
+	 */
+	public ValueFunction<? extends Number> getFunction();
+}
@@ -0,0 +1,41 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * One of the most frequent items reported by a {@link TopK} monitor.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface HeavyHitter {
+
+	/**
+	 * Return the item.
+	 * 
+	 * @return the item.
+	 */
+	public String getItem();
+	
+	/**
+	 * Return the number of occurrences counted for the item, which may 
+	 * overestimate the true count by up to {@link #getError()}.
+	 * 
+	 * @return the count.
+	 */
+	public long getCount();
+	
+	/**
+	 * Return the largest amount by which {@link #getCount()} may exceed the 
+	 * true count.
+	 * 
+	 * @return the maximum overestimate.
+	 */
+	public long getError();
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * A monitor that records the distribution of a set of values, such as 
+ * request latencies, so that percentiles can be reported as well as the
+ * minimum, maximum and average. Values are counted in a fixed set of 
+ * log-linear buckets so the memory used by a histogram does not grow with
+ * the number of values recorded; the precision of the buckets is determined
+ * by the number of significant digits the histogram was created with.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface Histogram extends Monitor {
+
+	/**
+	 * Record a new value in the histogram. Values less than <code>0</code> are
+	 * recorded as <code>0</code> and values greater than 
+	 * {@link #getHighestTrackableValue()} are recorded as that value.
+	 * 
+	 * @param value the new value.
+	 */
+	public void recordValue(long value);
+
+	/**
+	 * Return a consistent, immutable, view of all values recorded since the
+	 * histogram was created or last reset. 
+	 * 
+	 * @return a snapshot of the histogram.
+	 */
+	public HistogramSnapshot getSnapshot();
+	
+	/**
+	 * Return the highest value this histogram can distinguish.
+	 * 
+	 * @return the highest trackable value.
+	 */
+	public long getHighestTrackableValue();
+	
+	/**
+	 * Return the number of significant decimal digits to which values are
+	 * distinguished.
+	 * 
+	 * @return the number of significant digits.
+	 */
+	public int getSignificantDigits();
+}
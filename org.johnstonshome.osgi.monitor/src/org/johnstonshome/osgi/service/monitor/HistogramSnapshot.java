@@ -0,0 +1,61 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * An immutable view of the values recorded by a {@link Histogram}, all the
+ * values returned by a snapshot are consistent with each other. Values are
+ * reported to the precision of the histogram, that is any value returned is 
+ * equivalent to the recorded values within the histogram's significant 
+ * digits.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface HistogramSnapshot {
+
+	/**
+	 * Return the count of how many values have been recorded.
+	 * 
+	 * @return the number of calls to {@link Histogram#recordValue(long)}.
+	 */
+	public long getCount();
+
+	/**
+	 * Returns the minimum value of all those recorded.
+	 * 
+	 * @return the minimum value, or <code>0</code> if none were recorded.
+	 */
+	public long getMin();
+
+	/**
+	 * Returns the maximum value of all those recorded.
+	 * 
+	 * @return the maximum value, or <code>0</code> if none were recorded.
+	 */
+	public long getMax();
+
+	/**
+	 * Returns the average of all values recorded.
+	 * 
+	 * @return the average value, or <code>0</code> if none were recorded.
+	 */
+	public double getAverage();
+	
+	/**
+	 * Return the value at or below which the given percentage of values 
+	 * recorded fall.
+	 * 
+	 * @param percentile the percentile, between <code>0.0</code> and 
+	 * <code>100.0</code>, for example <code>99.9</code>.
+	 * @return the value at the percentile, or <code>0</code> if no values 
+	 * were recorded.
+	 */
+	public long getValueAtPercentile(double percentile);
+}
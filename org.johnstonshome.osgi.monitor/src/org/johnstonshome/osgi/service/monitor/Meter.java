@@ -0,0 +1,52 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * A {@link Counter} that also tracks the rate at which it is incremented. 
+ * As well as the mean rate since creation the meter keeps exponentially 
+ * weighted moving average rates over one, five and fifteen minutes (in the 
+ * same manner as the UNIX load average) so that recent changes in rate are 
+ * visible. Only increments contribute to the rates, decrements and 
+ * {@link Counter#set(long)} only change the counter value.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface Meter extends Counter {
+
+	/**
+	 * Return the mean rate of increments since the meter was created or 
+	 * last reset.
+	 * 
+	 * @return the rate in events per second.
+	 */
+	public double getMeanRate();
+
+	/**
+	 * Return the one minute moving average rate of increments.
+	 * 
+	 * @return the rate in events per second.
+	 */
+	public double getOneMinuteRate();
+
+	/**
+	 * Return the five minute moving average rate of increments.
+	 * 
+	 * @return the rate in events per second.
+	 */
+	public double getFiveMinuteRate();
+
+	/**
+	 * Return the fifteen minute moving average rate of increments.
+	 * 
+	 * @return the rate in events per second.
+	 */
+	public double getFifteenMinuteRate();
+}
@@ -44,6 +44,26 @@ public interface Monitor {
 	 */
 	public String getName();
 	
+	/**
+	 * Return the full identity of this monitor, its group, name and any
+	 * tags it was created with.
+	 * 
+	 * @return the monitor key.
+	 */
+	public MonitorKey getKey();
+	
+	/**
+	 * Return the identifier assigned to this monitor when it was registered 
+	 * with the {@link MonitorService}, for use with 
+	 * {@link MonitorService#getMonitor(int)}. The identifiers of removed 
+	 * monitors are reused only after many other identifiers, so an 
+	 * identifier kept after its monitor is removed finds nothing.
+	 * 
+	 * @return the monitor identifier, or -1 if the monitor is not 
+	 * registered.
+	 */
+	public int getId();
+	
 	/**
 	 * Return a more readable display label for this monitor, this would
 	 * also allow for internationalization of labels for display in a 
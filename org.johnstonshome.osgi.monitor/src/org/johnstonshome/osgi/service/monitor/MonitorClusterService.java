@@ -0,0 +1,45 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+import java.util.Set;
+
+/**
+ * Provides a cluster wide view of monitors, merged from the snapshots of 
+ * this node and of the peer nodes that stream their snapshots to it. 
+ * Counters, counts, sums and meter rates are added across nodes, minimums
+ * and maximums are those of all nodes and histogram percentiles are taken
+ * from the merged buckets. Monitors are matched across nodes by their
+ * {@link MonitorKey}.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface MonitorClusterService {
+
+	/**
+	 * Name of the node holding the values of this node's own monitors.
+	 */
+	public static final String LOCAL_NODE = "local"; //$NON-NLS-1$
+	
+	/**
+	 * Return the merged values of all monitors on all nodes, as of the last
+	 * snapshot received from each. The snapshot is complete, not a delta, 
+	 * and its timestamp is that of the latest snapshot merged.
+	 * 
+	 * @return the merged snapshot, ordered by key.
+	 */
+	public MonitorSnapshot getClusterSnapshot();
+	
+	/**
+	 * @return the names of the nodes currently contributing to the cluster
+	 * snapshot.
+	 */
+	public Set<String> getNodes();
+}
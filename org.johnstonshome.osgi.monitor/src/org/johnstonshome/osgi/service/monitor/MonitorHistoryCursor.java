@@ -0,0 +1,47 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * A forward only cursor over the records returned from 
+ * {@link MonitorHistoryService#query(String, String, long, long, int)}. 
+ * Values are read directly from the store as each is requested, so are only
+ * valid until the next call to {@link #next()}.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface MonitorHistoryCursor {
+
+	/**
+	 * Move to the next record.
+	 * 
+	 * @return <code>true</code> if there is another record, else 
+	 * <code>false</code>.
+	 */
+	public boolean next();
+	
+	/**
+	 * @return the time of the current record, in milliseconds since the 
+	 * epoch.
+	 */
+	public long getTimestamp();
+	
+	/**
+	 * @return the type of the monitor when the current record was written.
+	 */
+	public MonitorType getType();
+	
+	/**
+	 * @param field one of the field constants defined on 
+	 * {@link MonitorSnapshot}.
+	 * @return the value of the field in the current record.
+	 */
+	public long get(int field);
+}
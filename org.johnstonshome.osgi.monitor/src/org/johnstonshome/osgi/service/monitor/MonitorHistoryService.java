@@ -0,0 +1,71 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * Provides access to the recorded history of monitors, this service is 
+ * only registered if the <code>history.enabled</code> component property is
+ * <code>true</code>. Each snapshot taken by the 
+ * {@link MonitorSnapshotService} is stored on disk, as are rollups of those 
+ * snapshots to one minute and one hour resolution. Each resolution is kept 
+ * for a configured retention period after which it is deleted. Counters, 
+ * statistics and other cumulative monitors that did not change in a 
+ * snapshot interval have no record for that interval.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface MonitorHistoryService {
+
+	/**
+	 * Records at the snapshot interval.
+	 */
+	public static final int RESOLUTION_SNAPSHOT = 0;
+	
+	/**
+	 * Records rolled up to one minute.
+	 */
+	public static final int RESOLUTION_MINUTE = 1;
+	
+	/**
+	 * Records rolled up to one hour.
+	 */
+	public static final int RESOLUTION_HOUR = 2;
+	
+	/**
+	 * Query the history of a single monitor with no tags. The values of each record are
+	 * those of a delta {@link MonitorSnapshot}; when rolled up the counts and
+	 * sums are added, the minimum and maximum are those of the period and 
+	 * all other fields are the last value in the period.
+	 * 
+	 * @param group the monitor's group name.
+	 * @param name the monitor's name.
+	 * @param from the earliest record time, inclusive, in milliseconds since 
+	 * the epoch.
+	 * @param to the latest record time, inclusive, in milliseconds since 
+	 * the epoch.
+	 * @param resolution one of the <code>RESOLUTION_*</code> constants.
+	 * @return a cursor over the matching records, in time order.
+	 */
+	public MonitorHistoryCursor query(String group, String name, long from, long to, int resolution);
+	
+	/**
+	 * Query the history of a single monitor, as for 
+	 * {@link #query(String, String, long, long, int)}.
+	 * 
+	 * @param key the monitor's key, including its tags.
+	 * @param from the earliest record time, inclusive, in milliseconds since 
+	 * the epoch.
+	 * @param to the latest record time, inclusive, in milliseconds since 
+	 * the epoch.
+	 * @param resolution one of the <code>RESOLUTION_*</code> constants.
+	 * @return a cursor over the matching records, in time order.
+	 */
+	public MonitorHistoryCursor query(MonitorKey key, long from, long to, int resolution);
+}
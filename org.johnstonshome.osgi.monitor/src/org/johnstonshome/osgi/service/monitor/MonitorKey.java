@@ -0,0 +1,386 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * The identity of a monitor, a group and name and any number of tags (name
+ * and value pairs) that distinguish monitors measuring the same thing for
+ * different endpoints, tenants and so forth. Keys are immutable and compare
+ * equal if their group, name and tags are equal; tags are held in tag name 
+ * order so the order in which they were added does not matter.
+ * </p>
+ * <p>
+ * The text form of a key is <code>group/name{tag=value,...}</code>, the 
+ * braces are omitted if there are no tags. Any of the characters 
+ * <code>\{</code> in the group, and <code>\/{}</code> in the name, are 
+ * preceded by a backslash so that {@link #parse(String)} returns an equal key for any 
+ * key's text form. Tag names and values may not contain any of the 
+ * characters <code>{}=,</code>.
+ * </p>
+ * <p>
+ * Keys with no tags are canonicalized through a small cache, so the same 
+ * key is usually returned for the same group and name without allocating.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+public final class MonitorKey implements Comparable<MonitorKey> {
+
+	private static final String[] NO_TAGS = new String[0];
+	private static final String RESERVED = "{}=,"; //$NON-NLS-1$
+	private static final String ESCAPE_GROUP = "\\{"; //$NON-NLS-1$
+	private static final String ESCAPE_NAME = "\\/{}"; //$NON-NLS-1$
+	private static final char ESCAPE = '\\';
+	
+	/*
+	 * Keys with no tags, each in the slot given by its hash; a slot holds
+	 * the last key created for it.
+	 */
+	private static final int INTERNED = 4096;
+	private static final AtomicReferenceArray<MonitorKey> interned = 
+		new AtomicReferenceArray<MonitorKey>(INTERNED);
+	
+	private final String group;
+	private final String name;
+	
+	/*
+	 * Tag names and values, alternating, sorted by tag name.
+	 */
+	private final String[] tags;
+	private final int hash;
+	
+	/*
+	 * Built on first use, keys are immutable so a race builds equal maps.
+	 */
+	private volatile SortedMap<String, String> tagMap = null;
+	
+	private MonitorKey(String group, String name, String[] tags) {
+		if (group == null || group.length() == 0 || name == null || name.length() == 0) {
+			throw new IllegalArgumentException();
+		}
+		this.group = group;
+		this.name = name;
+		this.tags = tags;
+		int hash = group.hashCode() * 31 + name.hashCode();
+		for (String tag : tags) {
+			hash = hash * 31 + tag.hashCode();
+		}
+		this.hash = hash;
+	}
+	
+	/**
+	 * Create a key with no tags.
+	 * 
+	 * @param group the group name.
+	 * @param name the monitor name.
+	 * @return the key, which may have been returned before.
+	 */
+	public static MonitorKey of(String group, String name) {
+		if (group == null || name == null) {
+			throw new IllegalArgumentException();
+		}
+		int hash = group.hashCode() * 31 + name.hashCode();
+		int slot = (hash ^ (hash >>> 16)) & (INTERNED - 1);
+		MonitorKey key = interned.get(slot);
+		if (key == null || key.hash != hash || key.tags.length != 0 || 
+			!key.name.equals(name) || !key.group.equals(group)) {
+			key = new MonitorKey(group, name, NO_TAGS);
+			interned.set(slot, key);
+		}
+		return key;
+	}
+	
+	/**
+	 * Create a key with tags.
+	 * 
+	 * @param group the group name.
+	 * @param name the monitor name.
+	 * @param tags the tag names and values.
+	 * @return a new key.
+	 */
+	public static MonitorKey of(String group, String name, Map<String, String> tags) {
+		SortedMap<String, String> sorted = new TreeMap<String, String>(tags);
+		String[] pairs = new String[sorted.size() * 2];
+		int i = 0;
+		for (Map.Entry<String, String> tag : sorted.entrySet()) {
+			pairs[i++] = checkTag(tag.getKey());
+			pairs[i++] = checkTag(tag.getValue());
+		}
+		return new MonitorKey(group, name, pairs);
+	}
+	
+	/**
+	 * Parse the text form of a key.
+	 * 
+	 * @param text a key of the form <code>group/name{tag=value,...}</code>.
+	 * @return a new key.
+	 * @throws IllegalArgumentException if the text is not a valid key.
+	 */
+	public static MonitorKey parse(String text) {
+		int brace = text.indexOf('{');
+		while (brace > 0 && isEscaped(text, brace)) {
+			brace = text.indexOf('{', brace + 1);
+		}
+		if (brace >= 0 && !text.endsWith("}")) { //$NON-NLS-1$
+			throw new IllegalArgumentException(text);
+		}
+		String path = brace < 0 ? text : text.substring(0, brace);
+		int slash = path.lastIndexOf('/');
+		while (slash > 0 && isEscaped(path, slash)) {
+			slash = path.lastIndexOf('/', slash - 1);
+		}
+		if (slash <= 0 || slash == path.length() - 1) {
+			throw new IllegalArgumentException(text);
+		}
+		MonitorKey key = of(unescape(path.substring(0, slash)), unescape(path.substring(slash + 1)));
+		if (brace >= 0) {
+			String body = text.substring(brace + 1, text.length() - 1);
+			if (body.length() > 0) {
+				for (String tag : body.split(",")) { //$NON-NLS-1$
+					int equals = tag.indexOf('=');
+					if (equals <= 0) {
+						throw new IllegalArgumentException(text);
+					}
+					key = key.withTag(tag.substring(0, equals), tag.substring(equals + 1));
+				}
+			}
+		}
+		return key;
+	}
+	
+	/*
+	 * A character is escaped if it follows an odd number of backslashes.
+	 */
+	private static boolean isEscaped(String text, int index) {
+		int escapes = 0;
+		while (index > escapes && text.charAt(index - escapes - 1) == ESCAPE) {
+			escapes++;
+		}
+		return (escapes & 1) != 0;
+	}
+	
+	private static String unescape(String text) {
+		if (text.indexOf(ESCAPE) < 0) {
+			return text;
+		}
+		StringBuilder result = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == ESCAPE && i + 1 < text.length()) {
+				c = text.charAt(++i);
+			}
+			result.append(c);
+		}
+		return result.toString();
+	}
+	
+	private static void escape(StringBuilder text, String value, String escaped) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (escaped.indexOf(c) >= 0) {
+				text.append(ESCAPE);
+			}
+			text.append(c);
+		}
+	}
+	
+	private static String checkTag(String value) {
+		if (value == null) {
+			throw new IllegalArgumentException();
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (RESERVED.indexOf(value.charAt(i)) >= 0) {
+				throw new IllegalArgumentException(value);
+			}
+		}
+		return value;
+	}
+	
+	/**
+	 * Return a key with an additional tag, or with a new value for an 
+	 * existing tag.
+	 * 
+	 * @param tag the tag name, must not be empty.
+	 * @param value the tag value.
+	 * @return a new key.
+	 */
+	public MonitorKey withTag(String tag, String value) {
+		if (checkTag(tag).length() == 0) {
+			throw new IllegalArgumentException();
+		}
+		checkTag(value);
+		int i = 0;
+		while (i < this.tags.length && this.tags[i].compareTo(tag) < 0) {
+			i += 2;
+		}
+		String[] tags;
+		if (i < this.tags.length && this.tags[i].equals(tag)) {
+			tags = this.tags.clone();
+		} else {
+			tags = new String[this.tags.length + 2];
+			System.arraycopy(this.tags, 0, tags, 0, i);
+			System.arraycopy(this.tags, i, tags, i + 2, this.tags.length - i);
+			tags[i] = tag;
+		}
+		tags[i + 1] = value;
+		return new MonitorKey(this.group, this.name, tags);
+	}
+	
+	/**
+	 * @return the group name.
+	 */
+	public String getGroup() {
+		return this.group;
+	}
+	
+	/**
+	 * @return the monitor name.
+	 */
+	public String getName() {
+		return this.name;
+	}
+	
+	/**
+	 * @return <code>true</code> if this key has any tags.
+	 */
+	public boolean hasTags() {
+		return this.tags.length > 0;
+	}
+	
+	/**
+	 * @param tag a tag name.
+	 * @return the value of the tag, or <code>null</code> if this key does not
+	 * have the tag.
+	 */
+	public String getTag(String tag) {
+		for (int i = 0; i < this.tags.length; i += 2) {
+			if (this.tags[i].equals(tag)) {
+				return this.tags[i + 1];
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the number of tags.
+	 */
+	public int getTagCount() {
+		return this.tags.length / 2;
+	}
+	
+	/**
+	 * @param index a tag index, from zero to {@link #getTagCount()}, tags 
+	 * are in tag name order.
+	 * @return the name of the tag.
+	 */
+	public String getTagName(int index) {
+		return this.tags[index * 2];
+	}
+	
+	/**
+	 * @param index a tag index, from zero to {@link #getTagCount()}, tags 
+	 * are in tag name order.
+	 * @return the value of the tag.
+	 */
+	public String getTagValue(int index) {
+		return this.tags[index * 2 + 1];
+	}
+	
+	/**
+	 * Return the tags as a map, the map is built once for each key; to walk
+	 * the tags without building it use {@link #getTagCount()}, 
+	 * {@link #getTagName(int)} and {@link #getTagValue(int)}.
+	 * 
+	 * @return a read-only map of the tags, in tag name order.
+	 */
+	public SortedMap<String, String> getTags() {
+		SortedMap<String, String> tagMap = this.tagMap;
+		if (tagMap == null) {
+			SortedMap<String, String> tags = new TreeMap<String, String>();
+			for (int i = 0; i < this.tags.length; i += 2) {
+				tags.put(this.tags[i], this.tags[i + 1]);
+			}
+			tagMap = Collections.unmodifiableSortedMap(tags);
+			this.tagMap = tagMap;
+		}
+		return tagMap;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof MonitorKey)) {
+			return false;
+		}
+		MonitorKey key = (MonitorKey)other;
+		if (this.hash != key.hash || !this.name.equals(key.name) || 
+			!this.group.equals(key.group) || this.tags.length != key.tags.length) {
+			return false;
+		}
+		for (int i = 0; i < this.tags.length; i++) {
+			if (!this.tags[i].equals(key.tags[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+
+	/**
+	 * Keys are ordered by group, then name, then tags; so keys differing 
+	 * only in their tags are adjacent.
+	 */
+	@Override
+	public int compareTo(MonitorKey other) {
+		int result = this.group.compareTo(other.group);
+		if (result == 0) {
+			result = this.name.compareTo(other.name);
+		}
+		for (int i = 0; result == 0 && i < Math.min(this.tags.length, other.tags.length); i++) {
+			result = this.tags[i].compareTo(other.tags[i]);
+		}
+		if (result == 0) {
+			result = this.tags.length - other.tags.length;
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		escape(text, this.group, ESCAPE_GROUP);
+		text.append('/');
+		escape(text, this.name, ESCAPE_NAME);
+		if (this.tags.length == 0) {
+			return text.toString();
+		}
+		text.append('{');
+		for (int i = 0; i < this.tags.length; i += 2) {
+			if (i > 0) {
+				text.append(',');
+			}
+			text.append(this.tags[i]).append('=').append(this.tags[i + 1]);
+		}
+		return text.append('}').toString();
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * An implementation of this interface is given a snapshot of every monitor
+ * at each interval of the {@link MonitorSnapshotService}. Reporters are 
+ * called on the snapshot thread one after another and so should not block.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface MonitorReporter {
+
+	/**
+	 * Report the values of monitors at the end of an interval.
+	 * 
+	 * @param snapshot the values of all monitors.
+	 * @param delta the changes since the previous interval.
+	 */
+	public void report(MonitorSnapshot snapshot, MonitorSnapshot delta);
+}
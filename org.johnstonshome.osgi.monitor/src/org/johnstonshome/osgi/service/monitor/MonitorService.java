@@ -11,6 +11,7 @@ package org.johnstonshome.osgi.service.monitor;
 import java.util.Collection;
 import java.util.Set;
 
+import org.johnstonshome.utils.fun.ValueFunction;
 import org.osgi.framework.ServiceReference;
 
 /**
@@ -19,6 +20,20 @@ import org.osgi.framework.ServiceReference;
  * can be used by other services to maintain counters and statistics for their
  * specific behaviors.
  * </p>
+ * <p>
+ * The service may limit the number of monitors in each group and in total. 
+ * Once a limit is reached a request for a new monitor returns a shared 
+ * <em>overflow</em> monitor of the same type (named <code>overflow.</code> 
+ * followed by the type, for example <code>overflow.counter</code>) so that 
+ * updates are still counted, removing an overflow monitor has no effect. 
+ * The service may also be configured to remove monitors that have not been
+ * updated for some time. A removed monitor that is updated again, through 
+ * a reference its owner kept, is returned to the service; unless a monitor
+ * with the same key has been created in the meantime, in which case the 
+ * updates to the removed monitor are no longer seen. Owners of monitors 
+ * that may be idle for long periods should fetch them again rather than
+ * keep them where eviction is configured.
+ * </p>
  * 
  * @author Simon Johnston
  *
@@ -30,6 +45,13 @@ public interface MonitorService {
 	 * alias the service will provide a JSON feed of all statistic data.
 	 */
 	public static final String PROP_SERVLET_ALIAS = "alias"; //$NON-NLS-1$
+
+	/**
+	 * The property value used in the component specification for the URL
+	 * alias the service will provide a Prometheus text format feed of all 
+	 * monitor data, if not set no feed is provided.
+	 */
+	public static final String PROP_METRICS_ALIAS = "metrics.alias"; //$NON-NLS-1$
 	
 	/**
 	 * Create a new {@link Counter} instance. This will cause an event to be 
@@ -62,6 +84,45 @@ public interface MonitorService {
 	 */
 	public Counter createCounter(ServiceReference sr, String group, String name, boolean signalling);
 
+	/**
+	 * Create a new {@link Counter} instance. This will cause an event to be 
+	 * passed to all registered {@link MonitorListener} instances. A 
+	 * <em>striped</em> counter spreads its updates across a number of 
+	 * internal cells so that concurrent increments from many threads do not
+	 * contend with each other, at the cost of a more expensive 
+	 * {@link Counter#get()}. Striped counters are intended for hot paths 
+	 * that are incremented far more often than they are read.
+	 * 
+	 * @param sr a service reference for the service owning this monitor.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners.
+	 * @param striped determines whether this counter is striped.
+	 * @return a new {@link Counter} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Counter createCounter(ServiceReference sr, String group, String name, boolean signalling, boolean striped);
+
+	/**
+	 * Create a new {@link Counter} instance, optionally striped, whose updates are signalled to
+	 * listeners according to a {@link SignallingPolicy}.
+	 * 
+	 * @param sr a service reference for the service owning this monitor, may
+	 * be <code>null</code>.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param policy determines which updates are signalled to listeners.
+	 * @param striped determines whether this counter is striped.
+	 * @return a new {@link Counter} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Counter createCounter(ServiceReference sr, String group, String name, SignallingPolicy policy, boolean striped);
+
 	/**
 	 * Create a new {@link Statistic} instance. This will cause an event to be 
 	 * passed to all registered {@link MonitorListener} instances. 
@@ -93,6 +154,22 @@ public interface MonitorService {
 	 */
 	public Statistic createStatistic(ServiceReference sr, String group, String name, boolean signalling);
 
+	/**
+	 * Create a new {@link Statistic} instance, whose updates are signalled to
+	 * listeners according to a {@link SignallingPolicy}.
+	 * 
+	 * @param sr a service reference for the service owning this monitor, may
+	 * be <code>null</code>.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param policy determines which updates are signalled to listeners.
+	 * @return a new {@link Statistic} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Statistic createStatistic(ServiceReference sr, String group, String name, SignallingPolicy policy);
+
 	/**
 	 * Create a new {@link TimerStatistic} instance. This will cause an event to be 
 	 * passed to all registered {@link MonitorListener} instances. 
@@ -124,6 +201,449 @@ public interface MonitorService {
 	 */
 	public TimerStatistic createTimerStatistic(ServiceReference sr, String group, String name, boolean signalling);
 
+	/**
+	 * Create a new {@link TimerStatistic} instance, whose updates are signalled to
+	 * listeners according to a {@link SignallingPolicy}.
+	 * 
+	 * @param sr a service reference for the service owning this monitor, may
+	 * be <code>null</code>.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param policy determines which updates are signalled to listeners.
+	 * @return a new {@link TimerStatistic} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public TimerStatistic createTimerStatistic(ServiceReference sr, String group, String name, SignallingPolicy policy);
+
+	/**
+	 * Create a new {@link Histogram} instance, with a default range and 
+	 * precision suitable for recording durations of up to an hour in 
+	 * nanoseconds to two significant digits. This will cause an event to be 
+	 * passed to all registered {@link MonitorListener} instances. 
+	 * 
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners.
+	 * @return a new {@link Histogram} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Histogram createHistogram(String group, String name, boolean signalling);
+
+	/**
+	 * Create a new {@link Histogram} instance, with a default range and 
+	 * precision suitable for recording durations of up to an hour in 
+	 * nanoseconds to two significant digits. This will cause an event to be 
+	 * passed to all registered {@link MonitorListener} instances. 
+	 * 
+	 * @param sr a service reference for the service owning this monitor.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners.
+	 * @return a new {@link Histogram} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Histogram createHistogram(ServiceReference sr, String group, String name, boolean signalling);
+
+	/**
+	 * Create a new {@link Histogram} instance. This will cause an event to be 
+	 * passed to all registered {@link MonitorListener} instances. The memory
+	 * used by the histogram is fixed at creation and grows with the number of
+	 * significant digits and (logarithmically) with the highest trackable 
+	 * value.
+	 * 
+	 * @param sr a service reference for the service owning this monitor.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param highestTrackableValue the highest value the histogram needs to 
+	 * distinguish, must be at least <code>2</code>.
+	 * @param significantDigits the number of significant decimal digits to 
+	 * which values are distinguished, between <code>0</code> and 
+	 * <code>5</code>.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners.
+	 * @return a new {@link Histogram} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Histogram createHistogram(ServiceReference sr, String group, String name, long highestTrackableValue, int significantDigits, boolean signalling);
+
+	/**
+	 * Create a new {@link Histogram} instance, whose updates are signalled to
+	 * listeners according to a {@link SignallingPolicy}.
+	 * 
+	 * @param sr a service reference for the service owning this monitor, may
+	 * be <code>null</code>.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param highestTrackableValue the highest value the histogram needs to 
+	 * distinguish, must be at least <code>2</code>.
+	 * @param significantDigits the number of significant decimal digits to 
+	 * which values are distinguished, between <code>0</code> and 
+	 * <code>5</code>.
+	 * @param policy determines which updates are signalled to listeners.
+	 * @return a new {@link Histogram} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Histogram createHistogram(ServiceReference sr, String group, String name, long highestTrackableValue, int significantDigits, SignallingPolicy policy);
+
+	/**
+	 * Create a new {@link WindowedStatistic} instance which reports on the
+	 * values added within the last <code>window</code> seconds. This will 
+	 * cause an event to be passed to all registered {@link MonitorListener}
+	 * instances. 
+	 * 
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param window the length of the window in seconds, must be at least
+	 * <code>1</code>.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners.
+	 * @return a new {@link WindowedStatistic} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public WindowedStatistic createWindowedStatistic(String group, String name, int window, boolean signalling);
+
+	/**
+	 * Create a new {@link WindowedStatistic} instance which reports on the
+	 * values added within the last <code>window</code> seconds. This will 
+	 * cause an event to be passed to all registered {@link MonitorListener}
+	 * instances. 
+	 * 
+	 * @param sr a service reference for the service owning this monitor.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param window the length of the window in seconds, must be at least
+	 * <code>1</code>.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners.
+	 * @return a new {@link WindowedStatistic} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public WindowedStatistic createWindowedStatistic(ServiceReference sr, String group, String name, int window, boolean signalling);
+
+	/**
+	 * Create a new {@link WindowedStatistic} instance, whose updates are signalled to
+	 * listeners according to a {@link SignallingPolicy}.
+	 * 
+	 * @param sr a service reference for the service owning this monitor, may
+	 * be <code>null</code>.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param window the length of the window in seconds, must be at least
+	 * <code>1</code>.
+	 * @param policy determines which updates are signalled to listeners.
+	 * @return a new {@link WindowedStatistic} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public WindowedStatistic createWindowedStatistic(ServiceReference sr, String group, String name, int window, SignallingPolicy policy);
+
+	/**
+	 * Create a new {@link Meter} instance. This will cause an event to be 
+	 * passed to all registered {@link MonitorListener} instances. 
+	 * 
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners.
+	 * @return a new {@link Meter} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Meter createMeter(String group, String name, boolean signalling);
+
+	/**
+	 * Create a new {@link Meter} instance. This will cause an event to be 
+	 * passed to all registered {@link MonitorListener} instances. 
+	 * 
+	 * @param sr a service reference for the service owning this monitor.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners.
+	 * @return a new {@link Meter} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Meter createMeter(ServiceReference sr, String group, String name, boolean signalling);
+
+	/**
+	 * Create a new {@link Meter} instance, whose updates are signalled to
+	 * listeners according to a {@link SignallingPolicy}.
+	 * 
+	 * @param sr a service reference for the service owning this monitor, may
+	 * be <code>null</code>.
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param policy determines which updates are signalled to listeners.
+	 * @return a new {@link Meter} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Meter createMeter(ServiceReference sr, String group, String name, SignallingPolicy policy);
+
+	/**
+	 * Create a new {@link Gauge} whose value is provided by a function, 
+	 * called only when the gauge is read. Gauges do not signal updates 
+	 * to listeners.
+	 * 
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param function the function providing the value.
+	 * @param timeToLive the time, in milliseconds, for which a result of 
+	 * the function is kept, <code>0</code> to call it on every read.
+	 * @return a new {@link Gauge} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public Gauge createGauge(String group, String name, ValueFunction<? extends Number> function, long timeToLive);
+
+	/**
+	 * Create a new {@link Gauge} whose value is provided by a function, as
+	 * for {@link #createGauge(String, String, ValueFunction, long)}.
+	 * 
+	 * @param sr a service reference for the service owning this monitor, may
+	 * be <code>null</code>.
+	 * @param key the group, name and tags of the monitor.
+	 * @param function the function providing the value.
+	 * @param timeToLive the time, in milliseconds, for which a result of 
+	 * the function is kept, <code>0</code> to call it on every read.
+	 * @return a new {@link Gauge} instance, or <code>null</code> if 
+	 * an error occurred or the monitor limits have been reached.
+	 */
+	public Gauge createGauge(ServiceReference sr, MonitorKey key, ValueFunction<? extends Number> function, long timeToLive);
+
+	/**
+	 * Create a new {@link DistinctCounter} instance, with the default 
+	 * precision of 12 (4096 registers, a standard error of about 1.6%). 
+	 * This will cause an event to be passed to all registered 
+	 * {@link MonitorListener} instances.
+	 * 
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners.
+	 * @return a new {@link DistinctCounter} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public DistinctCounter createDistinctCounter(String group, String name, boolean signalling);
+
+	/**
+	 * Create a new {@link DistinctCounter} instance, whose updates are 
+	 * signalled to listeners according to a {@link SignallingPolicy}.
+	 * 
+	 * @param sr a service reference for the service owning this monitor, may
+	 * be <code>null</code>.
+	 * @param key the group, name and tags of the monitor.
+	 * @param precision the base two logarithm of the number of registers, 
+	 * from 4 to 16.
+	 * @param policy determines which updates are signalled to listeners.
+	 * @return a new {@link DistinctCounter} instance, or <code>null</code> if 
+	 * an error occurred or the monitor limits have been reached.
+	 */
+	public DistinctCounter createDistinctCounter(ServiceReference sr, MonitorKey key, int precision, SignallingPolicy policy);
+
+	/**
+	 * Create a new {@link TopK} instance. This will cause an event to be 
+	 * passed to all registered {@link MonitorListener} instances.
+	 * 
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param k the number of most frequent items to report, from 1 to 1000.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners.
+	 * @return a new {@link TopK} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public TopK createTopK(String group, String name, int k, boolean signalling);
+
+	/**
+	 * Create a new {@link TopK} instance, whose updates are signalled to 
+	 * listeners according to a {@link SignallingPolicy}.
+	 * 
+	 * @param sr a service reference for the service owning this monitor, may
+	 * be <code>null</code>.
+	 * @param key the group, name and tags of the monitor.
+	 * @param k the number of most frequent items to report, from 1 to 1000.
+	 * @param policy determines which updates are signalled to listeners.
+	 * @return a new {@link TopK} instance, or <code>null</code> if 
+	 * an error occurred or the monitor limits have been reached.
+	 */
+	public TopK createTopK(ServiceReference sr, MonitorKey key, int k, SignallingPolicy policy);
+
+	/**
+	 * Create a new {@link CallTree} instance. This will cause an event to be
+	 * passed to all registered {@link MonitorListener} instances.
+	 * 
+	 * @param group the name of the group in which this monitor will be 
+	 * created.
+	 * @param name the name of this individual group, must be unique 
+	 * within the named group.
+	 * @param signalling determines whether this monitor signals it's updates
+	 * to any listeners, updates are signalled as top level spans complete.
+	 * @return a new {@link CallTree} instance, or <code>null</code> if 
+	 * an error occurred.
+	 */
+	public CallTree createCallTree(String group, String name, boolean signalling);
+
+	/**
+	 * Create a new {@link CallTree} instance, whose updates are signalled to 
+	 * listeners according to a {@link SignallingPolicy}.
+	 * 
+	 * @param sr a service reference for the service owning this monitor, may
+	 * be <code>null</code>.
+	 * @param key the group, name and tags of the monitor.
+	 * @param policy determines which updates are signalled to listeners.
+	 * @return a new {@link CallTree} instance, or <code>null</code> if 
+	 * an error occurred or the monitor limits have been reached.
+	 */
+	public CallTree createCallTree(ServiceReference sr, MonitorKey key, SignallingPolicy policy);
+
+	/**
+	 * Return the {@link Counter} with the given group and name, creating it
+	 * (without signalling) if it does not exist. Looking up an existing 
+	 * monitor takes no locks so that frequently executed code can use this
+	 * method rather than caching monitor references. 
+	 * 
+	 * @param group the name of the group holding the monitor.
+	 * @param name the name of the monitor within the group.
+	 * @return the existing or new {@link Counter} instance, or 
+	 * <code>null</code> if an error occurred or a monitor of a different
+	 * type already has this group and name.
+	 */
+	public Counter getOrCreateCounter(String group, String name);
+
+	/**
+	 * Return the {@link Statistic} with the given group and name, creating it
+	 * (without signalling) if it does not exist. Looking up an existing 
+	 * monitor takes no locks.
+	 * 
+	 * @param group the name of the group holding the monitor.
+	 * @param name the name of the monitor within the group.
+	 * @return the existing or new {@link Statistic} instance, or 
+	 * <code>null</code> if an error occurred or a monitor of a different
+	 * type already has this group and name.
+	 */
+	public Statistic getOrCreateStatistic(String group, String name);
+
+	/**
+	 * Return the {@link TimerStatistic} with the given group and name, 
+	 * creating it (without signalling) if it does not exist. Looking up an 
+	 * existing monitor takes no locks.
+	 * 
+	 * @param group the name of the group holding the monitor.
+	 * @param name the name of the monitor within the group.
+	 * @return the existing or new {@link TimerStatistic} instance, or 
+	 * <code>null</code> if an error occurred or a monitor of a different
+	 * type already has this group and name.
+	 */
+	public TimerStatistic getOrCreateTimerStatistic(String group, String name);
+
+	/**
+	 * Return the {@link Histogram} with the given group and name, creating 
+	 * it (without signalling, with the default range and precision) if it 
+	 * does not exist. Looking up an existing monitor takes no locks.
+	 * 
+	 * @param group the name of the group holding the monitor.
+	 * @param name the name of the monitor within the group.
+	 * @return the existing or new {@link Histogram} instance, or 
+	 * <code>null</code> if an error occurred or a monitor of a different
+	 * type already has this group and name.
+	 */
+	public Histogram getOrCreateHistogram(String group, String name);
+
+	/**
+	 * Return the {@link Counter} with the given key, creating it (without 
+	 * signalling) if it does not exist. Monitors with the same group and 
+	 * name but different tags are distinct monitors. Looking up an existing
+	 * monitor takes no locks, though callers on a hot path should keep the
+	 * returned monitor (or its {@link Monitor#getId() identifier}) rather 
+	 * than looking it up on every update.
+	 * 
+	 * @param key the group, name and tags of the monitor.
+	 * @return the existing or new {@link Counter} instance, or 
+	 * <code>null</code> if an error occurred or a monitor of a different
+	 * type already has this key.
+	 */
+	public Counter getOrCreateCounter(MonitorKey key);
+
+	/**
+	 * Return the {@link Statistic} with the given key, creating it (without
+	 * signalling) if it does not exist.
+	 * 
+	 * @param key the group, name and tags of the monitor.
+	 * @return the existing or new {@link Statistic} instance, or 
+	 * <code>null</code> if an error occurred or a monitor of a different
+	 * type already has this key.
+	 */
+	public Statistic getOrCreateStatistic(MonitorKey key);
+
+	/**
+	 * Return the {@link TimerStatistic} with the given key, creating it 
+	 * (without signalling) if it does not exist.
+	 * 
+	 * @param key the group, name and tags of the monitor.
+	 * @return the existing or new {@link TimerStatistic} instance, or 
+	 * <code>null</code> if an error occurred or a monitor of a different
+	 * type already has this key.
+	 */
+	public TimerStatistic getOrCreateTimerStatistic(MonitorKey key);
+
+	/**
+	 * Return the {@link Histogram} with the given key, creating it (without
+	 * signalling, with the default range and precision) if it does not 
+	 * exist.
+	 * 
+	 * @param key the group, name and tags of the monitor.
+	 * @return the existing or new {@link Histogram} instance, or 
+	 * <code>null</code> if an error occurred or a monitor of a different
+	 * type already has this key.
+	 */
+	public Histogram getOrCreateHistogram(MonitorKey key);
+	
+	/**
+	 * Find an existing monitor by key.
+	 * 
+	 * @param key the group, name and tags of the monitor.
+	 * @return the monitor, or <code>null</code> if there is none.
+	 */
+	public Monitor getMonitor(MonitorKey key);
+	
+	/**
+	 * Find an existing monitor by the identifier it was assigned when it 
+	 * was created, this is a single array read. An identifier kept after 
+	 * its monitor is removed finds nothing, even once the monitor's slot 
+	 * has been given to another monitor.
+	 * 
+	 * @param id the monitor identifier.
+	 * @return the monitor, or <code>null</code> if there is none.
+	 */
+	public Monitor getMonitor(int id);
+
 	/**
 	 * Remove the provided monitor from the internal registry.  This will cause 
 	 * an event to be passed to all registered {@link MonitorListener} instances. 
@@ -139,7 +659,8 @@ public interface MonitorService {
 	 * Return the set of group names currently holding monitors. Note that groups
 	 * are added when any monitor is created with a new, unique, name and that 
 	 * groups are removed from this list when the last monitor in the group is
-	 * removed using the <code>removeMonitor</code> method.
+	 * removed using the <code>removeMonitor</code> method. The set is a live
+	 * view which may be iterated while monitors are being created and removed.
 	 * 
 	 * @return a {@link java.util.Set} of the unique groups holding current
 	 * monitors. This is a read-only set.
@@ -148,11 +669,25 @@ public interface MonitorService {
 	
 	/**
 	 * Return a collection of all monitor instances for a given group name. Note
-	 * that while the 
+	 * that while the collection is a live view it may be iterated while 
+	 * monitors are being created and removed.
 	 * 
-	 * @param group
-	 * @return a {@link java.util.Collection} of the monitors in the named group. 
-	 * This is a read-only collection.
+	 * @param group the name of the group.
+	 * @return a {@link java.util.Collection} of the monitors in the named group,
+	 * empty if the group does not exist. This is a read-only collection.
 	 */
 	public Collection<Monitor> getMonitorsForGroup(String group);
+	
+	/**
+	 * Return a collection of all monitor instances with the given tag value,
+	 * in any group. Like {@link #getMonitorsForGroup(String)} this is a live
+	 * view which may be iterated while monitors are being created and 
+	 * removed.
+	 * 
+	 * @param tag the tag name.
+	 * @param value the tag value.
+	 * @return a {@link java.util.Collection} of the monitors with the tag,
+	 * empty if there are none. This is a read-only collection.
+	 */
+	public Collection<Monitor> getMonitorsWithTag(String tag, String value);
 }
@@ -0,0 +1,135 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * <p>
+ * An immutable record of the values of every monitor at a point in time, as
+ * captured by the {@link MonitorSnapshotService}. Monitors are addressed by 
+ * their index in the snapshot and each has a fixed set of value fields, 
+ * fields that do not apply to a monitor's type are <code>0</code>.
+ * </p>
+ * <ul>
+ *   <li>{@link #COUNT} -- the value of a counter or meter, the number of 
+ *       values recorded by any other type.</li>
+ *   <li>{@link #SUM} -- the sum of the values recorded, wrapped to 64 bits
+ *       (the difference between two sums is still exact).</li>
+ *   <li>{@link #MIN}, {@link #MAX} -- the minimum and maximum values.</li>
+ *   <li>{@link #P50} ... {@link #P999} -- histogram percentiles.</li>
+ *   <li>{@link #RATE_1}, {@link #RATE_5}, {@link #RATE_15} -- the moving
+ *       average rates of a meter, in events per thousand seconds.</li>
+ *   <li>{@link #VALUE} -- the value of a gauge, in thousandths; the 
+ *       minimum and maximum hold the value rounded to a whole number.</li>
+ *   <li>For a distinct counter {@link #COUNT} is the number of values 
+ *       added and {@link #VALUE}, {@link #MIN} and {@link #MAX} the 
+ *       estimated number of distinct values.</li>
+ *   <li>For a top-k monitor {@link #COUNT} is the total weight added, 
+ *       {@link #MAX} the count of the most frequent item and {@link #MIN}
+ *       the count of the k-th.</li>
+ * </ul>
+ * <p>
+ * A <em>delta</em> snapshot holds, for {@link #COUNT} and {@link #SUM}, the
+ * change since the previous snapshot, or since the monitor was reset; all 
+ * other fields hold the current value. Gauges and windowed statistics are 
+ * not totals, so all of their fields hold the current value.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface MonitorSnapshot {
+
+	public static final int COUNT   = 0;
+	public static final int SUM     = 1;
+	public static final int MIN     = 2;
+	public static final int MAX     = 3;
+	public static final int P50     = 4;
+	public static final int P90     = 5;
+	public static final int P99     = 6;
+	public static final int P999    = 7;
+	public static final int RATE_1  = P50;
+	public static final int RATE_5  = P90;
+	public static final int RATE_15 = P99;
+	public static final int VALUE   = P50;
+	
+	/**
+	 * The number of value fields held for each monitor.
+	 */
+	public static final int FIELDS = 8;
+	
+	/**
+	 * Return the time this snapshot was captured.
+	 * 
+	 * @return the time, in milliseconds since the epoch.
+	 */
+	public long getTimestamp();
+	
+	/**
+	 * Return whether this is a delta snapshot.
+	 * 
+	 * @return <code>true</code> if counts and sums are changes since the 
+	 * previous snapshot.
+	 */
+	public boolean isDelta();
+	
+	/**
+	 * Return the number of monitors in this snapshot.
+	 * 
+	 * @return the number of monitors.
+	 */
+	public int size();
+	
+	/**
+	 * Find a monitor, with no tags, in this snapshot.
+	 * 
+	 * @param group the monitor's group name.
+	 * @param name the monitor's name.
+	 * @return the index of the monitor, or <code>-1</code> if not present.
+	 */
+	public int indexOf(String group, String name);
+	
+	/**
+	 * Find a monitor in this snapshot.
+	 * 
+	 * @param key the monitor's key.
+	 * @return the index of the monitor, or <code>-1</code> if not present.
+	 */
+	public int indexOf(MonitorKey key);
+	
+	/**
+	 * @param index the index of a monitor in this snapshot.
+	 * @return the key of the monitor.
+	 */
+	public MonitorKey getKey(int index);
+	
+	/**
+	 * @param index the index of a monitor in this snapshot.
+	 * @return the group name of the monitor.
+	 */
+	public String getGroup(int index);
+
+	/**
+	 * @param index the index of a monitor in this snapshot.
+	 * @return the name of the monitor.
+	 */
+	public String getName(int index);
+
+	/**
+	 * @param index the index of a monitor in this snapshot.
+	 * @return the type of the monitor.
+	 */
+	public MonitorType getType(int index);
+	
+	/**
+	 * @param index the index of a monitor in this snapshot.
+	 * @param field one of the field constants defined on this interface.
+	 * @return the value of the field for the monitor.
+	 */
+	public long get(int index, int field);
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * At a regular interval this service captures a {@link MonitorSnapshot} of
+ * every monitor, computes the changes since the previous interval and passes
+ * both to every registered {@link MonitorReporter}. The cost of reading the
+ * monitors is therefore paid once per interval however many reporters there
+ * are.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface MonitorSnapshotService {
+
+	/**
+	 * Add a new reporter.
+	 * 
+	 * @param reporter a new {@link MonitorReporter} instance. Must not be 
+	 * <code>null</code>.
+	 */
+	public void addReporter(MonitorReporter reporter);
+
+	/**
+	 * Remove an existing reporter.
+	 * 
+	 * @param reporter a {@link MonitorReporter} instance. Must not be 
+	 * <code>null</code>.
+	 */
+	public void removeReporter(MonitorReporter reporter);
+	
+	/**
+	 * Return the most recent snapshot.
+	 * 
+	 * @return the latest snapshot, or <code>null</code> if none has yet 
+	 * been captured.
+	 */
+	public MonitorSnapshot getLatestSnapshot();
+	
+	/**
+	 * Return the interval between snapshots.
+	 * 
+	 * @return the interval in milliseconds.
+	 */
+	public long getInterval();
+}
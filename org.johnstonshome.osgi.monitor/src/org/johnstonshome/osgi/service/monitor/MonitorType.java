@@ -0,0 +1,69 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * Identifies the type of a monitor in a {@link MonitorSnapshot}, where
+ * monitors are recorded as values rather than as instances.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public enum MonitorType {
+
+	/**
+	 * A {@link Counter}.
+	 */
+	COUNTER,
+	
+	/**
+	 * A {@link Meter}.
+	 */
+	METER,
+	
+	/**
+	 * A {@link Statistic}.
+	 */
+	STATISTIC,
+	
+	/**
+	 * A {@link WindowedStatistic}.
+	 */
+	WINDOWED_STATISTIC,
+	
+	/**
+	 * A {@link TimerStatistic}.
+	 */
+	TIMER_STATISTIC,
+	
+	/**
+	 * A {@link Histogram}.
+	 */
+	HISTOGRAM,
+	
+	/**
+	 * A {@link Gauge}.
+	 */
+	GAUGE,
+	
+	/**
+	 * A {@link DistinctCounter}.
+	 */
+	DISTINCT_COUNTER,
+	
+	/**
+	 * A {@link TopK}.
+	 */
+	TOP_K,
+	
+	/**
+	 * A {@link CallTree}.
+	 */
+	CALL_TREE
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Determines which updates to a signalling monitor are passed to listeners,
+ * so that a monitor updated at a high rate does not swamp them. Policies are
+ * immutable and created with the static factory methods:
+ * </p>
+ * <ul>
+ *   <li>{@link #always()} -- every update.</li>
+ *   <li>{@link #never()} -- no updates, the same as a monitor created with
+ *       <code>signalling</code> <code>false</code>.</li>
+ *   <li>{@link #everyNth(long)} -- one update in every <em>n</em>.</li>
+ *   <li>{@link #atMostEvery(long, TimeUnit)} -- the first update after each
+ *       interval has passed.</li>
+ *   <li>{@link #onThreshold(long)} -- only an update that moves the value 
+ *       across the threshold, in either direction. For a counter the value is
+ *       the counter's value, for other monitors it is the value recorded.</li>
+ * </ul>
+ * <p>
+ * Listeners read the monitor's state when signalled, so they always see the
+ * latest values whichever updates are signalled.
+ * </p>
+ * 
+ * @author Simon Johnston
+ *
+ */
+public final class SignallingPolicy {
+
+	/**
+	 * The kinds of policy.
+	 */
+	public enum Kind {
+		ALWAYS,
+		NEVER,
+		EVERY_NTH,
+		AT_MOST_EVERY,
+		ON_THRESHOLD
+	}
+	
+	private static final SignallingPolicy ALWAYS = new SignallingPolicy(Kind.ALWAYS, 0);
+	private static final SignallingPolicy NEVER = new SignallingPolicy(Kind.NEVER, 0);
+	
+	private final Kind kind;
+	private final long parameter;
+	
+	private SignallingPolicy(Kind kind, long parameter) {
+		this.kind = kind;
+		this.parameter = parameter;
+	}
+	
+	/**
+	 * @return a policy that signals every update.
+	 */
+	public static SignallingPolicy always() {
+		return ALWAYS;
+	}
+	
+	/**
+	 * @return a policy that signals no updates.
+	 */
+	public static SignallingPolicy never() {
+		return NEVER;
+	}
+	
+	/**
+	 * @param n the number of updates per signal, must be greater than zero.
+	 * @return a policy that signals one update in every <code>n</code>.
+	 */
+	public static SignallingPolicy everyNth(long n) {
+		if (n <= 0) {
+			throw new IllegalArgumentException();
+		}
+		return n == 1 ? ALWAYS : new SignallingPolicy(Kind.EVERY_NTH, n);
+	}
+	
+	/**
+	 * @param interval the minimum time between signals, must be greater than
+	 * zero.
+	 * @param unit the unit of <code>interval</code>.
+	 * @return a policy that signals at most one update per interval.
+	 */
+	public static SignallingPolicy atMostEvery(long interval, TimeUnit unit) {
+		if (interval <= 0 || unit == null) {
+			throw new IllegalArgumentException();
+		}
+		return new SignallingPolicy(Kind.AT_MOST_EVERY, unit.toNanos(interval));
+	}
+	
+	/**
+	 * @param threshold the value that, when crossed, causes a signal. A value
+	 * equal to the threshold is above it.
+	 * @return a policy that signals when the value crosses the threshold.
+	 */
+	public static SignallingPolicy onThreshold(long threshold) {
+		return new SignallingPolicy(Kind.ON_THRESHOLD, threshold);
+	}
+	
+	/**
+	 * @return the kind of this policy.
+	 */
+	public Kind getKind() {
+		return this.kind;
+	}
+	
+	/**
+	 * @return the number of updates per signal, for an 
+	 * {@link Kind#EVERY_NTH} policy.
+	 */
+	public long getEvery() {
+		return this.kind == Kind.EVERY_NTH ? this.parameter : 1;
+	}
+	
+	/**
+	 * @param unit the unit to return the interval in.
+	 * @return the minimum interval between signals, for an 
+	 * {@link Kind#AT_MOST_EVERY} policy.
+	 */
+	public long getInterval(TimeUnit unit) {
+		return this.kind == Kind.AT_MOST_EVERY ? unit.convert(this.parameter, TimeUnit.NANOSECONDS) : 0;
+	}
+	
+	/**
+	 * @return the threshold, for an {@link Kind#ON_THRESHOLD} policy.
+	 */
+	public long getThreshold() {
+		return this.kind == Kind.ON_THRESHOLD ? this.parameter : 0;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof SignallingPolicy)) {
+			return false;
+		}
+		SignallingPolicy policy = (SignallingPolicy)other;
+		return this.kind == policy.kind && this.parameter == policy.parameter;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.kind.hashCode() * 31 + (int)(this.parameter ^ (this.parameter >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{SignallingPolicy %s %d}", this.kind, this.parameter); //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * A single timing of an operation, returned by 
+ * {@link TimerStatistic#startTimer()}. Each context holds its own start time
+ * so that any number of threads may time operations against the same 
+ * {@link TimerStatistic} at once. A context is only valid until it is stopped
+ * or aborted, after which the timer may reuse it for a later timing on the
+ * same thread, clients should therefore not hold on to a context once it is
+ * finished.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface TimerContext {
+
+	/**
+	 * Attach a context, such as a request identifier, to this timing. The 
+	 * context is only turned into a string, with its <code>toString()</code>
+	 * method, if the timing is slow enough to be kept as an 
+	 * {@link Exemplar}, so passing an object that describes itself lazily 
+	 * costs nothing for the common, fast, timings.
+	 * 
+	 * @param context the context, or <code>null</code> for none.
+	 * @return this context.
+	 */
+	public TimerContext setContext(Object context);
+
+	/**
+	 * Stop the timing and record the duration since the context was started
+	 * as a value in the timer's value set.
+	 * 
+	 * @return the duration recorded, in the timer's resolution, or 
+	 * <code>-1</code> if the context was already stopped or aborted.
+	 */
+	public long stop();
+	
+	/**
+	 * Stop the timing, do not record any duration in the value set.
+	 */
+	public void abort();
+}
@@ -8,12 +8,22 @@
  */
 package org.johnstonshome.osgi.service.monitor;
 
+import java.util.List;
+
+import org.johnstonshome.utils.fun.ValueFunction;
+
 /**
  * Similar to the {@link Statistic} monitor this monitor tracks a set of duration
  * values and records statistics for those values. The duration values can be 
  * recorded in different resolutions, although some platforms may not provide
  * all resolutions. Timer values use the {@link Duration} interface to handle
  * actual duration values.
+ * <p>
+ * The timer also keeps a handful of the slowest timings in each window as
+ * {@link Exemplar}s, with the time, thread and any context of the timing. 
+ * A timing is only compared against the fastest exemplar kept so far, so 
+ * timings that are not among the slowest cost nothing more to record.
+ * </p>
  * 
  * @author Simon Johnston
  *
@@ -21,21 +31,39 @@ package org.johnstonshome.osgi.service.monitor;
 public interface TimerStatistic extends Monitor {
 
 	/**
-	 * Start a timer, that is record a value for the current time.
+	 * Start a timer, that is record a value for the current time. The 
+	 * returned context is used to stop the timer, the timer itself may be 
+	 * shared by any number of threads each timing their own operations.
+	 * 
+	 * @return a context used to stop or abort this timing.
 	 */
-	public void startTimer();
+	public TimerContext startTimer();
 	
 	/**
-	 * Stop the timer and record the duration since {@link #startTimer()} 
-	 * as a value in the value set.
+	 * Stop the timer most recently started by the calling thread and record 
+	 * the duration since {@link #startTimer()} as a value in the value set.
+	 * This is equivalent to calling {@link TimerContext#stop()} on the
+	 * context returned from that call.
 	 */
 	public void stopTimer();
 	
 	/**
-	 * Stop the timer, do not record any duration in the value set.
+	 * Stop the timer most recently started by the calling thread, do not 
+	 * record any duration in the value set. This is equivalent to calling 
+	 * {@link TimerContext#abort()} on the context returned from that call.
 	 */
 	public void abortTimer();
 	
+	/**
+	 * Time the execution of the provided function, the duration is only 
+	 * recorded if the function returns normally, if it throws an exception 
+	 * the timing is aborted. 
+	 * 
+	 * @param function the function to call and time.
+	 * @return the value returned by <code>function</code>.
+	 */
+	public <V> V time(ValueFunction<V> function);
+	
 	/**
 	 * Return the count of how many values have been added to the set.
 	 * 
@@ -73,4 +101,12 @@ public interface TimerStatistic extends Monitor {
 	 * @return the resolution used to record durations.
 	 */
 	public TimerResolution getResolution();
+	
+	/**
+	 * Return the slowest timings of the current window and of the window 
+	 * before it, slowest first.
+	 * 
+	 * @return the exemplars kept, which may be empty.
+	 */
+	public List<Exemplar> getExemplars();
 }
@@ -0,0 +1,63 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+import java.util.List;
+
+/**
+ * A monitor that tracks the most frequent of a stream of items, such as the
+ * hottest keys of a cache, in a fixed amount of memory however many 
+ * distinct items there are. The monitor keeps a Space-Saving summary, a 
+ * fixed number of counters each claimed by an item, so an item's count may
+ * be overestimated by at most its reported error and any item whose true
+ * count exceeds the smallest tracked count is guaranteed to be tracked.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface TopK extends Monitor {
+
+	/**
+	 * Count one occurrence of an item.
+	 * 
+	 * @param item the item, must not be <code>null</code>.
+	 */
+	public void add(String item);
+	
+	/**
+	 * Count occurrences of an item.
+	 * 
+	 * @param item the item, must not be <code>null</code>.
+	 * @param weight the number of occurrences, values less than 
+	 * <code>1</code> are ignored.
+	 */
+	public void add(String item, long weight);
+	
+	/**
+	 * Return the most frequent items, most frequent first.
+	 * 
+	 * @return at most {@link #getK()} items.
+	 */
+	public List<HeavyHitter> getTop();
+	
+	/**
+	 * Return the total weight of all items added since the monitor was 
+	 * created or last reset.
+	 * 
+	 * @return the total weight.
+	 */
+	public long getCount();
+	
+	/**
+	 * Return the number of items reported by {@link #getTop()}.
+	 * 
+	 * @return the number of items reported.
+	 */
+	public int getK();
+}
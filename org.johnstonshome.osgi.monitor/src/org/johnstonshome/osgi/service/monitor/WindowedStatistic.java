@@ -0,0 +1,28 @@
+/*
+ * Licensed Materials - Property of Simon Johnston (simon@johnstonshome.org)
+ * (c) Copyright Simon Johnston 2009. All rights reserved.
+ * 
+ * For full license details, see the file LICENSE included in the
+ * distribution of this code.
+ * 
+ */
+package org.johnstonshome.osgi.service.monitor;
+
+/**
+ * A {@link Statistic} that only reports on the values added within a 
+ * sliding window of time, for example the last 60 seconds, rather than on 
+ * all values added since the monitor was created or reset. The window moves
+ * in steps of one second.
+ * 
+ * @author Simon Johnston
+ *
+ */
+public interface WindowedStatistic extends Statistic {
+
+	/**
+	 * Return the length of the window over which values are reported.
+	 * 
+	 * @return the window length in seconds.
+	 */
+	public int getWindow();
+}